@@ -0,0 +1,245 @@
+/*
+ * Copyright (c) 2019. Allan Boyd
+ * This program is made available under the terms of the Apache License v2.0.
+ */
+
+package com.alkimiapps.indexedcache;
+
+import com.alkimiapps.indexedcache.internal.ColumnarObjectStore;
+import com.googlecode.cqengine.ConcurrentIndexedCollection;
+import com.googlecode.cqengine.attribute.SimpleAttribute;
+import com.googlecode.cqengine.query.option.QueryOptions;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An IndexedCollection for flat record types that packs the fields of its objects into columns (see ColumnarLayout)
+ * rather than keeping each object on the heap with its own header, padding and boxed fields. It holds - and returns
+ * from queries - views: small objects, made by a ViewFactory, that implement the record type by reading their fields
+ * from the columns. Use it as the IndexedCollection of an IndexedCache like any other e.g.
+ * new IndexedCache<>(new ColumnarIndexedCollection<>(layout, TradeView::new), cache, cacheKeyMaker). When the
+ * javax.cache.Cache of the IndexedCache stores by reference the IndexedCache puts the views into it too (making the
+ * cache keys from them) so the records are held only in the columns. A store-by-value Cache keeps copies of what it is
+ * given, and entries put into the Cache directly keep the objects they were put with, so in those cases the Cache holds
+ * full records alongside the columns.
+ *
+ * Objects are identified by the primary key attribute of the layout: adding an object copies its fields into a row and
+ * stores a view of the row in its place, and removing an object removes the view with the same primary key. Views must
+ * be equal to (and have the same hash code as) the objects they are views of, so that they can be used as, or to make,
+ * cache keys. A view reads its row each time it is used. The row of a removed view is only reused once the view is no
+ * longer referenced, so a view that is held on to - e.g. one from a query result that is then passed to remove or
+ * update - keeps its values.
+ *
+ * Index the attributes returned by attribute(column) so that index maintenance reads the columns directly rather than
+ * calling the view's getters. Queries that no index answers scan the rows in order. Only on-heap indexes are
+ * supported, and writes to a ColumnarIndexedCollection are serialized.
+ *
+ * @param <O> the record type
+ */
+public final class ColumnarIndexedCollection<O> extends ConcurrentIndexedCollection<O> {
+
+    /**
+     * A view of a row of a ColumnarIndexedCollection. The ViewFactory of a ColumnarIndexedCollection must make views
+     * that implement this interface as well as the record type.
+     */
+    public interface View {
+        ColumnarIndexedCollection<?> getCollection();
+
+        int getRow();
+    }
+
+    @FunctionalInterface
+    public interface ViewFactory<O> {
+        O makeView(ColumnarIndexedCollection<O> collection, int row);
+    }
+
+    private final ColumnarLayout<O> layout;
+    private final ColumnarObjectStore<O> store;
+    private final ViewFactory<O> viewFactory;
+
+    public ColumnarIndexedCollection(ColumnarLayout<O> layout, ViewFactory<O> viewFactory) {
+        this(new ColumnarObjectStore<>(layout), layout, viewFactory);
+    }
+
+    // Generic in the type of the primary key so that the Persistence of the store is typed without a raw Comparable
+    private <A extends Comparable<A>> ColumnarIndexedCollection(ColumnarObjectStore<O> store, ColumnarLayout<O> layout,
+                                                                ViewFactory<O> viewFactory) {
+        super(store.<A>asPersistence());
+        this.layout = layout;
+        this.store = store;
+        this.viewFactory = viewFactory;
+    }
+
+    public ColumnarLayout<O> getLayout() {
+        return layout;
+    }
+
+    public int getInt(int row, int column) {
+        return store.getInt(row, column);
+    }
+
+    public long getLong(int row, int column) {
+        return store.getLong(row, column);
+    }
+
+    public double getDouble(int row, int column) {
+        return store.getDouble(row, column);
+    }
+
+    @SuppressWarnings("unchecked")
+    public <A> A getObject(int row, int column) {
+        return (A) store.getObject(row, column);
+    }
+
+    /**
+     * Return an attribute of the named column. Given a view of this collection it reads the column directly; given any
+     * other object it reads the field with the layout's getter.
+     */
+    @SuppressWarnings("unchecked")
+    public <A> SimpleAttribute<O, A> attribute(String columnName) {
+        int column = layout.indexOf(columnName);
+        ColumnarLayout.ColumnType type = layout.getColumnType(column);
+        return new SimpleAttribute<O, A>(layout.getObjectType(), (Class<A>) layout.getValueType(column), columnName) {
+            @Override
+            public A getValue(O object, QueryOptions queryOptions) {
+                if (!(object instanceof View) || ((View) object).getCollection() != ColumnarIndexedCollection.this) {
+                    return (A) layout.readValue(column, object);
+                }
+                int row = ((View) object).getRow();
+                switch (type) {
+                    case INT:
+                        return (A) Integer.valueOf(store.getInt(row, column));
+                    case LONG:
+                        return (A) Long.valueOf(store.getLong(row, column));
+                    case DOUBLE:
+                        return (A) Double.valueOf(store.getDouble(row, column));
+                    default:
+                        return (A) store.getObject(row, column);
+                }
+            }
+        };
+    }
+
+    /**
+     * Return the view this collection stores for the object with the same primary key as the given object, or null if
+     * it stores none.
+     */
+    public O getStoredView(Object o) {
+        return store.getStored(o);
+    }
+
+    /**
+     * Estimate the bytes of heap held by the columns and the bookkeeping of the rows, not counting the views or the
+     * values of object columns.
+     */
+    public long estimateColumnBytes() {
+        return store.estimateColumnBytes();
+    }
+
+    @Override
+    public synchronized boolean add(O o) {
+        if (store.getStored(o) != null) {
+            return false;
+        }
+        return super.add(writeView(o));
+    }
+
+    @Override
+    public synchronized boolean addAll(Collection<? extends O> c) {
+        Map<Object, O> adds = new LinkedHashMap<>();
+        for (O o : c) {
+            if (store.getStored(o) == null) {
+                adds.putIfAbsent(primaryKeyOf(o), o);
+            }
+        }
+        List<O> views = new ArrayList<>(adds.size());
+        adds.values().forEach(o -> views.add(writeView(o)));
+        return super.addAll(views);
+    }
+
+    @Override
+    public synchronized boolean remove(Object o) {
+        O stored = store.getStored(o);
+        if (stored == null) {
+            return false;
+        }
+        return super.remove(stored);
+    }
+
+    @Override
+    public synchronized boolean removeAll(Collection<?> c) {
+        return super.removeAll(storedViewsOf(c));
+    }
+
+    @Override
+    public synchronized boolean retainAll(Collection<?> c) {
+        Set<Object> retainedKeys = new HashSet<>();
+        for (Object o : c) {
+            if (layout.getObjectType().isInstance(o)) {
+                retainedKeys.add(primaryKeyOf(layout.getObjectType().cast(o)));
+            }
+        }
+        List<O> views = new ArrayList<>();
+        for (O view : this) {
+            if (!retainedKeys.contains(primaryKeyOf(view))) {
+                views.add(view);
+            }
+        }
+        return removeAll(views);
+    }
+
+    /**
+     * Remove the views of the objects to remove and add views of the objects to add, unless an object with the same
+     * primary key is already in the collection (and not being removed).
+     */
+    @Override
+    public synchronized boolean update(Iterable<O> objectsToRemove, Iterable<O> objectsToAdd, QueryOptions queryOptions) {
+        List<O> removedViews = storedViewsOf(objectsToRemove);
+        Set<Object> removedKeys = new HashSet<>();
+        removedViews.forEach(view -> removedKeys.add(primaryKeyOf(view)));
+        Map<Object, O> adds = new LinkedHashMap<>();
+        for (O o : objectsToAdd) {
+            Object primaryKey = primaryKeyOf(o);
+            if (removedKeys.contains(primaryKey) || store.getStored(o) == null) {
+                adds.putIfAbsent(primaryKey, o);
+            }
+        }
+        List<O> addedViews = new ArrayList<>(adds.size());
+        adds.values().forEach(o -> addedViews.add(writeView(o)));
+        return super.update(removedViews, addedViews, queryOptions);
+    }
+
+    private O writeView(O o) {
+        int row = store.write(o);
+        O view = viewFactory.makeView(this, row);
+        if (!(view instanceof View) || ((View) view).getRow() != row) {
+            store.release(row);
+            throw new IllegalStateException("The ViewFactory must make a ColumnarIndexedCollection.View of the given row but made " + view);
+        }
+        return view;
+    }
+
+    private List<O> storedViewsOf(Iterable<?> objects) {
+        List<O> views = new ArrayList<>();
+        Set<O> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (Object o : objects) {
+            O stored = store.getStored(o);
+            if (stored != null && seen.add(stored)) {
+                views.add(stored);
+            }
+        }
+        return views;
+    }
+
+    private Object primaryKeyOf(O o) {
+        return layout.getPrimaryKeyAttribute().getValue(o, null);
+    }
+}
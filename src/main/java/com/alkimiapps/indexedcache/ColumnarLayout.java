@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) 2019. Allan Boyd
+ * This program is made available under the terms of the Apache License v2.0.
+ */
+
+package com.alkimiapps.indexedcache;
+
+import com.googlecode.cqengine.attribute.SimpleAttribute;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Function;
+import java.util.function.ToDoubleFunction;
+import java.util.function.ToIntFunction;
+import java.util.function.ToLongFunction;
+
+/**
+ * The columns a ColumnarIndexedCollection packs the fields of its objects into: a primary key attribute, which
+ * identifies each object, and a named column per field with the function that reads the field from an object. int,
+ * long and double columns are held in primitive arrays; object columns (e.g. of Strings or enums) in reference arrays.
+ *
+ * Columns are numbered in the order they are added, from 0, and the views of a ColumnarIndexedCollection read their
+ * fields by column number. ColumnarLayouts are immutable.
+ *
+ * @param <O> the type of the objects laid out in columns
+ */
+public final class ColumnarLayout<O> {
+
+    public enum ColumnType {INT, LONG, DOUBLE, OBJECT}
+
+    private final Class<O> objectType;
+    private final SimpleAttribute<O, ? extends Comparable<?>> primaryKeyAttribute;
+    private final List<Column> columns;
+
+    private ColumnarLayout(Class<O> objectType, SimpleAttribute<O, ? extends Comparable<?>> primaryKeyAttribute, List<Column> columns) {
+        this.objectType = objectType;
+        this.primaryKeyAttribute = primaryKeyAttribute;
+        this.columns = columns;
+    }
+
+    /**
+     * Make a layout, with no columns yet, for objects identified by the given primary key attribute.
+     */
+    public static <O> ColumnarLayout<O> onPrimaryKey(SimpleAttribute<O, ? extends Comparable<?>> primaryKeyAttribute) {
+        return new ColumnarLayout<>(primaryKeyAttribute.getObjectType(), primaryKeyAttribute, Collections.emptyList());
+    }
+
+    public ColumnarLayout<O> withIntColumn(String name, ToIntFunction<O> getter) {
+        return with(new Column(name, ColumnType.INT, Integer.class, getter));
+    }
+
+    public ColumnarLayout<O> withLongColumn(String name, ToLongFunction<O> getter) {
+        return with(new Column(name, ColumnType.LONG, Long.class, getter));
+    }
+
+    public ColumnarLayout<O> withDoubleColumn(String name, ToDoubleFunction<O> getter) {
+        return with(new Column(name, ColumnType.DOUBLE, Double.class, getter));
+    }
+
+    public <A> ColumnarLayout<O> withObjectColumn(String name, Class<A> valueType, Function<O, A> getter) {
+        return with(new Column(name, ColumnType.OBJECT, valueType, getter));
+    }
+
+    public Class<O> getObjectType() {
+        return objectType;
+    }
+
+    public SimpleAttribute<O, ? extends Comparable<?>> getPrimaryKeyAttribute() {
+        return primaryKeyAttribute;
+    }
+
+    public int getColumnCount() {
+        return columns.size();
+    }
+
+    /**
+     * Return the number of the named column.
+     *
+     * @throws IllegalArgumentException if there is no such column
+     */
+    public int indexOf(String name) {
+        for (int i = 0; i < columns.size(); i++) {
+            if (columns.get(i).name.equals(name)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("No column named " + name + " in " + this);
+    }
+
+    public String getColumnName(int column) {
+        return columns.get(column).name;
+    }
+
+    public ColumnType getColumnType(int column) {
+        return columns.get(column).type;
+    }
+
+    /**
+     * The type of the values of a column - the boxed type of a primitive column.
+     */
+    public Class<?> getValueType(int column) {
+        return columns.get(column).valueType;
+    }
+
+    /**
+     * Read the value of an int column from an object.
+     */
+    @SuppressWarnings("unchecked")
+    public int readInt(int column, O object) {
+        return ((ToIntFunction<O>) columns.get(column).getter).applyAsInt(object);
+    }
+
+    @SuppressWarnings("unchecked")
+    public long readLong(int column, O object) {
+        return ((ToLongFunction<O>) columns.get(column).getter).applyAsLong(object);
+    }
+
+    @SuppressWarnings("unchecked")
+    public double readDouble(int column, O object) {
+        return ((ToDoubleFunction<O>) columns.get(column).getter).applyAsDouble(object);
+    }
+
+    @SuppressWarnings("unchecked")
+    public Object readObject(int column, O object) {
+        return ((Function<O, ?>) columns.get(column).getter).apply(object);
+    }
+
+    /**
+     * Read the value of any column from an object, boxed for a primitive column.
+     */
+    public Object readValue(int column, O object) {
+        switch (columns.get(column).type) {
+            case INT:
+                return readInt(column, object);
+            case LONG:
+                return readLong(column, object);
+            case DOUBLE:
+                return readDouble(column, object);
+            default:
+                return readObject(column, object);
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder description = new StringBuilder(objectType.getSimpleName()).append('[');
+        for (int i = 0; i < columns.size(); i++) {
+            description.append(i == 0 ? "" : ", ").append(columns.get(i).name).append(':').append(columns.get(i).type);
+        }
+        return description.append(']').toString();
+    }
+
+    private ColumnarLayout<O> with(Column column) {
+        for (Column existing : columns) {
+            if (existing.name.equals(column.name)) {
+                throw new IllegalArgumentException("There is already a column named " + column.name + " in " + this);
+            }
+        }
+        List<Column> extended = new ArrayList<>(columns);
+        extended.add(column);
+        return new ColumnarLayout<>(objectType, primaryKeyAttribute, Collections.unmodifiableList(extended));
+    }
+
+    private static final class Column {
+        private final String name;
+        private final ColumnType type;
+        private final Class<?> valueType;
+        private final Object getter; // A ToIntFunction, ToLongFunction, ToDoubleFunction or Function by type
+
+        Column(String name, ColumnType type, Class<?> valueType, Object getter) {
+            this.name = name;
+            this.type = type;
+            this.valueType = valueType;
+            this.getter = getter;
+        }
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2019. Allan Boyd
+ * This program is made available under the terms of the Apache License v2.0.
+ */
+
+package com.alkimiapps.indexedcache;
+
+import java.beans.ConstructorProperties;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * An estimate of the heap used by the objects in an IndexedCache and by each of its indexes. The size of the objects
+ * is extrapolated from a sample of them. All sizes are in bytes.
+ */
+public final class FootprintEstimate {
+    private final int objectCount;
+    private final int sampleSize;
+    private final long valueBytes;
+    private final Map<String, Long> indexBytes;
+    private final long totalBytes;
+
+    @ConstructorProperties({"objectCount", "sampleSize", "valueBytes", "indexBytes", "totalBytes"})
+    public FootprintEstimate(int objectCount, int sampleSize, long valueBytes, Map<String, Long> indexBytes, long totalBytes) {
+        this.objectCount = objectCount;
+        this.sampleSize = sampleSize;
+        this.valueBytes = valueBytes;
+        this.indexBytes = Collections.unmodifiableMap(indexBytes);
+        this.totalBytes = totalBytes;
+    }
+
+    public int getObjectCount() {
+        return objectCount;
+    }
+
+    /**
+     * The number of objects whose size was measured.
+     */
+    public int getSampleSize() {
+        return sampleSize;
+    }
+
+    /**
+     * The estimated size of all the objects (and everything they reference).
+     */
+    public long getValueBytes() {
+        return valueBytes;
+    }
+
+    /**
+     * The estimated size of each index (not including the objects and attribute values it refers to), keyed by index
+     * description.
+     */
+    public Map<String, Long> getIndexBytes() {
+        return indexBytes;
+    }
+
+    /**
+     * The estimated size of the objects and all the indexes.
+     */
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * The estimated size of the objects and all the indexes per object i.e. the average cost of an entry.
+     */
+    public long getBytesPerEntry() {
+        return objectCount == 0 ? 0 : totalBytes / objectCount;
+    }
+
+    @Override
+    public String toString() {
+        return "FootprintEstimate{objectCount=" + objectCount + ", sampleSize=" + sampleSize + ", valueBytes=" + valueBytes
+                + ", indexBytes=" + indexBytes + ", totalBytes=" + totalBytes + "}";
+    }
+}
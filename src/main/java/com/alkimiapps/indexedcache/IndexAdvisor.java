@@ -0,0 +1,281 @@
+/*
+ * Copyright (c) 2019. Allan Boyd
+ * This program is made available under the terms of the Apache License v2.0.
+ */
+
+package com.alkimiapps.indexedcache;
+
+import com.alkimiapps.indexedcache.IndexRecommendation.IndexType;
+import com.alkimiapps.indexedcache.internal.BackgroundIndex;
+import com.alkimiapps.indexedcache.internal.MaintenanceScheduler;
+import com.alkimiapps.indexedcache.internal.QueryShape;
+import com.alkimiapps.indexedcache.internal.QueryShapeCache;
+import com.googlecode.cqengine.attribute.Attribute;
+import com.googlecode.cqengine.index.AttributeIndex;
+import com.googlecode.cqengine.index.Index;
+import com.googlecode.cqengine.index.hash.HashIndex;
+import com.googlecode.cqengine.index.navigable.NavigableIndex;
+import com.googlecode.cqengine.index.radix.RadixTreeIndex;
+import com.googlecode.cqengine.index.radixreversed.ReversedRadixTreeIndex;
+import com.googlecode.cqengine.query.Query;
+import com.googlecode.cqengine.query.logical.LogicalQuery;
+import com.googlecode.cqengine.query.option.QueryOptions;
+import com.googlecode.cqengine.query.simple.Between;
+import com.googlecode.cqengine.query.simple.Equal;
+import com.googlecode.cqengine.query.simple.GreaterThan;
+import com.googlecode.cqengine.query.simple.In;
+import com.googlecode.cqengine.query.simple.LessThan;
+import com.googlecode.cqengine.query.simple.SimpleQuery;
+import com.googlecode.cqengine.query.simple.StringEndsWith;
+import com.googlecode.cqengine.query.simple.StringStartsWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Observes the queries retrieved from an IndexedCache and recommends indexes for the attributes that slow queries use
+ * without an index.
+ *
+ * For each attribute used by a slow query (one that takes at least the slow query threshold) that no index supports,
+ * the advisor records the kind of query (equal, range, startsWith, ...) and the selectivity of the query i.e. the
+ * fraction of the IndexedCache that it returned. Only queries that are selective enough for an index to help (those
+ * returning at most 10% of the IndexedCache) are counted. An index is recommended for an attribute once it has been
+ * used by enough such queries and the type of index recommended depends on the kinds of query it was used in.
+ *
+ * In AUTO mode, recommended indexes are also added to the IndexedCache. They are built one at a time on the shared
+ * maintenance threads (see MaintenanceScheduler) without blocking writers and are not used by queries until they have
+ * been completely built.
+ *
+ * The advisor also counts how often each index is selected for a query so that indexes that are never used - and so
+ * only slow down writes - can be reported. Indexes that were added by the advisor can be dropped. CQEngine does not
+ * support removing an index from an IndexedCollection so other unused indexes are only reported.
+ */
+public final class IndexAdvisor<V> implements IndexedCacheObserver<V>, AutoCloseable {
+
+    public enum Mode {RECOMMEND, AUTO}
+
+    static final int MIN_SLOW_QUERIES = 3;
+    static final double MAX_SELECTIVITY = 0.1;
+    static final int MAX_CACHED_SHAPES = 512;
+
+    private final IndexedCache<?, V> indexedCache;
+    private final Mode mode;
+    private final long slowQueryThresholdNanos;
+    private final Map<Attribute<V, ?>, AttributeWorkload> workloads = new ConcurrentHashMap<>();
+    private final Map<Index<V>, LongAdder> indexUsage = new ConcurrentHashMap<>();
+    private final Map<Attribute<V, ?>, BackgroundIndex<?, V>> advisedIndexes = new ConcurrentHashMap<>();
+    private final QueryShapeCache<Index<V>> selectedIndexes = new QueryShapeCache<>(MAX_CACHED_SHAPES);
+    private final MaintenanceScheduler.MaintenanceQueue indexBuilder = MaintenanceScheduler.shared().newQueue();
+
+    public IndexAdvisor(IndexedCache<?, V> indexedCache, Mode mode, long slowQueryThreshold, TimeUnit unit) {
+        this.indexedCache = indexedCache;
+        this.mode = mode;
+        this.slowQueryThresholdNanos = unit.toNanos(slowQueryThreshold);
+        indexedCache.addObserver(this);
+    }
+
+    @Override
+    public void queryRetrieved(Query<V> query, QueryOptions queryOptions, int resultSize, long elapsedNanos) {
+        boolean slow = elapsedNanos >= slowQueryThresholdNanos;
+        int size = indexedCache.size();
+        double selectivity = size == 0 ? 0 : Math.min(1.0, resultSize / (double) size);
+        recordQuery(query, queryOptions == null ? new QueryOptions() : queryOptions, slow, selectivity);
+        if (slow && mode == Mode.AUTO) {
+            getRecommendations().forEach(this::addRecommendedIndex);
+        }
+    }
+
+    /**
+     * Return the indexes recommended for the queries observed so far.
+     */
+    public List<IndexRecommendation<V>> getRecommendations() {
+        List<IndexRecommendation<V>> recommendations = new ArrayList<>();
+        workloads.forEach((attribute, workload) -> {
+            long count = workload.count.sum();
+            double meanSelectivity = count == 0 ? 0 : workload.selectivity.sum() / count;
+            IndexType indexType = workload.recommendIndexType(attribute);
+            if (count >= MIN_SLOW_QUERIES && indexType != null
+                    && !advisedIndexes.containsKey(attribute) && !hasIndex(attribute, indexType)) {
+                recommendations.add(new IndexRecommendation<>(attribute, indexType, count, meanSelectivity));
+            }
+        });
+        return recommendations;
+    }
+
+    /**
+     * Return descriptions of the indexes of the IndexedCache that have not been selected for any query since the
+     * advisor was created or since resetIndexUsage() was last called.
+     */
+    public List<String> getUnusedIndexes() {
+        List<String> unused = new ArrayList<>();
+        for (Index<V> index : indexedCache.getIndexes()) {
+            if (isOutOfService(index)) {
+                continue;
+            }
+            if (isUnused(index)) {
+                unused.add(describe(index));
+            }
+        }
+        return unused;
+    }
+
+    /**
+     * Drop the indexes added by this advisor that have not been selected for any query since the advisor was created or
+     * since resetIndexUsage() was last called. Dropped indexes are cleared and are no longer maintained. Returns
+     * descriptions of the dropped indexes.
+     */
+    public List<String> dropUnusedIndexes() {
+        List<String> dropped = new ArrayList<>();
+        advisedIndexes.forEach((attribute, index) -> {
+            if (index.isReady() && isUnused(index)) {
+                index.retire();
+                advisedIndexes.remove(attribute, index);
+                workloads.remove(attribute);
+                dropped.add(describe(index));
+            }
+        });
+        return dropped;
+    }
+
+    public void resetIndexUsage() {
+        indexUsage.clear();
+    }
+
+    /**
+     * Stop observing the IndexedCache. Indexes that have already been added by the advisor remain in place, and those
+     * still waiting to be built are built.
+     */
+    @Override
+    public void close() {
+        indexedCache.removeObserver(this);
+    }
+
+    private void recordQuery(Query<V> query, QueryOptions queryOptions, boolean slow, double selectivity) {
+        if (query instanceof LogicalQuery) {
+            for (Query<V> childQuery : ((LogicalQuery<V>) query).getChildQueries()) {
+                recordQuery(childQuery, queryOptions, slow, selectivity);
+            }
+        } else if (query instanceof SimpleQuery) {
+            Index<V> selected = selectedIndexes.get(query, queryOptions, indexedCache.getIndexesVersion(),
+                    () -> QueryShape.selectIndex(query, queryOptions, indexedCache.getIndexes()));
+            if (selected != null) {
+                indexUsage.computeIfAbsent(selected, index -> new LongAdder()).increment();
+            } else if (slow && selectivity <= MAX_SELECTIVITY) {
+                SimpleQuery<V, ?> simpleQuery = (SimpleQuery<V, ?>) query;
+                workloads.computeIfAbsent(simpleQuery.getAttribute(), attribute -> new AttributeWorkload())
+                        .record(simpleQuery.getClass(), selectivity);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void addRecommendedIndex(IndexRecommendation<V> recommendation) {
+        // Only Comparable attributes are recommended a NAVIGABLE index and only CharSequence attributes a RADIX one, so
+        // (the value type being erased) any recommended attribute can be given to its index as a String attribute
+        Attribute<V, String> attribute = (Attribute<V, String>) recommendation.getAttribute();
+        AttributeIndex<?, V> index;
+        switch (recommendation.getIndexType()) {
+            case NAVIGABLE:
+                index = NavigableIndex.onAttribute(attribute);
+                break;
+            case RADIX:
+                index = RadixTreeIndex.onAttribute(attribute);
+                break;
+            case REVERSED_RADIX:
+                index = ReversedRadixTreeIndex.onAttribute(attribute);
+                break;
+            default:
+                index = HashIndex.onAttribute(attribute);
+        }
+        BackgroundIndex<?, V> backgroundIndex = new BackgroundIndex<>(index);
+        if (advisedIndexes.putIfAbsent(attribute, backgroundIndex) == null) {
+            indexedCache.addIndex(backgroundIndex);
+            backgroundIndex.build(indexBuilder);
+        }
+    }
+
+    private boolean hasIndex(Attribute<V, ?> attribute, IndexType indexType) {
+        for (Index<V> index : indexedCache.getIndexes()) {
+            if (isOutOfService(index)) {
+                continue;
+            }
+            Index<V> unwrapped = BackgroundIndex.unwrap(index);
+            if (unwrapped instanceof AttributeIndex && ((AttributeIndex<?, V>) unwrapped).getAttribute().equals(attribute)
+                    && indexClass(indexType).isInstance(unwrapped)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isOutOfService(Index<?> index) {
+        return index instanceof BackgroundIndex && ((BackgroundIndex<?, ?>) index).isOutOfService();
+    }
+
+    private boolean isUnused(Index<V> index) {
+        LongAdder usage = indexUsage.get(index);
+        return usage == null || usage.sum() == 0;
+    }
+
+    private static <V> String describe(Index<V> index) {
+        String name = QueryShape.indexName(index);
+        Index<V> unwrapped = BackgroundIndex.unwrap(index);
+        if (unwrapped instanceof AttributeIndex) {
+            name += "(" + ((AttributeIndex<?, ?>) unwrapped).getAttribute().getAttributeName() + ")";
+        }
+        return name;
+    }
+
+    private static Class<?> indexClass(IndexType indexType) {
+        switch (indexType) {
+            case NAVIGABLE:
+                return NavigableIndex.class;
+            case RADIX:
+                return RadixTreeIndex.class;
+            case REVERSED_RADIX:
+                return ReversedRadixTreeIndex.class;
+            default:
+                return HashIndex.class;
+        }
+    }
+
+    /**
+     * The slow queries observed for one attribute.
+     */
+    private static final class AttributeWorkload {
+        private final LongAdder count = new LongAdder();
+        private final DoubleAdder selectivity = new DoubleAdder();
+        private final Set<Class<?>> queryTypes = ConcurrentHashMap.newKeySet();
+
+        void record(Class<?> queryType, double querySelectivity) {
+            queryTypes.add(queryType);
+            count.increment();
+            selectivity.add(querySelectivity);
+        }
+
+        IndexType recommendIndexType(Attribute<?, ?> attribute) {
+            Class<?> attributeType = attribute.getAttributeType();
+            boolean comparable = Comparable.class.isAssignableFrom(attributeType);
+            boolean charSequence = CharSequence.class.isAssignableFrom(attributeType);
+            if (queryTypes.contains(LessThan.class) || queryTypes.contains(GreaterThan.class) || queryTypes.contains(Between.class)) {
+                return comparable ? IndexType.NAVIGABLE : null;
+            }
+            if (queryTypes.contains(StringStartsWith.class)) {
+                return charSequence ? IndexType.RADIX : null;
+            }
+            if (queryTypes.contains(StringEndsWith.class)) {
+                return charSequence ? IndexType.REVERSED_RADIX : null;
+            }
+            if (queryTypes.contains(Equal.class) || queryTypes.contains(In.class)) {
+                return IndexType.HASH;
+            }
+            return null;
+        }
+    }
+}
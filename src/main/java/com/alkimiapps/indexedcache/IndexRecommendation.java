@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2019. Allan Boyd
+ * This program is made available under the terms of the Apache License v2.0.
+ */
+
+package com.alkimiapps.indexedcache;
+
+import com.googlecode.cqengine.attribute.Attribute;
+
+/**
+ * A recommendation made by an IndexAdvisor to add an index on an attribute.
+ */
+public final class IndexRecommendation<V> {
+
+    /**
+     * The kinds of index an IndexAdvisor can recommend.
+     */
+    public enum IndexType {
+        /** A HashIndex - for equal and in queries. */
+        HASH,
+        /** A NavigableIndex - for range queries (lessThan, greaterThan, between) as well as equal and in queries. */
+        NAVIGABLE,
+        /** A RadixTreeIndex - for startsWith queries as well as equal and in queries. */
+        RADIX,
+        /** A ReversedRadixTreeIndex - for endsWith queries as well as equal and in queries. */
+        REVERSED_RADIX
+    }
+
+    private final Attribute<V, ?> attribute;
+    private final IndexType indexType;
+    private final long slowQueryCount;
+    private final double meanSelectivity;
+
+    IndexRecommendation(Attribute<V, ?> attribute, IndexType indexType, long slowQueryCount, double meanSelectivity) {
+        this.attribute = attribute;
+        this.indexType = indexType;
+        this.slowQueryCount = slowQueryCount;
+        this.meanSelectivity = meanSelectivity;
+    }
+
+    public Attribute<V, ?> getAttribute() {
+        return attribute;
+    }
+
+    public String getAttributeName() {
+        return attribute.getAttributeName();
+    }
+
+    public IndexType getIndexType() {
+        return indexType;
+    }
+
+    /**
+     * The number of slow, selective queries that used the attribute without an index.
+     */
+    public long getSlowQueryCount() {
+        return slowQueryCount;
+    }
+
+    /**
+     * The mean fraction of the IndexedCache returned by the slow, selective queries that used the attribute.
+     */
+    public double getMeanSelectivity() {
+        return meanSelectivity;
+    }
+
+    @Override
+    public String toString() {
+        return indexType + "(" + getAttributeName() + ") slowQueries=" + slowQueryCount + " meanSelectivity=" + meanSelectivity;
+    }
+}
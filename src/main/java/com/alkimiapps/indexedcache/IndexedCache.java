@@ -5,22 +5,61 @@
 
 package com.alkimiapps.indexedcache;
 
+import com.alkimiapps.indexedcache.internal.AllInclusiveCacheEventFilter;
+import com.alkimiapps.indexedcache.internal.BackgroundIndex;
+import com.alkimiapps.indexedcache.internal.BudgetCheckQuery;
+import com.alkimiapps.indexedcache.internal.CacheBootstrapper;
+import com.alkimiapps.indexedcache.internal.CacheKeys;
 import com.alkimiapps.indexedcache.internal.CacheMaintainer;
+import com.alkimiapps.indexedcache.internal.DriftStatistics;
+import com.alkimiapps.indexedcache.internal.FootprintEstimator;
+import com.alkimiapps.indexedcache.internal.IndexCounter;
 import com.alkimiapps.indexedcache.internal.IndexedCacheEntryListenerConfiguration;
+import com.alkimiapps.indexedcache.internal.IndexedCacheManagement;
+import com.alkimiapps.indexedcache.internal.Interning;
+import com.alkimiapps.indexedcache.internal.KeyLocks;
+import com.alkimiapps.indexedcache.internal.KeyVersions;
+import com.alkimiapps.indexedcache.internal.ListenerEventBuffer;
+import com.alkimiapps.indexedcache.internal.ListenerLagProbe;
+import com.alkimiapps.indexedcache.internal.Projector;
+import com.alkimiapps.indexedcache.internal.PublicationGate;
+import com.alkimiapps.indexedcache.internal.QueryBatch;
+import com.alkimiapps.indexedcache.internal.QueryStatistics;
+import com.alkimiapps.indexedcache.internal.QueryTemplates;
+import com.alkimiapps.indexedcache.internal.SnapshotResultSet;
 import com.alkimiapps.indexedcache.internal.SubclassableClassUniqueInstanceMaker;
 import com.googlecode.cqengine.IndexedCollection;
+import com.googlecode.cqengine.attribute.Attribute;
+import com.googlecode.cqengine.index.AttributeIndex;
 import com.googlecode.cqengine.index.Index;
 import com.googlecode.cqengine.query.Query;
 import com.googlecode.cqengine.query.option.QueryOptions;
+import com.googlecode.cqengine.query.parser.common.ParseResult;
 import com.googlecode.cqengine.resultset.ResultSet;
 
 import javax.cache.Cache;
+import javax.cache.configuration.Configuration;
+import javax.cache.event.CacheEntryEventFilter;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 import java.util.function.Predicate;
+import java.util.function.Supplier;
 import java.util.stream.Stream;
 
+import static com.googlecode.cqengine.query.QueryFactory.and;
+
 /**
  * A com.googlecode.cqengine.IndexedCollection that marries CQEngine with JCache to provide an indexed cache i.e.
  * a cache on which indexes can be applied to perform fast complex queries as well as providing cache characteristics
@@ -29,11 +68,56 @@ import java.util.stream.Stream;
  * @param <K> cache key type
  * @param <V> cache value type
  */
-public final class IndexedCache<K, V> implements IndexedCollection<V> {
+public final class IndexedCache<K, V> implements IndexedCollection<V>, AutoCloseable {
+
+    /**
+     * What an IndexedCache with a maximum weight does when adding objects would take its estimated footprint over it.
+     */
+    public enum WeightPolicy {
+        /** Add the objects and then remove (and remove from the cache) other objects until it is back under. */
+        EVICT,
+        /** Refuse to add the objects by throwing an IllegalStateException. */
+        REJECT
+    }
+
+    /**
+     * The CQEngine query languages that queries can be retrieved in as strings.
+     */
+    public enum QueryLanguage {
+        /** CQEngine's SQL dialect e.g. SELECT * FROM widgets WHERE widgetName = 'Widget1' */
+        SQL,
+        /** CQEngine native syntax e.g. equal("widgetName", "Widget1") */
+        CQN
+    }
+
+    public static final int DEFAULT_FOOTPRINT_SAMPLE_SIZE = 100;
+
+    private static final int MIN_RESAMPLE_SIZE_CHANGE = 64;
+    private static final int BUDGET_CHECK_MASK = 63; // Check the time (and for interruption) every 64 results
 
     private IndexedCollection<V> indexedCollection;
     private CacheMaintainer<K, V> cacheMaintainer;
+    private CacheKeyMaker<K, V> cacheKeyMaker;
+    private CacheKeys<K, V> cacheKeys;
+    private KeyVersions keyVersions;
     private Cache<K, V> cache;
+    private ColumnarIndexedCollection<V> cachedViews;
+    private QueryStatistics queryStatistics = new QueryStatistics();
+    private DriftStatistics driftStatistics = new DriftStatistics();
+    private Interning<V> interning = new Interning<>();
+    private IndexedCacheManagement<K, V> management;
+    private List<IndexedCacheObserver<V>> observers = new CopyOnWriteArrayList<>();
+    private IndexedCacheEntryListenerConfiguration<K, V> listenerConfiguration;
+    private final PublicationGate publicationGate = new PublicationGate();
+    private final KeyLocks keyLocks = new KeyLocks();
+    private final AtomicInteger indexesAdded = new AtomicInteger();
+    private final AtomicInteger snapshotRetrievalClients = new AtomicInteger();
+    private volatile long maxWeight;
+    private volatile WeightPolicy weightPolicy = WeightPolicy.EVICT;
+    private volatile long estimatedBytesPerEntry;
+    private volatile int estimatedAtSize = -1;
+    private volatile QueryBudget defaultQueryBudget = QueryBudget.UNLIMITED;
+    private volatile QueryTemplates<V> queryTemplates;
 
     /**
      * Make a new IndexedCache based on an com.googlecode.cqengine.IndexedCollection and a javax.cache.Cache.
@@ -82,52 +166,862 @@ public final class IndexedCache<K, V> implements IndexedCollection<V> {
      * safe to add/remove/update entries in the provided IndexedCollection outside of this class.
      */
     public IndexedCache(IndexedCollection<V> indexedCollection, Cache<K, V> cache, CacheKeyMaker<K, V> cacheKeyMaker, UniqueInstanceMaker<K> uniqueInstanceMaker) {
+        this(indexedCollection, cache, cacheKeyMaker, uniqueInstanceMaker, false);
+    }
+
+    /**
+     * Make a new IndexedCache based on an com.googlecode.cqengine.IndexedCollection and a javax.cache.Cache,
+     * optionally indexing the entries that are already in the javax.cache.Cache e.g. when the cache is persistent or
+     * clustered and so may already be populated.
+     *
+     * The existing entries are indexed before the constructor returns. They are read from the cache iterator and added
+     * to the IndexedCollection in parallel chunks. Changes made to the cache while this happens are held back and then
+     * applied in order so that none are lost.
+     */
+    public IndexedCache(IndexedCollection<V> indexedCollection, Cache<K, V> cache, CacheKeyMaker<K, V> cacheKeyMaker, UniqueInstanceMaker<K> uniqueInstanceMaker,
+                        boolean indexExistingEntries) {
+        this(indexedCollection, cache, cacheKeyMaker, uniqueInstanceMaker, new AllInclusiveCacheEventFilter<>(), indexExistingEntries);
+    }
+
+    /**
+     * Make a new IndexedCache that only reflects the changes to the entries of the javax.cache.Cache accepted by a
+     * CacheEntryEventFilter e.g. one partition of a PartitionedIndexedCache.
+     */
+    IndexedCache(IndexedCollection<V> indexedCollection, Cache<K, V> cache, CacheKeyMaker<K, V> cacheKeyMaker, UniqueInstanceMaker<K> uniqueInstanceMaker,
+                 CacheEntryEventFilter<K, V> cacheEntryEventFilter, boolean indexExistingEntries) {
         this.indexedCollection = indexedCollection;
         this.cache = cache;
-        this.cacheMaintainer = new CacheMaintainer<>(cache, cacheKeyMaker, uniqueInstanceMaker);
-        cache.registerCacheEntryListener(new IndexedCacheEntryListenerConfiguration<>(indexedCollection));
+        this.cacheKeyMaker = cacheKeyMaker;
+        ListenerLagProbe listenerLagProbe = new ListenerLagProbe();
+        this.cacheKeys = CacheKeys.forKeyMaker(cacheKeyMaker);
+        @SuppressWarnings("unchecked")
+        boolean storeByValue = cache.getConfiguration(Configuration.class).isStoreByValue();
+        this.keyVersions = new KeyVersions(storeByValue);
+        this.cachedViews = storeByValue ? null : columnarCollectionOf(indexedCollection);
+        this.cacheMaintainer = new CacheMaintainer<>(cache, cacheKeys, uniqueInstanceMaker, listenerLagProbe, keyVersions);
+        this.management = new IndexedCacheManagement<>(indexedCollection, cacheMaintainer, queryStatistics, listenerLagProbe, driftStatistics, interning);
+        ListenerEventBuffer listenerEventBuffer = new ListenerEventBuffer();
+        if (indexExistingEntries) {
+            // Buffer the changes made while the existing entries are indexed (the listener must be registered first so
+            // that none are missed)
+            listenerEventBuffer.startBuffering();
+        }
+        this.listenerConfiguration = new IndexedCacheEntryListenerConfiguration<>(indexedCollection, listenerLagProbe, cacheKeys,
+                cacheEntryEventFilter, listenerEventBuffer, interning, keyVersions);
+        cache.registerCacheEntryListener(listenerConfiguration);
+        if (indexExistingEntries) {
+            try {
+                CacheBootstrapper.indexExistingEntries(cache, indexedCollection, cacheKeys, CacheBootstrapper.DEFAULT_CHUNK_SIZE, ForkJoinPool.commonPool());
+            } finally {
+                listenerEventBuffer.replayAndStopBuffering();
+            }
+        }
     }
 
     public Cache getCache() {
         return cache;
     }
 
+    CacheKeyMaker<K, V> getCacheKeyMaker() {
+        return cacheKeyMaker;
+    }
+
+    CacheKeys<K, V> getCacheKeys() {
+        return cacheKeys;
+    }
+
+    IndexedCollection<V> getIndexedCollection() {
+        return indexedCollection;
+    }
+
+    /**
+     * Repair the drift of a key from the javax.cache.Cache by changing its object in the IndexedCollection (but not in
+     * the Cache): the object the key no longer has in the Cache (if not null) is replaced by the object it has (if not
+     * null). Returns false, changing nothing, if the IndexedCollection no longer has the stale object or already has
+     * the current one, or if a write of the key through this IndexedCache has yet to be echoed by the Cache - the
+     * difference is then just that write in flight.
+     */
+    boolean reindex(K key, V staleObject, V currentObject) {
+        int stripe = keyLocks.lock(key.hashCode());
+        try {
+            if (keyVersions.hasPendingWrites(key)
+                    || (staleObject != null && !indexedCollection.contains(staleObject))
+                    || (currentObject != null && indexedCollection.contains(currentObject))) {
+                return false;
+            }
+            if (currentObject != null) {
+                interning.intern(currentObject);
+            }
+            publicationGate.startWrite();
+            try {
+                indexedCollection.update(staleObject == null ? Collections.emptyList() : Collections.singletonList(staleObject),
+                        currentObject == null ? Collections.emptyList() : Collections.singletonList(currentObject));
+            } finally {
+                publicationGate.finishWrite();
+            }
+            if (currentObject != null) {
+                cacheKeys.registerKey(key);
+            } else {
+                cacheKeys.unregister(key);
+            }
+            return true;
+        } finally {
+            keyLocks.unlock(stripe);
+        }
+    }
+
+    /**
+     * Move an object from the IndexedCollection of this IndexedCache to that of another IndexedCache over the same
+     * javax.cache.Cache (e.g. the other tier of a TieredIndexedCache), leaving the Cache entry as it is. The key of the
+     * object moves with it from the CacheKeys of this IndexedCache to those of the other. Returns false, moving
+     * nothing, if this IndexedCollection does not have the object. The object is missing from both IndexedCollections
+     * for the moment between its removal from one and its addition to the other.
+     */
+    boolean moveTo(V v, IndexedCache<K, V> to) {
+        K key = cacheKeys.keyFor(v);
+        int stripe = keyLocks.lock(key.hashCode());
+        try {
+            boolean removed;
+            publicationGate.startWrite();
+            try {
+                removed = indexedCollection.remove(v);
+            } finally {
+                publicationGate.finishWrite();
+            }
+            if (!removed) {
+                return false;
+            }
+            cacheKeys.unregister(key);
+        } finally {
+            keyLocks.unlock(stripe);
+        }
+        to.movedIn(key, v);
+        return true;
+    }
+
+    private void movedIn(K key, V v) {
+        int stripe = keyLocks.lock(key.hashCode());
+        try {
+            publicationGate.startWrite();
+            try {
+                indexedCollection.add(v);
+            } finally {
+                publicationGate.finishWrite();
+            }
+            cacheKeys.registerKey(key);
+        } finally {
+            keyLocks.unlock(stripe);
+        }
+    }
+
+    DriftStatistics getDriftStatistics() {
+        return driftStatistics;
+    }
+
+    /**
+     * Replace an object with a fresh object of the same key, returning false (and changing nothing) if the object is no
+     * longer in this IndexedCache e.g. because its entry was removed while the fresh object was being loaded. The swap
+     * is published to snapshot reads in one step. The Cache entry is removed and put again, rather than just put, so
+     * that its time to live restarts whatever the expiry policy.
+     */
+    boolean replace(V staleObject, V freshObject) {
+        interning.intern(freshObject);
+        int stripe = keyLocks.lock(cacheKeys.hashOf(freshObject));
+        try {
+            if (!indexedCollection.contains(staleObject)) {
+                return false;
+            }
+            publicationGate.startWrite();
+            try {
+                indexedCollection.update(Collections.singletonList(staleObject), Collections.singletonList(freshObject));
+            } finally {
+                publicationGate.finishWrite();
+            }
+            cacheMaintainer.indexCollectionWasUpdated(Collections.singletonList(staleObject), Collections.singletonList(asStored(freshObject)));
+        } finally {
+            keyLocks.unlock(stripe);
+        }
+        notifyObjectsWritten(Collections.singletonList(staleObject), Collections.singletonList(freshObject));
+        return true;
+    }
+
+    void addHitListener(BiConsumer<? super K, ? super V> hitListener) {
+        cacheMaintainer.addHitListener(hitListener);
+    }
+
+    void removeHitListener(BiConsumer<? super K, ? super V> hitListener) {
+        cacheMaintainer.removeHitListener(hitListener);
+    }
+
+    /**
+     * Return the management interface of this IndexedCache. This is available whether or not management has been
+     * enabled i.e. whether or not it is registered with the platform MBeanServer.
+     */
+    public IndexedCacheMXBean getMXBean() {
+        return management;
+    }
+
+    /**
+     * Register (or unregister) the IndexedCacheMXBean of this IndexedCache with the platform MBeanServer. The
+     * IndexedCacheMXBean is registered under the name of the associated javax.cache.Cache.
+     */
+    public void enableManagement(boolean enabled) {
+        if (enabled) {
+            management.register(cache.getName());
+        } else {
+            management.unregister(cache.getName());
+        }
+    }
+
+    /**
+     * Stop keeping this IndexedCache in-sync with its javax.cache.Cache: the cache entry listener is deregistered from
+     * the Cache, waiting maintenance tasks are discarded, the IndexedCacheMXBean is unregistered and observers are
+     * removed. Neither the Cache nor the IndexedCollection is closed or cleared.
+     */
+    @Override
+    public void close() {
+        if (!cache.isClosed()) {
+            cache.deregisterCacheEntryListener(listenerConfiguration);
+        }
+        cacheMaintainer.close();
+        management.unregister(cache.getName());
+        observers.clear();
+    }
+
+    /**
+     * Intern the attribute values of the objects added to this IndexedCache from now on - whether they are added
+     * through it or arrive in cache entry events - using the ObjectInterner and the ValueInterner of this IndexedCache.
+     * Pass null to stop interning.
+     */
+    public void setObjectInterner(ObjectInterner<V> objectInterner) {
+        interning.setObjectInterner(objectInterner);
+    }
+
+    /**
+     * Return the pool of canonical values used by the ObjectInterner of this IndexedCache.
+     */
+    public ValueInterner getValueInterner() {
+        return interning.getValueInterner();
+    }
+
+    /**
+     * Estimate the heap used by the objects in this IndexedCache (from a sample of sampleSize objects) and by each of
+     * its indexes.
+     */
+    public FootprintEstimate estimateFootprint(int sampleSize) {
+        return FootprintEstimator.estimate(indexedCollection, sampleSize);
+    }
+
+    /**
+     * Limit the estimated footprint of this IndexedCache - its objects and its indexes - to maxWeight bytes rather than
+     * (or as well as) limiting the number of entries in the javax.cache.Cache. Pass 0 for no limit.
+     *
+     * The footprint is estimated from the average cost of an entry, which is re-sampled whenever the number of objects
+     * has changed by more than a tenth since it was last sampled. When objects added through this IndexedCache would
+     * take the footprint over the limit they are rejected or other objects are evicted, depending on the policy.
+     * Objects added directly to the javax.cache.Cache are not limited.
+     */
+    public void setMaxWeight(long maxWeight, WeightPolicy weightPolicy) {
+        this.weightPolicy = weightPolicy;
+        this.maxWeight = maxWeight;
+        enforceMaxWeight(null);
+    }
+
+    private long bytesPerEntry() {
+        int size = indexedCollection.size();
+        int sampledSize = estimatedAtSize;
+        if (sampledSize < 0 || (estimatedBytesPerEntry == 0 && size > 0) || Math.abs(size - sampledSize) > Math.max(MIN_RESAMPLE_SIZE_CHANGE, sampledSize / 10)) {
+            estimatedBytesPerEntry = estimateFootprint(DEFAULT_FOOTPRINT_SAMPLE_SIZE).getBytesPerEntry();
+            estimatedAtSize = size;
+        }
+        return estimatedBytesPerEntry;
+    }
+
+    private void checkWeightFor(Iterable<?> objectsToRemove, Iterable<?> objectsToAdd) {
+        if (maxWeight <= 0 || weightPolicy != WeightPolicy.REJECT) {
+            return;
+        }
+        int netAdds = countOf(objectsToAdd) - countOf(objectsToRemove);
+        if (netAdds <= 0) {
+            return;
+        }
+        long weight = (indexedCollection.size() + (long) netAdds) * bytesPerEntry();
+        if (weight > maxWeight) {
+            throw new IllegalStateException("Adding " + netAdds + " objects would take the estimated footprint of the IndexedCache to "
+                    + weight + " bytes which is over its maximum weight of " + maxWeight + " bytes");
+        }
+    }
+
+    /**
+     * Evict objects until the estimated footprint is within the maximum weight, other than the objects just written
+     * (which may be null) - those that a write took over the limit are the ones it is kept for. If the objects just
+     * written are on their own over the limit they are kept and everything else is evicted.
+     */
+    private void enforceMaxWeight(Iterable<? extends V> justWritten) {
+        if (maxWeight <= 0 || weightPolicy != WeightPolicy.EVICT) {
+            return;
+        }
+        long bytesPerEntry = bytesPerEntry();
+        if (bytesPerEntry == 0) {
+            return;
+        }
+        long excess = indexedCollection.size() - maxWeight / bytesPerEntry;
+        if (excess > 0) {
+            Set<V> kept = new HashSet<>();
+            if (justWritten != null) {
+                justWritten.forEach(kept::add);
+            }
+            removeMatching(() -> {
+                List<V> evicted = new ArrayList<>();
+                for (Iterator<V> it = indexedCollection.iterator(); it.hasNext() && evicted.size() < excess; ) {
+                    V v = it.next();
+                    if (!kept.contains(v)) {
+                        evicted.add(v);
+                    }
+                }
+                return evicted;
+            });
+        }
+    }
+
+    /**
+     * The hash codes of the cache keys of the objects of a write, to lock them with.
+     */
+    private int[] keyHashesOf(Iterable<? extends V> objectsToRemove, Iterable<? extends V> objectsToAdd) {
+        int[] keyHashes = new int[countOf(objectsToRemove) + countOf(objectsToAdd)];
+        int i = 0;
+        if (objectsToRemove != null) {
+            for (V v : objectsToRemove) {
+                keyHashes[i++] = cacheKeys.hashOf(v);
+            }
+        }
+        if (objectsToAdd != null) {
+            for (V v : objectsToAdd) {
+                keyHashes[i++] = cacheKeys.hashOf(v);
+            }
+        }
+        return keyHashes;
+    }
+
+    /**
+     * The object to put into the Cache for an object written to the IndexedCollection: the view that a
+     * ColumnarIndexedCollection stores for it when the Cache stores by reference (so that the Cache does not keep the
+     * full object on the heap as well as the columns), otherwise the object itself.
+     */
+    private V asStored(V v) {
+        if (cachedViews == null) {
+            return v;
+        }
+        V view = cachedViews.getStoredView(v);
+        return view == null ? v : view;
+    }
+
+    private Iterable<? extends V> asStored(Iterable<? extends V> objects) {
+        if (cachedViews == null || objects == null) {
+            return objects;
+        }
+        List<V> stored = new ArrayList<>(countOf(objects));
+        objects.forEach(v -> stored.add(asStored(v)));
+        return stored;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <V> ColumnarIndexedCollection<V> columnarCollectionOf(IndexedCollection<V> indexedCollection) {
+        return indexedCollection instanceof ColumnarIndexedCollection ? (ColumnarIndexedCollection<V>) indexedCollection : null;
+    }
+
+    private static int countOf(Iterable<?> objects) {
+        if (objects == null) {
+            return 0;
+        }
+        if (objects instanceof Collection) {
+            return ((Collection<?>) objects).size();
+        }
+        int count = 0;
+        for (Object ignored : objects) {
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Add an observer that will be told about every query retrieved from this IndexedCache.
+     */
+    public void addObserver(IndexedCacheObserver<V> observer) {
+        observers.add(observer);
+    }
+
+    public void removeObserver(IndexedCacheObserver<V> observer) {
+        observers.remove(observer);
+    }
+
+    /**
+     * Limit the cost of every query retrieved from this IndexedCache that does not have a QueryBudget of its own in its
+     * QueryOptions. Pass null (or QueryBudget.UNLIMITED) for no limit.
+     */
+    public void setDefaultQueryBudget(QueryBudget defaultQueryBudget) {
+        this.defaultQueryBudget = defaultQueryBudget == null ? QueryBudget.UNLIMITED : defaultQueryBudget;
+    }
+
+    /**
+     * Read every retrieve as a snapshot (see retrieveSnapshot) until releaseSnapshotRetrieval is called, e.g. while an
+     * IndexedCacheRefresher swaps entries that must not drop out of query results.
+     */
+    void requireSnapshotRetrieval() {
+        snapshotRetrievalClients.incrementAndGet();
+    }
+
+    void releaseSnapshotRetrieval() {
+        snapshotRetrievalClients.decrementAndGet();
+    }
+
     @Override
     public ResultSet<V> retrieve(Query<V> query) {
-        ResultSet<V> resultSet = indexedCollection.retrieve(query);
-        if (resultSet.size() > 0) { // todo only do cache hit/miss if the cache stats are enabled
-            cacheMaintainer.registerCacheHits(resultSet);
-        } else {
-            cacheMaintainer.registerCacheMiss();
+        QueryBudget budget = defaultQueryBudget;
+        if (!budget.isUnlimited()) {
+            return retrieveWithinBudget(query, null, budget);
         }
+        if (snapshotRetrievalClients.get() > 0) {
+            return retrieveSnapshot(query);
+        }
+        long start = System.nanoTime();
+        ResultSet<V> resultSet = indexedCollection.retrieve(query);
+        registerRetrieval(query, null, resultSet, start);
         return resultSet;
     }
 
+    /**
+     * Retrieve a query. If the QueryOptions include a QueryBudget (or this IndexedCache has a default QueryBudget) then
+     * the results are read within the budget and returned materialized, and a QueryBudgetExceededException is thrown if
+     * the query is rejected. The time (and whether the retrieving thread has been interrupted) is checked every 64
+     * results and every 64 objects that the query is matched against, so a query that scans many objects without
+     * finding a result is bounded by its timeout too.
+     */
     @Override
     public ResultSet<V> retrieve(Query<V> query, QueryOptions queryOptions) {
+        QueryBudget budget = queryOptions == null ? null : queryOptions.get(QueryBudget.class);
+        if (budget == null) {
+            budget = defaultQueryBudget;
+        }
+        if (!budget.isUnlimited()) {
+            return retrieveWithinBudget(query, queryOptions, budget);
+        }
+        if (snapshotRetrievalClients.get() > 0) {
+            return retrieveSnapshot(query, queryOptions);
+        }
+        long start = System.nanoTime();
         ResultSet<V> resultSet = indexedCollection.retrieve(query, queryOptions);
-        if (resultSet.size() > 0) { // todo only do cache hit/miss if the cache stats are enabled
+        registerRetrieval(query, queryOptions, resultSet, start);
+        return resultSet;
+    }
+
+    private ResultSet<V> retrieveWithinBudget(Query<V> query, QueryOptions queryOptions, QueryBudget budget) {
+        long start = System.nanoTime();
+        ResultSet<V> materialized = materializeWithinBudget(query, queryOptions, budget, start);
+        registerRetrieval(query, queryOptions, materialized, start);
+        return materialized;
+    }
+
+    /**
+     * Read the results of a query within its budget - as a snapshot if snapshot retrieval is required - counting a
+     * rejection or a cut short read in the query statistics.
+     */
+    private ResultSet<V> materializeWithinBudget(Query<V> query, QueryOptions queryOptions, QueryBudget budget, long start) {
+        AtomicBoolean cutShort = new AtomicBoolean();
+        ResultSet<V> materialized;
+        try {
+            materialized = snapshotRetrievalClients.get() > 0
+                    ? publicationGate.read(() -> readWithinBudget(query, queryOptions, budget, start, cutShort))
+                    : readWithinBudget(query, queryOptions, budget, start, cutShort);
+        } catch (QueryBudgetExceededException e) {
+            queryStatistics.recordRejected();
+            throw e;
+        }
+        if (cutShort.get()) {
+            queryStatistics.recordCutShort();
+        }
+        return materialized;
+    }
+
+    /**
+     * Read the results of a query within its budget, setting cutShort if they were cut short. The statistics of the
+     * read are left to the caller since a snapshot read may be attempted more than once.
+     */
+    private ResultSet<V> readWithinBudget(Query<V> query, QueryOptions queryOptions, QueryBudget budget, long start, AtomicBoolean cutShort) {
+        List<V> results = new ArrayList<>();
+        int retrievalCost;
+        cutShort.set(false);
+        // The check is also matched against every object that the query is (it comes first so that it is not skipped when
+        // an earlier part of the query does not match) so a long scan is bounded too
+        BudgetCheckQuery<V> budgetCheck = new BudgetCheckQuery<>(start, budget.getTimeoutNanos());
+        Query<V> checkedQuery = and(budgetCheck, query);
+        try (ResultSet<V> resultSet = queryOptions == null ? indexedCollection.retrieve(checkedQuery) : indexedCollection.retrieve(checkedQuery, queryOptions)) {
+            retrievalCost = resultSet.getRetrievalCost();
+            if (budget.getMaxRetrievalCost() > 0 && retrievalCost > budget.getMaxRetrievalCost()) {
+                throw rejected(QueryBudgetExceededException.Limit.RETRIEVAL_COST, "The retrieval cost of " + query + " is " + retrievalCost
+                        + " which is over the budget of " + budget.getMaxRetrievalCost());
+            }
+            try {
+                for (Iterator<V> iterator = resultSet.iterator(); iterator.hasNext(); ) {
+                    if (budget.getMaxResults() > 0 && results.size() == budget.getMaxResults()) {
+                        if (!budget.isCutShort()) {
+                            throw rejected(QueryBudgetExceededException.Limit.MAX_RESULTS, query + " has more than the budget of "
+                                    + budget.getMaxResults() + " results");
+                        }
+                        cutShort.set(true);
+                        break;
+                    }
+                    if ((results.size() & BUDGET_CHECK_MASK) == 0) {
+                        budgetCheck.check();
+                    }
+                    results.add(iterator.next());
+                }
+            } catch (BudgetCheckQuery.BudgetExhaustedException e) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw rejected(QueryBudgetExceededException.Limit.CANCELLED, "The retrieval of " + query + " was interrupted");
+                }
+                if (!budget.isCutShort()) {
+                    throw rejected(QueryBudgetExceededException.Limit.TIMEOUT, "The retrieval of " + query + " took longer than the budget of "
+                            + budget.getTimeoutNanos() + "ns");
+                }
+                cutShort.set(true);
+            }
+        }
+        return new SnapshotResultSet<>(query, queryOptions == null ? new QueryOptions() : queryOptions, results, retrievalCost);
+    }
+
+    private static QueryBudgetExceededException rejected(QueryBudgetExceededException.Limit limit, String message) {
+        return new QueryBudgetExceededException(limit, message);
+    }
+
+    /**
+     * Retrieve the results of a query as a snapshot: a materialized ResultSet that is consistent with the state of this
+     * IndexedCache between whole writes. A write through this IndexedCache (e.g. an update or addAll of a large batch)
+     * is published atomically to snapshot reads: a snapshot never contains some of its changes but not others.
+     *
+     * Writes do not wait for each other or for snapshot reads to be published. The query is read optimistically and is
+     * retried if a write was made while it was being read; after a few such retries it backs off for longer and longer
+     * between retries so that it is read in a gap between writes. Changes made directly to the javax.cache.Cache reach
+     * the IndexedCache one entry at a time and so are not batched. A plain retrieve is not read this way: it reads the
+     * IndexedCollection as it is, so its results can include some of the changes of a write in progress but not others.
+     */
+    public ResultSet<V> retrieveSnapshot(Query<V> query) {
+        return retrieveSnapshot(query, null);
+    }
+
+    public ResultSet<V> retrieveSnapshot(Query<V> query, QueryOptions queryOptions) {
+        long start = System.nanoTime();
+        ResultSet<V> snapshot = publicationGate.read(() -> {
+            List<V> results = new ArrayList<>();
+            try (ResultSet<V> resultSet = queryOptions == null ? indexedCollection.retrieve(query) : indexedCollection.retrieve(query, queryOptions)) {
+                resultSet.forEach(results::add);
+                return new SnapshotResultSet<>(query, queryOptions == null ? new QueryOptions() : queryOptions, results, resultSet.getRetrievalCost());
+            }
+        });
+        registerRetrieval(query, queryOptions, snapshot, start);
+        return snapshot;
+    }
+
+    /**
+     * Allow queries to be retrieved as strings (see retrieve(String, Object...)) in the given query language, using the
+     * given attributes by their names.
+     */
+    public void enableStringQueries(QueryLanguage queryLanguage, Class<V> objectType, Iterable<? extends Attribute<V, ?>> attributes) {
+        queryTemplates = new QueryTemplates<>(queryLanguage, objectType, attributes, queryStatistics);
+    }
+
+    /**
+     * Retrieve a query given as a string in the query language enabled by enableStringQueries, with a value for each ?
+     * parameter in the query string, e.g. retrieve("SELECT * FROM widgets WHERE widgetName = ?", "Widget1").
+     *
+     * Each distinct query string is parsed just once into a template (up to QueryTemplates.MAX_TEMPLATES of them, least
+     * recently used first out) and only the parameters are bound per call, so use parameters rather than literal values
+     * for the values that vary from call to call. Parameters must be of the type of their attribute.
+     */
+    public ResultSet<V> retrieve(String query, Object... parameters) {
+        QueryTemplates<V> templates = queryTemplates;
+        if (templates == null) {
+            throw new IllegalStateException("String queries have not been enabled");
+        }
+        ParseResult<V> parseResult = templates.bind(query, parameters);
+        return retrieve(parseResult.getQuery(), parseResult.getQueryOptions());
+    }
+
+    /**
+     * Retrieve a batch of queries together, returning their results (materialized) in the order of the queries. Queries
+     * that look up the same index are retrieved together (see QueryBatch) - e.g. equal queries on the same attribute
+     * with different values are retrieved as one in query and its results split between them.
+     *
+     * The query statistics are updated once per group of queries rather than once per query, and the cache hits of the
+     * whole batch are registered in one background task (with one cache miss if any query had no results).
+     *
+     * The QueryBudget in the QueryOptions (or the default QueryBudget of this IndexedCache) applies to each group of
+     * queries as it would to a single query: the results of the queries combined into one group are counted together
+     * against its maximum results, and the whole batch is rejected with a QueryBudgetExceededException if any group is.
+     */
+    public List<ResultSet<V>> retrieveAll(List<? extends Query<V>> queries) {
+        return retrieveAll(queries, null);
+    }
+
+    public List<ResultSet<V>> retrieveAll(List<? extends Query<V>> queries, QueryOptions queryOptions) {
+        QueryOptions options = queryOptions == null ? new QueryOptions() : queryOptions;
+        QueryBudget budget = queryOptions == null ? null : queryOptions.get(QueryBudget.class);
+        if (budget == null) {
+            budget = defaultQueryBudget;
+        }
+        List<List<V>> resultsByPosition = new ArrayList<>(queries.size());
+        for (int i = 0; i < queries.size(); i++) {
+            resultsByPosition.add(new ArrayList<>());
+        }
+        int[] retrievalCosts = new int[queries.size()];
+        List<V> hits = new ArrayList<>();
+        for (QueryBatch.Group<V> group : QueryBatch.of(queries).getGroups()) {
+            long start = System.nanoTime();
+            List<V> groupResults = new ArrayList<>();
+            try (ResultSet<V> resultSet = budget.isUnlimited()
+                    ? (queryOptions == null ? indexedCollection.retrieve(group.getQuery()) : indexedCollection.retrieve(group.getQuery(), queryOptions))
+                    : materializeWithinBudget(group.getQuery(), queryOptions, budget, start)) {
+                resultSet.forEach(groupResults::add);
+                for (int position : group.getPositions()) {
+                    retrievalCosts[position] = resultSet.getRetrievalCost();
+                }
+            }
+            group.split(groupResults, options, resultsByPosition);
+            long elapsedNanos = System.nanoTime() - start;
+            queryStatistics.record(group.getQuery(), queryOptions, indexedCollection, getIndexesVersion(), elapsedNanos);
+            for (int position : group.getPositions()) {
+                for (IndexedCacheObserver<V> observer : observers) {
+                    observer.queryRetrieved(queries.get(position), queryOptions, resultsByPosition.get(position).size(), elapsedNanos);
+                }
+            }
+            hits.addAll(groupResults);
+        }
+        List<ResultSet<V>> resultSets = new ArrayList<>(queries.size());
+        boolean missed = false;
+        for (int i = 0; i < queries.size(); i++) {
+            List<V> results = resultsByPosition.get(i);
+            missed |= results.isEmpty();
+            resultSets.add(new SnapshotResultSet<>(queries.get(i), options, results, retrievalCosts[i]));
+        }
+        if (!hits.isEmpty()) {
+            cacheMaintainer.registerCacheHits(hits);
+        }
+        if (missed) {
+            cacheMaintainer.registerCacheMiss();
+        }
+        return resultSets;
+    }
+
+    /**
+     * Retrieve just the values of some attributes of the objects matching a query, as columns (see ProjectionResult).
+     *
+     * A projection of one attribute is read from the keys of an index on the attribute - without reading the objects -
+     * when the index keeps its keys exactly (e.g. a HashIndex or NavigableIndex) and the query is an equal or in query
+     * on that attribute, or all. Other projections are read from the objects.
+     *
+     * Unlike retrieve, the matching objects are not each looked up in the javax.cache.Cache to maintain its hit
+     * statistics: projections are counted in aggregate by the IndexedCacheMXBean instead.
+     */
+    @SafeVarargs
+    public final ProjectionResult<V> retrieveProjected(Query<V> query, Attribute<V, ?>... attributes) {
+        return retrieveProjected(query, null, attributes);
+    }
+
+    @SafeVarargs
+    @SuppressWarnings("varargs")
+    public final ProjectionResult<V> retrieveProjected(Query<V> query, QueryOptions queryOptions, Attribute<V, ?>... attributes) {
+        long start = System.nanoTime();
+        ProjectionResult<V> projection;
+        try (ResultSet<V> resultSet = queryOptions == null ? indexedCollection.retrieve(query) : indexedCollection.retrieve(query, queryOptions)) {
+            projection = Projector.project(indexedCollection, query, resultSet, Arrays.asList(attributes),
+                    queryOptions == null ? new QueryOptions() : queryOptions);
+        }
+        long elapsedNanos = System.nanoTime() - start;
+        queryStatistics.record(query, queryOptions, indexedCollection, getIndexesVersion(), elapsedNanos);
+        queryStatistics.recordProjection(projection.size(), Arrays.stream(attributes).allMatch(projection::isCovered));
+        for (IndexedCacheObserver<V> observer : observers) {
+            observer.queryRetrieved(query, queryOptions, projection.size(), elapsedNanos);
+        }
+        return projection;
+    }
+
+    /**
+     * Return the number of objects that match a query.
+     *
+     * Where the query allows - all, equal, in, and disjoint or queries on attributes with an index that keeps its keys
+     * exactly (e.g. a HashIndex or NavigableIndex) - the count is read from the index's count of objects per key, so a
+     * count of a million matches costs about as much as an index lookup. Other queries are retrieved from the
+     * IndexedCollection and their results counted. Either way the matching objects are not looked up in the
+     * javax.cache.Cache to maintain its hit statistics; counts are counted in aggregate by the IndexedCacheMXBean.
+     *
+     * A count that is not read from the indexes is bounded by the QueryBudget in the QueryOptions (or the default
+     * QueryBudget of this IndexedCache) like a retrieve: its retrieval cost and the time spent counting are checked,
+     * and a count over budget throws a QueryBudgetExceededException or, if the budget is cutting short, returns the
+     * count so far. The maximum results of the budget do not limit a count since no results are kept.
+     */
+    public int count(Query<V> query) {
+        return count(query, null);
+    }
+
+    public int count(Query<V> query, QueryOptions queryOptions) {
+        long start = System.nanoTime();
+        int count = IndexCounter.count(indexedCollection, query, queryOptions == null ? new QueryOptions() : queryOptions);
+        boolean fromIndexes = count != IndexCounter.NOT_COUNTABLE;
+        if (!fromIndexes) {
+            count = countWithinBudget(query, queryOptions, Integer.MAX_VALUE, start);
+        }
+        registerCount(query, queryOptions, count, fromIndexes, start);
+        return count;
+    }
+
+    /**
+     * Return whether any object matches a query. Like count this is answered from the indexes where the query allows;
+     * otherwise the query is retrieved and only its first result (if any) is read, within the query's budget as for
+     * count.
+     */
+    public boolean exists(Query<V> query) {
+        return exists(query, null);
+    }
+
+    public boolean exists(Query<V> query, QueryOptions queryOptions) {
+        long start = System.nanoTime();
+        int count = IndexCounter.count(indexedCollection, query, queryOptions == null ? new QueryOptions() : queryOptions);
+        boolean fromIndexes = count != IndexCounter.NOT_COUNTABLE;
+        boolean exists;
+        if (fromIndexes) {
+            exists = count > 0;
+        } else {
+            exists = countWithinBudget(query, queryOptions, 1, start) > 0;
+        }
+        registerCount(query, queryOptions, exists ? 1 : 0, fromIndexes, start);
+        return exists;
+    }
+
+    /**
+     * Count the results of a query, up to a limit, within the budget of the query - its retrieval cost and timeout -
+     * counting a rejection or a count cut short in the query statistics.
+     */
+    private int countWithinBudget(Query<V> query, QueryOptions queryOptions, int limit, long start) {
+        QueryBudget budget = queryOptions == null ? null : queryOptions.get(QueryBudget.class);
+        if (budget == null) {
+            budget = defaultQueryBudget;
+        }
+        if (budget.isUnlimited()) {
+            try (ResultSet<V> resultSet = queryOptions == null ? indexedCollection.retrieve(query) : indexedCollection.retrieve(query, queryOptions)) {
+                return limit == 1 ? (resultSet.isNotEmpty() ? 1 : 0) : resultSet.size();
+            }
+        }
+        BudgetCheckQuery<V> budgetCheck = new BudgetCheckQuery<>(start, budget.getTimeoutNanos());
+        Query<V> checkedQuery = and(budgetCheck, query);
+        int count = 0;
+        try (ResultSet<V> resultSet = queryOptions == null ? indexedCollection.retrieve(checkedQuery) : indexedCollection.retrieve(checkedQuery, queryOptions)) {
+            int retrievalCost = resultSet.getRetrievalCost();
+            if (budget.getMaxRetrievalCost() > 0 && retrievalCost > budget.getMaxRetrievalCost()) {
+                throw rejected(QueryBudgetExceededException.Limit.RETRIEVAL_COST, "The retrieval cost of " + query + " is " + retrievalCost
+                        + " which is over the budget of " + budget.getMaxRetrievalCost());
+            }
+            try {
+                for (Iterator<V> iterator = resultSet.iterator(); count < limit && iterator.hasNext(); count++) {
+                    if ((count & BUDGET_CHECK_MASK) == 0) {
+                        budgetCheck.check();
+                    }
+                    iterator.next();
+                }
+            } catch (BudgetCheckQuery.BudgetExhaustedException e) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw rejected(QueryBudgetExceededException.Limit.CANCELLED, "The count of " + query + " was interrupted");
+                }
+                if (!budget.isCutShort()) {
+                    throw rejected(QueryBudgetExceededException.Limit.TIMEOUT, "The count of " + query + " took longer than the budget of "
+                            + budget.getTimeoutNanos() + "ns");
+                }
+                queryStatistics.recordCutShort();
+            }
+        } catch (QueryBudgetExceededException e) {
+            queryStatistics.recordRejected();
+            throw e;
+        }
+        return count;
+    }
+
+    private void registerCount(Query<V> query, QueryOptions queryOptions, int count, boolean fromIndexes, long startNanos) {
+        long elapsedNanos = System.nanoTime() - startNanos;
+        queryStatistics.record(query, queryOptions, indexedCollection, getIndexesVersion(), elapsedNanos);
+        queryStatistics.recordCount(fromIndexes);
+        for (IndexedCacheObserver<V> observer : observers) {
+            observer.queryRetrieved(query, queryOptions, count, elapsedNanos);
+        }
+    }
+
+    private void registerRetrieval(Query<V> query, QueryOptions queryOptions, ResultSet<V> resultSet, long startNanos) {
+        // ResultSets are lazy - it is the call to size() that does the work of the query so it is included in the timing
+        int size = resultSet.size();
+        long elapsedNanos = System.nanoTime() - startNanos;
+        queryStatistics.record(query, queryOptions, indexedCollection, getIndexesVersion(), elapsedNanos);
+        for (IndexedCacheObserver<V> observer : observers) {
+            observer.queryRetrieved(query, queryOptions, size, elapsedNanos);
+        }
+        if (size > 0) { // todo only do cache hit/miss if the cache stats are enabled
             cacheMaintainer.registerCacheHits(resultSet);
         } else {
             cacheMaintainer.registerCacheMiss();
         }
-        return resultSet;
+    }
+
+    private void notifyObjectsWritten(Iterable<? extends V> objectsRemoved, Iterable<? extends V> objectsAdded) {
+        for (IndexedCacheObserver<V> observer : observers) {
+            observer.objectsWritten(objectsRemoved, objectsAdded);
+        }
     }
 
     @Override
     public boolean update(Iterable<V> objectsToRemove, Iterable<V> objectsToAdd) {
-        boolean updated = indexedCollection.update(objectsToRemove, objectsToAdd);
+        boolean updated;
+        interning.internAll(objectsToAdd);
+        checkWeightFor(objectsToRemove, objectsToAdd);
+        int[] stripes = keyLocks.lockAll(keyHashesOf(objectsToRemove, objectsToAdd));
+        try {
+            publicationGate.startWrite();
+            try {
+                updated = indexedCollection.update(objectsToRemove, objectsToAdd);
+            } finally {
+                publicationGate.finishWrite();
+            }
+            if (updated) {
+                cacheMaintainer.indexCollectionWasUpdated(objectsToRemove, asStored(objectsToAdd));
+            }
+        } finally {
+            keyLocks.unlockAll(stripes);
+        }
         if (updated) {
-            cacheMaintainer.indexCollectionWasUpdated(objectsToRemove, objectsToAdd);
+            notifyObjectsWritten(objectsToRemove, objectsToAdd);
+            enforceMaxWeight(objectsToAdd);
         }
         return updated;
     }
 
     @Override
     public boolean update(Iterable<V> objectsToRemove, Iterable<V> objectsToAdd, QueryOptions queryOptions) {
-        boolean updated = indexedCollection.update(objectsToRemove, objectsToAdd, queryOptions);
+        boolean updated;
+        interning.internAll(objectsToAdd);
+        checkWeightFor(objectsToRemove, objectsToAdd);
+        int[] stripes = keyLocks.lockAll(keyHashesOf(objectsToRemove, objectsToAdd));
+        try {
+            publicationGate.startWrite();
+            try {
+                updated = indexedCollection.update(objectsToRemove, objectsToAdd, queryOptions);
+            } finally {
+                publicationGate.finishWrite();
+            }
+            if (updated) {
+                cacheMaintainer.indexCollectionWasUpdated(objectsToRemove, asStored(objectsToAdd));
+            }
+        } finally {
+            keyLocks.unlockAll(stripes);
+        }
         if (updated) {
-            cacheMaintainer.indexCollectionWasUpdated(objectsToRemove, objectsToAdd);
+            notifyObjectsWritten(objectsToRemove, objectsToAdd);
+            enforceMaxWeight(objectsToAdd);
         }
         return updated;
     }
@@ -135,11 +1029,32 @@ public final class IndexedCache<K, V> implements IndexedCollection<V> {
     @Override
     public void addIndex(Index<V> index) {
         indexedCollection.addIndex(index);
+        indexesAdded.incrementAndGet();
     }
 
     @Override
     public void addIndex(Index<V> index, QueryOptions queryOptions) {
         indexedCollection.addIndex(index, queryOptions);
+        indexesAdded.incrementAndGet();
+    }
+
+    /**
+     * Declare an index without building it. The index is built in the background - in parallel chunks in the common
+     * ForkJoinPool - the first time a query is made that could use it. Until it has been built queries are answered
+     * without it, as if it had not been added, and writes do not pay to maintain it.
+     */
+    public void addLazyIndex(AttributeIndex<?, V> index) {
+        indexedCollection.addIndex(BackgroundIndex.lazy(index, ForkJoinPool.commonPool()));
+        indexesAdded.incrementAndGet();
+    }
+
+    /**
+     * A version of the indexes of this IndexedCache that changes whenever the index selected for a query might change
+     * i.e. when an index is added or a BackgroundIndex (of any IndexedCache) changes state, for caching what is worked
+     * out by probing the indexes (see QueryShapeCache) without reading them for every query.
+     */
+    int getIndexesVersion() {
+        return 31 * indexesAdded.get() + BackgroundIndex.getStateChangeCount();
     }
 
     @Override
@@ -174,21 +1089,54 @@ public final class IndexedCache<K, V> implements IndexedCollection<V> {
 
     @Override
     public boolean add(V v) {
-        boolean added = indexedCollection.add(v);
+        boolean added;
+        interning.intern(v);
+        checkWeightFor(null, Collections.singletonList(v));
+        int stripe = keyLocks.lock(cacheKeys.hashOf(v));
+        try {
+            publicationGate.startWrite();
+            try {
+                added = indexedCollection.add(v);
+            } finally {
+                publicationGate.finishWrite();
+            }
+            if (added) {
+                cacheMaintainer.objectWasAdded(asStored(v));
+            }
+        } finally {
+            keyLocks.unlock(stripe);
+        }
         if (added) {
-            cacheMaintainer.objectWasAdded(v);
+            notifyObjectsWritten(null, Collections.singletonList(v));
+            enforceMaxWeight(Collections.singletonList(v));
         }
 
         return added;
     }
 
     @Override
+    @SuppressWarnings("unchecked")
     public boolean remove(Object o) {
-        boolean removed = indexedCollection.remove(o);
+        boolean removed;
+        // According to IndexedCollection docs, if o is not a V then it will throw an exception meaning
+        // the following cast is safe.
+        V v = (V) o;
+        int stripe = keyLocks.lock(cacheKeys.hashOf(v));
+        try {
+            publicationGate.startWrite();
+            try {
+                removed = indexedCollection.remove(o);
+            } finally {
+                publicationGate.finishWrite();
+            }
+            if (removed) {
+                cacheMaintainer.objectWasRemoved(v);
+            }
+        } finally {
+            keyLocks.unlock(stripe);
+        }
         if (removed) {
-            // According to IndexedCollection docs, if o is not a V then it will throw an exception meaning
-            // the following cast is safe.
-            cacheMaintainer.objectWasRemoved((V) o);
+            notifyObjectsWritten(Collections.singletonList(v), null);
         }
 
         return removed;
@@ -201,9 +1149,26 @@ public final class IndexedCache<K, V> implements IndexedCollection<V> {
 
     @Override
     public boolean addAll(Collection<? extends V> c) {
-        boolean added = indexedCollection.addAll(c);
+        boolean added;
+        interning.internAll(c);
+        checkWeightFor(null, c);
+        int[] stripes = keyLocks.lockAll(keyHashesOf(null, c));
+        try {
+            publicationGate.startWrite();
+            try {
+                added = indexedCollection.addAll(c);
+            } finally {
+                publicationGate.finishWrite();
+            }
+            if (added) {
+                cacheMaintainer.indexCollectionWasUpdated(null, asStored(c));
+            }
+        } finally {
+            keyLocks.unlockAll(stripes);
+        }
         if(added){
-            cacheMaintainer.indexCollectionWasUpdated(null, c);
+            notifyObjectsWritten(null, c);
+            enforceMaxWeight(c);
         }
 
         return added;
@@ -211,24 +1176,108 @@ public final class IndexedCache<K, V> implements IndexedCollection<V> {
 
     @Override
     public boolean retainAll(Collection<?> c) {
-        throw new UnsupportedOperationException();
+        return removeMatching(() -> {
+            List<V> matches = new ArrayList<>();
+            indexedCollection.forEach(v -> {
+                if (!c.contains(v)) {
+                    matches.add(v);
+                }
+            });
+            return matches;
+        }) > 0;
     }
 
     @Override
+    @SuppressWarnings("unchecked")
     public boolean removeAll(Collection<?> c) {
-        return indexedCollection.removeAll(c);
+        return removeMatching(() -> {
+            List<V> matches = new ArrayList<>();
+            for (Object o : c) {
+                if (indexedCollection.contains(o)) {
+                    matches.add((V) o);
+                }
+            }
+            return matches;
+        }) > 0;
+    }
+
+    /**
+     * Remove every object that matches a query and return the number removed. The matching objects are found using
+     * the indexes and removed from the IndexedCollection in one batch (which is published atomically to snapshot
+     * reads). Their entries are then removed from the javax.cache.Cache, each only if it still has the removed object.
+     */
+    public int removeWhere(Query<V> query) {
+        return removeMatching(() -> {
+            List<V> matches = new ArrayList<>();
+            try (ResultSet<V> resultSet = indexedCollection.retrieve(query)) {
+                resultSet.forEach(matches::add);
+            }
+            return matches;
+        });
     }
 
+    /**
+     * Remove the objects found by a match finder. The matches are found without holding any locks (a scan of the whole
+     * IndexedCollection can take a while) and then only the keys of the matches are locked; the matches are checked to
+     * still be in the IndexedCollection, as a write to one of them may have got in between, and those that are are
+     * removed in one batch.
+     */
+    private int removeMatching(Supplier<List<V>> matchFinder) {
+        List<V> matches = matchFinder.get();
+        if (matches.isEmpty()) {
+            return 0;
+        }
+        List<V> removed = new ArrayList<>(matches.size());
+        int[] stripes = keyLocks.lockAll(keyHashesOf(matches, null));
+        try {
+            for (V v : matches) {
+                if (indexedCollection.contains(v)) {
+                    removed.add(asStored(v));
+                }
+            }
+            publicationGate.startWrite();
+            try {
+                if (removed.isEmpty() || !indexedCollection.update(removed, Collections.emptyList())) {
+                    return 0;
+                }
+            } finally {
+                publicationGate.finishWrite();
+            }
+            cacheMaintainer.objectsWereRemoved(removed);
+        } finally {
+            keyLocks.unlockAll(stripes);
+        }
+        notifyObjectsWritten(removed, null);
+        return removed.size();
+    }
 
     @Override
     public void clear() {
-        indexedCollection.clear();
-        cache.clear(); // Calling clear also resets the stats - i.e. as well as removing stuff
+        int[] stripes = keyLocks.lockEverything();
+        try {
+            publicationGate.startWrite();
+            try {
+                indexedCollection.clear();
+            } finally {
+                publicationGate.finishWrite();
+            }
+            cache.clear(); // Calling clear also resets the stats - i.e. as well as removing stuff
+        } finally {
+            keyLocks.unlockAll(stripes);
+        }
     }
 
     @Override
     public boolean removeIf(Predicate<? super V> filter) {
-        throw new UnsupportedOperationException();
+        return removeMatching(() -> {
+            List<V> matches = new ArrayList<>();
+            indexedCollection.forEach(v -> {
+                if (filter.test(v)) {
+                    matches.add(v);
+                }
+            });
+            return matches;
+        }) > 0;
     }
 
     @Override
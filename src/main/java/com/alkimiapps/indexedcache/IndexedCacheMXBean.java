@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2019. Allan Boyd
+ * This program is made available under the terms of the Apache License v2.0.
+ */
+
+package com.alkimiapps.indexedcache;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Management interface for an IndexedCache. This complements the javax.cache.management.CacheStatisticsMXBean of the
+ * associated javax.cache.Cache (which only counts hits and misses) with information about how the IndexedCache itself
+ * is performing.
+ *
+ * Registered with the platform MBeanServer under the name
+ * <code>com.alkimiapps.indexedcache:type=IndexedCache,Cache=&lt;cache name&gt;</code> when management is enabled via
+ * IndexedCache.enableManagement(true).
+ */
+public interface IndexedCacheMXBean {
+
+    /**
+     * Latency statistics for each distinct query shape that has been retrieved from the IndexedCache.
+     */
+    List<QueryShapeStatistics> getQueryShapeStatistics();
+
+    /**
+     * Discard all the query shape statistics gathered so far.
+     */
+    void resetQueryShapeStatistics();
+
+    /**
+     * The number of cache maintenance tasks (e.g. hit/miss registrations) waiting to be run.
+     */
+    int getMaintenanceQueueDepth();
+
+    /**
+     * The number of cache maintenance tasks that have failed with an exception (each is also passed to the uncaught
+     * exception handler of the maintenance thread).
+     */
+    long getMaintenanceFailureCount();
+
+    /**
+     * The most recently measured delay between a write to the cache and delivery of the resulting cache entry event to
+     * the IndexedCache.
+     */
+    long getLastListenerEventLagNanos();
+
+    /**
+     * The 99th percentile of the measured delays between a write to the cache and delivery of the resulting cache
+     * entry event to the IndexedCache.
+     */
+    long getP99ListenerEventLagNanos();
+
+    /**
+     * The number of distinct keys in each index of the IndexedCache, keyed by index description. Indexes that do not
+     * expose key statistics are reported as -1.
+     */
+    Map<String, Integer> getIndexSizes();
+
+    /**
+     * The number of objects that an IndexedCacheReconciler has removed from the IndexedCache because they were no
+     * longer in the cache (e.g. because they were evicted).
+     */
+    long getOrphansRemoved();
+
+    /**
+     * The number of cache entries that an IndexedCacheReconciler has added to the IndexedCache because they were
+     * missing from it (e.g. because a cache entry event was lost).
+     */
+    long getMissingEntriesIndexed();
+
+    /**
+     * The number of attribute values that the ObjectInterner of the IndexedCache replaced with a canonical instance.
+     */
+    long getInternedValueCount();
+
+    /**
+     * The estimated number of bytes saved by interning attribute values, keyed by the class name of the values. Every
+     * index on an attribute shares the savings because the indexes key on the values held by the objects.
+     */
+    Map<String, Long> getEstimatedBytesSavedByInterning();
+
+    /**
+     * The number of rows returned by IndexedCache.retrieveProjected (which are not counted as cache hits).
+     */
+    long getProjectedRowCount();
+
+    /**
+     * The number of IndexedCache.retrieveProjected calls whose every column was read from the keys of an index.
+     */
+    long getCoveredProjectionCount();
+
+    /**
+     * The number of IndexedCache.count and exists calls (which are not counted as cache hits).
+     */
+    long getCountQueryCount();
+
+    /**
+     * The number of IndexedCache.count and exists calls answered from the key statistics of indexes alone.
+     */
+    long getIndexCountQueryCount();
+
+    /**
+     * The number of queries rejected because they would exceed (or exceeded) their QueryBudget.
+     */
+    long getRejectedQueryCount();
+
+    /**
+     * The number of queries whose results were cut short by their QueryBudget.
+     */
+    long getCutShortQueryCount();
+
+    /**
+     * The number of string queries (see IndexedCache.retrieve(String, Object...)) whose parsed template was reused.
+     */
+    long getQueryTemplateHitCount();
+
+    /**
+     * The number of string queries that had to be parsed into a new template.
+     */
+    long getQueryTemplateParseCount();
+
+    /**
+     * The mean time taken to parse a string query into a template.
+     */
+    long getMeanQueryTemplateParseNanos();
+
+    /**
+     * An estimate of the heap used by the objects in the IndexedCache (from a sample of them) and by each index.
+     */
+    FootprintEstimate getFootprintEstimate();
+}
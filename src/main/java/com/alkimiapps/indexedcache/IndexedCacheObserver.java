@@ -0,0 +1,36 @@
+/*
+ * Copyright (c) 2019. Allan Boyd
+ * This program is made available under the terms of the Apache License v2.0.
+ */
+
+package com.alkimiapps.indexedcache;
+
+import com.googlecode.cqengine.query.Query;
+import com.googlecode.cqengine.query.option.QueryOptions;
+
+/**
+ * A thing that observes the queries made against an IndexedCache and the objects written to it.
+ *
+ * Observers are invoked on the thread that called the IndexedCache so they must be quick and must not throw.
+ */
+public interface IndexedCacheObserver<V> {
+    /**
+     * Called after a query has been retrieved from an IndexedCache.
+     *
+     * @param query the query
+     * @param queryOptions the query options (null if no query options were provided)
+     * @param resultSize the number of objects that matched the query
+     * @param elapsedNanos how long it took to retrieve the query
+     */
+    void queryRetrieved(Query<V> query, QueryOptions queryOptions, int resultSize, long elapsedNanos);
+
+    /**
+     * Called after objects have been removed from and/or added to an IndexedCache through the IndexedCache (i.e. not
+     * for changes made directly to the javax.cache.Cache).
+     *
+     * @param objectsRemoved the objects removed (null if none were removed)
+     * @param objectsAdded the objects added (null if none were added)
+     */
+    default void objectsWritten(Iterable<? extends V> objectsRemoved, Iterable<? extends V> objectsAdded) {
+    }
+}
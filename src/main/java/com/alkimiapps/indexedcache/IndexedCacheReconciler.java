@@ -0,0 +1,220 @@
+/*
+ * Copyright (c) 2019. Allan Boyd
+ * This program is made available under the terms of the Apache License v2.0.
+ */
+
+package com.alkimiapps.indexedcache;
+
+import com.alkimiapps.indexedcache.internal.CacheKeys;
+import com.alkimiapps.indexedcache.internal.DriftStatistics;
+import com.alkimiapps.indexedcache.internal.MaintenanceScheduler;
+import com.googlecode.cqengine.IndexedCollection;
+
+import javax.cache.Cache;
+import javax.cache.configuration.CompleteConfiguration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Repairs drift between the IndexedCollection of an IndexedCache and its javax.cache.Cache in the background.
+ *
+ * The IndexedCollection can drift from the Cache because JCache does not report evictions (see the README) and because
+ * cache entry events are delivered asynchronously and could be lost. Rather than rebuilding the IndexedCollection, the
+ * reconciler walks the Cache - and then the IndexedCollection - in small slices. Each slice checks at most a given
+ * number of objects and stops early if it runs for longer than a given time budget. Slices are run at a fixed interval,
+ * on the shared maintenance threads (see MaintenanceScheduler), so the scan rate is at most sliceSize objects per
+ * interval.
+ *
+ * Drift is reconciled by key. A Cache entry whose value is not in the IndexedCollection is missing, and an object in
+ * the IndexedCollection whose key is among those of the missing entries is stale (the IndexedCollection missed a change
+ * to the entry): the stale object is replaced by the value of the entry, so that a key never has two objects. An object
+ * in the IndexedCollection whose key is not in the Cache is an orphan and is removed. Because the IndexedCollection and
+ * the Cache are not updated atomically together, a difference is only repaired if it is still there when it is checked
+ * again in a later slice, and not while a write of the key through the IndexedCache is still to be echoed by the Cache.
+ * Keys are checked with Cache.containsKey which (unlike Cache.get or getAll) does not affect the cache statistics.
+ *
+ * Walking the Cache with its iterator is an access of each entry: the entries read count as cache hits in the
+ * statistics of the Cache and, under an expiry policy that changes the expiry of an entry when it is accessed (e.g.
+ * AccessedExpiryPolicy or TouchedExpiryPolicy), would have their time to live restarted by every pass, so that no
+ * entry would ever expire. The Cache is therefore only walked if its expiry policy leaves the expiry of accessed
+ * entries alone; otherwise the reconciler walks just the IndexedCollection, removing orphans but not finding missing
+ * entries.
+ */
+public final class IndexedCacheReconciler<K, V> implements AutoCloseable {
+
+    public static final int DEFAULT_SLICE_SIZE = 100;
+    public static final long DEFAULT_SLICE_TIME_BUDGET_MILLIS = 2;
+
+    private enum Phase {CACHE, COLLECTION}
+
+    private final IndexedCache<K, V> indexedCache;
+    private final IndexedCollection<V> indexedCollection;
+    private final Cache<K, V> cache;
+    private final CacheKeys<K, V> cacheKeys;
+    private final DriftStatistics driftStatistics;
+    private final int sliceSize;
+    private final long sliceTimeBudgetNanos;
+    private final MaintenanceScheduler.MaintenanceQueue reconciler = MaintenanceScheduler.shared().newQueue();
+
+    private final Phase firstPhase;
+    private Phase phase;
+    private Iterator<Cache.Entry<K, V>> cacheIterator;
+    private Iterator<V> collectionIterator;
+    private List<V> suspectedOrphans = new ArrayList<>();
+    private Map<K, V> suspectedMissing = new LinkedHashMap<>(); // Found in the current pass
+    private Map<K, V> staleObjects = new HashMap<>(); // The objects of the keys of suspectedMissing
+    private Map<K, V> missingToRepair = new LinkedHashMap<>(); // Found in the last pass
+    private Map<K, V> staleToRepair = new HashMap<>();
+
+    private final LongAdder scanned = new LongAdder();
+    private final LongAdder completedPasses = new LongAdder();
+    private final LongAdder orphansRemoved = new LongAdder();
+    private final LongAdder missingEntriesIndexed = new LongAdder();
+
+    public IndexedCacheReconciler(IndexedCache<K, V> indexedCache, long sliceInterval, TimeUnit unit) {
+        this(indexedCache, DEFAULT_SLICE_SIZE, DEFAULT_SLICE_TIME_BUDGET_MILLIS, TimeUnit.MILLISECONDS, sliceInterval, unit);
+    }
+
+    @SuppressWarnings("unchecked")
+    public IndexedCacheReconciler(IndexedCache<K, V> indexedCache, int sliceSize, long sliceTimeBudget, TimeUnit sliceTimeBudgetUnit,
+                                  long sliceInterval, TimeUnit sliceIntervalUnit) {
+        this.indexedCache = indexedCache;
+        this.indexedCollection = indexedCache.getIndexedCollection();
+        this.cache = indexedCache.getCache();
+        this.cacheKeys = indexedCache.getCacheKeys();
+        this.driftStatistics = indexedCache.getDriftStatistics();
+        this.sliceSize = sliceSize;
+        this.sliceTimeBudgetNanos = sliceTimeBudgetUnit.toNanos(sliceTimeBudget);
+        this.firstPhase = accessChangesExpiry(cache) ? Phase.COLLECTION : Phase.CACHE;
+        this.phase = firstPhase;
+        reconciler.executePeriodically(this::reconcileSliceQuietly, sliceInterval, sliceIntervalUnit);
+    }
+
+    /**
+     * The number of objects and cache entries checked so far.
+     */
+    public long getScannedCount() {
+        return scanned.sum();
+    }
+
+    /**
+     * The number of complete passes over both the Cache and the IndexedCollection.
+     */
+    public long getCompletedPassCount() {
+        return completedPasses.sum();
+    }
+
+    public long getOrphansRemoved() {
+        return orphansRemoved.sum();
+    }
+
+    /**
+     * The number of missing entries indexed, including those that replaced a stale object of their key.
+     */
+    public long getMissingEntriesIndexed() {
+        return missingEntriesIndexed.sum();
+    }
+
+    @Override
+    public void close() {
+        reconciler.close();
+    }
+
+    /**
+     * Whether the Cache is walked to find entries missing from the IndexedCollection (see the class comment).
+     */
+    public boolean isWalkingCache() {
+        return firstPhase == Phase.CACHE;
+    }
+
+    synchronized void reconcileSlice() {
+        if (cache.isClosed()) {
+            return;
+        }
+        long deadline = System.nanoTime() + sliceTimeBudgetNanos;
+        repairConfirmedDrift();
+        for (int count = 0; count < sliceSize && System.nanoTime() - deadline < 0; count++) {
+            if (phase == Phase.CACHE) {
+                if (cacheIterator == null) {
+                    cacheIterator = cache.iterator();
+                }
+                if (!cacheIterator.hasNext()) {
+                    cacheIterator = null;
+                    phase = Phase.COLLECTION;
+                    continue;
+                }
+                Cache.Entry<K, V> entry = cacheIterator.next();
+                if (entry != null && !indexedCollection.contains(entry.getValue())) {
+                    suspectedMissing.put(entry.getKey(), entry.getValue());
+                }
+            } else {
+                if (collectionIterator == null) {
+                    collectionIterator = indexedCollection.iterator();
+                }
+                if (!collectionIterator.hasNext()) {
+                    // The stale objects of the missing entries are now known, so repair both in the next slice
+                    collectionIterator = null;
+                    phase = firstPhase;
+                    missingToRepair = suspectedMissing;
+                    staleToRepair = staleObjects;
+                    suspectedMissing = new LinkedHashMap<>();
+                    staleObjects = new HashMap<>();
+                    completedPasses.increment();
+                    break;
+                }
+                V v = collectionIterator.next();
+                K key = cacheKeys.keyFor(v);
+                if (suspectedMissing.containsKey(key)) {
+                    staleObjects.put(key, v);
+                } else if (!cache.containsKey(key)) {
+                    suspectedOrphans.add(v);
+                }
+            }
+            scanned.increment();
+        }
+    }
+
+    private void repairConfirmedDrift() {
+        for (V v : suspectedOrphans) {
+            K key = cacheKeys.keyFor(v);
+            if (!cache.containsKey(key) && indexedCache.reindex(key, v, null)) {
+                orphansRemoved.increment();
+                driftStatistics.orphanRemoved();
+            }
+        }
+        suspectedOrphans = new ArrayList<>();
+        missingToRepair.forEach((key, v) -> {
+            if (cache.containsKey(key) && indexedCache.reindex(key, staleToRepair.get(key), v)) {
+                missingEntriesIndexed.increment();
+                driftStatistics.missingEntryIndexed();
+            }
+        });
+        missingToRepair = new LinkedHashMap<>();
+        staleToRepair = new HashMap<>();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static boolean accessChangesExpiry(Cache<?, ?> cache) {
+        CompleteConfiguration<?, ?> configuration = cache.getConfiguration(CompleteConfiguration.class);
+        return configuration.getExpiryPolicyFactory().create().getExpiryForAccess() != null;
+    }
+
+    private synchronized void reconcileSliceQuietly() {
+        try {
+            reconcileSlice();
+        } catch (RuntimeException e) {
+            // Start again with a fresh pass rather than carrying on from the middle of the failed slice
+            cacheIterator = null;
+            collectionIterator = null;
+            suspectedMissing = new LinkedHashMap<>();
+            staleObjects = new HashMap<>();
+            phase = firstPhase;
+        }
+    }
+}
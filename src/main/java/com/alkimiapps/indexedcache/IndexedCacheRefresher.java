@@ -0,0 +1,258 @@
+/*
+ * Copyright (c) 2019. Allan Boyd
+ * This program is made available under the terms of the Apache License v2.0.
+ */
+
+package com.alkimiapps.indexedcache;
+
+import com.alkimiapps.indexedcache.internal.MaintenanceScheduler;
+
+import javax.cache.Cache;
+import javax.cache.configuration.CacheEntryListenerConfiguration;
+import javax.cache.configuration.CompleteConfiguration;
+import javax.cache.configuration.Factory;
+import javax.cache.configuration.MutableCacheEntryListenerConfiguration;
+import javax.cache.event.CacheEntryCreatedListener;
+import javax.cache.event.CacheEntryEvent;
+import javax.cache.event.CacheEntryExpiredListener;
+import javax.cache.event.CacheEntryListener;
+import javax.cache.event.CacheEntryRemovedListener;
+import javax.cache.event.CacheEntryUpdatedListener;
+import javax.cache.expiry.Duration;
+import javax.cache.integration.CacheLoader;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+/**
+ * Reloads the hot entries of an IndexedCache before they expire (refresh-ahead) so that popular objects do not drop out
+ * of query results - and then have to be re-added on a miss - every time to live.
+ *
+ * An entry is hot if it has been a hit in a query retrieved from the IndexedCache since it was last written. Once a hot
+ * entry is older than refreshFraction of the time to live it is reloaded through the CacheLoader (on the shared
+ * maintenance threads, see MaintenanceScheduler, at most loaderThreads loads at a time since loaders usually block on
+ * I/O) and the fresh value is swapped for the old one, holding the lock of the key so that the swap cannot overtake
+ * another write of the entry, and only if the old value is still in the IndexedCache. The swap is published to snapshot reads (see IndexedCache.retrieveSnapshot) in one step, and the
+ * cache entry is rewritten, restarting its time to live. CQEngine applies an update by removing and then adding, so a
+ * lazy read could miss the object in the middle of a swap: while a refresher is attached every retrieve from the
+ * IndexedCache is therefore read as a snapshot (materialized, and retried if it overlaps a write) so that a refreshed
+ * entry never drops out of query results. Entries that are not hot are left to expire. A loader that returns null
+ * (e.g. because the source no longer has the entry) also leaves it to expire.
+ *
+ * The ages of entries are tracked from the cache entry events of the javax.cache.Cache so writes made directly to the
+ * Cache are tracked too. The events that echo a swap (the removal and then the put of the entry) are recognised - the
+ * put by a value equal to the fresh one, since the Cache may hold a copy or a view of it - and keep the entry's age and
+ * hits as of the swap.
+ */
+public final class IndexedCacheRefresher<K, V> implements AutoCloseable {
+
+    public static final int DEFAULT_LOADER_THREADS = 2;
+
+    private final IndexedCache<K, V> indexedCache;
+    private final Cache<K, V> cache;
+    private final CacheLoader<K, V> loader;
+    private final long timeToLiveNanos;
+    private final long refreshAfterNanos;
+    private final Map<K, Tracked<V>> entries = new ConcurrentHashMap<>();
+    private final Map<K, V> swapsInFlight = new ConcurrentHashMap<>();
+    private final BiConsumer<K, V> hitListener = (key, value) -> entryHit(key);
+    private final CacheEntryListenerConfiguration<K, V> listenerConfiguration;
+    private final MaintenanceScheduler.MaintenanceQueue refresher = MaintenanceScheduler.shared().newQueue();
+    private final MaintenanceScheduler.MaintenanceQueue[] loaders;
+    private final AtomicInteger nextLoader = new AtomicInteger();
+
+    private final LongAdder refreshes = new LongAdder();
+    private final LongAdder failedRefreshes = new LongAdder();
+
+    /**
+     * Refresh the hot entries of the IndexedCache once they are older than refreshFraction (between 0 and 1) of the
+     * time to live of a new entry given by the expiry policy of its javax.cache.Cache.
+     */
+    public IndexedCacheRefresher(IndexedCache<K, V> indexedCache, CacheLoader<K, V> loader, double refreshFraction) {
+        this(indexedCache, loader, refreshFraction, timeToLiveOf(indexedCache.getCache()), TimeUnit.MILLISECONDS);
+    }
+
+    public IndexedCacheRefresher(IndexedCache<K, V> indexedCache, CacheLoader<K, V> loader, double refreshFraction, long timeToLive, TimeUnit unit) {
+        this(indexedCache, loader, refreshFraction, timeToLive, unit, DEFAULT_LOADER_THREADS);
+    }
+
+    /**
+     * Refresh the hot entries of the IndexedCache once they are older than refreshFraction of the given time to live,
+     * running at most loaderThreads loads at a time.
+     */
+    @SuppressWarnings("unchecked")
+    public IndexedCacheRefresher(IndexedCache<K, V> indexedCache, CacheLoader<K, V> loader, double refreshFraction, long timeToLive, TimeUnit unit,
+                                 int loaderThreads) {
+        if (refreshFraction <= 0 || refreshFraction >= 1) {
+            throw new IllegalArgumentException("The refresh fraction must be between 0 and 1 but was " + refreshFraction);
+        }
+        this.indexedCache = indexedCache;
+        this.cache = indexedCache.getCache();
+        this.loader = loader;
+        this.timeToLiveNanos = unit.toNanos(timeToLive);
+        this.refreshAfterNanos = (long) (timeToLiveNanos * refreshFraction);
+        this.listenerConfiguration = new MutableCacheEntryListenerConfiguration<>(
+                (Factory<CacheEntryListener<? super K, ? super V>>) () -> new AgeListener(), null, false, false);
+        // The tasks of a queue are run one at a time so each queue is one load at a time
+        this.loaders = new MaintenanceScheduler.MaintenanceQueue[Math.max(1, loaderThreads)];
+        for (int i = 0; i < loaders.length; i++) {
+            loaders[i] = MaintenanceScheduler.shared().newQueue();
+        }
+        cache.registerCacheEntryListener(listenerConfiguration);
+        indexedCache.addHitListener(hitListener);
+        indexedCache.requireSnapshotRetrieval();
+        // Check a few times in the window between becoming due for a refresh and expiring
+        long checkIntervalNanos = Math.max(TimeUnit.MILLISECONDS.toNanos(1), (timeToLiveNanos - refreshAfterNanos) / 4);
+        refresher.executePeriodically(this::refreshDueEntries, checkIntervalNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * The number of entries reloaded and swapped in so far.
+     */
+    public long getRefreshCount() {
+        return refreshes.sum();
+    }
+
+    /**
+     * The number of reloads that failed because the CacheLoader threw an exception. A failed entry is retried at the
+     * next check if it has not expired.
+     */
+    public long getFailedRefreshCount() {
+        return failedRefreshes.sum();
+    }
+
+    /**
+     * The number of entries whose age is being tracked.
+     */
+    public int getTrackedEntryCount() {
+        return entries.size();
+    }
+
+    @Override
+    public void close() {
+        refresher.close();
+        for (MaintenanceScheduler.MaintenanceQueue loader : loaders) {
+            loader.close();
+        }
+        indexedCache.removeHitListener(hitListener);
+        indexedCache.releaseSnapshotRetrieval();
+        if (!cache.isClosed()) {
+            cache.deregisterCacheEntryListener(listenerConfiguration);
+        }
+        entries.clear();
+        swapsInFlight.clear();
+    }
+
+    private void entryHit(K key) {
+        Tracked<V> tracked = entries.get(key);
+        if (tracked != null) {
+            tracked.lastHitNanos = System.nanoTime();
+        }
+    }
+
+    private void refreshDueEntries() {
+        long now = System.nanoTime();
+        entries.forEach((key, tracked) -> {
+            long age = now - tracked.writtenNanos;
+            if (!tracked.refreshing && tracked.lastHitNanos - tracked.writtenNanos > 0 && age >= refreshAfterNanos && age < timeToLiveNanos) {
+                tracked.refreshing = true;
+                loaders[Math.floorMod(nextLoader.getAndIncrement(), loaders.length)].execute(() -> refresh(key, tracked));
+            }
+        });
+    }
+
+    private void refresh(K key, Tracked<V> tracked) {
+        V fresh;
+        try {
+            fresh = loader.load(key);
+        } catch (RuntimeException e) {
+            failedRefreshes.increment();
+            tracked.refreshing = false;
+            return;
+        }
+        if (fresh == null) {
+            return;
+        }
+        // Mark the swap before it is made since its events can arrive before replace returns
+        swapsInFlight.put(key, fresh);
+        boolean swapped = false;
+        try {
+            swapped = indexedCache.replace(tracked.value, fresh);
+        } finally {
+            if (!swapped) {
+                swapsInFlight.remove(key, fresh);
+            }
+        }
+        if (swapped) {
+            // Unless the echo of the put has already tracked the fresh value
+            entries.replace(key, tracked, new Tracked<>(fresh));
+            refreshes.increment();
+        } else {
+            // The old value is no longer in the IndexedCache so there is nothing left to refresh
+            entries.remove(key, tracked);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static long timeToLiveOf(Cache<?, ?> cache) {
+        CompleteConfiguration<?, ?> configuration = cache.getConfiguration(CompleteConfiguration.class);
+        Duration timeToLive = configuration.getExpiryPolicyFactory().create().getExpiryForCreation();
+        if (timeToLive == null || timeToLive.isEternal() || timeToLive.isZero()) {
+            throw new IllegalArgumentException("Cache " + cache.getName() + " has no time to live to refresh ahead of");
+        }
+        return timeToLive.getTimeUnit().toMillis(timeToLive.getDurationAmount());
+    }
+
+    private static final class Tracked<V> {
+        private final V value;
+        private final long writtenNanos = System.nanoTime();
+        private volatile long lastHitNanos = writtenNanos;
+        private volatile boolean refreshing;
+
+        private Tracked(V value) {
+            this.value = value;
+        }
+    }
+
+    private final class AgeListener implements CacheEntryCreatedListener<K, V>, CacheEntryUpdatedListener<K, V>,
+            CacheEntryRemovedListener<K, V>, CacheEntryExpiredListener<K, V> {
+
+        @Override
+        public void onCreated(Iterable<CacheEntryEvent<? extends K, ? extends V>> cacheEntryEvents) {
+            cacheEntryEvents.forEach(event -> written(event.getKey(), event.getValue()));
+        }
+
+        @Override
+        public void onUpdated(Iterable<CacheEntryEvent<? extends K, ? extends V>> cacheEntryEvents) {
+            cacheEntryEvents.forEach(event -> written(event.getKey(), event.getValue()));
+        }
+
+        @Override
+        public void onRemoved(Iterable<CacheEntryEvent<? extends K, ? extends V>> cacheEntryEvents) {
+            cacheEntryEvents.forEach(event -> {
+                // The removal made by a swap is followed by the put of the fresh value
+                if (!swapsInFlight.containsKey(event.getKey())) {
+                    entries.remove(event.getKey());
+                }
+            });
+        }
+
+        @Override
+        public void onExpired(Iterable<CacheEntryEvent<? extends K, ? extends V>> cacheEntryEvents) {
+            cacheEntryEvents.forEach(event -> entries.remove(event.getKey()));
+        }
+
+        private void written(K key, V value) {
+            V swapped = swapsInFlight.remove(key);
+            if (swapped != null && swapped.equals(value)) {
+                // The echo of a swap: the refresher tracks the fresh value (if it has not already) once replace returns
+                entries.putIfAbsent(key, new Tracked<>(value));
+            } else {
+                entries.put(key, new Tracked<>(value));
+            }
+        }
+    }
+}
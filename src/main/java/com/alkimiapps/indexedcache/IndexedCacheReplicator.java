@@ -0,0 +1,261 @@
+/*
+ * Copyright (c) 2019. Allan Boyd
+ * This program is made available under the terms of the Apache License v2.0.
+ */
+
+package com.alkimiapps.indexedcache;
+
+import com.alkimiapps.indexedcache.internal.MaintenanceScheduler;
+import com.alkimiapps.indexedcache.internal.ReplicationBatch;
+import com.alkimiapps.indexedcache.internal.ReplicationBatch.Operation;
+import com.alkimiapps.indexedcache.internal.ReplicationBatch.Record;
+import com.googlecode.cqengine.query.Query;
+import com.googlecode.cqengine.query.option.QueryOptions;
+
+import javax.cache.Cache;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Replicates the changes made to an IndexedCache on one node to the IndexedCaches of its peers (and vice versa).
+ *
+ * The JCache providers that replicate caches between nodes don't necessarily deliver the events that keep each node's
+ * IndexedCollection in-sync with its Cache. Rather than relying on that, a replicator observes the objects written
+ * through its IndexedCache and publishes key-level change records over a ReplicationTransport. Changes are coalesced
+ * per key, batched (a batch is sent when it is full or after the flush interval, on the shared maintenance threads) and
+ * compressed. Each batch carries the origin of the replicator that sent it and a sequence number.
+ *
+ * A peer applies the records of a batch incrementally by putting (or removing) the keys in its own Cache - which the
+ * peer's IndexedCache then reflects - so changes applied from peers are not themselves published again. In REPLICATE
+ * mode the values are sent and put in the caches of peers. In INVALIDATE mode only keys are sent and any changed key is
+ * removed from the caches of peers.
+ *
+ * Batches that are received out of sequence are counted: duplicates are ignored and a gap in the sequence numbers from
+ * an origin means that batches have been lost so the caches may have drifted apart.
+ */
+public final class IndexedCacheReplicator<K, V> implements IndexedCacheObserver<V>, AutoCloseable {
+
+    public enum Mode {REPLICATE, INVALIDATE}
+
+    public static final int DEFAULT_MAX_BATCH_SIZE = 256;
+    public static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 10;
+
+    private final IndexedCache<K, V> indexedCache;
+    private final Cache<K, V> cache;
+    private final CacheKeyMaker<K, V> cacheKeyMaker;
+    private final ReplicationTransport transport;
+    private final ReplicationCodec<K, V> codec;
+    private final Mode mode;
+    private final int maxBatchSize;
+    private final long origin = UUID.randomUUID().getMostSignificantBits();
+    private final MaintenanceScheduler.MaintenanceQueue flusher = MaintenanceScheduler.shared().newQueue();
+
+    private final Object publishLock = new Object();
+    private Map<K, Record<K, V>> pending = new LinkedHashMap<>();
+    private long nextSequence = 1;
+
+    private final Object receiveLock = new Object();
+    private final Map<Long, Long> lastSequences = new ConcurrentHashMap<>();
+
+    private final LongAdder publishedBatches = new LongAdder();
+    private final LongAdder publishedRecords = new LongAdder();
+    private final LongAdder publishedBytes = new LongAdder();
+    private final LongAdder failedBatches = new LongAdder();
+    private final LongAdder receivedBatches = new LongAdder();
+    private final LongAdder appliedRecords = new LongAdder();
+    private final LongAdder missedBatches = new LongAdder();
+    private final LongAdder duplicateBatches = new LongAdder();
+    private final LongAdder rejectedBatches = new LongAdder();
+
+    public IndexedCacheReplicator(IndexedCache<K, V> indexedCache, ReplicationTransport transport, ReplicationCodec<K, V> codec, Mode mode) {
+        this(indexedCache, transport, codec, mode, DEFAULT_MAX_BATCH_SIZE, DEFAULT_FLUSH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    @SuppressWarnings("unchecked")
+    public IndexedCacheReplicator(IndexedCache<K, V> indexedCache, ReplicationTransport transport, ReplicationCodec<K, V> codec, Mode mode,
+                                  int maxBatchSize, long flushInterval, TimeUnit unit) {
+        this.indexedCache = indexedCache;
+        this.cache = indexedCache.getCache();
+        this.cacheKeyMaker = indexedCache.getCacheKeyMaker();
+        this.transport = transport;
+        this.codec = codec;
+        this.mode = mode;
+        this.maxBatchSize = maxBatchSize;
+        flusher.executePeriodically(this::flushQuietly, flushInterval, unit);
+        transport.setReceiver(this::receive);
+        indexedCache.addObserver(this);
+    }
+
+    @Override
+    public void queryRetrieved(Query<V> query, QueryOptions queryOptions, int resultSize, long elapsedNanos) {
+    }
+
+    @Override
+    public void objectsWritten(Iterable<? extends V> objectsRemoved, Iterable<? extends V> objectsAdded) {
+        boolean full;
+        synchronized (publishLock) {
+            if (objectsRemoved != null) {
+                objectsRemoved.forEach(v -> addPending(new Record<>(Operation.REMOVE, cacheKeyMaker.makeKey(v), null)));
+            }
+            if (objectsAdded != null) {
+                objectsAdded.forEach(v -> addPending(mode == Mode.REPLICATE
+                        ? new Record<>(Operation.PUT, cacheKeyMaker.makeKey(v), v)
+                        : new Record<>(Operation.REMOVE, cacheKeyMaker.makeKey(v), null)));
+            }
+            full = pending.size() >= maxBatchSize;
+        }
+        if (full) {
+            // The write has already been applied so a failure to publish is only counted (observers must not throw)
+            flushQuietly();
+        }
+    }
+
+    /**
+     * Publish the pending changes now rather than waiting for the batch to fill or for the flush interval to elapse.
+     *
+     * @throws RuntimeException if the batch could not be encoded or sent (it is counted as a failed batch)
+     */
+    public void flush() {
+        synchronized (publishLock) {
+            if (pending.isEmpty()) {
+                return;
+            }
+            ReplicationBatch<K, V> batch = new ReplicationBatch<>(origin, nextSequence++, new ArrayList<>(pending.values()));
+            pending = new LinkedHashMap<>();
+            try {
+                byte[] message = batch.encode(codec);
+                transport.send(message);
+                publishedBatches.increment();
+                publishedRecords.add(batch.getRecords().size());
+                publishedBytes.add(message.length);
+            } catch (RuntimeException e) {
+                // The sequence number has been used so peers will see a gap where this batch should have been
+                failedBatches.increment();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Stop replicating. Pending changes are published first. The transport is not closed.
+     */
+    @Override
+    public void close() {
+        indexedCache.removeObserver(this);
+        flusher.close();
+        flushQuietly();
+        transport.setReceiver(null);
+    }
+
+    /**
+     * The (random) identity of this replicator in the batches it publishes.
+     */
+    public long getOrigin() {
+        return origin;
+    }
+
+    public long getPublishedBatchCount() {
+        return publishedBatches.sum();
+    }
+
+    public long getPublishedRecordCount() {
+        return publishedRecords.sum();
+    }
+
+    /**
+     * The total size of the (compressed) batches published.
+     */
+    public long getPublishedBytes() {
+        return publishedBytes.sum();
+    }
+
+    /**
+     * The number of batches that could not be sent (peers will see these as missed batches).
+     */
+    public long getFailedBatchCount() {
+        return failedBatches.sum();
+    }
+
+    public long getReceivedBatchCount() {
+        return receivedBatches.sum();
+    }
+
+    public long getAppliedRecordCount() {
+        return appliedRecords.sum();
+    }
+
+    /**
+     * The number of batches from peers that were never received, as detected from gaps in their sequence numbers.
+     */
+    public long getMissedBatchCount() {
+        return missedBatches.sum();
+    }
+
+    public long getDuplicateBatchCount() {
+        return duplicateBatches.sum();
+    }
+
+    /**
+     * The number of batches from peers that could not be decoded e.g. because they were corrupt or the codec refused to
+     * deserialize them.
+     */
+    public long getRejectedBatchCount() {
+        return rejectedBatches.sum();
+    }
+
+    private void addPending(Record<K, V> record) {
+        // Only the last change to a key matters and it goes at the end of the batch
+        pending.remove(record.getKey());
+        pending.put(record.getKey(), record);
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (RuntimeException e) {
+            // Already counted as a failed batch, so not reported again as a failed maintenance task
+        }
+    }
+
+    private void receive(byte[] message) {
+        ReplicationBatch<K, V> batch;
+        try {
+            batch = ReplicationBatch.decode(message, codec);
+        } catch (RuntimeException e) {
+            // Malformed, truncated or not allowed by the codec: a bad batch must not fail the transport's thread
+            rejectedBatches.increment();
+            return;
+        }
+        if (batch.getOrigin() == origin) {
+            return;
+        }
+        synchronized (receiveLock) {
+            receivedBatches.increment();
+            Long lastSequence = lastSequences.get(batch.getOrigin());
+            if (lastSequence != null) {
+                if (batch.getSequence() <= lastSequence) {
+                    duplicateBatches.increment();
+                    return;
+                }
+                missedBatches.add(batch.getSequence() - lastSequence - 1);
+            }
+            lastSequences.put(batch.getOrigin(), batch.getSequence());
+            if (cache.isClosed()) {
+                return;
+            }
+            for (Record<K, V> record : batch.getRecords()) {
+                if (record.getOperation() == Operation.PUT) {
+                    cache.put(record.getKey(), record.getValue());
+                } else {
+                    cache.remove(record.getKey());
+                }
+                appliedRecords.increment();
+            }
+        }
+    }
+}
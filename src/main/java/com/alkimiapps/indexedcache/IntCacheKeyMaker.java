@@ -0,0 +1,26 @@
+/*
+ * Copyright (c) 2019. Allan Boyd
+ * This program is made available under the terms of the Apache License v2.0.
+ */
+
+package com.alkimiapps.indexedcache;
+
+/**
+ * A CacheKeyMaker for values whose keys are ints.
+ *
+ * Using an IntCacheKeyMaker rather than a CacheKeyMaker&lt;Integer, V&gt; lets an IndexedCache keep its key
+ * bookkeeping in primitive-keyed tables so that a key does not have to be boxed every time a value is found by a query.
+ */
+@FunctionalInterface
+public interface IntCacheKeyMaker<V> extends CacheKeyMaker<Integer, V> {
+    /**
+     * Return the key for some value. This method must always return a consistent result i.e. a given value must
+     * always have the same key.
+     */
+    int makeIntKey(V value);
+
+    @Override
+    default Integer makeKey(V value) {
+        return makeIntKey(value);
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) 2019. Allan Boyd
+ * This program is made available under the terms of the Apache License v2.0.
+ */
+
+package com.alkimiapps.indexedcache;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * A ReplicationTransport that delivers messages within the one JVM e.g. for testing replication between several
+ * IndexedCaches. Messages are delivered synchronously, on the thread that sent them, to every connected peer.
+ */
+public final class LoopbackReplicationTransport implements ReplicationTransport {
+
+    private final List<LoopbackReplicationTransport> peers = new CopyOnWriteArrayList<>();
+    private volatile Consumer<byte[]> receiver;
+    private volatile boolean closed;
+
+    /**
+     * Connect this transport with another so that each receives the messages sent by the other.
+     */
+    public void connect(LoopbackReplicationTransport peer) {
+        if (peer != this && !peers.contains(peer)) {
+            peers.add(peer);
+            peer.connect(this);
+        }
+    }
+
+    @Override
+    public void send(byte[] message) {
+        if (closed) {
+            throw new IllegalStateException("The transport is closed");
+        }
+        for (LoopbackReplicationTransport peer : peers) {
+            peer.deliver(message);
+        }
+    }
+
+    @Override
+    public void setReceiver(Consumer<byte[]> receiver) {
+        this.receiver = receiver;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        for (LoopbackReplicationTransport peer : peers) {
+            peer.peers.remove(this);
+        }
+        peers.clear();
+    }
+
+    private void deliver(byte[] message) {
+        Consumer<byte[]> messageReceiver = receiver;
+        if (!closed && messageReceiver != null) {
+            messageReceiver.accept(message);
+        }
+    }
+}
@@ -0,0 +1,19 @@
+/*
+ * Copyright (c) 2019. Allan Boyd
+ * This program is made available under the terms of the Apache License v2.0.
+ */
+
+package com.alkimiapps.indexedcache;
+
+/**
+ * Replaces the attribute values of an object with their canonical instances from a ValueInterner, e.g.
+ * <code>(order, interner) -&gt; order.setRegion(interner.intern(order.getRegion()))</code>.
+ *
+ * An IndexedCache calls its ObjectInterner on each object before it is added to its IndexedCollection - whether it is
+ * added through the IndexedCache or arrives from the cache (e.g. freshly deserialized) in a cache entry event.
+ */
+@FunctionalInterface
+public interface ObjectInterner<V> {
+
+    void internValues(V object, ValueInterner interner);
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright (c) 2019. Allan Boyd
+ * This program is made available under the terms of the Apache License v2.0.
+ */
+
+package com.alkimiapps.indexedcache;
+
+import com.alkimiapps.indexedcache.internal.ParallelRetrieval;
+import com.alkimiapps.indexedcache.internal.PartitionCacheEntryEventFilter;
+import com.alkimiapps.indexedcache.internal.SubclassableClassUniqueInstanceMaker;
+import com.googlecode.cqengine.IndexedCollection;
+import com.googlecode.cqengine.attribute.Attribute;
+import com.googlecode.cqengine.index.AttributeIndex;
+import com.googlecode.cqengine.index.Index;
+import com.googlecode.cqengine.query.Query;
+import com.googlecode.cqengine.query.logical.And;
+import com.googlecode.cqengine.query.logical.LogicalQuery;
+import com.googlecode.cqengine.query.logical.Or;
+import com.googlecode.cqengine.query.option.QueryOptions;
+import com.googlecode.cqengine.query.simple.Equal;
+import com.googlecode.cqengine.query.simple.In;
+import com.googlecode.cqengine.resultset.ResultSet;
+
+import javax.cache.Cache;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Supplier;
+
+/**
+ * An indexed cache whose objects are split across several IndexedCache partitions by the hash of their cache keys.
+ *
+ * Each partition has its own IndexedCollection (and so its own indexes) and its own queue of background tasks
+ * maintaining the javax.cache.Cache (run on the maintenance threads shared by all IndexedCaches), so writes to
+ * different partitions do not contend with each other. All of the partitions share the one javax.cache.Cache and each
+ * partition only reflects the changes to the entries of the Cache whose keys belong to it.
+ *
+ * Queries are retrieved from the partitions in parallel (in a ForkJoinPool) and the results of each partition are
+ * merged. If the query has an OrderByOption then the results of each partition are ordered and the merge preserves the
+ * order. Unlike the ResultSet of an IndexedCache, the ResultSet of a query that has to be retrieved from more than one
+ * partition is materialized before it is returned.
+ *
+ * If a key attribute is given (an attribute whose value is the cache key of an object) then queries on the key
+ * attribute (an equal or in query, possibly and-ed with other queries) are only retrieved from the partitions holding
+ * those keys.
+ *
+ * @param <K> cache key type
+ * @param <V> cache value type
+ */
+public final class PartitionedIndexedCache<K, V> implements Iterable<V>, AutoCloseable {
+
+    private final List<IndexedCache<K, V>> partitions;
+    private final Cache<K, V> cache;
+    private final CacheKeyMaker<K, V> cacheKeyMaker;
+    private final Attribute<V, K> keyAttribute;
+    private ForkJoinPool forkJoinPool = ForkJoinPool.commonPool();
+
+    /**
+     * Make a new PartitionedIndexedCache with the given number of partitions, each with an IndexedCollection made by
+     * the given Supplier (which should make a new, empty IndexedCollection each time it is called).
+     */
+    public PartitionedIndexedCache(Supplier<IndexedCollection<V>> indexedCollectionSupplier, Cache<K, V> cache, CacheKeyMaker<K, V> cacheKeyMaker, int partitionCount) {
+        this(indexedCollectionSupplier, cache, cacheKeyMaker, new SubclassableClassUniqueInstanceMaker<>(), null, partitionCount);
+    }
+
+    /**
+     * Make a new PartitionedIndexedCache with the given number of partitions, each with an IndexedCollection made by
+     * the given Supplier (which should make a new, empty IndexedCollection each time it is called).
+     *
+     * The key attribute may be null, in which case every query is retrieved from every partition.
+     */
+    public PartitionedIndexedCache(Supplier<IndexedCollection<V>> indexedCollectionSupplier, Cache<K, V> cache, CacheKeyMaker<K, V> cacheKeyMaker,
+                                   UniqueInstanceMaker<K> uniqueInstanceMaker, Attribute<V, K> keyAttribute, int partitionCount) {
+        if (partitionCount < 1) {
+            throw new IllegalArgumentException("partitionCount must be at least 1 but was " + partitionCount);
+        }
+        this.cache = cache;
+        this.cacheKeyMaker = cacheKeyMaker;
+        this.keyAttribute = keyAttribute;
+        List<IndexedCache<K, V>> partitions = new ArrayList<>(partitionCount);
+        for (int i = 0; i < partitionCount; i++) {
+            partitions.add(new IndexedCache<>(indexedCollectionSupplier.get(), cache, cacheKeyMaker, uniqueInstanceMaker,
+                    new PartitionCacheEntryEventFilter<>(i, partitionCount), false));
+        }
+        this.partitions = Collections.unmodifiableList(partitions);
+    }
+
+    public Cache<K, V> getCache() {
+        return cache;
+    }
+
+    public int getPartitionCount() {
+        return partitions.size();
+    }
+
+    /**
+     * Return the partitions of this PartitionedIndexedCache e.g. to monitor them individually.
+     */
+    public List<IndexedCache<K, V>> getPartitions() {
+        return partitions;
+    }
+
+    /**
+     * Use the given ForkJoinPool to retrieve queries from the partitions in parallel rather than the common pool.
+     */
+    public void setForkJoinPool(ForkJoinPool forkJoinPool) {
+        this.forkJoinPool = forkJoinPool;
+    }
+
+    /**
+     * Add an index to every partition. The Supplier is called once per partition and must make a new Index each time.
+     */
+    public void addIndex(Supplier<? extends Index<V>> indexSupplier) {
+        partitions.forEach(partition -> partition.addIndex(indexSupplier.get()));
+    }
+
+    /**
+     * Add a lazy index to every partition (see IndexedCache.addLazyIndex). The Supplier is called once per partition
+     * and must make a new AttributeIndex each time.
+     */
+    public void addLazyIndex(Supplier<? extends AttributeIndex<?, V>> indexSupplier) {
+        partitions.forEach(partition -> partition.addLazyIndex(indexSupplier.get()));
+    }
+
+    public ResultSet<V> retrieve(Query<V> query) {
+        return retrieve(query, null);
+    }
+
+    public ResultSet<V> retrieve(Query<V> query, QueryOptions queryOptions) {
+        BitSet targets = targetPartitions(query);
+        if (targets.cardinality() == 1) {
+            IndexedCache<K, V> partition = partitions.get(targets.nextSetBit(0));
+            return queryOptions == null ? partition.retrieve(query) : partition.retrieve(query, queryOptions);
+        }
+        List<IndexedCache<K, V>> targetPartitions = new ArrayList<>(targets.cardinality());
+        targets.stream().forEach(i -> targetPartitions.add(partitions.get(i)));
+        return ParallelRetrieval.retrieve(forkJoinPool, targetPartitions, query, queryOptions);
+    }
+
+    public boolean add(V v) {
+        return partitionFor(v).add(v);
+    }
+
+    public boolean addAll(Iterable<? extends V> objects) {
+        List<List<V>> byPartition = groupByPartition(objects);
+        boolean added = false;
+        for (int i = 0; i < byPartition.size(); i++) {
+            if (!byPartition.get(i).isEmpty()) {
+                added |= partitions.get(i).addAll(byPartition.get(i));
+            }
+        }
+        return added;
+    }
+
+    public boolean remove(V v) {
+        return partitionFor(v).remove(v);
+    }
+
+    /**
+     * Remove every object that matches a query from the partitions that could hold one (see IndexedCache.removeWhere)
+     * and return the number removed.
+     */
+    public int removeWhere(Query<V> query) {
+        return targetPartitions(query).stream().map(i -> partitions.get(i).removeWhere(query)).sum();
+    }
+
+    public boolean update(Iterable<V> objectsToRemove, Iterable<V> objectsToAdd) {
+        List<List<V>> removesByPartition = groupByPartition(objectsToRemove);
+        List<List<V>> addsByPartition = groupByPartition(objectsToAdd);
+        boolean updated = false;
+        for (int i = 0; i < partitions.size(); i++) {
+            if (!removesByPartition.get(i).isEmpty() || !addsByPartition.get(i).isEmpty()) {
+                updated |= partitions.get(i).update(removesByPartition.get(i), addsByPartition.get(i));
+            }
+        }
+        return updated;
+    }
+
+    public boolean contains(V v) {
+        return partitionFor(v).contains(v);
+    }
+
+    public int size() {
+        int size = 0;
+        for (IndexedCache<K, V> partition : partitions) {
+            size += partition.size();
+        }
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public void clear() {
+        partitions.forEach(IndexedCache::clear);
+    }
+
+    /**
+     * Close every partition (see IndexedCache.close).
+     */
+    @Override
+    public void close() {
+        partitions.forEach(IndexedCache::close);
+    }
+
+    @Override
+    public Iterator<V> iterator() {
+        return partitions.stream().flatMap(IndexedCache::stream).iterator();
+    }
+
+    int partitionOf(V v) {
+        return PartitionCacheEntryEventFilter.partitionOf(cacheKeyMaker.makeKey(v), partitions.size());
+    }
+
+    private IndexedCache<K, V> partitionFor(V v) {
+        return partitions.get(partitionOf(v));
+    }
+
+    private List<List<V>> groupByPartition(Iterable<? extends V> objects) {
+        List<List<V>> byPartition = new ArrayList<>(partitions.size());
+        for (int i = 0; i < partitions.size(); i++) {
+            byPartition.add(new ArrayList<>());
+        }
+        if (objects != null) {
+            objects.forEach(v -> byPartition.get(partitionOf(v)).add(v));
+        }
+        return byPartition;
+    }
+
+    /**
+     * Return the partitions that could hold results of the query.
+     */
+    @SuppressWarnings("unchecked")
+    private BitSet targetPartitions(Query<V> query) {
+        BitSet all = new BitSet(partitions.size());
+        all.set(0, partitions.size());
+        if (keyAttribute == null) {
+            return all;
+        }
+        if (query instanceof Equal && ((Equal<V, ?>) query).getAttribute().equals(keyAttribute)) {
+            BitSet targets = new BitSet(partitions.size());
+            targets.set(PartitionCacheEntryEventFilter.partitionOf(((Equal<V, ?>) query).getValue(), partitions.size()));
+            return targets;
+        }
+        if (query instanceof In && ((In<V, ?>) query).getAttribute().equals(keyAttribute)) {
+            BitSet targets = new BitSet(partitions.size());
+            ((In<V, ?>) query).getValues().forEach(key -> targets.set(PartitionCacheEntryEventFilter.partitionOf(key, partitions.size())));
+            return targets;
+        }
+        if (query instanceof And) {
+            BitSet targets = all;
+            for (Query<V> childQuery : ((LogicalQuery<V>) query).getChildQueries()) {
+                targets.and(targetPartitions(childQuery));
+            }
+            return targets;
+        }
+        if (query instanceof Or) {
+            BitSet targets = new BitSet(partitions.size());
+            for (Query<V> childQuery : ((LogicalQuery<V>) query).getChildQueries()) {
+                targets.or(targetPartitions(childQuery));
+            }
+            return targets;
+        }
+        return all;
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2019. Allan Boyd
+ * This program is made available under the terms of the Apache License v2.0.
+ */
+
+package com.alkimiapps.indexedcache;
+
+import com.googlecode.cqengine.attribute.Attribute;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The values of some attributes of the objects matching a query, held column by column: one array per attribute, with
+ * one cell per matching object (the same row of every column belongs to the same object).
+ *
+ * A cell holds the attribute's value for the object, null if it has none or - for a multi-valued attribute with
+ * several values - a List of them.
+ */
+public final class ProjectionResult<V> {
+    private final List<Attribute<V, ?>> attributes;
+    private final Object[][] columns;
+    private final int size;
+    private final Set<Attribute<V, ?>> coveredAttributes;
+
+    public ProjectionResult(List<Attribute<V, ?>> attributes, Object[][] columns, int size, Set<Attribute<V, ?>> coveredAttributes) {
+        this.attributes = Collections.unmodifiableList(attributes);
+        this.columns = columns;
+        this.size = size;
+        this.coveredAttributes = Collections.unmodifiableSet(coveredAttributes);
+    }
+
+    /**
+     * The number of rows i.e. of objects that matched the query.
+     */
+    public int size() {
+        return size;
+    }
+
+    public List<Attribute<V, ?>> getAttributes() {
+        return attributes;
+    }
+
+    /**
+     * Return the column of values of one of the projected attributes.
+     */
+    @SuppressWarnings("unchecked")
+    public <A> List<A> getColumn(Attribute<V, A> attribute) {
+        return (List<A>) Collections.unmodifiableList(Arrays.asList(columns[columnOf(attribute)]));
+    }
+
+    /**
+     * Return the column of values of a numeric attribute as an array of longs, with 0 for objects that have no value.
+     * Throws an IllegalStateException if an object has several values of the attribute.
+     */
+    public long[] getLongColumn(Attribute<V, ? extends Number> attribute) {
+        Object[] column = columns[columnOf(attribute)];
+        long[] values = new long[size];
+        for (int row = 0; row < size; row++) {
+            if (column[row] instanceof Number) {
+                values[row] = ((Number) column[row]).longValue();
+            } else if (column[row] != null) {
+                throw new IllegalStateException("Row " + row + " has several values of " + attribute.getAttributeName()
+                        + " so the column can not be read as longs: " + column[row]);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Return the values of every projected attribute of one object, in the order the attributes were given.
+     */
+    public Object[] getRow(int row) {
+        if (row < 0 || row >= size) {
+            throw new IndexOutOfBoundsException("Row " + row + " of " + size);
+        }
+        Object[] values = new Object[columns.length];
+        for (int column = 0; column < columns.length; column++) {
+            values[column] = columns[column][row];
+        }
+        return values;
+    }
+
+    /**
+     * Whether the column of an attribute was read from the keys of an index on it rather than from the objects. The
+     * rows of a column read from an index are in no particular order.
+     */
+    public boolean isCovered(Attribute<V, ?> attribute) {
+        return coveredAttributes.contains(attribute);
+    }
+
+    private int columnOf(Attribute<V, ?> attribute) {
+        int column = attributes.indexOf(attribute);
+        if (column < 0) {
+            throw new IllegalArgumentException("Attribute " + attribute.getAttributeName() + " was not projected");
+        }
+        return column;
+    }
+
+    @Override
+    public String toString() {
+        return "ProjectionResult{" +
+                "attributes=" + attributes +
+                ", size=" + size +
+                ", coveredAttributes=" + coveredAttributes +
+                '}';
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2019. Allan Boyd
+ * This program is made available under the terms of the Apache License v2.0.
+ */
+
+package com.alkimiapps.indexedcache;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits on what one query retrieved from an IndexedCache may cost: a maximum retrieval cost (CQEngine's estimate of
+ * the work to retrieve the query, from ResultSet.getRetrievalCost), a wall-clock timeout and a maximum number of
+ * results. A limit of 0 means no limit.
+ *
+ * A query whose retrieval cost is over budget is rejected before any results are read. A query that runs out of time
+ * or reaches the maximum number of results is either cut short - its results are those read so far - or rejected,
+ * depending on whether the budget cuts short. Either way a QueryBudgetExceededException is thrown when a query is
+ * rejected.
+ *
+ * A QueryBudget applies to one retrieve when it is given in its QueryOptions (e.g. queryOptions(budget)) or to every
+ * retrieve without one when it is the default budget of the IndexedCache. QueryBudgets are immutable.
+ */
+public final class QueryBudget {
+
+    public static final QueryBudget UNLIMITED = new QueryBudget(0, 0, 0, false);
+
+    private final int maxRetrievalCost;
+    private final long timeoutNanos;
+    private final int maxResults;
+    private final boolean cutShort;
+
+    private QueryBudget(int maxRetrievalCost, long timeoutNanos, int maxResults, boolean cutShort) {
+        this.maxRetrievalCost = maxRetrievalCost;
+        this.timeoutNanos = timeoutNanos;
+        this.maxResults = maxResults;
+        this.cutShort = cutShort;
+    }
+
+    public QueryBudget withMaxRetrievalCost(int maxRetrievalCost) {
+        return new QueryBudget(maxRetrievalCost, timeoutNanos, maxResults, cutShort);
+    }
+
+    public QueryBudget withTimeout(long timeout, TimeUnit unit) {
+        return new QueryBudget(maxRetrievalCost, unit.toNanos(timeout), maxResults, cutShort);
+    }
+
+    public QueryBudget withMaxResults(int maxResults) {
+        return new QueryBudget(maxRetrievalCost, timeoutNanos, maxResults, cutShort);
+    }
+
+    /**
+     * Return a budget that cuts short (rather than rejects) queries that run out of time or reach the maximum number of
+     * results.
+     */
+    public QueryBudget cuttingShort() {
+        return new QueryBudget(maxRetrievalCost, timeoutNanos, maxResults, true);
+    }
+
+    public int getMaxRetrievalCost() {
+        return maxRetrievalCost;
+    }
+
+    public long getTimeoutNanos() {
+        return timeoutNanos;
+    }
+
+    public int getMaxResults() {
+        return maxResults;
+    }
+
+    public boolean isCutShort() {
+        return cutShort;
+    }
+
+    public boolean isUnlimited() {
+        return maxRetrievalCost == 0 && timeoutNanos == 0 && maxResults == 0;
+    }
+
+    @Override
+    public String toString() {
+        return "QueryBudget{" +
+                "maxRetrievalCost=" + maxRetrievalCost +
+                ", timeoutNanos=" + timeoutNanos +
+                ", maxResults=" + maxResults +
+                ", cutShort=" + cutShort +
+                '}';
+    }
+}
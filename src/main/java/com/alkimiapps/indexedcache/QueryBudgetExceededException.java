@@ -0,0 +1,31 @@
+/*
+ * Copyright (c) 2019. Allan Boyd
+ * This program is made available under the terms of the Apache License v2.0.
+ */
+
+package com.alkimiapps.indexedcache;
+
+/**
+ * Thrown when a query retrieved from an IndexedCache is rejected because it would exceed (or has exceeded) its
+ * QueryBudget, or because the retrieving thread was interrupted.
+ */
+public final class QueryBudgetExceededException extends RuntimeException {
+
+    /**
+     * Which limit the query exceeded.
+     */
+    public enum Limit {RETRIEVAL_COST, TIMEOUT, MAX_RESULTS, CANCELLED}
+
+    private static final long serialVersionUID = 1L;
+
+    private final Limit limit;
+
+    public QueryBudgetExceededException(Limit limit, String message) {
+        super(message);
+        this.limit = limit;
+    }
+
+    public Limit getLimit() {
+        return limit;
+    }
+}
@@ -0,0 +1,25 @@
+/*
+ * Copyright (c) 2019. Allan Boyd
+ * This program is made available under the terms of the Apache License v2.0.
+ */
+
+package com.alkimiapps.indexedcache;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Writes and reads the keys and values of an IndexedCache for an IndexedCacheReplicator. The more compact the encoding,
+ * the cheaper replication is.
+ */
+public interface ReplicationCodec<K, V> {
+
+    void writeKey(K key, DataOutput out) throws IOException;
+
+    K readKey(DataInput in) throws IOException;
+
+    void writeValue(V value, DataOutput out) throws IOException;
+
+    V readValue(DataInput in) throws IOException;
+}
@@ -0,0 +1,29 @@
+/*
+ * Copyright (c) 2019. Allan Boyd
+ * This program is made available under the terms of the Apache License v2.0.
+ */
+
+package com.alkimiapps.indexedcache;
+
+import java.util.function.Consumer;
+
+/**
+ * Carries the messages of IndexedCacheReplicators between nodes.
+ *
+ * A transport must deliver the messages sent from one node to every peer in the order that they were sent. It need not
+ * be reliable - a peer detects messages that were lost from the sequence numbers of the messages that it does receive.
+ */
+public interface ReplicationTransport extends AutoCloseable {
+    /**
+     * Send a message to every peer.
+     */
+    void send(byte[] message);
+
+    /**
+     * Set the receiver of the messages sent by peers.
+     */
+    void setReceiver(Consumer<byte[]> receiver);
+
+    @Override
+    void close();
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright (c) 2019. Allan Boyd
+ * This program is made available under the terms of the Apache License v2.0.
+ */
+
+package com.alkimiapps.indexedcache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.Serializable;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.Predicate;
+
+/**
+ * A ReplicationCodec for Serializable keys and values. Strings, boxed primitives and UUIDs - the usual key types - are
+ * written compactly as a tag and the value. Other keys and values are written with Java serialization, which works for
+ * any Serializable type but costs a stream header and class descriptors per record, so a ReplicationCodec written for
+ * the key and value types will usually be far more compact.
+ *
+ * The records read come from peers, so deserialization is restricted to an allow-list given by the caller: every class
+ * named in a serialized record (including the classes of the fields and the superclasses of its objects) must be
+ * allowed, otherwise the record is rejected with an InvalidClassException before the class is loaded.
+ */
+public final class SerializingReplicationCodec<K, V> implements ReplicationCodec<K, V> {
+
+    private static final byte NULL = 0;
+    private static final byte STRING = 1;
+    private static final byte LONG = 2;
+    private static final byte INTEGER = 3;
+    private static final byte SHORT = 4;
+    private static final byte BYTE = 5;
+    private static final byte DOUBLE = 6;
+    private static final byte FLOAT = 7;
+    private static final byte BOOLEAN = 8;
+    private static final byte CHARACTER = 9;
+    private static final byte UUID_TYPE = 10;
+    private static final byte SERIALIZED = 11;
+
+    private static final int READ_CHUNK_SIZE = 8192;
+
+    private final Predicate<String> allowedClassNames;
+
+    /**
+     * @param allowedClassNames whether a class, by name, may be deserialized from the records of peers
+     */
+    public SerializingReplicationCodec(Predicate<String> allowedClassNames) {
+        this.allowedClassNames = allowedClassNames;
+    }
+
+    /**
+     * Make a SerializingReplicationCodec that may deserialize the given classes and their Serializable superclasses.
+     */
+    public static <K, V> SerializingReplicationCodec<K, V> allowing(Class<?>... classes) {
+        Set<String> allowed = new HashSet<>();
+        for (Class<?> type : classes) {
+            for (Class<?> c = type; c != null && Serializable.class.isAssignableFrom(c); c = c.getSuperclass()) {
+                allowed.add(c.getName());
+            }
+        }
+        return new SerializingReplicationCodec<>(allowed::contains);
+    }
+
+    @Override
+    public void writeKey(K key, DataOutput out) throws IOException {
+        writeObject(key, out);
+    }
+
+    @Override
+    public K readKey(DataInput in) throws IOException {
+        return readObject(in);
+    }
+
+    @Override
+    public void writeValue(V value, DataOutput out) throws IOException {
+        writeObject(value, out);
+    }
+
+    @Override
+    public V readValue(DataInput in) throws IOException {
+        return readObject(in);
+    }
+
+    private static void writeObject(Object object, DataOutput out) throws IOException {
+        if (object == null) {
+            out.writeByte(NULL);
+        } else if (object instanceof String) {
+            out.writeByte(STRING);
+            out.writeUTF((String) object);
+        } else if (object instanceof Long) {
+            out.writeByte(LONG);
+            out.writeLong((Long) object);
+        } else if (object instanceof Integer) {
+            out.writeByte(INTEGER);
+            out.writeInt((Integer) object);
+        } else if (object instanceof Short) {
+            out.writeByte(SHORT);
+            out.writeShort((Short) object);
+        } else if (object instanceof Byte) {
+            out.writeByte(BYTE);
+            out.writeByte((Byte) object);
+        } else if (object instanceof Double) {
+            out.writeByte(DOUBLE);
+            out.writeDouble((Double) object);
+        } else if (object instanceof Float) {
+            out.writeByte(FLOAT);
+            out.writeFloat((Float) object);
+        } else if (object instanceof Boolean) {
+            out.writeByte(BOOLEAN);
+            out.writeBoolean((Boolean) object);
+        } else if (object instanceof Character) {
+            out.writeByte(CHARACTER);
+            out.writeChar((Character) object);
+        } else if (object instanceof UUID) {
+            out.writeByte(UUID_TYPE);
+            out.writeLong(((UUID) object).getMostSignificantBits());
+            out.writeLong(((UUID) object).getLeastSignificantBits());
+        } else {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (ObjectOutputStream objectOut = new ObjectOutputStream(bytes)) {
+                objectOut.writeObject(object);
+            }
+            out.writeByte(SERIALIZED);
+            out.writeInt(bytes.size());
+            out.write(bytes.toByteArray());
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> T readObject(DataInput in) throws IOException {
+        byte type = in.readByte();
+        switch (type) {
+            case NULL:
+                return null;
+            case STRING:
+                return (T) in.readUTF();
+            case LONG:
+                return (T) Long.valueOf(in.readLong());
+            case INTEGER:
+                return (T) Integer.valueOf(in.readInt());
+            case SHORT:
+                return (T) Short.valueOf(in.readShort());
+            case BYTE:
+                return (T) Byte.valueOf(in.readByte());
+            case DOUBLE:
+                return (T) Double.valueOf(in.readDouble());
+            case FLOAT:
+                return (T) Float.valueOf(in.readFloat());
+            case BOOLEAN:
+                return (T) Boolean.valueOf(in.readBoolean());
+            case CHARACTER:
+                return (T) Character.valueOf(in.readChar());
+            case UUID_TYPE:
+                return (T) new UUID(in.readLong(), in.readLong());
+            case SERIALIZED:
+                try (ObjectInputStream objectIn = new AllowListObjectInputStream(new ByteArrayInputStream(readBytes(in, in.readInt())))) {
+                    return (T) objectIn.readObject();
+                } catch (ClassNotFoundException e) {
+                    throw new IOException(e);
+                }
+            default:
+                throw new IOException("Unknown replication codec type: " + type);
+        }
+    }
+
+    /**
+     * Read length bytes, allocating as they are read so that a corrupt length can not allocate more than is there.
+     */
+    private static byte[] readBytes(DataInput in, int length) throws IOException {
+        if (length < 0) {
+            throw new IOException("Invalid replication codec length: " + length);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(Math.min(length, READ_CHUNK_SIZE));
+        byte[] chunk = new byte[Math.min(length, READ_CHUNK_SIZE)];
+        int remaining = length;
+        while (remaining > 0) {
+            int chunkLength = Math.min(remaining, chunk.length);
+            in.readFully(chunk, 0, chunkLength);
+            bytes.write(chunk, 0, chunkLength);
+            remaining -= chunkLength;
+        }
+        return bytes.toByteArray();
+    }
+
+    private final class AllowListObjectInputStream extends ObjectInputStream {
+
+        private AllowListObjectInputStream(InputStream in) throws IOException {
+            super(in);
+        }
+
+        @Override
+        protected Class<?> resolveClass(ObjectStreamClass descriptor) throws IOException, ClassNotFoundException {
+            if (!allowedClassNames.test(descriptor.getName())) {
+                throw new InvalidClassException(descriptor.getName(), "Not allowed to be deserialized from a replication record");
+            }
+            return super.resolveClass(descriptor);
+        }
+
+        @Override
+        protected Class<?> resolveProxyClass(String[] interfaces) throws IOException {
+            throw new InvalidClassException("Proxy classes are not allowed to be deserialized from a replication record");
+        }
+    }
+}
@@ -0,0 +1,330 @@
+/*
+ * Copyright (c) 2019. Allan Boyd
+ * This program is made available under the terms of the Apache License v2.0.
+ */
+
+package com.alkimiapps.indexedcache;
+
+import com.alkimiapps.indexedcache.internal.KeyLocks;
+import com.alkimiapps.indexedcache.internal.MaintenanceScheduler;
+import com.alkimiapps.indexedcache.internal.ParallelRetrieval;
+import com.alkimiapps.indexedcache.internal.SubclassableClassUniqueInstanceMaker;
+import com.googlecode.cqengine.IndexedCollection;
+import com.googlecode.cqengine.index.Index;
+import com.googlecode.cqengine.query.Query;
+import com.googlecode.cqengine.query.option.QueryOptions;
+import com.googlecode.cqengine.resultset.ResultSet;
+
+import javax.cache.Cache;
+import javax.cache.event.CacheEntryEvent;
+import javax.cache.event.EventType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+/**
+ * An indexed cache whose objects are split between a hot tier, for the objects that queries return most often, and a
+ * cold tier for the rest. Each tier is an IndexedCache with its own IndexedCollection, so the hot tier can be an
+ * ordinary on-heap IndexedCollection while the cold tier keeps its objects (and, with off-heap or disk indexes, its
+ * indexes) off the heap e.g. new ConcurrentIndexedCollection<>(OffHeapPersistence.onPrimaryKey(idAttribute)). Both
+ * tiers share the one javax.cache.Cache, as the partitions of a PartitionedIndexedCache do.
+ *
+ * New objects go to the cold tier. The cache hits registered for the results of queries are counted per key and,
+ * every migration interval, the most frequently hit objects (up to the maximum hot size) are moved to the hot tier and
+ * the objects that have dropped out of that set are moved back to the cold tier. The counts are halved every interval
+ * so that the hot tier follows changes in the access pattern. Along with its count the latest object of each counted
+ * key is kept - as last written to its tier or, until a write is seen, as returned by a query - so that an object is
+ * moved between the IndexedCollections of the tiers without reading the javax.cache.Cache (which would count as an
+ * access to it), and a key only changes tier once its object has been moved. Writes through the TieredIndexedCache wait for the move
+ * of their key, but an object being moved may briefly be missing from the results of queries.
+ *
+ * Queries are retrieved from both tiers in parallel and their results merged as for a PartitionedIndexedCache. The
+ * results of each tier are read as a snapshot (see IndexedCache.retrieveSnapshot) so that no ResultSet of the cold tier
+ * is left open.
+ *
+ * @param <K> cache key type
+ * @param <V> cache value type
+ */
+public final class TieredIndexedCache<K, V> implements Iterable<V>, AutoCloseable {
+
+    public enum Tier {HOT, COLD}
+
+    private final Cache<K, V> cache;
+    private final CacheKeyMaker<K, V> cacheKeyMaker;
+    private final IndexedCache<K, V> hotTier;
+    private final IndexedCache<K, V> coldTier;
+    private final int maxHotSize;
+    private final Set<K> hotKeys = ConcurrentHashMap.newKeySet();
+    private final Map<K, Access> accesses = new ConcurrentHashMap<>();
+    private final LongAdder hotHits = new LongAdder();
+    private final LongAdder coldHits = new LongAdder();
+    private final LongAdder promotions = new LongAdder();
+    private final LongAdder demotions = new LongAdder();
+    private final KeyLocks keyLocks = new KeyLocks();
+    private final MaintenanceScheduler.MaintenanceQueue migrator;
+    private ForkJoinPool forkJoinPool = ForkJoinPool.commonPool();
+
+    /**
+     * Make a new TieredIndexedCache from two new, empty IndexedCollections that keeps at most maxHotSize objects in the
+     * hot tier and moves objects between the tiers every migration interval.
+     */
+    public TieredIndexedCache(IndexedCollection<V> hotIndexedCollection, IndexedCollection<V> coldIndexedCollection, Cache<K, V> cache,
+                              CacheKeyMaker<K, V> cacheKeyMaker, int maxHotSize, long migrationInterval, TimeUnit unit) {
+        if (maxHotSize < 1) {
+            throw new IllegalArgumentException("maxHotSize must be at least 1 but was " + maxHotSize);
+        }
+        this.cache = cache;
+        this.cacheKeyMaker = cacheKeyMaker;
+        this.maxHotSize = maxHotSize;
+        this.hotTier = new IndexedCache<>(hotIndexedCollection, cache, cacheKeyMaker, new SubclassableClassUniqueInstanceMaker<>(),
+                event -> hotKeys.contains(event.getKey()) && written(event), false);
+        this.coldTier = new IndexedCache<>(coldIndexedCollection, cache, cacheKeyMaker, new SubclassableClassUniqueInstanceMaker<>(),
+                event -> !hotKeys.contains(event.getKey()) && written(event), false);
+        hotTier.addHitListener((key, value) -> {
+            hotHits.increment();
+            accessed(key, value);
+        });
+        coldTier.addHitListener((key, value) -> {
+            coldHits.increment();
+            accessed(key, value);
+        });
+        this.migrator = MaintenanceScheduler.shared().newQueue();
+        migrator.executePeriodically(this::migrate, migrationInterval, unit);
+    }
+
+    public Cache<K, V> getCache() {
+        return cache;
+    }
+
+    /**
+     * Return the IndexedCache of a tier e.g. to monitor it or to add an index to just that tier.
+     */
+    public IndexedCache<K, V> getTier(Tier tier) {
+        return tier == Tier.HOT ? hotTier : coldTier;
+    }
+
+    /**
+     * Use the given ForkJoinPool to retrieve queries from the tiers in parallel rather than the common pool.
+     */
+    public void setForkJoinPool(ForkJoinPool forkJoinPool) {
+        this.forkJoinPool = forkJoinPool;
+    }
+
+    /**
+     * Add an index to both tiers. The Supplier is called once per tier and must make a new Index each time.
+     */
+    public void addIndex(Supplier<? extends Index<V>> indexSupplier) {
+        hotTier.addIndex(indexSupplier.get());
+        coldTier.addIndex(indexSupplier.get());
+    }
+
+    /**
+     * The number of cache hits (objects returned by queries) served by a tier.
+     */
+    public long getHitCount(Tier tier) {
+        return tier == Tier.HOT ? hotHits.sum() : coldHits.sum();
+    }
+
+    /**
+     * The share of all of the cache hits that were served by a tier, from 0 to 1.
+     */
+    public double getHitRatio(Tier tier) {
+        long hits = hotHits.sum() + coldHits.sum();
+        return hits == 0 ? 0 : (double) getHitCount(tier) / hits;
+    }
+
+    public long getPromotionCount() {
+        return promotions.sum();
+    }
+
+    public long getDemotionCount() {
+        return demotions.sum();
+    }
+
+    public ResultSet<V> retrieve(Query<V> query) {
+        return retrieve(query, null);
+    }
+
+    public ResultSet<V> retrieve(Query<V> query, QueryOptions queryOptions) {
+        // Snapshots, as the ResultSet of a tier with persistence holds the persistence open (and blocks its writers) until
+        // closed, and each with its own copy of the QueryOptions, as a tier with persistence keeps its connection in them
+        return ParallelRetrieval.retrieve(forkJoinPool, Arrays.asList(hotTier, coldTier),
+                tier -> tier.retrieveSnapshot(query, queryOptions == null ? null : new QueryOptions(new HashMap<>(queryOptions.getOptions()))),
+                query, queryOptions);
+    }
+
+    public boolean add(V v) {
+        K key = cacheKeyMaker.makeKey(v);
+        int stripe = keyLocks.lock(Objects.hashCode(key));
+        try {
+            boolean added = tierOf(key).add(v);
+            if (added) {
+                written(key, v);
+            }
+            return added;
+        } finally {
+            keyLocks.unlock(stripe);
+        }
+    }
+
+    public boolean remove(V v) {
+        K key = cacheKeyMaker.makeKey(v);
+        int stripe = keyLocks.lock(Objects.hashCode(key));
+        try {
+            boolean removed = tierOf(key).remove(v);
+            if (removed) {
+                written(key, null);
+            }
+            return removed;
+        } finally {
+            keyLocks.unlock(stripe);
+        }
+    }
+
+    public boolean contains(V v) {
+        return hotTier.contains(v) || coldTier.contains(v);
+    }
+
+    public int size() {
+        return hotTier.size() + coldTier.size();
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Move the most frequently hit objects to the hot tier and the rest back to the cold tier, returning the number of
+     * objects moved. This is done periodically (every migration interval) on the shared maintenance threads (see
+     * MaintenanceScheduler) but may also be called directly.
+     */
+    public synchronized int migrate() {
+        List<Map.Entry<K, Access>> ranked = new ArrayList<>();
+        for (Iterator<Map.Entry<K, Access>> it = accesses.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<K, Access> entry = it.next();
+            Access access = entry.getValue();
+            access.score = access.score / 2 + access.hits.sumThenReset();
+            if (access.score > 0) {
+                ranked.add(entry);
+            } else if (!hotKeys.contains(entry.getKey())) {
+                it.remove();
+            }
+        }
+        ranked.sort(Comparator.comparingLong((Map.Entry<K, Access> entry) -> entry.getValue().score).reversed());
+        Set<K> hottest = new HashSet<>();
+        for (int i = 0; i < ranked.size() && i < maxHotSize; i++) {
+            hottest.add(ranked.get(i).getKey());
+        }
+        int moved = 0;
+        for (K key : new ArrayList<>(hotKeys)) {
+            if (!hottest.contains(key) && moveKey(key, hotTier, coldTier)) {
+                demotions.increment();
+                moved++;
+            }
+        }
+        for (K key : hottest) {
+            if (!hotKeys.contains(key) && moveKey(key, coldTier, hotTier)) {
+                promotions.increment();
+                moved++;
+            }
+        }
+        return moved;
+    }
+
+    /**
+     * Stop migrating objects and close both tiers.
+     */
+    @Override
+    public void close() {
+        migrator.close();
+        hotTier.close();
+        coldTier.close();
+    }
+
+    @Override
+    public Iterator<V> iterator() {
+        return Stream.concat(hotTier.stream(), coldTier.stream()).iterator();
+    }
+
+    private IndexedCache<K, V> tierOf(K key) {
+        return hotKeys.contains(key) ? hotTier : coldTier;
+    }
+
+    private void accessed(K key, V value) {
+        Access access = accesses.computeIfAbsent(key, k -> new Access());
+        if (!access.written) {
+            // The hits of a key are registered in the background so once a write of the key has been seen a hit may
+            // carry an older object
+            access.value = value;
+        }
+        access.hits.increment();
+    }
+
+    /**
+     * Keep the latest object of a counted key up to date with an event of the javax.cache.Cache accepted by its tier.
+     * Returns true so that it can follow the tier test in the event filter of the tier.
+     */
+    private boolean written(CacheEntryEvent<? extends K, ? extends V> event) {
+        boolean removed = event.getEventType() == EventType.REMOVED || event.getEventType() == EventType.EXPIRED;
+        written(event.getKey(), removed ? null : event.getValue());
+        return true;
+    }
+
+    private void written(K key, V value) {
+        Access access = accesses.get(key);
+        if (access != null) {
+            access.value = value;
+            access.written = true;
+        }
+    }
+
+    /**
+     * Move the latest object of a key between the tiers (see IndexedCache.moveTo) and then move the key to the other
+     * tier, holding the lock of the key so that no write through the TieredIndexedCache sees the key in one tier and
+     * its object in the other. The javax.cache.Cache is neither read nor written. Returns false if there was no object
+     * to move, in which case the key stays in its tier unless it has been removed.
+     */
+    private boolean moveKey(K key, IndexedCache<K, V> from, IndexedCache<K, V> to) {
+        boolean toHot = to == hotTier;
+        int stripe = keyLocks.lock(Objects.hashCode(key));
+        try {
+            Access access = accesses.get(key);
+            V current = access == null ? null : access.value;
+            if (current == null) {
+                hotKeys.remove(key); // Removed since it was hit
+                return false;
+            }
+            if (!from.moveTo(current, to)) {
+                return false; // Not yet in the tier (e.g. its entry is still being changed), so try again next time
+            }
+            if (toHot) {
+                hotKeys.add(key);
+            } else {
+                hotKeys.remove(key);
+            }
+            return true;
+        } finally {
+            keyLocks.unlock(stripe);
+        }
+    }
+
+    private final class Access {
+        private final LongAdder hits = new LongAdder();
+        private volatile V value; // The latest object of the key, or null if it has been removed
+        private volatile boolean written; // Whether value was set by a write rather than by a hit
+        private long score; // Only used by migrate
+    }
+}
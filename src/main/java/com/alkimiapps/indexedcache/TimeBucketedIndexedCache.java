@@ -0,0 +1,321 @@
+/*
+ * Copyright (c) 2019. Allan Boyd
+ * This program is made available under the terms of the Apache License v2.0.
+ */
+
+package com.alkimiapps.indexedcache;
+
+import com.alkimiapps.indexedcache.internal.MaintenanceScheduler;
+import com.alkimiapps.indexedcache.internal.ParallelRetrieval;
+import com.alkimiapps.indexedcache.internal.TimeRange;
+import com.googlecode.cqengine.IndexedCollection;
+import com.googlecode.cqengine.attribute.Attribute;
+import com.googlecode.cqengine.index.Index;
+import com.googlecode.cqengine.query.Query;
+import com.googlecode.cqengine.query.option.QueryOptions;
+import com.googlecode.cqengine.resultset.ResultSet;
+
+import javax.cache.Cache;
+import javax.cache.CacheManager;
+import javax.cache.configuration.MutableConfiguration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * An indexed cache for objects that share a fixed time to live (e.g. time-series events) whose objects are split into
+ * buckets by the time they are added. Each bucket is an IndexedCache with its own IndexedCollection (and so its own
+ * indexes) and its own javax.cache.Cache without expiry.
+ *
+ * Rather than expiring objects one at a time - each one an event and a delete from every index - a whole bucket expires
+ * at once: once the newest object it could hold is older than the time to live, the bucket is closed, its Cache is
+ * destroyed and its IndexedCollection is simply discarded. Objects therefore live for at least the time to live and at
+ * most the time to live plus the span of a bucket. Expired buckets are dropped every bucket span by the maintenance
+ * threads shared by all IndexedCaches (or when dropExpiredBuckets is called).
+ *
+ * Queries are retrieved from the live buckets in parallel (in a ForkJoinPool) and the results merged as for a
+ * PartitionedIndexedCache. If a time attribute is given then each bucket tracks the range of the times of its objects
+ * and a query that restricts the time attribute (see TimeRange) skips the buckets that can not hold a result.
+ *
+ * @param <K> cache key type
+ * @param <V> cache value type
+ */
+public final class TimeBucketedIndexedCache<K, V> implements Iterable<V>, AutoCloseable {
+
+    private final CacheManager cacheManager;
+    private final String name;
+    private final Class<K> keyType;
+    private final Class<V> valueType;
+    private final CacheKeyMaker<K, V> cacheKeyMaker;
+    private final Supplier<IndexedCollection<V>> indexedCollectionSupplier;
+    private final Attribute<V, Long> timeAttribute;
+    private final long timeToLiveMillis;
+    private final long bucketSpanMillis;
+    private final LongSupplier clock;
+    private final List<Supplier<? extends Index<V>>> indexSuppliers = new CopyOnWriteArrayList<>();
+    private final MaintenanceScheduler.MaintenanceQueue expirer;
+    private final LongAdder bucketsDropped = new LongAdder();
+    private ForkJoinPool forkJoinPool = ForkJoinPool.commonPool();
+
+    // Oldest first; replaced (never modified) so that readers can use it without locking
+    private volatile List<Bucket> buckets = Collections.emptyList();
+
+    /**
+     * Make a new TimeBucketedIndexedCache whose bucket caches are made by the given CacheManager and named after the
+     * given name. Each bucket holds the objects added during bucketSpan and is dropped once bucketSpan plus timeToLive
+     * has passed since it was started. The time attribute may be null, in which case every query is retrieved from
+     * every bucket.
+     */
+    public TimeBucketedIndexedCache(CacheManager cacheManager, String name, Class<K> keyType, Class<V> valueType, CacheKeyMaker<K, V> cacheKeyMaker,
+                                    Supplier<IndexedCollection<V>> indexedCollectionSupplier, Attribute<V, Long> timeAttribute,
+                                    long timeToLive, long bucketSpan, TimeUnit unit) {
+        this(cacheManager, name, keyType, valueType, cacheKeyMaker, indexedCollectionSupplier, timeAttribute, timeToLive, bucketSpan, unit,
+                System::currentTimeMillis);
+    }
+
+    TimeBucketedIndexedCache(CacheManager cacheManager, String name, Class<K> keyType, Class<V> valueType, CacheKeyMaker<K, V> cacheKeyMaker,
+                             Supplier<IndexedCollection<V>> indexedCollectionSupplier, Attribute<V, Long> timeAttribute,
+                             long timeToLive, long bucketSpan, TimeUnit unit, LongSupplier clock) {
+        if (bucketSpan <= 0 || timeToLive <= 0) {
+            throw new IllegalArgumentException("timeToLive and bucketSpan must be positive but were " + timeToLive + " and " + bucketSpan);
+        }
+        this.cacheManager = cacheManager;
+        this.name = name;
+        this.keyType = keyType;
+        this.valueType = valueType;
+        this.cacheKeyMaker = cacheKeyMaker;
+        this.indexedCollectionSupplier = indexedCollectionSupplier;
+        this.timeAttribute = timeAttribute;
+        this.timeToLiveMillis = unit.toMillis(timeToLive);
+        this.bucketSpanMillis = unit.toMillis(bucketSpan);
+        this.clock = clock;
+        this.expirer = MaintenanceScheduler.shared().newQueue();
+        expirer.executePeriodically(this::dropExpiredBuckets, bucketSpanMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Use the given ForkJoinPool to retrieve queries from the buckets in parallel rather than the common pool.
+     */
+    public void setForkJoinPool(ForkJoinPool forkJoinPool) {
+        this.forkJoinPool = forkJoinPool;
+    }
+
+    /**
+     * Add an index to every bucket, now and as they are started. The Supplier is called once per bucket and must make a
+     * new Index each time.
+     */
+    public void addIndex(Supplier<? extends Index<V>> indexSupplier) {
+        synchronized (this) {
+            indexSuppliers.add(indexSupplier);
+            buckets.forEach(bucket -> bucket.indexedCache.addIndex(indexSupplier.get()));
+        }
+    }
+
+    /**
+     * Return the live buckets, oldest first, e.g. to monitor them individually.
+     */
+    public List<IndexedCache<K, V>> getBuckets() {
+        List<IndexedCache<K, V>> indexedCaches = new ArrayList<>();
+        buckets.forEach(bucket -> indexedCaches.add(bucket.indexedCache));
+        return indexedCaches;
+    }
+
+    public int getBucketCount() {
+        return buckets.size();
+    }
+
+    /**
+     * The number of buckets dropped because they expired.
+     */
+    public long getBucketsDropped() {
+        return bucketsDropped.sum();
+    }
+
+    public ResultSet<V> retrieve(Query<V> query) {
+        return retrieve(query, null);
+    }
+
+    public ResultSet<V> retrieve(Query<V> query, QueryOptions queryOptions) {
+        List<IndexedCache<K, V>> targets = targetBuckets(query);
+        if (targets.size() == 1) {
+            IndexedCache<K, V> bucket = targets.get(0);
+            return queryOptions == null ? bucket.retrieve(query) : bucket.retrieve(query, queryOptions);
+        }
+        return ParallelRetrieval.retrieve(forkJoinPool, targets, query, queryOptions);
+    }
+
+    public boolean add(V v) {
+        Bucket bucket = currentBucket();
+        bucket.recordTimeOf(v);
+        return bucket.indexedCache.add(v);
+    }
+
+    public boolean addAll(Iterable<? extends V> objects) {
+        Bucket bucket = currentBucket();
+        List<V> added = new ArrayList<>();
+        objects.forEach(v -> {
+            bucket.recordTimeOf(v);
+            added.add(v);
+        });
+        return bucket.indexedCache.addAll(added);
+    }
+
+    /**
+     * Remove an object from whichever bucket holds it.
+     */
+    public boolean remove(V v) {
+        for (Bucket bucket : buckets) {
+            if (bucket.indexedCache.remove(v)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public boolean contains(V v) {
+        for (Bucket bucket : buckets) {
+            if (bucket.indexedCache.contains(v)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public int size() {
+        int size = 0;
+        for (Bucket bucket : buckets) {
+            size += bucket.indexedCache.size();
+        }
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Drop the buckets whose objects have all outlived the time to live and return the number dropped. This is done
+     * periodically in the background (every bucket span) but may also be called directly.
+     */
+    public int dropExpiredBuckets() {
+        long now = clock.getAsLong();
+        List<Bucket> expired = new ArrayList<>();
+        synchronized (this) {
+            List<Bucket> live = new ArrayList<>();
+            for (Bucket bucket : buckets) {
+                if (now >= bucket.endMillis + timeToLiveMillis) {
+                    expired.add(bucket);
+                } else {
+                    live.add(bucket);
+                }
+            }
+            if (expired.isEmpty()) {
+                return 0;
+            }
+            buckets = Collections.unmodifiableList(live);
+        }
+        expired.forEach(this::drop);
+        bucketsDropped.add(expired.size());
+        return expired.size();
+    }
+
+    /**
+     * Stop dropping expired buckets and drop every bucket (closing each IndexedCache and destroying its Cache).
+     */
+    @Override
+    public void close() {
+        expirer.close();
+        List<Bucket> dropped;
+        synchronized (this) {
+            dropped = buckets;
+            buckets = Collections.emptyList();
+        }
+        dropped.forEach(this::drop);
+    }
+
+    @Override
+    public Iterator<V> iterator() {
+        return buckets.stream().flatMap(bucket -> bucket.indexedCache.stream()).iterator();
+    }
+
+    private List<IndexedCache<K, V>> targetBuckets(Query<V> query) {
+        TimeRange range = timeAttribute == null ? TimeRange.ALL : TimeRange.of(query, timeAttribute);
+        List<IndexedCache<K, V>> targets = new ArrayList<>();
+        for (Bucket bucket : buckets) {
+            if (range == TimeRange.ALL || bucket.mayHoldTimesIn(range)) {
+                targets.add(bucket.indexedCache);
+            }
+        }
+        return targets;
+    }
+
+    private Bucket currentBucket() {
+        long now = clock.getAsLong();
+        List<Bucket> current = buckets;
+        if (!current.isEmpty()) {
+            Bucket newest = current.get(current.size() - 1);
+            if (now < newest.endMillis) {
+                return newest;
+            }
+        }
+        synchronized (this) {
+            current = buckets;
+            if (!current.isEmpty() && now < current.get(current.size() - 1).endMillis) {
+                return current.get(current.size() - 1);
+            }
+            long startMillis = now - Math.floorMod(now, bucketSpanMillis);
+            Bucket bucket = new Bucket(startMillis);
+            List<Bucket> live = new ArrayList<>(current);
+            live.add(bucket);
+            buckets = Collections.unmodifiableList(live);
+            return bucket;
+        }
+    }
+
+    private void drop(Bucket bucket) {
+        bucket.indexedCache.close();
+        cacheManager.destroyCache(bucket.cache.getName());
+    }
+
+    private final class Bucket {
+        private final long endMillis;
+        private final Cache<K, V> cache;
+        private final IndexedCache<K, V> indexedCache;
+        private final AtomicLong minTime = new AtomicLong(Long.MAX_VALUE);
+        private final AtomicLong maxTime = new AtomicLong(Long.MIN_VALUE);
+
+        private Bucket(long startMillis) {
+            this.endMillis = startMillis + bucketSpanMillis;
+            this.cache = cacheManager.createCache(name + "-" + startMillis,
+                    new MutableConfiguration<K, V>().setTypes(keyType, valueType).setStoreByValue(false));
+            this.indexedCache = new IndexedCache<>(indexedCollectionSupplier.get(), cache, cacheKeyMaker);
+            indexSuppliers.forEach(indexSupplier -> indexedCache.addIndex(indexSupplier.get()));
+        }
+
+        private void recordTimeOf(V v) {
+            if (timeAttribute != null) {
+                for (Long time : timeAttribute.getValues(v, null)) {
+                    if (time != null) {
+                        minTime.accumulateAndGet(time, Math::min);
+                        maxTime.accumulateAndGet(time, Math::max);
+                    }
+                }
+            }
+        }
+
+        private boolean mayHoldTimesIn(TimeRange range) {
+            long min = minTime.get();
+            long max = maxTime.get();
+            // A bucket that has no times yet may be about to get some
+            return min > max || range.overlaps(min, max);
+        }
+    }
+}
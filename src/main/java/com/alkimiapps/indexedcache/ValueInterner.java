@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2019. Allan Boyd
+ * This program is made available under the terms of the Apache License v2.0.
+ */
+
+package com.alkimiapps.indexedcache;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A pool of canonical instances of values - e.g. the strings and enums that many cached objects share such as a region,
+ * a status or a type. Interning a value returns the instance in the pool that is equal to it, so that objects holding
+ * equal values can hold (and the indexes on them can key on) the same instance instead of an equal copy each.
+ *
+ * The pool keeps every distinct value interned so it is only suitable for values that have a small number of distinct
+ * instances. It also records how many values were replaced by their canonical instance and estimates the memory this
+ * saved (a replaced value is no longer retained once the object that held it holds the canonical instance instead).
+ */
+public final class ValueInterner {
+
+    private static final int OBJECT_HEADER_BYTES = 16;
+    private static final int STRING_BYTES = 24;
+    private static final int ARRAY_HEADER_BYTES = 16;
+
+    private final ConcurrentMap<Object, Object> canonicalValues = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Class<?>, LongAdder> internedCounts = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Class<?>, LongAdder> bytesSaved = new ConcurrentHashMap<>();
+
+    /**
+     * Return the canonical instance of the value (the value itself if it is the first instance of its kind or null).
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T intern(T value) {
+        if (value == null || value instanceof Enum) {
+            return value; // Enum constants are already canonical
+        }
+        Object canonical = canonicalValues.putIfAbsent(value, value);
+        if (canonical == null || canonical == value) {
+            return value;
+        }
+        internedCounts.computeIfAbsent(value.getClass(), type -> new LongAdder()).increment();
+        bytesSaved.computeIfAbsent(value.getClass(), type -> new LongAdder()).add(estimateBytes(value));
+        return (T) canonical;
+    }
+
+    /**
+     * The number of distinct values in the pool.
+     */
+    public int getDistinctValueCount() {
+        return canonicalValues.size();
+    }
+
+    /**
+     * The number of values that were replaced by their canonical instance.
+     */
+    public long getInternedCount() {
+        return internedCounts.values().stream().mapToLong(LongAdder::sum).sum();
+    }
+
+    /**
+     * The estimated number of bytes saved by replacing values with their canonical instance.
+     */
+    public long getEstimatedBytesSaved() {
+        return bytesSaved.values().stream().mapToLong(LongAdder::sum).sum();
+    }
+
+    /**
+     * The estimated number of bytes saved by replacing values with their canonical instance, keyed by the class name of
+     * the values.
+     */
+    public Map<String, Long> getEstimatedBytesSavedByType() {
+        Map<String, Long> saved = new TreeMap<>();
+        bytesSaved.forEach((type, adder) -> saved.put(type.getName(), adder.sum()));
+        return saved;
+    }
+
+    /**
+     * Empty the pool (the statistics are kept).
+     */
+    public void clear() {
+        canonicalValues.clear();
+    }
+
+    /**
+     * Estimate the shallow size of a value on a 64 bit JVM with compressed references. Strings include their
+     * characters. Other values are counted as an object header - a lower bound.
+     */
+    static long estimateBytes(Object value) {
+        if (value instanceof String) {
+            return STRING_BYTES + align(ARRAY_HEADER_BYTES + 2L * ((String) value).length());
+        }
+        return OBJECT_HEADER_BYTES;
+    }
+
+    private static long align(long bytes) {
+        return (bytes + 7) & ~7L;
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2019. Allan Boyd
+ * This program is made available under the terms of the Apache License v2.0.
+ */
+
+package com.alkimiapps.indexedcache;
+
+import com.alkimiapps.indexedcache.internal.QueryShape;
+import com.alkimiapps.indexedcache.internal.WorkloadLog;
+import com.googlecode.cqengine.query.Query;
+import com.googlecode.cqengine.query.option.QueryOptions;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.function.BiConsumer;
+
+/**
+ * Records the workload of an IndexedCache to a file so that it can be replayed offline, by a WorkloadReplayer, against
+ * other indexes, capacities and eviction settings.
+ *
+ * The objects added, updated and removed through the IndexedCache and the cache hits registered by its queries are
+ * recorded by the hash codes of their cache keys, and queries by their shapes without the selected indexes (see
+ * QueryShape), their number of results and how long they took. Neither objects nor query values are recorded. Events
+ * are appended to a buffer that is written to the file whenever it fills, so recording costs little more than working
+ * out the shape of each query on the calling thread. Cache hits are recorded on the background thread that registers
+ * them.
+ *
+ * Recording starts when a WorkloadRecorder is made and stops when it is closed. If writing to the file fails, recording
+ * stops and close() throws the failure.
+ */
+public final class WorkloadRecorder<K, V> implements IndexedCacheObserver<V>, AutoCloseable {
+
+    private final IndexedCache<K, V> indexedCache;
+    private final CacheKeyMaker<K, V> cacheKeyMaker;
+    private final WorkloadLog.Writer writer;
+    private final BiConsumer<K, V> hitListener = (key, value) -> cacheHit(key);
+
+    /**
+     * Start recording the workload of an IndexedCache to a file, replacing the file if it exists.
+     */
+    public WorkloadRecorder(IndexedCache<K, V> indexedCache, Path path) throws IOException {
+        this.indexedCache = indexedCache;
+        this.cacheKeyMaker = indexedCache.getCacheKeyMaker();
+        this.writer = new WorkloadLog.Writer(path);
+        indexedCache.addObserver(this);
+        indexedCache.addHitListener(hitListener);
+    }
+
+    /**
+     * The number of events recorded so far.
+     */
+    public long getEventCount() {
+        return writer.getEventCount();
+    }
+
+    /**
+     * The size of the recording so far (including events not yet written to the file).
+     */
+    public long getRecordedBytes() {
+        return writer.getBytesWritten();
+    }
+
+    @Override
+    public void queryRetrieved(Query<V> query, QueryOptions queryOptions, int resultSize, long elapsedNanos) {
+        writer.queryRetrieved(QueryShape.withoutIndexes(query, queryOptions), resultSize, elapsedNanos);
+    }
+
+    /**
+     * Objects that are only added are recorded as ADDs and objects that are only removed as REMOVEs. An object added in
+     * place of a removed object with the same cache key is recorded as an UPDATE.
+     */
+    @Override
+    public void objectsWritten(Iterable<? extends V> objectsRemoved, Iterable<? extends V> objectsAdded) {
+        if (objectsRemoved == null || objectsAdded == null) {
+            WorkloadLog.EventType type = objectsAdded == null ? WorkloadLog.EventType.REMOVE : WorkloadLog.EventType.ADD;
+            for (V v : objectsAdded == null ? objectsRemoved : objectsAdded) {
+                writer.objectWritten(type, keyHashOf(v));
+            }
+            return;
+        }
+        Set<Integer> removedKeyHashes = new HashSet<>();
+        objectsRemoved.forEach(v -> removedKeyHashes.add(keyHashOf(v)));
+        for (V v : objectsAdded) {
+            int keyHash = keyHashOf(v);
+            writer.objectWritten(removedKeyHashes.remove(keyHash) ? WorkloadLog.EventType.UPDATE : WorkloadLog.EventType.ADD, keyHash);
+        }
+        removedKeyHashes.forEach(keyHash -> writer.objectWritten(WorkloadLog.EventType.REMOVE, keyHash));
+    }
+
+    /**
+     * Stop recording and write the rest of the recording to the file.
+     *
+     * @throws IOException if writing to the file failed, now or while recording
+     */
+    @Override
+    public void close() throws IOException {
+        indexedCache.removeObserver(this);
+        indexedCache.removeHitListener(hitListener);
+        writer.close();
+    }
+
+    private void cacheHit(K key) {
+        writer.cacheHit(key.hashCode());
+    }
+
+    private int keyHashOf(V v) {
+        return cacheKeyMaker.makeKey(v).hashCode();
+    }
+}
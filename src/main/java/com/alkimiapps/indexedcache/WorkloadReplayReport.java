@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2019. Allan Boyd
+ * This program is made available under the terms of the Apache License v2.0.
+ */
+
+package com.alkimiapps.indexedcache;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * What happened when a recorded workload was replayed against one WorkloadReplayer.Scenario: how many of the recorded
+ * cache hits would still have been hits, how long the replayed queries took and how much heap the IndexedCache used at
+ * the end. All times are in nanoseconds and all sizes in bytes.
+ */
+public final class WorkloadReplayReport {
+    private final String scenarioName;
+    private final long writeCount;
+    private final long retrieveCount;
+    private final long skippedRetrieveCount;
+    private final long recordedHitCount;
+    private final long replayedHitCount;
+    private final long recordedResultCount;
+    private final long replayedResultCount;
+    private final long meanRetrieveNanos;
+    private final long p50RetrieveNanos;
+    private final long p99RetrieveNanos;
+    private final long maxRetrieveNanos;
+    private final List<QueryShapeStatistics> queryShapeStatistics;
+    private final FootprintEstimate footprintEstimate;
+    private final long elapsedNanos;
+
+    public WorkloadReplayReport(String scenarioName, long writeCount, long retrieveCount, long skippedRetrieveCount,
+                                long recordedHitCount, long replayedHitCount, long recordedResultCount, long replayedResultCount,
+                                long meanRetrieveNanos, long p50RetrieveNanos, long p99RetrieveNanos, long maxRetrieveNanos,
+                                List<QueryShapeStatistics> queryShapeStatistics, FootprintEstimate footprintEstimate, long elapsedNanos) {
+        this.scenarioName = scenarioName;
+        this.writeCount = writeCount;
+        this.retrieveCount = retrieveCount;
+        this.skippedRetrieveCount = skippedRetrieveCount;
+        this.recordedHitCount = recordedHitCount;
+        this.replayedHitCount = replayedHitCount;
+        this.recordedResultCount = recordedResultCount;
+        this.replayedResultCount = replayedResultCount;
+        this.meanRetrieveNanos = meanRetrieveNanos;
+        this.p50RetrieveNanos = p50RetrieveNanos;
+        this.p99RetrieveNanos = p99RetrieveNanos;
+        this.maxRetrieveNanos = maxRetrieveNanos;
+        this.queryShapeStatistics = Collections.unmodifiableList(queryShapeStatistics);
+        this.footprintEstimate = footprintEstimate;
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    public String getScenarioName() {
+        return scenarioName;
+    }
+
+    /**
+     * The number of adds, updates and removes replayed.
+     */
+    public long getWriteCount() {
+        return writeCount;
+    }
+
+    /**
+     * The number of queries replayed.
+     */
+    public long getRetrieveCount() {
+        return retrieveCount;
+    }
+
+    /**
+     * The number of recorded queries that were not replayed because no query was made for their shape.
+     */
+    public long getSkippedRetrieveCount() {
+        return skippedRetrieveCount;
+    }
+
+    /**
+     * The number of cache hits in the recording.
+     */
+    public long getRecordedHitCount() {
+        return recordedHitCount;
+    }
+
+    /**
+     * The number of the recorded cache hits whose entry was in the cache of the scenario at the time of the hit.
+     */
+    public long getReplayedHitCount() {
+        return replayedHitCount;
+    }
+
+    /**
+     * The share of the recorded cache hits that would still have been hits with the scenario's cache (1 if there were
+     * none).
+     */
+    public double getHitRate() {
+        return recordedHitCount == 0 ? 1 : (double) replayedHitCount / recordedHitCount;
+    }
+
+    /**
+     * The total number of results of the recorded queries that were replayed.
+     */
+    public long getRecordedResultCount() {
+        return recordedResultCount;
+    }
+
+    /**
+     * The total number of results of the replayed queries.
+     */
+    public long getReplayedResultCount() {
+        return replayedResultCount;
+    }
+
+    public long getMeanRetrieveNanos() {
+        return meanRetrieveNanos;
+    }
+
+    public long getP50RetrieveNanos() {
+        return p50RetrieveNanos;
+    }
+
+    public long getP99RetrieveNanos() {
+        return p99RetrieveNanos;
+    }
+
+    public long getMaxRetrieveNanos() {
+        return maxRetrieveNanos;
+    }
+
+    /**
+     * The latencies of the replayed queries by shape, with the indexes the scenario selected for them.
+     */
+    public List<QueryShapeStatistics> getQueryShapeStatistics() {
+        return queryShapeStatistics;
+    }
+
+    /**
+     * The estimated heap used by the objects and indexes of the IndexedCache at the end of the replay.
+     */
+    public FootprintEstimate getFootprintEstimate() {
+        return footprintEstimate;
+    }
+
+    /**
+     * How long the replay took.
+     */
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    @Override
+    public String toString() {
+        return "WorkloadReplayReport{scenarioName=" + scenarioName + ", writeCount=" + writeCount + ", retrieveCount=" + retrieveCount
+                + ", skippedRetrieveCount=" + skippedRetrieveCount + ", hitRate=" + getHitRate() + ", recordedResultCount=" + recordedResultCount
+                + ", replayedResultCount=" + replayedResultCount + ", meanRetrieveNanos=" + meanRetrieveNanos + ", p50RetrieveNanos=" + p50RetrieveNanos
+                + ", p99RetrieveNanos=" + p99RetrieveNanos + ", maxRetrieveNanos=" + maxRetrieveNanos + ", totalBytes=" + footprintEstimate.getTotalBytes()
+                + ", elapsedNanos=" + elapsedNanos + "}";
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright (c) 2019. Allan Boyd
+ * This program is made available under the terms of the Apache License v2.0.
+ */
+
+package com.alkimiapps.indexedcache;
+
+import com.alkimiapps.indexedcache.internal.LatencyHistogram;
+import com.alkimiapps.indexedcache.internal.WorkloadLog;
+import com.googlecode.cqengine.ConcurrentIndexedCollection;
+import com.googlecode.cqengine.IndexedCollection;
+import com.googlecode.cqengine.index.Index;
+import com.googlecode.cqengine.query.Query;
+import com.googlecode.cqengine.resultset.ResultSet;
+
+import javax.cache.Cache;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+import java.util.function.Supplier;
+
+/**
+ * Replays a workload recorded by a WorkloadRecorder against a new IndexedCache set up by a Scenario - its indexes, its
+ * javax.cache.Cache (and so the capacity and eviction settings of the cache) and its maximum weight - and reports the
+ * hit rate, query latencies and footprint of the scenario (see WorkloadReplayReport). Replaying the same recording
+ * against several scenarios compares them on the same workload.
+ *
+ * A recording holds neither objects nor query values, so a WorkloadReplayer is given an object maker, which makes the
+ * object to write for the hash code of a cache key (e.g. from a snapshot of the data, or a synthetic object), and a
+ * query maker, which makes a query of a recorded shape (e.g. with values picked at random from the data). Queries of
+ * shapes that the query maker returns null for are skipped.
+ *
+ * A recorded cache hit counts as a hit of the scenario if the object last written for its key hash is in the cache of
+ * the scenario at that point in the replay. Events are replayed in order, as fast as they can be, on the calling
+ * thread - so the time between events is not reproduced and settings that depend on time (e.g. expiry) play no part.
+ */
+public final class WorkloadReplayer<K, V> {
+
+    private final Path recording;
+    private final CacheKeyMaker<K, V> cacheKeyMaker;
+    private final IntFunction<? extends V> objectMaker;
+    private final Function<String, ? extends Query<V>> queryMaker;
+
+    public WorkloadReplayer(Path recording, CacheKeyMaker<K, V> cacheKeyMaker, IntFunction<? extends V> objectMaker,
+                            Function<String, ? extends Query<V>> queryMaker) {
+        this.recording = recording;
+        this.cacheKeyMaker = cacheKeyMaker;
+        this.objectMaker = objectMaker;
+        this.queryMaker = queryMaker;
+    }
+
+    /**
+     * Replay the recording against each scenario in turn.
+     */
+    @SafeVarargs
+    public final List<WorkloadReplayReport> replay(Scenario<K, V>... scenarios) throws IOException {
+        List<WorkloadReplayReport> reports = new ArrayList<>(scenarios.length);
+        for (Scenario<K, V> scenario : scenarios) {
+            reports.add(replay(scenario));
+        }
+        return reports;
+    }
+
+    /**
+     * Replay the recording against a new IndexedCache set up by the scenario. The IndexedCache and its cache are closed
+     * once the replay is over.
+     */
+    public WorkloadReplayReport replay(Scenario<K, V> scenario) throws IOException {
+        Cache<K, V> cache = scenario.cacheMaker.get();
+        IndexedCache<K, V> indexedCache = new IndexedCache<>(scenario.indexedCollectionMaker.get(), cache, cacheKeyMaker);
+        try {
+            scenario.indexMakers.forEach(indexMaker -> indexedCache.addIndex(indexMaker.get()));
+            if (scenario.maxWeight > 0) {
+                indexedCache.setMaxWeight(scenario.maxWeight, scenario.weightPolicy);
+            }
+            Replay replay = new Replay(indexedCache, cache);
+            long start = System.nanoTime();
+            WorkloadLog.read(recording, replay);
+            long elapsedNanos = System.nanoTime() - start;
+            LatencyHistogram latencies = replay.latencies;
+            return new WorkloadReplayReport(scenario.name, replay.writes, latencies.getCount(), replay.skippedRetrieves,
+                    replay.recordedHits, replay.replayedHits, replay.recordedResults, replay.replayedResults,
+                    latencies.getMean(), latencies.getValueAtPercentile(50), latencies.getValueAtPercentile(99), latencies.getMax(),
+                    indexedCache.getMXBean().getQueryShapeStatistics(),
+                    indexedCache.estimateFootprint(IndexedCache.DEFAULT_FOOTPRINT_SAMPLE_SIZE), elapsedNanos);
+        } finally {
+            indexedCache.close();
+            cache.close();
+        }
+    }
+
+    /**
+     * How to set up the IndexedCache that a recording is replayed against. A scenario is made with the name to report
+     * it under and a supplier of a new, empty javax.cache.Cache - configured with the capacity and eviction settings to
+     * try - and may add indexes (each made anew for each replay), a maximum weight and the IndexedCollection to use.
+     * Scenarios are immutable.
+     */
+    public static final class Scenario<K, V> {
+        private final String name;
+        private final Supplier<? extends Cache<K, V>> cacheMaker;
+        private final Supplier<? extends IndexedCollection<V>> indexedCollectionMaker;
+        private final List<Supplier<? extends Index<V>>> indexMakers;
+        private final long maxWeight;
+        private final IndexedCache.WeightPolicy weightPolicy;
+
+        private Scenario(String name, Supplier<? extends Cache<K, V>> cacheMaker, Supplier<? extends IndexedCollection<V>> indexedCollectionMaker,
+                         List<Supplier<? extends Index<V>>> indexMakers, long maxWeight, IndexedCache.WeightPolicy weightPolicy) {
+            this.name = name;
+            this.cacheMaker = cacheMaker;
+            this.indexedCollectionMaker = indexedCollectionMaker;
+            this.indexMakers = indexMakers;
+            this.maxWeight = maxWeight;
+            this.weightPolicy = weightPolicy;
+        }
+
+        public static <K, V> Scenario<K, V> named(String name, Supplier<? extends Cache<K, V>> cacheMaker) {
+            return new Scenario<>(name, cacheMaker, ConcurrentIndexedCollection::new, Collections.emptyList(), 0, null);
+        }
+
+        public Scenario<K, V> withIndex(Supplier<? extends Index<V>> indexMaker) {
+            List<Supplier<? extends Index<V>>> extended = new ArrayList<>(indexMakers);
+            extended.add(indexMaker);
+            return new Scenario<>(name, cacheMaker, indexedCollectionMaker, Collections.unmodifiableList(extended), maxWeight, weightPolicy);
+        }
+
+        /**
+         * See IndexedCache.setMaxWeight.
+         */
+        public Scenario<K, V> withMaxWeight(long maxWeight, IndexedCache.WeightPolicy weightPolicy) {
+            return new Scenario<>(name, cacheMaker, indexedCollectionMaker, indexMakers, maxWeight, weightPolicy);
+        }
+
+        public Scenario<K, V> withIndexedCollection(Supplier<? extends IndexedCollection<V>> indexedCollectionMaker) {
+            return new Scenario<>(name, cacheMaker, indexedCollectionMaker, indexMakers, maxWeight, weightPolicy);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public String toString() {
+            return "Scenario{name=" + name + ", indexCount=" + indexMakers.size() + ", maxWeight=" + maxWeight + ", weightPolicy=" + weightPolicy + "}";
+        }
+    }
+
+    private final class Replay implements WorkloadLog.Visitor {
+        private final IndexedCache<K, V> indexedCache;
+        private final Cache<K, V> cache;
+        private final Map<Integer, V> lastWritten = new HashMap<>();
+        private final LatencyHistogram latencies = new LatencyHistogram();
+        private long writes;
+        private long skippedRetrieves;
+        private long recordedHits;
+        private long replayedHits;
+        private long recordedResults;
+        private long replayedResults;
+
+        Replay(IndexedCache<K, V> indexedCache, Cache<K, V> cache) {
+            this.indexedCache = indexedCache;
+            this.cache = cache;
+        }
+
+        @Override
+        public void objectWritten(WorkloadLog.EventType type, long nanos, int keyHash) {
+            if (type == WorkloadLog.EventType.REMOVE) {
+                V removed = lastWritten.remove(keyHash);
+                if (removed == null) {
+                    return;
+                }
+                indexedCache.remove(removed);
+            } else {
+                // An ADD of a key that was written before (e.g. that was evicted from the recorded cache) replaces it too
+                V written = objectMaker.apply(keyHash);
+                if (written == null) {
+                    return;
+                }
+                V replaced = lastWritten.put(keyHash, written);
+                if (replaced == null) {
+                    indexedCache.add(written);
+                } else {
+                    indexedCache.update(Collections.singleton(replaced), Collections.singleton(written));
+                }
+            }
+            writes++;
+        }
+
+        @Override
+        public void queryRetrieved(long nanos, String shape, int resultSize, long elapsedNanos) {
+            Query<V> query = queryMaker.apply(shape);
+            if (query == null) {
+                skippedRetrieves++;
+                return;
+            }
+            long start = System.nanoTime();
+            try (ResultSet<V> resultSet = indexedCache.retrieve(query)) {
+                replayedResults += resultSet.size();
+            }
+            latencies.record(System.nanoTime() - start);
+            recordedResults += resultSize;
+        }
+
+        @Override
+        public void cacheHit(long nanos, int keyHash) {
+            recordedHits++;
+            V written = lastWritten.get(keyHash);
+            if (written != null && cache.containsKey(cacheKeyMaker.makeKey(written))) {
+                replayedHits++;
+            }
+        }
+    }
+}
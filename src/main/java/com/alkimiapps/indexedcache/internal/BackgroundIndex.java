@@ -0,0 +1,305 @@
+/*
+ * Copyright (c) 2019. Allan Boyd
+ * This program is made available under the terms of the Apache License v2.0.
+ */
+
+package com.alkimiapps.indexedcache.internal;
+
+import com.googlecode.cqengine.attribute.Attribute;
+import com.googlecode.cqengine.index.AttributeIndex;
+import com.googlecode.cqengine.index.Index;
+import com.googlecode.cqengine.index.support.CloseableIterator;
+import com.googlecode.cqengine.persistence.support.ConcurrentOnHeapObjectStore;
+import com.googlecode.cqengine.persistence.support.ObjectSet;
+import com.googlecode.cqengine.persistence.support.ObjectStore;
+import com.googlecode.cqengine.query.Query;
+import com.googlecode.cqengine.query.option.QueryOptions;
+import com.googlecode.cqengine.resultset.ResultSet;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An AttributeIndex that is built on a background thread and that is invisible to the query engine until it has been
+ * completely built.
+ *
+ * When an index is added to a CQEngine IndexedCollection it is registered with the query engine before it is
+ * populated so queries made while a large index is being built can use a partially built index and so miss results.
+ * Wrapping the index in a BackgroundIndex avoids this: adding the wrapper to the collection only records the object
+ * store, the index is populated by build() and only claims to support queries once it is ready. Writers are never
+ * blocked - changes made during the build are forwarded to the wrapped index as they happen and removals are
+ * re-applied once the build is complete (in case the build re-added an object that was removed while it ran).
+ *
+ * A lazy BackgroundIndex is not built until the first time the query engine asks whether it supports a query that the
+ * wrapped index could answer. That query (and any made until the build is complete) is answered without it. Until then
+ * the index costs nothing to maintain because changes to the collection are ignored while it is pending.
+ *
+ * The objects in the collection are added to the index in chunks, in parallel, in a ForkJoinPool.
+ *
+ * CQEngine does not support removing an index from an IndexedCollection so a BackgroundIndex can instead be retired:
+ * it is cleared, stops being maintained and no longer supports any query. A BackgroundIndex whose build fails (e.g.
+ * because an attribute throws for one of the objects) is left in the same condition, in the FAILED state, with the
+ * cause of the failure.
+ */
+public final class BackgroundIndex<A, V> implements AttributeIndex<A, V> {
+
+    public enum State {PENDING, BUILDING, READY, RETIRED, FAILED}
+
+    public static final int DEFAULT_CHUNK_SIZE = 1024;
+
+    private static final AtomicInteger stateChanges = new AtomicInteger();
+
+    private final AttributeIndex<A, V> index;
+    private final Executor lazyBuildExecutor;
+    private final ForkJoinPool forkJoinPool;
+    private final Set<V> removedWhileBuilding = ConcurrentHashMap.newKeySet();
+    private volatile State state = State.PENDING;
+    private volatile ObjectStore<V> objectStore;
+    private volatile QueryOptions initQueryOptions;
+    private volatile Throwable failure;
+
+    public BackgroundIndex(AttributeIndex<A, V> index) {
+        this(index, null, ForkJoinPool.commonPool());
+    }
+
+    private BackgroundIndex(AttributeIndex<A, V> index, Executor lazyBuildExecutor, ForkJoinPool forkJoinPool) {
+        this.index = index;
+        this.lazyBuildExecutor = lazyBuildExecutor;
+        this.forkJoinPool = forkJoinPool;
+    }
+
+    /**
+     * Make a BackgroundIndex that is built in the ForkJoinPool the first time it could be used by a query.
+     */
+    public static <A, V> BackgroundIndex<A, V> lazy(AttributeIndex<A, V> index, ForkJoinPool forkJoinPool) {
+        return new BackgroundIndex<>(index, forkJoinPool, forkJoinPool);
+    }
+
+    public boolean isLazy() {
+        return lazyBuildExecutor != null;
+    }
+
+    public AttributeIndex<A, V> getWrappedIndex() {
+        return index;
+    }
+
+    /**
+     * Return the index wrapped by the given index if it is a BackgroundIndex, otherwise the given index.
+     */
+    public static <V> Index<V> unwrap(Index<V> index) {
+        return index instanceof BackgroundIndex ? ((BackgroundIndex<?, V>) index).getWrappedIndex() : index;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * The number of state changes made by all BackgroundIndexes so far, for telling cheaply whether the index selected
+     * for a query might have changed (see IndexedCache.getIndexesVersion).
+     */
+    public static int getStateChangeCount() {
+        return stateChanges.get();
+    }
+
+    public boolean isReady() {
+        return state == State.READY;
+    }
+
+    /**
+     * Whether the index has been retired or its build failed i.e. whether it will never support a query.
+     */
+    public boolean isOutOfService() {
+        State current = state;
+        return current == State.RETIRED || current == State.FAILED;
+    }
+
+    /**
+     * The exception that the build of the index failed with, or null if it has not failed.
+     */
+    public Throwable getFailure() {
+        return failure;
+    }
+
+    /**
+     * Start building the index on the given executor. Does nothing if the index is not pending i.e. if it has already
+     * been built (or is being built) or if it has been retired. The index must have been added to the IndexedCollection
+     * before it is built.
+     */
+    public synchronized void build(Executor executor) {
+        if (state != State.PENDING) {
+            return;
+        }
+        if (objectStore == null) {
+            throw new IllegalStateException("The index must be added to an IndexedCollection before it is built");
+        }
+        setState(State.BUILDING);
+        executor.execute(this::populate);
+    }
+
+    /**
+     * Clear the index and stop maintaining it. A retired index never supports a query again. The chunks of a build that
+     * is still running stop adding objects to the index and the index is cleared again once they have stopped.
+     */
+    public synchronized void retire() {
+        setState(State.RETIRED);
+        index.clear(queryOptions());
+        removedWhileBuilding.clear();
+    }
+
+    private void populate() {
+        QueryOptions queryOptions = queryOptions();
+        List<ForkJoinTask<?>> tasks = new ArrayList<>();
+        Throwable buildFailure = null;
+        try {
+            // Initialise the index with no objects and then add the objects in parallel chunks (which is what init would
+            // otherwise do on this thread)
+            index.init(new ConcurrentOnHeapObjectStore<>(), queryOptions);
+            List<V> chunk = new ArrayList<>(DEFAULT_CHUNK_SIZE);
+            try (CloseableIterator<V> iterator = objectStore.iterator(queryOptions)) {
+                while (iterator.hasNext() && state == State.BUILDING) {
+                    chunk.add(iterator.next());
+                    if (chunk.size() == DEFAULT_CHUNK_SIZE) {
+                        tasks.add(forkJoinPool.submit(indexChunk(chunk, queryOptions)));
+                        chunk = new ArrayList<>(DEFAULT_CHUNK_SIZE);
+                    }
+                }
+            }
+            if (!chunk.isEmpty()) {
+                tasks.add(forkJoinPool.submit(indexChunk(chunk, queryOptions)));
+            }
+        } catch (RuntimeException e) {
+            buildFailure = e;
+        }
+        // Wait for every chunk, even once one has failed, so that none is still adding objects when the build finishes
+        for (ForkJoinTask<?> task : tasks) {
+            try {
+                task.join();
+            } catch (RuntimeException e) {
+                if (buildFailure == null) {
+                    buildFailure = e;
+                }
+            }
+        }
+        synchronized (this) {
+            if (state != State.BUILDING) {
+                // Retired while building - the chunks may have re-filled the index after it was cleared
+                index.clear(queryOptions);
+                return;
+            }
+            if (buildFailure != null) {
+                failure = buildFailure;
+                setState(State.FAILED);
+                index.clear(queryOptions);
+                removedWhileBuilding.clear();
+                return;
+            }
+            List<V> removed = new ArrayList<>();
+            for (V v : removedWhileBuilding) {
+                if (!objectStore.contains(v, queryOptions)) {
+                    removed.add(v);
+                }
+            }
+            if (!removed.isEmpty()) {
+                index.removeAll(ObjectSet.fromCollection(removed), queryOptions);
+            }
+            removedWhileBuilding.clear();
+            setState(State.READY);
+        }
+    }
+
+    private void setState(State state) {
+        this.state = state;
+        stateChanges.incrementAndGet();
+    }
+
+    private Runnable indexChunk(List<V> chunk, QueryOptions queryOptions) {
+        return () -> {
+            if (state == State.BUILDING) {
+                index.addAll(ObjectSet.fromCollection(chunk), queryOptions);
+            }
+        };
+    }
+
+    private QueryOptions queryOptions() {
+        return initQueryOptions == null ? new QueryOptions() : initQueryOptions;
+    }
+
+    @Override
+    public Attribute<V, A> getAttribute() {
+        return index.getAttribute();
+    }
+
+    @Override
+    public boolean isMutable() {
+        return index.isMutable();
+    }
+
+    @Override
+    public boolean supportsQuery(Query<V> query, QueryOptions queryOptions) {
+        State current = state;
+        if (current == State.READY) {
+            return index.supportsQuery(query, queryOptions);
+        }
+        if (current == State.PENDING && lazyBuildExecutor != null && objectStore != null && index.supportsQuery(query, queryOptions)) {
+            build(lazyBuildExecutor);
+        }
+        return false;
+    }
+
+    @Override
+    public boolean isQuantized() {
+        return index.isQuantized();
+    }
+
+    @Override
+    public ResultSet<V> retrieve(Query<V> query, QueryOptions queryOptions) {
+        return index.retrieve(query, queryOptions);
+    }
+
+    @Override
+    public Index<V> getEffectiveIndex() {
+        return this;
+    }
+
+    @Override
+    public boolean addAll(ObjectSet<V> objectSet, QueryOptions queryOptions) {
+        State current = state;
+        return (current == State.BUILDING || current == State.READY) && index.addAll(objectSet, queryOptions);
+    }
+
+    @Override
+    public boolean removeAll(ObjectSet<V> objectSet, QueryOptions queryOptions) {
+        State current = state;
+        if (current == State.BUILDING) {
+            for (V v : objectSet) {
+                removedWhileBuilding.add(v);
+            }
+        }
+        return (current == State.BUILDING || current == State.READY) && index.removeAll(objectSet, queryOptions);
+    }
+
+    @Override
+    public void clear(QueryOptions queryOptions) {
+        if (state != State.PENDING) {
+            index.clear(queryOptions);
+        }
+    }
+
+    @Override
+    public void init(ObjectStore<V> objectStore, QueryOptions queryOptions) {
+        this.objectStore = objectStore;
+        this.initQueryOptions = queryOptions;
+    }
+
+    @Override
+    public String toString() {
+        return "BackgroundIndex{" + index + ", " + state + "}";
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2019. Allan Boyd
+ * This program is made available under the terms of the Apache License v2.0.
+ */
+
+package com.alkimiapps.indexedcache.internal;
+
+import com.googlecode.cqengine.attribute.Attribute;
+import com.googlecode.cqengine.attribute.SelfAttribute;
+import com.googlecode.cqengine.attribute.SimpleAttribute;
+import com.googlecode.cqengine.query.option.QueryOptions;
+import com.googlecode.cqengine.query.simple.SimpleQuery;
+
+/**
+ * A query that matches every object but checks - every 64 objects that it is asked about - whether the retrieval that
+ * it is part of has been interrupted or has run out of time, and if so throws BudgetExhaustedException.
+ *
+ * It is and-ed with a query that is retrieved within a QueryBudget so that the budget also bounds a query that scans
+ * many objects without finding a result: CQEngine asks it about every object that the rest of the query is matched
+ * against, whether the objects come from an index or from a scan of the collection. No index supports it so it is
+ * never used to select the objects retrieved. A BudgetCheckQuery is for one retrieval, on one thread.
+ */
+public final class BudgetCheckQuery<V> extends SimpleQuery<V, V> {
+
+    private static final int CHECK_MASK = 63;
+
+    private final long startNanos;
+    private final long timeoutNanos;
+    private int matched;
+
+    /**
+     * @param timeoutNanos how long the retrieval may take from startNanos (a System.nanoTime), or 0 for no timeout
+     */
+    @SuppressWarnings("unchecked")
+    public BudgetCheckQuery(long startNanos, long timeoutNanos) {
+        super(new SelfAttribute<>((Class<V>) Object.class, "budgetCheck"));
+        this.startNanos = startNanos;
+        this.timeoutNanos = timeoutNanos;
+    }
+
+    /**
+     * Throw BudgetExhaustedException if the retrieving thread was interrupted or the retrieval is out of time.
+     */
+    public void check() {
+        if (Thread.currentThread().isInterrupted() || timeoutNanos > 0 && System.nanoTime() - startNanos > timeoutNanos) {
+            throw new BudgetExhaustedException();
+        }
+    }
+
+    @Override
+    protected boolean matchesSimpleAttribute(SimpleAttribute<V, V> attribute, V object, QueryOptions queryOptions) {
+        if ((++matched & CHECK_MASK) == 0) {
+            check();
+        }
+        return true;
+    }
+
+    @Override
+    protected boolean matchesNonSimpleAttribute(Attribute<V, V> attribute, V object, QueryOptions queryOptions) {
+        return matchesSimpleAttribute(null, object, queryOptions);
+    }
+
+    @Override
+    protected int calcHashCode() {
+        return System.identityHashCode(this);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return this == o;
+    }
+
+    @Override
+    public String toString() {
+        return "budgetCheck()";
+    }
+
+    /**
+     * Thrown out of the retrieval of a query by its BudgetCheckQuery. It has no stack trace since it is always caught
+     * by the retriever, which works out which limit was exceeded.
+     */
+    public static final class BudgetExhaustedException extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        private BudgetExhaustedException() {
+            super(null, null, false, false);
+        }
+    }
+}
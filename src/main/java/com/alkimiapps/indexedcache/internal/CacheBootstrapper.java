@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) 2019. Allan Boyd
+ * This program is made available under the terms of the Apache License v2.0.
+ */
+
+package com.alkimiapps.indexedcache.internal;
+
+import com.googlecode.cqengine.IndexedCollection;
+
+import javax.cache.Cache;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Indexes the entries that are already in a javax.cache.Cache when an IndexedCache is made for it.
+ *
+ * The Cache is iterated on the calling thread (a Cache iterator is not thread-safe) and its values are added to the
+ * IndexedCollection in chunks, in parallel, in a ForkJoinPool.
+ */
+public final class CacheBootstrapper {
+
+    public static final int DEFAULT_CHUNK_SIZE = 1024;
+
+    private CacheBootstrapper() {
+    }
+
+    /**
+     * Add the values of the entries of the Cache to the IndexedCollection and return the number of entries found.
+     */
+    public static <K, V> long indexExistingEntries(Cache<K, V> cache, IndexedCollection<V> indexedCollection, CacheKeys<K, V> cacheKeys,
+                                                   int chunkSize, ForkJoinPool forkJoinPool) {
+        List<ForkJoinTask<?>> tasks = new ArrayList<>();
+        List<Cache.Entry<K, V>> chunk = new ArrayList<>(chunkSize);
+        long count = 0;
+        for (Cache.Entry<K, V> entry : cache) {
+            if (entry == null) {
+                continue; // The entry expired or was removed while iterating
+            }
+            chunk.add(entry);
+            count++;
+            if (chunk.size() == chunkSize) {
+                tasks.add(forkJoinPool.submit(loadChunk(chunk, indexedCollection, cacheKeys)));
+                chunk = new ArrayList<>(chunkSize);
+            }
+        }
+        if (!chunk.isEmpty()) {
+            tasks.add(forkJoinPool.submit(loadChunk(chunk, indexedCollection, cacheKeys)));
+        }
+        tasks.forEach(ForkJoinTask::join);
+        return count;
+    }
+
+    private static <K, V> Runnable loadChunk(List<Cache.Entry<K, V>> chunk, IndexedCollection<V> indexedCollection, CacheKeys<K, V> cacheKeys) {
+        return () -> {
+            List<V> values = new ArrayList<>(chunk.size());
+            for (Cache.Entry<K, V> entry : chunk) {
+                cacheKeys.registerKey(entry.getKey());
+                values.add(entry.getValue());
+            }
+            indexedCollection.addAll(values);
+        };
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2019. Allan Boyd
+ * This program is made available under the terms of the Apache License v2.0.
+ */
+
+package com.alkimiapps.indexedcache.internal;
+
+import com.alkimiapps.indexedcache.CacheKeyMaker;
+import com.alkimiapps.indexedcache.IntCacheKeyMaker;
+import com.alkimiapps.indexedcache.LongCacheKeyMaker;
+
+/**
+ * Makes the cache keys for the values of an IndexedCache.
+ *
+ * javax.cache.Cache is keyed by objects so a key of a primitive type has to be boxed whenever the cache is used. For a
+ * LongCacheKeyMaker or IntCacheKeyMaker the boxed key is made once - when the value is written to the cache or when the
+ * IndexedCache is told about an entry added to the cache - and kept in a LongKeyTable so that finding the key of a
+ * value returned by a query (which happens for every value of every result set) allocates nothing.
+ *
+ * For any other CacheKeyMaker the key is simply made each time it is needed.
+ */
+public class CacheKeys<K, V> {
+
+    private final CacheKeyMaker<K, V> cacheKeyMaker;
+
+    CacheKeys(CacheKeyMaker<K, V> cacheKeyMaker) {
+        this.cacheKeyMaker = cacheKeyMaker;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <K, V> CacheKeys<K, V> forKeyMaker(CacheKeyMaker<K, V> cacheKeyMaker) {
+        if (cacheKeyMaker instanceof LongCacheKeyMaker) {
+            return (CacheKeys<K, V>) new LongCacheKeys<>((LongCacheKeyMaker<V>) cacheKeyMaker);
+        }
+        if (cacheKeyMaker instanceof IntCacheKeyMaker) {
+            return (CacheKeys<K, V>) new IntCacheKeys<>((IntCacheKeyMaker<V>) cacheKeyMaker);
+        }
+        return new CacheKeys<>(cacheKeyMaker);
+    }
+
+    /**
+     * Return the key of a value that is (or may be) in the cache.
+     */
+    public K keyFor(V value) {
+        return cacheKeyMaker.makeKey(value);
+    }
+
+    /**
+     * Return the key of a value that is being written to the cache and remember it for later calls to keyFor.
+     */
+    public K register(V value) {
+        return cacheKeyMaker.makeKey(value);
+    }
+
+    /**
+     * Return the hash code of the key of a value (without boxing a key of a primitive type).
+     */
+    public int hashOf(V value) {
+        return cacheKeyMaker.makeKey(value).hashCode();
+    }
+
+    /**
+     * Remember a key that is already in the cache for later calls to keyFor.
+     */
+    public void registerKey(K key) {
+    }
+
+    /**
+     * Forget a key that is no longer in the cache.
+     */
+    public void unregister(K key) {
+    }
+
+    /**
+     * The number of keys remembered.
+     */
+    public int size() {
+        return 0;
+    }
+
+    private static final class LongCacheKeys<V> extends CacheKeys<Long, V> {
+        private final LongCacheKeyMaker<V> longCacheKeyMaker;
+        private final LongKeyTable<Long> keys = new LongKeyTable<>();
+
+        LongCacheKeys(LongCacheKeyMaker<V> longCacheKeyMaker) {
+            super(longCacheKeyMaker);
+            this.longCacheKeyMaker = longCacheKeyMaker;
+        }
+
+        @Override
+        public Long keyFor(V value) {
+            long key = longCacheKeyMaker.makeLongKey(value);
+            Long boxedKey = keys.get(key);
+            return boxedKey != null ? boxedKey : Long.valueOf(key);
+        }
+
+        @Override
+        public Long register(V value) {
+            long key = longCacheKeyMaker.makeLongKey(value);
+            Long boxedKey = keys.get(key);
+            if (boxedKey == null) {
+                boxedKey = key;
+                keys.put(key, boxedKey);
+            }
+            return boxedKey;
+        }
+
+        @Override
+        public int hashOf(V value) {
+            return Long.hashCode(longCacheKeyMaker.makeLongKey(value));
+        }
+
+        @Override
+        public void registerKey(Long key) {
+            if (keys.get(key) == null) {
+                keys.put(key, key);
+            }
+        }
+
+        @Override
+        public void unregister(Long key) {
+            keys.remove(key);
+        }
+
+        @Override
+        public int size() {
+            return keys.size();
+        }
+    }
+
+    private static final class IntCacheKeys<V> extends CacheKeys<Integer, V> {
+        private final IntCacheKeyMaker<V> intCacheKeyMaker;
+        private final LongKeyTable<Integer> keys = new LongKeyTable<>();
+
+        IntCacheKeys(IntCacheKeyMaker<V> intCacheKeyMaker) {
+            super(intCacheKeyMaker);
+            this.intCacheKeyMaker = intCacheKeyMaker;
+        }
+
+        @Override
+        public Integer keyFor(V value) {
+            int key = intCacheKeyMaker.makeIntKey(value);
+            Integer boxedKey = keys.get(key);
+            return boxedKey != null ? boxedKey : Integer.valueOf(key);
+        }
+
+        @Override
+        public Integer register(V value) {
+            int key = intCacheKeyMaker.makeIntKey(value);
+            Integer boxedKey = keys.get(key);
+            if (boxedKey == null) {
+                boxedKey = key;
+                keys.put(key, boxedKey);
+            }
+            return boxedKey;
+        }
+
+        @Override
+        public int hashOf(V value) {
+            return intCacheKeyMaker.makeIntKey(value);
+        }
+
+        @Override
+        public void registerKey(Integer key) {
+            if (keys.get(key) == null) {
+                keys.put(key, key);
+            }
+        }
+
+        @Override
+        public void unregister(Integer key) {
+            keys.remove(key);
+        }
+
+        @Override
+        public int size() {
+            return keys.size();
+        }
+    }
+}
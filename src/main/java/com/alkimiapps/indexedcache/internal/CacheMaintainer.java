@@ -11,10 +11,14 @@ import com.googlecode.cqengine.resultset.ResultSet;
 
 import javax.cache.Cache;
 import javax.cache.configuration.Configuration;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingDeque;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
 
 /**
  * The purpose of the CacheMaintainer is to keep a javax.cache.Cache in-sync with an IndexedCollection.
@@ -23,36 +27,93 @@ import java.util.concurrent.TimeUnit;
  */
 public final class CacheMaintainer<K, V> {
     private Cache<K, V> cache;
-    private CacheKeyMaker<K, V> cacheKeyMaker;
+    private CacheKeys<K, V> cacheKeys;
     private UniqueInstanceMaker<K> uniqueInstanceMaker;
+    private ListenerLagProbe listenerLagProbe;
+    private KeyVersions keyVersions;
 
-    private static final int DEFAULT_CORE_THREADS = 1;
-    private static final int DEFAULT_MAX_THREADS = 1;
-    private static final long DEFAULT_THREAD_KEEP_ALIVE_SECONDS = 0;
-    private BlockingQueue<Runnable> queue = new LinkedBlockingDeque<>();
+    private List<BiConsumer<? super K, ? super V>> hitListeners = new CopyOnWriteArrayList<>();
 
-    private ThreadPoolExecutor threadPoolExecutor = new ThreadPoolExecutor(DEFAULT_CORE_THREADS, DEFAULT_MAX_THREADS, DEFAULT_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, queue);
+    private MaintenanceScheduler.MaintenanceQueue maintenanceQueue = MaintenanceScheduler.shared().newQueue();
 
     public CacheMaintainer(Cache<K, V> cache, CacheKeyMaker<K, V> cacheKeyMaker, UniqueInstanceMaker<K> uniqueInstanceMaker) {
+        this(cache, CacheKeys.forKeyMaker(cacheKeyMaker), uniqueInstanceMaker, new ListenerLagProbe(), new KeyVersions(true));
+    }
+
+    public CacheMaintainer(Cache<K, V> cache, CacheKeys<K, V> cacheKeys, UniqueInstanceMaker<K> uniqueInstanceMaker, ListenerLagProbe listenerLagProbe,
+                           KeyVersions keyVersions) {
         this.cache = cache;
-        this.cacheKeyMaker = cacheKeyMaker;
+        this.cacheKeys = cacheKeys;
         this.uniqueInstanceMaker = uniqueInstanceMaker;
+        this.listenerLagProbe = listenerLagProbe;
+        this.keyVersions = keyVersions;
+    }
+
+    /**
+     * The number of maintenance tasks waiting to be run on the background thread.
+     */
+    public int getQueueDepth() {
+        return maintenanceQueue.size();
+    }
+
+    /**
+     * The number of maintenance tasks that have failed with an exception.
+     */
+    public long getFailureCount() {
+        return maintenanceQueue.getFailureCount();
+    }
+
+    /**
+     * Discard any maintenance tasks still waiting to be run and stop accepting new ones.
+     */
+    public void close() {
+        maintenanceQueue.close();
     }
 
     public void registerCacheHits(ResultSet<V> resultSet) {
         // We need to hit the cache so that its stats will be maintained and we can do this on a background
         // thready so that the resultSet can be returned to the caller without having to wait for this method
         // to complete
-        threadPoolExecutor.execute(() -> resultSet.stream()
-                .forEach(v -> {
-                    if (!cache.isClosed()) {
-                        cache.get(cacheKeyMaker.makeKey(v));
+        registerCacheHits(resultSet::stream);
+    }
+
+    /**
+     * Register the hits of several retrievals (e.g. a batch) in one background task.
+     */
+    public void registerCacheHits(Collection<? extends V> results) {
+        registerCacheHits(results::stream);
+    }
+
+    private void registerCacheHits(Supplier<Stream<? extends V>> results) {
+        maintenanceQueue.execute(() -> {
+            // The listeners as of this task, copied once rather than iterated for every hit
+            List<BiConsumer<? super K, ? super V>> listeners = hitListeners.isEmpty() ? Collections.emptyList() : new ArrayList<>(hitListeners);
+            int listenerCount = listeners.size();
+            results.get().forEach(v -> {
+                if (!cache.isClosed()) {
+                    K key = cacheKeys.keyFor(v);
+                    cache.get(key);
+                    for (int i = 0; i < listenerCount; i++) {
+                        listeners.get(i).accept(key, v);
                     }
-                }));
+                }
+            });
+        });
+    }
+
+    /**
+     * Add a listener that is told the key and value of every cache hit registered (on the background thread).
+     */
+    public void addHitListener(BiConsumer<? super K, ? super V> hitListener) {
+        hitListeners.add(hitListener);
+    }
+
+    public void removeHitListener(BiConsumer<? super K, ? super V> hitListener) {
+        hitListeners.remove(hitListener);
     }
 
     public void registerCacheMiss() {
-        threadPoolExecutor.execute(() -> {
+        maintenanceQueue.execute(() -> {
             if (!cache.isClosed()) {
                 Class<K> keyType = cache.getConfiguration(Configuration.class).getKeyType();
                 K uniqueCacheKey = uniqueInstanceMaker.makeUniqueInstance(keyType);
@@ -66,18 +127,59 @@ public final class CacheMaintainer<K, V> {
     public void indexCollectionWasUpdated(Iterable<? extends V> objectsRemoved, Iterable<? extends V> objectsAdded) {
         // Remove first so that there is more room if needed
         if (objectsRemoved != null) {
-            objectsRemoved.forEach(v -> cache.remove(cacheKeyMaker.makeKey(v), v));
+            objectsRemoved.forEach(v -> {
+                K key = cacheKeys.keyFor(v);
+                writeIssued(KeyVersions.Operation.REMOVE, key, v);
+                if (cache.remove(key, v)) {
+                    cacheKeys.unregister(key);
+                } else {
+                    keyVersions.writeWithdrawn(KeyVersions.Operation.REMOVE, key, v);
+                }
+            });
         }
         if (objectsAdded != null) {
-            objectsAdded.forEach(v -> cache.put(cacheKeyMaker.makeKey(v), v));
+            objectsAdded.forEach(this::objectWasAdded);
         }
     }
 
     public void objectWasAdded(V v) {
-        cache.put(cacheKeyMaker.makeKey(v), v);
+        K key = cacheKeys.register(v);
+        writeIssued(KeyVersions.Operation.PUT, key, v);
+        cache.put(key, v);
+    }
+
+    /**
+     * Remove the entries of objects removed from the IndexedCollection in bulk. Each entry is removed only if it still
+     * has the removed object, so an entry written directly to the Cache in the meantime (whose event will bring its new
+     * object to the IndexedCollection) is left as it is. Only the keys whose entries are removed are stamped as written
+     * since the Cache sends no event for the others.
+     */
+    public void objectsWereRemoved(Collection<? extends V> objectsRemoved) {
+        for (V v : objectsRemoved) {
+            K key = cacheKeys.keyFor(v);
+            writeIssued(KeyVersions.Operation.REMOVE, key, v);
+            if (cache.remove(key, v)) {
+                cacheKeys.unregister(key);
+            } else {
+                keyVersions.writeWithdrawn(KeyVersions.Operation.REMOVE, key, v);
+                if (!cache.containsKey(key)) {
+                    cacheKeys.unregister(key);
+                }
+            }
+        }
     }
 
     public void objectWasRemoved(V v) {
-        cache.remove(cacheKeyMaker.makeKey(v));
+        K key = cacheKeys.keyFor(v);
+        writeIssued(KeyVersions.Operation.REMOVE, key, v);
+        if (!cache.remove(key)) {
+            keyVersions.writeWithdrawn(KeyVersions.Operation.REMOVE, key, v);
+        }
+        cacheKeys.unregister(key);
+    }
+
+    private void writeIssued(KeyVersions.Operation operation, K key, V v) {
+        listenerLagProbe.writeIssued(key);
+        keyVersions.writeIssued(operation, key, v);
     }
 }
@@ -0,0 +1,453 @@
+/*
+ * Copyright (c) 2019. Allan Boyd
+ * This program is made available under the terms of the Apache License v2.0.
+ */
+
+package com.alkimiapps.indexedcache.internal;
+
+import com.alkimiapps.indexedcache.ColumnarIndexedCollection;
+import com.alkimiapps.indexedcache.ColumnarLayout;
+import com.googlecode.cqengine.attribute.SimpleAttribute;
+import com.googlecode.cqengine.index.Index;
+import com.googlecode.cqengine.index.support.CloseableIterator;
+import com.googlecode.cqengine.index.support.indextype.OnHeapTypeIndex;
+import com.googlecode.cqengine.persistence.Persistence;
+import com.googlecode.cqengine.persistence.support.ObjectStore;
+import com.googlecode.cqengine.query.option.QueryOptions;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A CQEngine ObjectStore that keeps the fields of its objects in columns - one array per column of a ColumnarLayout,
+ * indexed by row - rather than as separate objects. What it stores (and what CQEngine indexes) are views of rows: small
+ * objects, made by a row-to-view function, that read their fields from the columns.
+ *
+ * Objects are written into a row before the view of the row is added. The row of a removed view is only released for
+ * reuse once the view is no longer referenced (it is tracked by a weak reference), so a removed view keeps reading its
+ * own values for as long as anything - the indexes removing it, an IndexedCache making its cache key, a query result -
+ * still uses it. Iteration runs over the rows in order, reading the columns sequentially. Views are found by primary
+ * key through an open-addressed table of rows (linear probing, like LongKeyTable) rather than a map, so that an object
+ * costs its view and a few bytes of bookkeeping on top of its columns.
+ *
+ * Writes are serialized; reads are not locked. Column arrays are only replaced (when they grow) under the write lock
+ * and are published through volatile fields, and a row is written before its view is published to readers.
+ */
+public final class ColumnarObjectStore<O> implements ObjectStore<O> {
+
+    private static final int INITIAL_ROWS = 64;
+    private static final int REMOVED = -1;
+
+    private final ColumnarLayout<O> layout;
+    private final SimpleAttribute<O, ?> primaryKeyAttribute;
+    private volatile Object[] columns;
+    private volatile Object[] views;
+    private volatile int[] slots; // Rows by primary key hash, open-addressed: row + 1, 0 if empty or REMOVED
+    private volatile int size;
+    private volatile int rowLimit; // One past the highest row ever used
+    private int removedSlots;
+    private int[] freeRows = new int[16];
+    private int freeRowCount;
+    private final ReferenceQueue<Object> unreferencedViews = new ReferenceQueue<>();
+    private final Set<RowReference> removedViews = new HashSet<>(); // Keeps the references until they are enqueued
+
+    public ColumnarObjectStore(ColumnarLayout<O> layout) {
+        this.layout = layout;
+        this.primaryKeyAttribute = layout.getPrimaryKeyAttribute();
+        this.columns = newColumns(layout, INITIAL_ROWS);
+        this.views = new Object[INITIAL_ROWS];
+        this.slots = new int[INITIAL_ROWS * 2];
+    }
+
+    /**
+     * Return a CQEngine Persistence whose object store is this store (so it can only back one IndexedCollection) and
+     * that supports on-heap indexes.
+     */
+    @SuppressWarnings("unchecked")
+    public <A extends Comparable<A>> Persistence<O, A> asPersistence() {
+        return new Persistence<O, A>() {
+            @Override
+            public ObjectStore<O> createObjectStore() {
+                return ColumnarObjectStore.this;
+            }
+
+            @Override
+            public boolean supportsIndex(Index<O> index) {
+                return index instanceof OnHeapTypeIndex;
+            }
+
+            @Override
+            public void openRequestScopeResources(QueryOptions queryOptions) {
+            }
+
+            @Override
+            public void closeRequestScopeResources(QueryOptions queryOptions) {
+            }
+
+            @Override
+            public SimpleAttribute<O, A> getPrimaryKeyAttribute() {
+                return (SimpleAttribute<O, A>) primaryKeyAttribute;
+            }
+        };
+    }
+
+    /**
+     * Copy the fields of an object into a free row and return the row. The row's view must then be added, or the row
+     * released.
+     */
+    public synchronized int write(O object) {
+        releaseUnreferencedRows();
+        int row = freeRowCount > 0 ? freeRows[--freeRowCount] : allocateRow();
+        Object[] columns = this.columns;
+        for (int column = 0; column < columns.length; column++) {
+            switch (layout.getColumnType(column)) {
+                case INT:
+                    ((int[]) columns[column])[row] = layout.readInt(column, object);
+                    break;
+                case LONG:
+                    ((long[]) columns[column])[row] = layout.readLong(column, object);
+                    break;
+                case DOUBLE:
+                    ((double[]) columns[column])[row] = layout.readDouble(column, object);
+                    break;
+                default:
+                    ((Object[]) columns[column])[row] = layout.readObject(column, object);
+            }
+        }
+        return row;
+    }
+
+    /**
+     * Make a row whose view was never added free for reuse.
+     */
+    public synchronized void release(int row) {
+        Object[] columns = this.columns;
+        for (int column = 0; column < columns.length; column++) {
+            if (columns[column] instanceof Object[]) {
+                ((Object[]) columns[column])[row] = null;
+            }
+        }
+        if (freeRowCount == freeRows.length) {
+            freeRows = Arrays.copyOf(freeRows, freeRowCount * 2);
+        }
+        freeRows[freeRowCount++] = row;
+    }
+
+    /**
+     * Return the stored view with the same primary key as the given object (an object or a view), or null.
+     */
+    @SuppressWarnings("unchecked")
+    public O getStored(Object object) {
+        Object primaryKey = primaryKeyOf(object);
+        if (primaryKey == null) {
+            return null;
+        }
+        int[] slots = this.slots;
+        Object[] views = this.views;
+        int mask = slots.length - 1;
+        for (int slot = hash(primaryKey) & mask; slots[slot] != 0; slot = (slot + 1) & mask) {
+            int row = slots[slot] - 1;
+            if (row >= 0 && row < views.length) {
+                Object view = views[row];
+                if (view != null && primaryKey.equals(primaryKeyOf(view))) {
+                    return (O) view;
+                }
+            }
+        }
+        return null;
+    }
+
+    public int getInt(int row, int column) {
+        return ((int[]) columns[column])[row];
+    }
+
+    public long getLong(int row, int column) {
+        return ((long[]) columns[column])[row];
+    }
+
+    public double getDouble(int row, int column) {
+        return ((double[]) columns[column])[row];
+    }
+
+    public Object getObject(int row, int column) {
+        return ((Object[]) columns[column])[row];
+    }
+
+    /**
+     * The number of rows, in use or free, that the columns have room for.
+     */
+    public int getCapacity() {
+        return views.length;
+    }
+
+    /**
+     * Estimate the bytes held by the columns, the row-to-view array and the primary key map (but not by the views or
+     * the values of object columns).
+     */
+    public long estimateColumnBytes() {
+        long bytes = 0;
+        int capacity = getCapacity();
+        for (int column = 0; column < layout.getColumnCount(); column++) {
+            ColumnarLayout.ColumnType type = layout.getColumnType(column);
+            int width = type == ColumnarLayout.ColumnType.LONG || type == ColumnarLayout.ColumnType.DOUBLE ? 8 : 4;
+            bytes += ObjectSizeEstimator.align(ObjectSizeEstimator.ARRAY_HEADER_BYTES + (long) capacity * width);
+        }
+        bytes += ObjectSizeEstimator.align(ObjectSizeEstimator.ARRAY_HEADER_BYTES + (long) capacity * ObjectSizeEstimator.REFERENCE_BYTES);
+        return bytes + ObjectSizeEstimator.align(ObjectSizeEstimator.ARRAY_HEADER_BYTES + (long) slots.length * 4);
+    }
+
+    @Override
+    public int size(QueryOptions queryOptions) {
+        return size;
+    }
+
+    @Override
+    public boolean contains(Object o, QueryOptions queryOptions) {
+        return getStored(o) != null;
+    }
+
+    @Override
+    public CloseableIterator<O> iterator(QueryOptions queryOptions) {
+        return new CloseableIterator<O>() {
+            private final Object[] views = ColumnarObjectStore.this.views;
+            private final int rowLimit = Math.min(ColumnarObjectStore.this.rowLimit, views.length);
+            private int row = -1;
+            private O next = advance();
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public O next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                O current = next;
+                next = advance();
+                return current;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException("Remove objects through the IndexedCollection");
+            }
+
+            @Override
+            public void close() {
+            }
+
+            @SuppressWarnings("unchecked")
+            private O advance() {
+                while (++row < rowLimit) {
+                    if (views[row] != null) {
+                        return (O) views[row];
+                    }
+                }
+                return null;
+            }
+        };
+    }
+
+    @Override
+    public boolean isEmpty(QueryOptions queryOptions) {
+        return size == 0;
+    }
+
+    /**
+     * Add the view of a written row, unless a view with the same primary key is already stored.
+     */
+    @Override
+    public synchronized boolean add(O view, QueryOptions queryOptions) {
+        if (getStored(view) != null) {
+            return false;
+        }
+        if ((size + 1 + removedSlots) * 2 > slots.length) {
+            rehash(size + 1);
+        }
+        int row = rowOf(view);
+        views[row] = view;
+        int[] slots = this.slots;
+        int mask = slots.length - 1;
+        int slot = hash(primaryKeyOf(view)) & mask;
+        while (slots[slot] > 0) {
+            slot = (slot + 1) & mask;
+        }
+        if (slots[slot] == REMOVED) {
+            removedSlots--;
+        }
+        slots[slot] = row + 1;
+        size++;
+        return true;
+    }
+
+    /**
+     * Remove the stored view with the same primary key as the given object. Its row is released once the view is no
+     * longer referenced.
+     */
+    @Override
+    public synchronized boolean remove(Object o, QueryOptions queryOptions) {
+        O stored = getStored(o);
+        if (stored == null) {
+            return false;
+        }
+        int row = rowOf(stored);
+        int[] slots = this.slots;
+        int mask = slots.length - 1;
+        int slot = hash(primaryKeyOf(stored)) & mask;
+        while (slots[slot] != row + 1) {
+            slot = (slot + 1) & mask;
+        }
+        slots[slot] = REMOVED;
+        removedSlots++;
+        views[row] = null;
+        removedViews.add(new RowReference(stored, row, unreferencedViews));
+        size--;
+        return true;
+    }
+
+    @Override
+    public boolean containsAll(Collection<?> c, QueryOptions queryOptions) {
+        for (Object o : c) {
+            if (!contains(o, queryOptions)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean addAll(Collection<? extends O> c, QueryOptions queryOptions) {
+        boolean modified = false;
+        for (O view : c) {
+            modified |= add(view, queryOptions);
+        }
+        return modified;
+    }
+
+    @Override
+    public boolean retainAll(Collection<?> c, QueryOptions queryOptions) {
+        throw new UnsupportedOperationException("Retain objects through the IndexedCollection");
+    }
+
+    @Override
+    public boolean removeAll(Collection<?> c, QueryOptions queryOptions) {
+        boolean modified = false;
+        for (Object o : c) {
+            modified |= remove(o, queryOptions);
+        }
+        return modified;
+    }
+
+    @Override
+    public synchronized void clear(QueryOptions queryOptions) {
+        Object[] views = this.views;
+        for (int row = 0; row < rowLimit; row++) {
+            if (views[row] != null) {
+                removedViews.add(new RowReference(views[row], row, unreferencedViews));
+                views[row] = null;
+            }
+        }
+        slots = new int[INITIAL_ROWS * 2];
+        size = 0;
+        removedSlots = 0;
+    }
+
+    private void releaseUnreferencedRows() {
+        for (Reference<?> reference = unreferencedViews.poll(); reference != null; reference = unreferencedViews.poll()) {
+            RowReference rowReference = (RowReference) reference;
+            removedViews.remove(rowReference);
+            release(rowReference.row);
+        }
+    }
+
+    private int allocateRow() {
+        int row = rowLimit;
+        if (row == views.length) {
+            int capacity = views.length * 2;
+            Object[] grown = newColumns(layout, capacity);
+            Object[] columns = this.columns;
+            for (int column = 0; column < columns.length; column++) {
+                System.arraycopy(columns[column], 0, grown[column], 0, row);
+            }
+            this.columns = grown;
+            this.views = Arrays.copyOf(views, capacity);
+        }
+        rowLimit = row + 1;
+        return row;
+    }
+
+    /**
+     * Replace the slots with a table, without removed slots, with room for at least the given number of rows.
+     */
+    private void rehash(int rows) {
+        int capacity = Integer.highestOneBit(Math.max(rows, INITIAL_ROWS) * 4 - 1);
+        int[] rehashed = new int[capacity];
+        int mask = capacity - 1;
+        Object[] views = this.views;
+        for (int row = 0; row < rowLimit; row++) {
+            if (views[row] != null) {
+                int slot = hash(primaryKeyOf(views[row])) & mask;
+                while (rehashed[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                rehashed[slot] = row + 1;
+            }
+        }
+        removedSlots = 0;
+        slots = rehashed;
+    }
+
+    private static int hash(Object primaryKey) {
+        int hash = primaryKey.hashCode();
+        return hash ^ (hash >>> 16);
+    }
+
+    @SuppressWarnings("unchecked")
+    private Object primaryKeyOf(Object object) {
+        if (!layout.getObjectType().isInstance(object)) {
+            return null;
+        }
+        return primaryKeyAttribute.getValue((O) object, null);
+    }
+
+    private static final class RowReference extends WeakReference<Object> {
+        private final int row;
+
+        RowReference(Object view, int row, ReferenceQueue<Object> queue) {
+            super(view, queue);
+            this.row = row;
+        }
+    }
+
+    private static int rowOf(Object view) {
+        return ((ColumnarIndexedCollection.View) view).getRow();
+    }
+
+    private static Object[] newColumns(ColumnarLayout<?> layout, int rows) {
+        Object[] columns = new Object[layout.getColumnCount()];
+        for (int column = 0; column < columns.length; column++) {
+            switch (layout.getColumnType(column)) {
+                case INT:
+                    columns[column] = new int[rows];
+                    break;
+                case LONG:
+                    columns[column] = new long[rows];
+                    break;
+                case DOUBLE:
+                    columns[column] = new double[rows];
+                    break;
+                default:
+                    columns[column] = new Object[rows];
+            }
+        }
+        return columns;
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright (c) 2019. Allan Boyd
+ * This program is made available under the terms of the Apache License v2.0.
+ */
+
+package com.alkimiapps.indexedcache.internal;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts the differences found (and repaired) between the contents of an IndexedCollection and its javax.cache.Cache.
+ */
+public final class DriftStatistics {
+
+    private final LongAdder orphansRemoved = new LongAdder();
+    private final LongAdder missingEntriesIndexed = new LongAdder();
+
+    public void orphanRemoved() {
+        orphansRemoved.increment();
+    }
+
+    public void missingEntryIndexed() {
+        missingEntriesIndexed.increment();
+    }
+
+    /**
+     * The number of objects removed from the IndexedCollection because they were no longer in the Cache.
+     */
+    public long getOrphansRemoved() {
+        return orphansRemoved.sum();
+    }
+
+    /**
+     * The number of Cache entries added to the IndexedCollection because they were missing from it.
+     */
+    public long getMissingEntriesIndexed() {
+        return missingEntriesIndexed.sum();
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2019. Allan Boyd
+ * This program is made available under the terms of the Apache License v2.0.
+ */
+
+package com.alkimiapps.indexedcache.internal;
+
+import com.alkimiapps.indexedcache.ColumnarIndexedCollection;
+import com.alkimiapps.indexedcache.ColumnarLayout;
+import com.alkimiapps.indexedcache.FootprintEstimate;
+import com.googlecode.cqengine.IndexedCollection;
+import com.googlecode.cqengine.index.Index;
+import com.googlecode.cqengine.index.support.KeyStatisticsIndex;
+import com.googlecode.cqengine.query.option.QueryOptions;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Estimates the FootprintEstimate of an IndexedCollection.
+ *
+ * The objects are sampled evenly across the collection and the size of each sampled object is measured by walking its
+ * fields. Values shared by the sampled objects are counted once so that interned values are not over-counted. The views
+ * of a ColumnarIndexedCollection refer to the whole collection so they are measured differently: a sampled view costs
+ * its own size plus the values of its object columns, and the columns themselves are added once.
+ *
+ * Indexes are not walked (that would mean visiting every entry) but estimated from their statistics: a map-based index
+ * (e.g. a HashIndex or NavigableIndex) costs a map entry and a set per distinct key plus a set entry per object, any
+ * other index (e.g. a radix tree) a node per object. A lazy index that has not been built costs nothing.
+ */
+public final class FootprintEstimator {
+
+    static final long KEY_BYTES = 96;
+    static final long KEYED_ENTRY_BYTES = 40;
+    static final long UNKEYED_ENTRY_BYTES = 64;
+
+    private FootprintEstimator() {
+    }
+
+    public static <V> FootprintEstimate estimate(IndexedCollection<V> indexedCollection, int sampleSize) {
+        ColumnarIndexedCollection<V> columnar = indexedCollection instanceof ColumnarIndexedCollection
+                ? (ColumnarIndexedCollection<V>) indexedCollection : null;
+        int objectCount = indexedCollection.size();
+        int stride = Math.max(1, objectCount / Math.max(1, sampleSize));
+        Set<Object> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+        long sampledBytes = 0;
+        int sampled = 0;
+        int i = 0;
+        for (V v : indexedCollection) {
+            if (sampled == sampleSize) {
+                break;
+            }
+            if (i++ % stride == 0) {
+                sampledBytes += columnar == null ? ObjectSizeEstimator.deepSize(v, visited) : viewSize(columnar, v, visited);
+                sampled++;
+            }
+        }
+        long valueBytes = sampled == 0 ? 0 : Math.round(sampledBytes / (double) sampled * objectCount);
+        if (columnar != null) {
+            valueBytes += columnar.estimateColumnBytes();
+        }
+
+        Map<String, Long> indexBytes = new LinkedHashMap<>();
+        long totalBytes = valueBytes;
+        QueryOptions queryOptions = new QueryOptions();
+        for (Index<V> index : indexedCollection.getIndexes()) {
+            String name = IndexedCacheManagement.describe(index);
+            String uniqueName = name;
+            for (int n = 2; indexBytes.containsKey(uniqueName); n++) {
+                uniqueName = name + "#" + n;
+            }
+            long bytes = estimateIndexBytes(index, objectCount, queryOptions);
+            indexBytes.put(uniqueName, bytes);
+            totalBytes += bytes;
+        }
+        return new FootprintEstimate(objectCount, sampled, valueBytes, indexBytes, totalBytes);
+    }
+
+    private static <V> long viewSize(ColumnarIndexedCollection<V> columnar, V view, Set<Object> visited) {
+        long size = ObjectSizeEstimator.shallowSize(view);
+        int row = ((ColumnarIndexedCollection.View) view).getRow();
+        ColumnarLayout<V> layout = columnar.getLayout();
+        for (int column = 0; column < layout.getColumnCount(); column++) {
+            Object value = layout.getColumnType(column) == ColumnarLayout.ColumnType.OBJECT ? columnar.getObject(row, column) : null;
+            if (value != null) {
+                size += ObjectSizeEstimator.deepSize(value, visited);
+            }
+        }
+        return size;
+    }
+
+    private static <V> long estimateIndexBytes(Index<V> index, int objectCount, QueryOptions queryOptions) {
+        if (index instanceof BackgroundIndex) {
+            BackgroundIndex<?, V> backgroundIndex = (BackgroundIndex<?, V>) index;
+            if (backgroundIndex.getState() == BackgroundIndex.State.PENDING || backgroundIndex.isOutOfService()) {
+                return 0;
+            }
+        }
+        Index<V> unwrapped = BackgroundIndex.unwrap(index);
+        if (unwrapped instanceof KeyStatisticsIndex) {
+            int distinctKeys = ((KeyStatisticsIndex<?, V>) unwrapped).getCountOfDistinctKeys(queryOptions);
+            return distinctKeys * KEY_BYTES + objectCount * KEYED_ENTRY_BYTES;
+        }
+        return objectCount * UNKEYED_ENTRY_BYTES;
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2019. Allan Boyd
+ * This program is made available under the terms of the Apache License v2.0.
+ */
+
+package com.alkimiapps.indexedcache.internal;
+
+import com.googlecode.cqengine.IndexedCollection;
+import com.googlecode.cqengine.attribute.SimpleAttribute;
+import com.googlecode.cqengine.attribute.SimpleNullableAttribute;
+import com.googlecode.cqengine.index.support.KeyStatisticsIndex;
+import com.googlecode.cqengine.query.Query;
+import com.googlecode.cqengine.query.logical.Or;
+import com.googlecode.cqengine.query.option.QueryOptions;
+import com.googlecode.cqengine.query.simple.All;
+import com.googlecode.cqengine.query.simple.Equal;
+import com.googlecode.cqengine.query.simple.In;
+
+/**
+ * Counts the objects that match a query from the key statistics of the indexes of an IndexedCollection (the size of an
+ * index's bucket for a key), without retrieving the objects, where the structure of the query allows:
+ *
+ * - all: the size of the IndexedCollection
+ * - equal: the count for the value in an exact index on the attribute (see Projector.coveringIndexOf)
+ * - in: the sum of the counts for its values, when no object can match more than one of them (the attribute has one
+ * value per object, or the query is disjoint)
+ * - or: the sum of the counts of its child queries, when the query is disjoint and each child can be counted
+ *
+ * Other queries - and queries on attributes without such an index - cannot be counted this way.
+ */
+public final class IndexCounter {
+
+    public static final int NOT_COUNTABLE = -1;
+
+    private IndexCounter() {
+    }
+
+    /**
+     * Return the number of objects that match the query, or NOT_COUNTABLE if the indexes cannot tell.
+     */
+    public static <V> int count(IndexedCollection<V> indexedCollection, Query<V> query, QueryOptions queryOptions) {
+        if (query instanceof All) {
+            return indexedCollection.size();
+        }
+        if (query instanceof Equal) {
+            Equal<V, ?> equal = (Equal<V, ?>) query;
+            return countForKey(Projector.coveringIndexOf(indexedCollection, equal.getAttribute()), equal.getValue(), queryOptions);
+        }
+        if (query instanceof In) {
+            In<V, ?> in = (In<V, ?>) query;
+            boolean oneValuePerObject = in.getAttribute() instanceof SimpleAttribute || in.getAttribute() instanceof SimpleNullableAttribute;
+            KeyStatisticsIndex<?, V> index = Projector.coveringIndexOf(indexedCollection, in.getAttribute());
+            if (index == null || !(oneValuePerObject || in.isDisjoint())) {
+                return NOT_COUNTABLE;
+            }
+            int count = 0;
+            for (Object value : in.getValues()) {
+                count += countForKey(index, value, queryOptions);
+            }
+            return count;
+        }
+        if (query instanceof Or && ((Or<V>) query).isDisjoint()) {
+            int count = 0;
+            for (Query<V> child : ((Or<V>) query).getChildQueries()) {
+                int childCount = count(indexedCollection, child, queryOptions);
+                if (childCount == NOT_COUNTABLE) {
+                    return NOT_COUNTABLE;
+                }
+                count += childCount;
+            }
+            return count;
+        }
+        return NOT_COUNTABLE;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <A, V> int countForKey(KeyStatisticsIndex<A, V> index, Object key, QueryOptions queryOptions) {
+        if (index == null) {
+            return NOT_COUNTABLE;
+        }
+        Integer count = index.getCountForKey((A) key, queryOptions);
+        return count == null ? 0 : count;
+    }
+}
@@ -19,36 +19,99 @@ import java.util.List;
  *
  * Implements CacheEntryUpdatedListener and CacheEntryCreatedListener so that items updated/added to the cache independently
  * of the IndexedCache are also updated/added to the IndexedCache.
+ *
+ * Events that echo writes made through the IndexedCache - which has already applied them to the IndexedCollection - are
+ * recognised by matching the KeyVersions stamp of the value written and discarded, whatever order they arrive in. An
+ * expiry of a value that a put made through the IndexedCache has since replaced is discarded too.
  */
 public final class IndexedCacheEntryListener<K, V> implements CacheEntryExpiredListener<K, V>, CacheEntryRemovedListener<K, V>, CacheEntryUpdatedListener<K, V>, CacheEntryCreatedListener<K, V> {
 
     private IndexedCollection<V> indexedCollection;
+    private ListenerLagProbe listenerLagProbe;
+    private CacheKeys<K, V> cacheKeys;
+    private ListenerEventBuffer listenerEventBuffer;
+    private Interning<V> interning;
+    private KeyVersions keyVersions;
 
-    IndexedCacheEntryListener(IndexedCollection<V> indexedCollection) {
+    IndexedCacheEntryListener(IndexedCollection<V> indexedCollection, ListenerLagProbe listenerLagProbe, CacheKeys<K, V> cacheKeys, ListenerEventBuffer listenerEventBuffer,
+                              Interning<V> interning, KeyVersions keyVersions) {
         this.indexedCollection = indexedCollection;
+        this.listenerLagProbe = listenerLagProbe;
+        this.cacheKeys = cacheKeys;
+        this.listenerEventBuffer = listenerEventBuffer;
+        this.interning = interning;
+        this.keyVersions = keyVersions;
     }
 
     @Override
     public void onExpired(Iterable<CacheEntryEvent<? extends K, ? extends V>> cacheEntryEvents) throws CacheEntryListenerException {
-        cacheEntryEvents.forEach(cacheEntryEvent -> indexedCollection.remove(cacheEntryEvent.getValue()));
+        cacheEntryEvents.forEach(cacheEntryEvent -> {
+            V expired = removedValueOf(cacheEntryEvent);
+            if (keyVersions.isSuperseded(cacheEntryEvent.getKey(), expired)) {
+                return;
+            }
+            listenerEventBuffer.dispatch(() -> {
+                indexedCollection.remove(expired);
+                cacheKeys.unregister(cacheEntryEvent.getKey());
+            });
+        });
     }
 
     @Override
     public void onRemoved(Iterable<CacheEntryEvent<? extends K, ? extends V>> cacheEntryEvents) throws CacheEntryListenerException {
-        cacheEntryEvents.forEach(cacheEntryEvent -> indexedCollection.remove(cacheEntryEvent.getValue()));
+        cacheEntryEvents.forEach(cacheEntryEvent -> {
+            listenerLagProbe.eventReceived(cacheEntryEvent.getKey());
+            V removed = removedValueOf(cacheEntryEvent);
+            if (keyVersions.isEcho(KeyVersions.Operation.REMOVE, cacheEntryEvent.getKey(), removed)) {
+                return;
+            }
+            listenerEventBuffer.dispatch(() -> {
+                indexedCollection.remove(removed);
+                cacheKeys.unregister(cacheEntryEvent.getKey());
+            });
+        });
     }
 
     @Override
     public void onCreated(Iterable<CacheEntryEvent<? extends K, ? extends V>> cacheEntryEvents) throws CacheEntryListenerException {
-        cacheEntryEvents.forEach(cacheEntryEvent -> indexedCollection.add(cacheEntryEvent.getValue()));
+        cacheEntryEvents.forEach(cacheEntryEvent -> {
+            listenerLagProbe.eventReceived(cacheEntryEvent.getKey());
+            if (keyVersions.isEcho(KeyVersions.Operation.PUT, cacheEntryEvent.getKey(), cacheEntryEvent.getValue())) {
+                return;
+            }
+            listenerEventBuffer.dispatch(() -> {
+                cacheKeys.registerKey(cacheEntryEvent.getKey());
+                interning.intern(cacheEntryEvent.getValue());
+                indexedCollection.add(cacheEntryEvent.getValue());
+            });
+        });
     }
 
     @Override
     public void onUpdated(Iterable<CacheEntryEvent<? extends K, ? extends V>> cacheEntryEvents) throws CacheEntryListenerException {
         List<V> newValues = new ArrayList<>();
         List<V> oldValues = new ArrayList<>();
-        cacheEntryEvents.forEach(entry -> newValues.add(entry.getValue()));
-        cacheEntryEvents.forEach(entry -> oldValues.add(entry.getOldValue()));
-        indexedCollection.update(oldValues, newValues);
+        cacheEntryEvents.forEach(entry -> {
+            listenerLagProbe.eventReceived(entry.getKey());
+            if (!keyVersions.isEcho(KeyVersions.Operation.PUT, entry.getKey(), entry.getValue())) {
+                newValues.add(entry.getValue());
+                oldValues.add(entry.getOldValue());
+            }
+        });
+        if (newValues.isEmpty()) {
+            return;
+        }
+        listenerEventBuffer.dispatch(() -> {
+            interning.internAll(newValues);
+            indexedCollection.update(oldValues, newValues);
+        });
+    }
+
+    /**
+     * The value an entry had before it was removed or expired: its old value where the Cache provides one, otherwise
+     * its value.
+     */
+    private V removedValueOf(CacheEntryEvent<? extends K, ? extends V> cacheEntryEvent) {
+        return cacheEntryEvent.isOldValueAvailable() && cacheEntryEvent.getOldValue() != null ? cacheEntryEvent.getOldValue() : cacheEntryEvent.getValue();
     }
 }
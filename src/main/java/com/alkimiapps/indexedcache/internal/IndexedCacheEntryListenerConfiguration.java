@@ -15,13 +15,32 @@ import javax.cache.event.CacheEntryListener;
 public final class IndexedCacheEntryListenerConfiguration<K, V> implements CacheEntryListenerConfiguration<K, V> {
 
     private IndexedCollection<V> indexedCollection;
+    private ListenerLagProbe listenerLagProbe;
+    private CacheKeys<K, V> cacheKeys;
+    private CacheEntryEventFilter<K, V> cacheEntryEventFilter;
+    private ListenerEventBuffer listenerEventBuffer;
+    private Interning<V> interning;
+    private KeyVersions keyVersions;
 
     public IndexedCacheEntryListenerConfiguration(IndexedCollection<V> indexedCollection) {
+        this(indexedCollection, new ListenerLagProbe(), new CacheKeys<>(null), new AllInclusiveCacheEventFilter<>(), new ListenerEventBuffer(),
+                new Interning<>(), new KeyVersions(true));
+    }
+
+    public IndexedCacheEntryListenerConfiguration(IndexedCollection<V> indexedCollection, ListenerLagProbe listenerLagProbe, CacheKeys<K, V> cacheKeys,
+                                                  CacheEntryEventFilter<K, V> cacheEntryEventFilter, ListenerEventBuffer listenerEventBuffer,
+                                                  Interning<V> interning, KeyVersions keyVersions) {
         this.indexedCollection = indexedCollection;
+        this.listenerLagProbe = listenerLagProbe;
+        this.cacheKeys = cacheKeys;
+        this.cacheEntryEventFilter = cacheEntryEventFilter;
+        this.listenerEventBuffer = listenerEventBuffer;
+        this.interning = interning;
+        this.keyVersions = keyVersions;
     }
     @Override
     public Factory<CacheEntryListener<? super K, ? super V>> getCacheEntryListenerFactory() {
-        return (Factory<CacheEntryListener<? super K, ? super V>>) () -> new IndexedCacheEntryListener<>(indexedCollection);
+        return (Factory<CacheEntryListener<? super K, ? super V>>) () -> new IndexedCacheEntryListener<>(indexedCollection, listenerLagProbe, cacheKeys, listenerEventBuffer, interning, keyVersions);
     }
 
     @Override
@@ -31,7 +50,7 @@ public final class IndexedCacheEntryListenerConfiguration<K, V> implements Cache
 
     @Override
     public Factory<CacheEntryEventFilter<? super K, ? super V>> getCacheEntryEventFilterFactory() {
-        return (Factory<CacheEntryEventFilter<? super K, ? super V>>) AllInclusiveCacheEventFilter::new;
+        return (Factory<CacheEntryEventFilter<? super K, ? super V>>) () -> cacheEntryEventFilter;
     }
 
     @Override
@@ -0,0 +1,210 @@
+/*
+ * Copyright (c) 2019. Allan Boyd
+ * This program is made available under the terms of the Apache License v2.0.
+ */
+
+package com.alkimiapps.indexedcache.internal;
+
+import com.alkimiapps.indexedcache.FootprintEstimate;
+import com.alkimiapps.indexedcache.IndexedCacheMXBean;
+import com.alkimiapps.indexedcache.QueryShapeStatistics;
+import com.googlecode.cqengine.IndexedCollection;
+import com.googlecode.cqengine.index.AttributeIndex;
+import com.googlecode.cqengine.index.Index;
+import com.googlecode.cqengine.index.support.KeyStatisticsIndex;
+import com.googlecode.cqengine.query.option.QueryOptions;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The IndexedCacheMXBean implementation for an IndexedCache along with its registration in the platform MBeanServer.
+ */
+public final class IndexedCacheManagement<K, V> implements IndexedCacheMXBean {
+
+    private static final int FOOTPRINT_SAMPLE_SIZE = 100;
+
+    private final IndexedCollection<V> indexedCollection;
+    private final CacheMaintainer<K, V> cacheMaintainer;
+    private final QueryStatistics queryStatistics;
+    private final ListenerLagProbe listenerLagProbe;
+    private final DriftStatistics driftStatistics;
+    private final Interning<V> interning;
+
+    public IndexedCacheManagement(IndexedCollection<V> indexedCollection, CacheMaintainer<K, V> cacheMaintainer, QueryStatistics queryStatistics,
+                                  ListenerLagProbe listenerLagProbe, DriftStatistics driftStatistics, Interning<V> interning) {
+        this.indexedCollection = indexedCollection;
+        this.cacheMaintainer = cacheMaintainer;
+        this.queryStatistics = queryStatistics;
+        this.listenerLagProbe = listenerLagProbe;
+        this.driftStatistics = driftStatistics;
+        this.interning = interning;
+    }
+
+    @Override
+    public List<QueryShapeStatistics> getQueryShapeStatistics() {
+        return queryStatistics.snapshot();
+    }
+
+    @Override
+    public void resetQueryShapeStatistics() {
+        queryStatistics.reset();
+    }
+
+    @Override
+    public int getMaintenanceQueueDepth() {
+        return cacheMaintainer.getQueueDepth();
+    }
+
+    @Override
+    public long getMaintenanceFailureCount() {
+        return cacheMaintainer.getFailureCount();
+    }
+
+    @Override
+    public long getLastListenerEventLagNanos() {
+        return listenerLagProbe.getLastLagNanos();
+    }
+
+    @Override
+    public long getP99ListenerEventLagNanos() {
+        return listenerLagProbe.getLagHistogram().getValueAtPercentile(99);
+    }
+
+    @Override
+    public Map<String, Integer> getIndexSizes() {
+        Map<String, Integer> sizes = new LinkedHashMap<>();
+        QueryOptions queryOptions = new QueryOptions();
+        for (Index<V> index : indexedCollection.getIndexes()) {
+            String name = describe(index);
+            index = BackgroundIndex.unwrap(index);
+            String uniqueName = name;
+            for (int i = 2; sizes.containsKey(uniqueName); i++) {
+                uniqueName = name + "#" + i;
+            }
+            int size = index instanceof KeyStatisticsIndex
+                    ? ((KeyStatisticsIndex<?, V>) index).getCountOfDistinctKeys(queryOptions)
+                    : -1;
+            sizes.put(uniqueName, size);
+        }
+        return sizes;
+    }
+
+    @Override
+    public long getOrphansRemoved() {
+        return driftStatistics.getOrphansRemoved();
+    }
+
+    @Override
+    public long getMissingEntriesIndexed() {
+        return driftStatistics.getMissingEntriesIndexed();
+    }
+
+    @Override
+    public long getInternedValueCount() {
+        return interning.getValueInterner().getInternedCount();
+    }
+
+    @Override
+    public Map<String, Long> getEstimatedBytesSavedByInterning() {
+        return interning.getValueInterner().getEstimatedBytesSavedByType();
+    }
+
+    @Override
+    public long getProjectedRowCount() {
+        return queryStatistics.getProjectedRowCount();
+    }
+
+    @Override
+    public long getCoveredProjectionCount() {
+        return queryStatistics.getCoveredProjectionCount();
+    }
+
+    @Override
+    public long getCountQueryCount() {
+        return queryStatistics.getCountQueryCount();
+    }
+
+    @Override
+    public long getIndexCountQueryCount() {
+        return queryStatistics.getIndexCountQueryCount();
+    }
+
+    @Override
+    public long getRejectedQueryCount() {
+        return queryStatistics.getRejectedQueryCount();
+    }
+
+    @Override
+    public long getCutShortQueryCount() {
+        return queryStatistics.getCutShortQueryCount();
+    }
+
+    @Override
+    public long getQueryTemplateHitCount() {
+        return queryStatistics.getTemplateHitCount();
+    }
+
+    @Override
+    public long getQueryTemplateParseCount() {
+        return queryStatistics.getTemplateParseCount();
+    }
+
+    @Override
+    public long getMeanQueryTemplateParseNanos() {
+        return queryStatistics.getMeanTemplateParseNanos();
+    }
+
+    @Override
+    public FootprintEstimate getFootprintEstimate() {
+        return FootprintEstimator.estimate(indexedCollection, FOOTPRINT_SAMPLE_SIZE);
+    }
+
+    public void register(String cacheName) {
+        try {
+            mBeanServer().registerMBean(this, objectName(cacheName));
+        } catch (InstanceAlreadyExistsException e) {
+            // Already registered - registration is idempotent, as it is for javax.cache.CacheManager.enableManagement
+        } catch (JMException e) {
+            throw new IllegalStateException("Failed to register IndexedCacheMXBean for cache " + cacheName, e);
+        }
+    }
+
+    public void unregister(String cacheName) {
+        try {
+            mBeanServer().unregisterMBean(objectName(cacheName));
+        } catch (InstanceNotFoundException e) {
+            // Not registered - nothing to do
+        } catch (JMException e) {
+            throw new IllegalStateException("Failed to unregister IndexedCacheMXBean for cache " + cacheName, e);
+        }
+    }
+
+    public static ObjectName objectName(String cacheName) throws MalformedObjectNameException {
+        return new ObjectName("com.alkimiapps.indexedcache:type=IndexedCache,Cache=" + sanitize(cacheName));
+    }
+
+    static String describe(Index<?> index) {
+        String name = QueryShape.indexName(index);
+        if (index instanceof AttributeIndex) {
+            name += "(" + ((AttributeIndex<?, ?>) index).getAttribute().getAttributeName() + ")";
+        }
+        return name;
+    }
+
+    private static String sanitize(String name) {
+        return name == null ? "" : name.replaceAll("[,:=*?\"\n]", ".");
+    }
+
+    private static MBeanServer mBeanServer() {
+        return ManagementFactory.getPlatformMBeanServer();
+    }
+}
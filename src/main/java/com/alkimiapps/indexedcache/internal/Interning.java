@@ -0,0 +1,44 @@
+/*
+ * Copyright (c) 2019. Allan Boyd
+ * This program is made available under the terms of the Apache License v2.0.
+ */
+
+package com.alkimiapps.indexedcache.internal;
+
+import com.alkimiapps.indexedcache.ObjectInterner;
+import com.alkimiapps.indexedcache.ValueInterner;
+
+/**
+ * Applies the (optional) ObjectInterner of an IndexedCache to objects on their way into its IndexedCollection.
+ */
+public final class Interning<V> {
+
+    private final ValueInterner valueInterner = new ValueInterner();
+    private volatile ObjectInterner<V> objectInterner;
+
+    public ValueInterner getValueInterner() {
+        return valueInterner;
+    }
+
+    public void setObjectInterner(ObjectInterner<V> objectInterner) {
+        this.objectInterner = objectInterner;
+    }
+
+    public void intern(V object) {
+        ObjectInterner<V> interner = objectInterner;
+        if (interner != null && object != null) {
+            interner.internValues(object, valueInterner);
+        }
+    }
+
+    public void internAll(Iterable<? extends V> objects) {
+        ObjectInterner<V> interner = objectInterner;
+        if (interner != null && objects != null) {
+            for (V object : objects) {
+                if (object != null) {
+                    interner.internValues(object, valueInterner);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2019. Allan Boyd
+ * This program is made available under the terms of the Apache License v2.0.
+ */
+
+package com.alkimiapps.indexedcache.internal;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Striped locks on the cache keys written through an IndexedCache, held from the change to the IndexedCollection until
+ * the matching change to the javax.cache.Cache has been made. Writes to the same key (e.g. a remove and an add of the
+ * key on different threads) therefore reach the IndexedCollection and the Cache in the same order, and cannot leave an
+ * object in one but not the other, while writes to different keys (almost always on different stripes) run
+ * concurrently.
+ *
+ * Locks are identified by the hash codes of the keys. A write of several keys locks their stripes in ascending order so
+ * that batches cannot deadlock with each other.
+ */
+public final class KeyLocks {
+
+    private static final int DEFAULT_STRIPE_COUNT = 256;
+
+    private final ReentrantLock[] locks;
+    private final int mask;
+
+    public KeyLocks() {
+        this(DEFAULT_STRIPE_COUNT);
+    }
+
+    /**
+     * @param stripeCount the number of locks, a power of two
+     */
+    public KeyLocks(int stripeCount) {
+        if (Integer.bitCount(stripeCount) != 1) {
+            throw new IllegalArgumentException("The stripe count must be a power of two: " + stripeCount);
+        }
+        this.locks = new ReentrantLock[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            locks[i] = new ReentrantLock();
+        }
+        this.mask = stripeCount - 1;
+    }
+
+    /**
+     * Lock the stripe of a key, returning the stripe to pass to unlock.
+     */
+    public int lock(int keyHash) {
+        int stripe = stripeOf(keyHash);
+        locks[stripe].lock();
+        return stripe;
+    }
+
+    public void unlock(int stripe) {
+        locks[stripe].unlock();
+    }
+
+    /**
+     * Lock the stripes of several keys, in ascending order, returning the stripes to pass to unlockAll.
+     */
+    public int[] lockAll(int[] keyHashes) {
+        int[] stripes = new int[keyHashes.length];
+        for (int i = 0; i < keyHashes.length; i++) {
+            stripes[i] = stripeOf(keyHashes[i]);
+        }
+        Arrays.sort(stripes);
+        int count = 0;
+        for (int i = 0; i < stripes.length; i++) {
+            if (i == 0 || stripes[i] != stripes[i - 1]) {
+                stripes[count++] = stripes[i];
+            }
+        }
+        stripes = Arrays.copyOf(stripes, count);
+        for (int stripe : stripes) {
+            locks[stripe].lock();
+        }
+        return stripes;
+    }
+
+    /**
+     * Lock every stripe e.g. to clear the IndexedCollection and the Cache.
+     */
+    public int[] lockEverything() {
+        int[] stripes = new int[locks.length];
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = i;
+            locks[i].lock();
+        }
+        return stripes;
+    }
+
+    public void unlockAll(int[] stripes) {
+        for (int i = stripes.length - 1; i >= 0; i--) {
+            locks[stripes[i]].unlock();
+        }
+    }
+
+    private int stripeOf(int keyHash) {
+        // Spread the high bits of the hash into the low ones (as HashMap does)
+        return (keyHash ^ (keyHash >>> 16)) & mask;
+    }
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright (c) 2019. Allan Boyd
+ * This program is made available under the terms of the Apache License v2.0.
+ */
+
+package com.alkimiapps.indexedcache.internal;
+
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Per-key stamps of the writes an IndexedCache makes to its javax.cache.Cache, used by the IndexedCacheEntryListener to
+ * tell the (asynchronous) events that echo those writes from the events of writes made to the Cache by anyone else.
+ *
+ * Every write through the IndexedCache stamps its key with the operation (a put or a remove) and the value written or
+ * removed. An event is an echo if it matches a stamp of its key - the same operation and the same value - and the stamp
+ * is then used up. A put matches the same instance for a store-by-reference Cache and an equal value for a
+ * store-by-value Cache; a remove matches an equal value since removing an equal value has the same effect whoever made
+ * it (and the value removed from the Cache need not be the instance the caller asked to remove).
+ * The IndexedCollection was changed when the write was made so echoes are discarded, which stops an echo that arrives
+ * late (e.g. an onCreated arriving after a later remove) re-inserting a removed object or overwriting a newer one. The
+ * events of other writers do not match a stamp, whatever order the events arrive in, and are applied as usual.
+ *
+ * Stamps are updated by compare-and-set so neither writers nor the listener take a lock. A write that produces no event
+ * should be withdrawn; if it is not, its stamp is abandoned after a timeout.
+ */
+public final class KeyVersions {
+
+    public enum Operation {
+        PUT, REMOVE
+    }
+
+    private static final long ABANDON_AFTER_NANOS = TimeUnit.SECONDS.toNanos(10);
+    private static final int SWEEP_EVERY_WRITES = 1024;
+
+    private final boolean storeByValue;
+    private final ConcurrentMap<Object, Stamp> stamps = new ConcurrentHashMap<>();
+    private final AtomicLong writes = new AtomicLong();
+    private final LongAdder echoesDiscarded = new LongAdder();
+
+    /**
+     * @param storeByValue whether the Cache stores (and so sends events with) copies of the values written to it, in
+     *                     which case values are matched by equals rather than by identity
+     */
+    public KeyVersions(boolean storeByValue) {
+        this.storeByValue = storeByValue;
+    }
+
+    /**
+     * Stamp a write about to be made to the Cache: the put of a value or the removal of the value of a key.
+     */
+    public void writeIssued(Operation operation, Object key, Object value) {
+        if (writes.incrementAndGet() % SWEEP_EVERY_WRITES == 0) {
+            sweepAbandoned();
+        }
+        Write write = new Write(operation, value, System.nanoTime());
+        while (true) {
+            Stamp stamp = stamps.get(key);
+            if (stamp == null) {
+                if (stamps.putIfAbsent(key, new Stamp(new Write[]{write})) == null) {
+                    return;
+                }
+            } else if (stamps.replace(key, stamp, stamp.with(write))) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Withdraw a write that turned out not to change the Cache (e.g. a conditional remove that did not match) and so
+     * will not be echoed.
+     */
+    public void writeWithdrawn(Operation operation, Object key, Object value) {
+        while (true) {
+            Stamp stamp = stamps.get(key);
+            int i = stamp == null ? -1 : stamp.lastIndexOf(operation, value, this);
+            if (i < 0) {
+                return;
+            }
+            if (replace(key, stamp, stamp.without(i, 0))) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Return whether an event for the key - of the given operation and value - echoes a write made through the
+     * IndexedCache, using up the write's stamp if so.
+     */
+    public boolean isEcho(Operation operation, Object key, Object value) {
+        while (true) {
+            Stamp stamp = stamps.get(key);
+            if (stamp == null) {
+                return false;
+            }
+            long abandonedBefore = System.nanoTime() - ABANDON_AFTER_NANOS;
+            int i = stamp.firstIndexOf(operation, value, this, abandonedBefore);
+            if (i < 0) {
+                if (!stamp.hasAbandoned(abandonedBefore) || replace(key, stamp, stamp.without(-1, abandonedBefore))) {
+                    return false;
+                }
+            } else if (replace(key, stamp, stamp.without(i, abandonedBefore))) {
+                echoesDiscarded.increment();
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Return whether an event that ends the life of a value of the key (e.g. its expiry) is for a value that has since
+     * been replaced by a put made through the IndexedCache i.e. the value put most recently is not this value. Stamps
+     * are not used up.
+     */
+    public boolean isSuperseded(Object key, Object value) {
+        Stamp stamp = stamps.get(key);
+        if (stamp == null) {
+            return false;
+        }
+        long abandonedBefore = System.nanoTime() - ABANDON_AFTER_NANOS;
+        for (int i = stamp.writes.length - 1; i >= 0; i--) {
+            Write write = stamp.writes[i];
+            if (write.operation == Operation.PUT && write.writtenNanos - abandonedBefore > 0) {
+                return !matches(Operation.PUT, write.value, value);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Return whether the key has writes that have not yet been echoed (or abandoned) i.e. whether the Cache may not yet
+     * have caught up with the IndexedCollection for the key.
+     */
+    public boolean hasPendingWrites(Object key) {
+        return stamps.containsKey(key);
+    }
+
+    /**
+     * The number of keys with writes that have not yet been echoed.
+     */
+    public int getPendingKeyCount() {
+        return stamps.size();
+    }
+
+    /**
+     * The number of events discarded because they echoed writes made through the IndexedCache.
+     */
+    public long getEchoesDiscarded() {
+        return echoesDiscarded.sum();
+    }
+
+    private boolean matches(Operation operation, Object written, Object value) {
+        return written == value || ((storeByValue || operation == Operation.REMOVE) && Objects.equals(written, value));
+    }
+
+    private boolean replace(Object key, Stamp stamp, Stamp replacement) {
+        return replacement == null ? stamps.remove(key, stamp) : stamps.replace(key, stamp, replacement);
+    }
+
+    private void sweepAbandoned() {
+        long abandonedBefore = System.nanoTime() - ABANDON_AFTER_NANOS;
+        stamps.forEach((key, stamp) -> {
+            if (stamp.hasAbandoned(abandonedBefore)) {
+                replace(key, stamp, stamp.without(-1, abandonedBefore));
+            }
+        });
+    }
+
+    private static final class Write {
+        private final Operation operation;
+        private final Object value;
+        private final long writtenNanos;
+
+        private Write(Operation operation, Object value, long writtenNanos) {
+            this.operation = operation;
+            this.value = value;
+            this.writtenNanos = writtenNanos;
+        }
+    }
+
+    /**
+     * The writes of a key that have not yet been echoed, oldest first. Stamps are immutable so that they can be
+     * compared-and-set.
+     */
+    private static final class Stamp {
+        private final Write[] writes;
+
+        private Stamp(Write[] writes) {
+            this.writes = writes;
+        }
+
+        private Stamp with(Write write) {
+            Write[] extended = Arrays.copyOf(writes, writes.length + 1);
+            extended[writes.length] = write;
+            return new Stamp(extended);
+        }
+
+        /**
+         * Return a stamp without the write at index i (if i >= 0) and without the writes abandoned before the given
+         * time (if not 0), or null if there would be no writes left.
+         */
+        private Stamp without(int i, long abandonedBefore) {
+            Write[] remaining = new Write[writes.length];
+            int count = 0;
+            for (int j = 0; j < writes.length; j++) {
+                if (j != i && (abandonedBefore == 0 || writes[j].writtenNanos - abandonedBefore > 0)) {
+                    remaining[count++] = writes[j];
+                }
+            }
+            return count == 0 ? null : new Stamp(Arrays.copyOf(remaining, count));
+        }
+
+        private int firstIndexOf(Operation operation, Object value, KeyVersions keyVersions, long abandonedBefore) {
+            for (int i = 0; i < writes.length; i++) {
+                if (writes[i].operation == operation && writes[i].writtenNanos - abandonedBefore > 0 && keyVersions.matches(operation, writes[i].value, value)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private int lastIndexOf(Operation operation, Object value, KeyVersions keyVersions) {
+            for (int i = writes.length - 1; i >= 0; i--) {
+                if (writes[i].operation == operation && keyVersions.matches(operation, writes[i].value, value)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private boolean hasAbandoned(long abandonedBefore) {
+            for (Write write : writes) {
+                if (write.writtenNanos - abandonedBefore <= 0) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
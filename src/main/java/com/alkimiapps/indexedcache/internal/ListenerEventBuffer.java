@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) 2019. Allan Boyd
+ * This program is made available under the terms of the Apache License v2.0.
+ */
+
+package com.alkimiapps.indexedcache.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Holds back the changes that an IndexedCacheEntryListener makes to its IndexedCollection while the existing contents
+ * of the Cache are being indexed, so that they can then be replayed in the order that they were received.
+ *
+ * Replaying is safe whether or not the bulk load saw the change already because every change is idempotent: adding an
+ * object that is already in the IndexedCollection, or removing one that is not, does nothing.
+ */
+public final class ListenerEventBuffer {
+
+    private final Object lock = new Object();
+    private volatile boolean buffering;
+    private List<Runnable> buffer = new ArrayList<>();
+    private long replayed;
+
+    /**
+     * Apply a change to the IndexedCollection now or, if buffering, later.
+     */
+    public void dispatch(Runnable change) {
+        if (buffering) {
+            synchronized (lock) {
+                if (buffering) {
+                    buffer.add(change);
+                    return;
+                }
+            }
+        }
+        change.run();
+    }
+
+    public void startBuffering() {
+        synchronized (lock) {
+            buffering = true;
+        }
+    }
+
+    /**
+     * Replay the buffered changes and stop buffering. Changes dispatched while the buffer is being replayed are
+     * buffered in turn and replayed after it so that the order of changes is preserved. Returns the number replayed.
+     */
+    public long replayAndStopBuffering() {
+        while (true) {
+            List<Runnable> changes;
+            synchronized (lock) {
+                if (buffer.isEmpty()) {
+                    buffering = false;
+                    return replayed;
+                }
+                changes = buffer;
+                buffer = new ArrayList<>();
+            }
+            changes.forEach(Runnable::run);
+            replayed += changes.size();
+        }
+    }
+}
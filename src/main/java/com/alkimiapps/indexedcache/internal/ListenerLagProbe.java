@@ -0,0 +1,61 @@
+/*
+ * Copyright (c) 2019. Allan Boyd
+ * This program is made available under the terms of the Apache License v2.0.
+ */
+
+package com.alkimiapps.indexedcache.internal;
+
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Measures the lag between a write to a javax.cache.Cache and the delivery of the corresponding event to the
+ * IndexedCacheEntryListener.
+ *
+ * Rather than time every write (which would need a timestamp per key) only one write is timed at a time: the first
+ * write made while no probe is in flight is remembered and the lag is recorded when an event for that key arrives.
+ * A probe whose event never arrives (e.g. because the write produced no event) is abandoned after a timeout.
+ */
+public final class ListenerLagProbe {
+
+    private static final long ABANDON_AFTER_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    private final AtomicReference<Probe> inFlight = new AtomicReference<>();
+    private final LatencyHistogram lag = new LatencyHistogram();
+    private volatile long lastLagNanos;
+
+    public void writeIssued(Object key) {
+        Probe current = inFlight.get();
+        long now = System.nanoTime();
+        if (current == null || now - current.issuedNanos > ABANDON_AFTER_NANOS) {
+            inFlight.compareAndSet(current, new Probe(key, now));
+        }
+    }
+
+    public void eventReceived(Object key) {
+        Probe current = inFlight.get();
+        if (current != null && Objects.equals(current.key, key) && inFlight.compareAndSet(current, null)) {
+            lastLagNanos = System.nanoTime() - current.issuedNanos;
+            lag.record(lastLagNanos);
+        }
+    }
+
+    public long getLastLagNanos() {
+        return lastLagNanos;
+    }
+
+    public LatencyHistogram getLagHistogram() {
+        return lag;
+    }
+
+    private static final class Probe {
+        private final Object key;
+        private final long issuedNanos;
+
+        private Probe(Object key, long issuedNanos) {
+            this.key = key;
+            this.issuedNanos = issuedNanos;
+        }
+    }
+}
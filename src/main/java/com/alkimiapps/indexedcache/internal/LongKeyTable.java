@@ -0,0 +1,235 @@
+/*
+ * Copyright (c) 2019. Allan Boyd
+ * This program is made available under the terms of the Apache License v2.0.
+ */
+
+package com.alkimiapps.indexedcache.internal;
+
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * A concurrent map from primitive long keys to objects.
+ *
+ * Unlike a Map&lt;Long, T&gt;, neither looking up nor storing a key allocates a boxed Long or a map node. The table is
+ * split into segments, each an open-addressed (linear probing) table guarded by a StampedLock. Lookups are optimistic
+ * and so do not block (and are not blocked by) other lookups.
+ *
+ * Null values are not supported.
+ */
+public final class LongKeyTable<T> {
+
+    private static final int SEGMENT_BITS = 4;
+    private static final int SEGMENTS = 1 << SEGMENT_BITS;
+    private static final int INITIAL_SEGMENT_CAPACITY = 16;
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+
+    public LongKeyTable() {
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(INITIAL_SEGMENT_CAPACITY);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public T get(long key) {
+        int hash = hash(key);
+        return (T) segmentFor(hash).get(key, hash);
+    }
+
+    /**
+     * Associate the value with the key, returning the value previously associated with the key (or null).
+     */
+    @SuppressWarnings("unchecked")
+    public T put(long key, T value) {
+        if (value == null) {
+            throw new NullPointerException("Null values are not supported");
+        }
+        int hash = hash(key);
+        return (T) segmentFor(hash).put(key, hash, value);
+    }
+
+    /**
+     * Remove the value associated with the key, returning the value removed (or null).
+     */
+    @SuppressWarnings("unchecked")
+    public T remove(long key) {
+        int hash = hash(key);
+        return (T) segmentFor(hash).remove(key, hash);
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    public void clear() {
+        for (Segment segment : segments) {
+            segment.clear();
+        }
+    }
+
+    private Segment segmentFor(int hash) {
+        return segments[hash >>> (Integer.SIZE - SEGMENT_BITS)];
+    }
+
+    static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private static final class Segment {
+        private final StampedLock lock = new StampedLock();
+        private long[] keys;
+        private Object[] values;
+        private int size;
+
+        Segment(int capacity) {
+            keys = new long[capacity];
+            values = new Object[capacity];
+        }
+
+        Object get(long key, int hash) {
+            long stamp = lock.tryOptimisticRead();
+            Object value = find(keys, values, key, hash);
+            if (!lock.validate(stamp)) {
+                stamp = lock.readLock();
+                try {
+                    value = find(keys, values, key, hash);
+                } finally {
+                    lock.unlockRead(stamp);
+                }
+            }
+            return value;
+        }
+
+        Object put(long key, int hash, Object value) {
+            long stamp = lock.writeLock();
+            try {
+                int mask = keys.length - 1;
+                for (int i = hash & mask; ; i = (i + 1) & mask) {
+                    Object existing = values[i];
+                    if (existing == null) {
+                        keys[i] = key;
+                        values[i] = value;
+                        if (++size * 2 > keys.length) {
+                            resize();
+                        }
+                        return null;
+                    }
+                    if (keys[i] == key) {
+                        values[i] = value;
+                        return existing;
+                    }
+                }
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        Object remove(long key, int hash) {
+            long stamp = lock.writeLock();
+            try {
+                int mask = keys.length - 1;
+                for (int i = hash & mask; ; i = (i + 1) & mask) {
+                    Object existing = values[i];
+                    if (existing == null) {
+                        return null;
+                    }
+                    if (keys[i] == key) {
+                        shiftBack(i);
+                        size--;
+                        return existing;
+                    }
+                }
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        int size() {
+            long stamp = lock.readLock();
+            try {
+                return size;
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        void clear() {
+            long stamp = lock.writeLock();
+            try {
+                keys = new long[INITIAL_SEGMENT_CAPACITY];
+                values = new Object[INITIAL_SEGMENT_CAPACITY];
+                size = 0;
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        /**
+         * Linear probing deletion without tombstones: close the gap at i by moving back any later entry in the same
+         * probe run that would otherwise become unreachable.
+         */
+        private void shiftBack(int gap) {
+            int mask = keys.length - 1;
+            int i = gap;
+            while (true) {
+                i = (i + 1) & mask;
+                if (values[i] == null) {
+                    break;
+                }
+                int home = hash(keys[i]) & mask;
+                // Move the entry at i into the gap if its home slot is not (cyclically) between the gap and i
+                if (((i - home) & mask) >= ((i - gap) & mask)) {
+                    keys[gap] = keys[i];
+                    values[gap] = values[i];
+                    gap = i;
+                }
+            }
+            values[gap] = null;
+        }
+
+        private void resize() {
+            long[] oldKeys = keys;
+            Object[] oldValues = values;
+            long[] newKeys = new long[oldKeys.length * 2];
+            Object[] newValues = new Object[oldKeys.length * 2];
+            int mask = newKeys.length - 1;
+            for (int j = 0; j < oldKeys.length; j++) {
+                if (oldValues[j] != null) {
+                    int i = hash(oldKeys[j]) & mask;
+                    while (newValues[i] != null) {
+                        i = (i + 1) & mask;
+                    }
+                    newKeys[i] = oldKeys[j];
+                    newValues[i] = oldValues[j];
+                }
+            }
+            keys = newKeys;
+            values = newValues;
+        }
+
+        /**
+         * Find the value for a key. This may be called without holding the lock (and so may race with a writer) so it
+         * reads each array only once and never probes more slots than the table has.
+         */
+        private static Object find(long[] keys, Object[] values, long key, int hash) {
+            int length = Math.min(keys.length, values.length);
+            int mask = Integer.highestOneBit(length) - 1;
+            int i = hash & mask;
+            for (int probes = 0; probes < length; probes++, i = (i + 1) & mask) {
+                Object value = values[i];
+                if (value == null) {
+                    return null;
+                }
+                if (keys[i] == key) {
+                    return value;
+                }
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (c) 2019. Allan Boyd
+ * This program is made available under the terms of the Apache License v2.0.
+ */
+
+package com.alkimiapps.indexedcache.internal;
+
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the background maintenance tasks (e.g. registering cache hits and misses) of many IndexedCaches on a small,
+ * bounded pool of daemon threads rather than each IndexedCache having a thread of its own.
+ *
+ * Each IndexedCache has its own MaintenanceQueue. The tasks of one queue are run one at a time, in the order that they
+ * were queued. Queues take turns: a queue with tasks waiting runs at most QUANTUM of them before going to the back of
+ * the line, so a busy IndexedCache cannot starve the others.
+ *
+ * Periodic tasks (e.g. dropping the expired buckets of a TimeBucketedIndexedCache) are queued on their queue, when they
+ * are due, by a single timer thread that runs no tasks itself.
+ *
+ * A task that fails does not stop its queue. Its failure is counted by the queue and passed to the uncaught exception
+ * handler of the maintenance thread (by default the stack trace is printed to System.err).
+ */
+public final class MaintenanceScheduler {
+
+    static final int QUANTUM = 16;
+    private static final String THREADS_PROPERTY = "com.alkimiapps.indexedcache.maintenanceThreads";
+
+    private static volatile MaintenanceScheduler shared;
+
+    private final Executor executor;
+    private final ScheduledExecutorService timer;
+
+    public MaintenanceScheduler(int threads) {
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "IndexedCacheMaintenance-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        ScheduledThreadPoolExecutor scheduledExecutor = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "IndexedCacheMaintenance-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduledExecutor.setRemoveOnCancelPolicy(true);
+        this.timer = scheduledExecutor;
+    }
+
+    /**
+     * Return the MaintenanceScheduler shared by all IndexedCaches. Its number of threads is given by the system
+     * property com.alkimiapps.indexedcache.maintenanceThreads and defaults to the number of processors (at least 2, so
+     * that one slow task does not hold up every IndexedCache, and at most 4).
+     */
+    public static MaintenanceScheduler shared() {
+        if (shared == null) {
+            synchronized (MaintenanceScheduler.class) {
+                if (shared == null) {
+                    int defaultThreads = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+                    shared = new MaintenanceScheduler(Math.max(1, Integer.getInteger(THREADS_PROPERTY, defaultThreads)));
+                }
+            }
+        }
+        return shared;
+    }
+
+    public MaintenanceQueue newQueue() {
+        return new MaintenanceQueue(executor, timer);
+    }
+
+    /**
+     * The maintenance tasks of one IndexedCache (or of one of its helpers e.g. a refresher).
+     */
+    public static final class MaintenanceQueue implements Executor {
+        private final Executor executor;
+        private final ScheduledExecutorService timer;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger size = new AtomicInteger();
+        private final AtomicLong failures = new AtomicLong();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private final List<ScheduledFuture<?>> periodicTasks = new CopyOnWriteArrayList<>();
+        private volatile boolean closed;
+
+        MaintenanceQueue(Executor executor, ScheduledExecutorService timer) {
+            this.executor = executor;
+            this.timer = timer;
+        }
+
+        /**
+         * Queue a task. Tasks queued after the queue has been closed are discarded.
+         */
+        @Override
+        public void execute(Runnable task) {
+            if (closed) {
+                return;
+            }
+            tasks.add(task);
+            size.incrementAndGet();
+            scheduleIfNeeded();
+        }
+
+        /**
+         * Queue a task every period, starting after one period, until the queue is closed. The task is not queued again
+         * while it is still waiting to be run.
+         */
+        public void executePeriodically(Runnable task, long period, TimeUnit unit) {
+            if (closed) {
+                return;
+            }
+            AtomicBoolean waiting = new AtomicBoolean();
+            Runnable run = () -> {
+                waiting.set(false);
+                task.run();
+            };
+            periodicTasks.add(timer.scheduleWithFixedDelay(() -> {
+                if (waiting.compareAndSet(false, true)) {
+                    execute(run);
+                }
+            }, period, period, unit));
+            if (closed) {
+                periodicTasks.forEach(periodicTask -> periodicTask.cancel(false));
+            }
+        }
+
+        /**
+         * The number of tasks waiting to be run.
+         */
+        public int size() {
+            return size.get();
+        }
+
+        /**
+         * Discard the waiting tasks and any that are queued later, and stop queuing periodic tasks.
+         */
+        public void close() {
+            closed = true;
+            periodicTasks.forEach(periodicTask -> periodicTask.cancel(false));
+            while (tasks.poll() != null) {
+                size.decrementAndGet();
+            }
+        }
+
+        /**
+         * The number of tasks that have failed with an exception.
+         */
+        public long getFailureCount() {
+            return failures.get();
+        }
+
+        public boolean isClosed() {
+            return closed;
+        }
+
+        private void scheduleIfNeeded() {
+            if (!tasks.isEmpty() && scheduled.compareAndSet(false, true)) {
+                executor.execute(this::runTurn);
+            }
+        }
+
+        private void runTurn() {
+            try {
+                for (int i = 0; i < QUANTUM && !closed; i++) {
+                    Runnable task = tasks.poll();
+                    if (task == null) {
+                        break;
+                    }
+                    size.decrementAndGet();
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        // A failed maintenance task must not stop the queue (as it wouldn't have stopped a thread pool)
+                        failures.incrementAndGet();
+                        Thread thread = Thread.currentThread();
+                        thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+                    }
+                }
+            } finally {
+                scheduled.set(false);
+                // Tasks may have been queued after the last poll but before scheduled was cleared
+                scheduleIfNeeded();
+            }
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2019. Allan Boyd
+ * This program is made available under the terms of the Apache License v2.0.
+ */
+
+package com.alkimiapps.indexedcache.internal;
+
+import com.googlecode.cqengine.query.Query;
+import com.googlecode.cqengine.query.option.QueryOptions;
+import com.googlecode.cqengine.resultset.ResultSet;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * A ResultSet holding the materialized (and, if the query was ordered, merged in order) results of retrieving a query
+ * from several ResultSets. Closing it closes the ResultSets it was made from. The QueryOptions may be null (for a query
+ * retrieved without any), in which case it has empty QueryOptions.
+ */
+public final class MergedResultSet<O> extends ResultSet<O> {
+
+    private final Query<O> query;
+    private final QueryOptions queryOptions;
+    private final List<O> results;
+    private final List<ResultSet<O>> resultSets;
+
+    public MergedResultSet(Query<O> query, QueryOptions queryOptions, List<O> results, List<ResultSet<O>> resultSets) {
+        this.query = query;
+        this.queryOptions = queryOptions == null ? new QueryOptions() : queryOptions;
+        this.results = results;
+        this.resultSets = resultSets;
+    }
+
+    @Override
+    public Iterator<O> iterator() {
+        return Collections.unmodifiableList(results).iterator();
+    }
+
+    @Override
+    public boolean contains(O object) {
+        for (ResultSet<O> resultSet : resultSets) {
+            if (resultSet.contains(object)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public boolean matches(O object) {
+        return query.matches(object, queryOptions);
+    }
+
+    @Override
+    public Query<O> getQuery() {
+        return query;
+    }
+
+    @Override
+    public QueryOptions getQueryOptions() {
+        return queryOptions;
+    }
+
+    @Override
+    public int getRetrievalCost() {
+        int cost = 0;
+        for (ResultSet<O> resultSet : resultSets) {
+            cost = Math.max(cost, resultSet.getRetrievalCost());
+        }
+        return cost;
+    }
+
+    @Override
+    public int getMergeCost() {
+        return results.size();
+    }
+
+    @Override
+    public int size() {
+        return results.size();
+    }
+
+    @Override
+    public void close() {
+        resultSets.forEach(ResultSet::close);
+    }
+}
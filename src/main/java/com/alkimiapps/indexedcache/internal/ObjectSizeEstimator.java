@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2019. Allan Boyd
+ * This program is made available under the terms of the Apache License v2.0.
+ */
+
+package com.alkimiapps.indexedcache.internal;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Estimates the heap retained by an object graph by walking its fields reflectively, assuming the layout of a 64 bit
+ * JVM with compressed references (12 byte object headers, 4 byte references, 8 byte alignment).
+ *
+ * This is an estimate: classes and enum constants are treated as shared (and so are not counted) and the fields of
+ * objects that cannot be read reflectively are not followed.
+ */
+public final class ObjectSizeEstimator {
+
+    static final int OBJECT_HEADER_BYTES = 12;
+    static final int ARRAY_HEADER_BYTES = 16;
+    static final int REFERENCE_BYTES = 4;
+    static final int MAX_OBJECTS = 100_000;
+
+    private static final Map<Class<?>, ClassLayout> layouts = new ConcurrentHashMap<>();
+
+    private ObjectSizeEstimator() {
+    }
+
+    /**
+     * Estimate the bytes retained by the object and everything reachable from it. Objects already in the given set of
+     * visited objects are not counted (so a set shared between calls counts shared objects once). At most MAX_OBJECTS
+     * objects are counted per call, however many the visited set already holds.
+     */
+    public static long deepSize(Object root, Set<Object> visited) {
+        long size = 0;
+        int counted = 0;
+        Deque<Object> pending = new ArrayDeque<>();
+        pending.push(root);
+        while (!pending.isEmpty() && counted < MAX_OBJECTS) {
+            Object object = pending.pop();
+            if (object == null || isShared(object) || !visited.add(object)) {
+                continue;
+            }
+            counted++;
+            Class<?> type = object.getClass();
+            if (type.isArray()) {
+                int length = Array.getLength(object);
+                Class<?> componentType = type.getComponentType();
+                size += align(ARRAY_HEADER_BYTES + (long) length * fieldBytes(componentType));
+                if (!componentType.isPrimitive()) {
+                    for (int i = 0; i < length; i++) {
+                        pending.push(Array.get(object, i));
+                    }
+                }
+            } else {
+                ClassLayout layout = layoutOf(type);
+                size += layout.shallowSize;
+                for (Field field : layout.referenceFields) {
+                    try {
+                        pending.push(field.get(object));
+                    } catch (IllegalAccessException | RuntimeException e) {
+                        // Not readable - count the reference but not what it refers to
+                    }
+                }
+            }
+        }
+        return size;
+    }
+
+    public static long deepSize(Object root) {
+        return deepSize(root, Collections.newSetFromMap(new IdentityHashMap<>()));
+    }
+
+    /**
+     * Estimate the bytes of the object itself, not counting anything it refers to.
+     */
+    public static long shallowSize(Object object) {
+        Class<?> type = object.getClass();
+        if (type.isArray()) {
+            return align(ARRAY_HEADER_BYTES + (long) Array.getLength(object) * fieldBytes(type.getComponentType()));
+        }
+        return layoutOf(type).shallowSize;
+    }
+
+    static long align(long bytes) {
+        return (bytes + 7) & ~7L;
+    }
+
+    private static boolean isShared(Object object) {
+        return object instanceof Class || object instanceof Enum || object instanceof ClassLoader || object instanceof Thread;
+    }
+
+    private static ClassLayout layoutOf(Class<?> type) {
+        return layouts.computeIfAbsent(type, ClassLayout::new);
+    }
+
+    private static int fieldBytes(Class<?> type) {
+        if (type == long.class || type == double.class) {
+            return 8;
+        }
+        if (type == int.class || type == float.class) {
+            return 4;
+        }
+        if (type == short.class || type == char.class) {
+            return 2;
+        }
+        if (type == byte.class || type == boolean.class) {
+            return 1;
+        }
+        return REFERENCE_BYTES;
+    }
+
+    private static final class ClassLayout {
+        private final long shallowSize;
+        private final List<Field> referenceFields = new ArrayList<>();
+
+        ClassLayout(Class<?> type) {
+            long size = OBJECT_HEADER_BYTES;
+            for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+                for (Field field : c.getDeclaredFields()) {
+                    if (Modifier.isStatic(field.getModifiers())) {
+                        continue;
+                    }
+                    size += fieldBytes(field.getType());
+                    if (!field.getType().isPrimitive()) {
+                        try {
+                            field.setAccessible(true);
+                            referenceFields.add(field);
+                        } catch (RuntimeException e) {
+                            // Inaccessible (e.g. a JDK class on a modular JVM) - its size is still counted
+                        }
+                    }
+                }
+            }
+            this.shallowSize = align(size);
+        }
+    }
+}
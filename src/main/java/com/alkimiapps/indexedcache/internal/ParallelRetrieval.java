@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2019. Allan Boyd
+ * This program is made available under the terms of the Apache License v2.0.
+ */
+
+package com.alkimiapps.indexedcache.internal;
+
+import com.googlecode.cqengine.IndexedCollection;
+import com.googlecode.cqengine.query.Query;
+import com.googlecode.cqengine.query.option.OrderByOption;
+import com.googlecode.cqengine.query.option.QueryOptions;
+import com.googlecode.cqengine.resultset.ResultSet;
+import com.googlecode.cqengine.resultset.order.AttributeOrdersComparator;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Function;
+
+/**
+ * Retrieves a query from a range of IndexedCollections (e.g. the partitions of a PartitionedIndexedCache) by splitting
+ * the range in two, retrieving each half in parallel and then merging the results of the two halves. If the query has
+ * an OrderByOption then the results of each IndexedCollection are ordered and the merge preserves the order.
+ *
+ * @param <T> the type of the targets
+ * @param <V> the type of the objects retrieved
+ */
+public final class ParallelRetrieval<T, V> extends RecursiveTask<List<V>> {
+    private static final long serialVersionUID = 1L;
+
+    private final List<? extends T> targets;
+    private final Function<? super T, ResultSet<V>> retrieval;
+    private final QueryOptions queryOptions;
+    private final Comparator<V> comparator;
+    private final List<ResultSet<V>> resultSets;
+
+    private ParallelRetrieval(List<? extends T> targets, Function<? super T, ResultSet<V>> retrieval, QueryOptions queryOptions,
+                              Comparator<V> comparator, List<ResultSet<V>> resultSets) {
+        this.targets = targets;
+        this.retrieval = retrieval;
+        this.queryOptions = queryOptions;
+        this.comparator = comparator;
+        this.resultSets = resultSets;
+    }
+
+    /**
+     * Retrieve the query from every target in the ForkJoinPool and return the merged (materialized) results.
+     */
+    public static <V> ResultSet<V> retrieve(ForkJoinPool forkJoinPool, List<? extends IndexedCollection<V>> targets, Query<V> query,
+                                            QueryOptions queryOptions) {
+        return retrieve(forkJoinPool, targets, target -> queryOptions == null ? target.retrieve(query) : target.retrieve(query, queryOptions),
+                query, queryOptions);
+    }
+
+    /**
+     * Retrieve the query from every target in the ForkJoinPool with the given retrieval (e.g. to retrieve a snapshot
+     * from each target) and return the merged (materialized) results.
+     */
+    public static <T, V> ResultSet<V> retrieve(ForkJoinPool forkJoinPool, List<? extends T> targets, Function<? super T, ResultSet<V>> retrieval,
+                                               Query<V> query, QueryOptions queryOptions) {
+        List<ResultSet<V>> resultSets = Collections.synchronizedList(new ArrayList<>());
+        List<V> results = forkJoinPool.invoke(new ParallelRetrieval<>(targets, retrieval, queryOptions, comparator(queryOptions), resultSets));
+        return new MergedResultSet<>(query, queryOptions, results, new ArrayList<>(resultSets));
+    }
+
+    @Override
+    protected List<V> compute() {
+        if (targets.isEmpty()) {
+            return new ArrayList<>();
+        }
+        if (targets.size() == 1) {
+            ResultSet<V> resultSet = retrieval.apply(targets.get(0));
+            resultSets.add(resultSet);
+            List<V> results = new ArrayList<>(resultSet.size());
+            resultSet.forEach(results::add);
+            return results;
+        }
+        int middle = targets.size() / 2;
+        ParallelRetrieval<T, V> left = new ParallelRetrieval<>(targets.subList(0, middle), retrieval, queryOptions, comparator, resultSets);
+        ParallelRetrieval<T, V> right = new ParallelRetrieval<>(targets.subList(middle, targets.size()), retrieval, queryOptions, comparator, resultSets);
+        left.fork();
+        List<V> rightResults = right.compute();
+        List<V> leftResults = left.join();
+        return merge(leftResults, rightResults);
+    }
+
+    private List<V> merge(List<V> left, List<V> right) {
+        List<V> merged = new ArrayList<>(left.size() + right.size());
+        if (comparator == null) {
+            merged.addAll(left);
+            merged.addAll(right);
+            return merged;
+        }
+        int l = 0;
+        int r = 0;
+        while (l < left.size() && r < right.size()) {
+            // Take from the left on ties so that the merge is stable
+            if (comparator.compare(left.get(l), right.get(r)) <= 0) {
+                merged.add(left.get(l++));
+            } else {
+                merged.add(right.get(r++));
+            }
+        }
+        merged.addAll(left.subList(l, left.size()));
+        merged.addAll(right.subList(r, right.size()));
+        return merged;
+    }
+
+    private static <V> Comparator<V> comparator(QueryOptions queryOptions) {
+        if (queryOptions == null) {
+            return null;
+        }
+        @SuppressWarnings("unchecked")
+        OrderByOption<V> orderByOption = queryOptions.get(OrderByOption.class);
+        return orderByOption == null ? null : new AttributeOrdersComparator<>(orderByOption.getAttributeOrders(), queryOptions);
+    }
+}
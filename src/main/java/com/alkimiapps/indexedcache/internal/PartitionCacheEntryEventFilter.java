@@ -0,0 +1,41 @@
+/*
+ * Copyright (c) 2019. Allan Boyd
+ * This program is made available under the terms of the Apache License v2.0.
+ */
+
+package com.alkimiapps.indexedcache.internal;
+
+import javax.cache.event.CacheEntryEvent;
+import javax.cache.event.CacheEntryEventFilter;
+import javax.cache.event.CacheEntryListenerException;
+
+/**
+ * A CacheEntryEventFilter that only cares about the CacheEntryEvents for the keys of one partition of a Cache.
+ * @param <K> the key type of the Cache
+ * @param <V> the value type of the Cache
+ */
+public final class PartitionCacheEntryEventFilter<K, V> implements CacheEntryEventFilter<K, V> {
+
+    private final int partition;
+    private final int partitionCount;
+
+    public PartitionCacheEntryEventFilter(int partition, int partitionCount) {
+        this.partition = partition;
+        this.partitionCount = partitionCount;
+    }
+
+    @Override
+    public boolean evaluate(CacheEntryEvent<? extends K, ? extends V> event) throws CacheEntryListenerException {
+        return partitionOf(event.getKey(), partitionCount) == partition;
+    }
+
+    /**
+     * Return the partition of a cache key.
+     */
+    public static int partitionOf(Object key, int partitionCount) {
+        int hash = key.hashCode();
+        // Spread the higher bits down so that keys whose hash codes differ only in their higher bits are spread too
+        hash ^= (hash >>> 16);
+        return Math.floorMod(hash, partitionCount);
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2019. Allan Boyd
+ * This program is made available under the terms of the Apache License v2.0.
+ */
+
+package com.alkimiapps.indexedcache.internal;
+
+import com.alkimiapps.indexedcache.ProjectionResult;
+import com.googlecode.cqengine.IndexedCollection;
+import com.googlecode.cqengine.attribute.Attribute;
+import com.googlecode.cqengine.attribute.SimpleAttribute;
+import com.googlecode.cqengine.attribute.SimpleNullableAttribute;
+import com.googlecode.cqengine.index.AttributeIndex;
+import com.googlecode.cqengine.index.Index;
+import com.googlecode.cqengine.index.support.CloseableIterable;
+import com.googlecode.cqengine.index.support.CloseableIterator;
+import com.googlecode.cqengine.index.support.KeyStatisticsIndex;
+import com.googlecode.cqengine.index.support.indextype.NonHeapTypeIndex;
+import com.googlecode.cqengine.query.Query;
+import com.googlecode.cqengine.query.option.OrderByOption;
+import com.googlecode.cqengine.query.option.QueryOptions;
+import com.googlecode.cqengine.query.simple.All;
+import com.googlecode.cqengine.query.simple.Equal;
+import com.googlecode.cqengine.query.simple.In;
+import com.googlecode.cqengine.resultset.ResultSet;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Projects the objects of a ResultSet onto some of their attributes, making a column of values per attribute.
+ *
+ * A projection of a single attribute is answered from the keys of an index on the attribute (a covering index) -
+ * without reading the objects - when the index keeps its keys exactly (e.g. a HashIndex or NavigableIndex but not a
+ * quantized or off-heap index) and the query resolves on that attribute alone: equal or in on the attribute, where
+ * every matching object has exactly the value it matched, or all, where the attribute has one value per object. The
+ * values are then the keys the query matched, each repeated by the index's count of objects for it (in no particular
+ * order unless the query is ordered, in which case the objects are read). Otherwise the columns are read from objects.
+ */
+public final class Projector {
+
+    private static final Object NO_VALUE = new Object();
+
+    private Projector() {
+    }
+
+    public static <V> ProjectionResult<V> project(IndexedCollection<V> indexedCollection, Query<V> query, ResultSet<V> resultSet,
+                                                  List<Attribute<V, ?>> attributes, QueryOptions queryOptions) {
+        if (attributes.size() == 1 && queryOptions.get(OrderByOption.class) == null) {
+            Object[] column = columnFromIndex(indexedCollection, query, attributes.get(0), queryOptions);
+            if (column != null) {
+                return new ProjectionResult<>(attributes, new Object[][]{column}, column.length, Collections.singleton(attributes.get(0)));
+            }
+        }
+        List<V> rows = new ArrayList<>();
+        resultSet.forEach(rows::add);
+        Object[][] columns = new Object[attributes.size()][];
+        for (int c = 0; c < columns.length; c++) {
+            columns[c] = new Object[rows.size()];
+            fillFromObjects(columns[c], attributes.get(c), rows, queryOptions);
+        }
+        return new ProjectionResult<>(attributes, columns, rows.size(), Collections.emptySet());
+    }
+
+    /**
+     * Return a ready on-heap index on the attribute that keeps its keys exactly and can report the number of objects
+     * per key, or null if there is none.
+     */
+    static <V> KeyStatisticsIndex<?, V> coveringIndexOf(IndexedCollection<V> indexedCollection, Attribute<V, ?> attribute) {
+        for (Index<V> index : indexedCollection.getIndexes()) {
+            if (index instanceof BackgroundIndex && !((BackgroundIndex<?, V>) index).isReady()) {
+                continue;
+            }
+            Index<V> unwrapped = BackgroundIndex.unwrap(index);
+            if (unwrapped instanceof AttributeIndex && unwrapped instanceof KeyStatisticsIndex && !unwrapped.isQuantized()
+                    && !(unwrapped instanceof NonHeapTypeIndex) && attribute.equals(((AttributeIndex<?, V>) unwrapped).getAttribute())) {
+                return (KeyStatisticsIndex<?, V>) unwrapped;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Return the column of values of the objects matching the query read from a covering index on the attribute, or
+     * null if the query does not resolve on the attribute or there is no such index.
+     */
+    private static <V> Object[] columnFromIndex(IndexedCollection<V> indexedCollection, Query<V> query, Attribute<V, ?> attribute,
+                                                QueryOptions queryOptions) {
+        boolean oneValuePerObject = attribute instanceof SimpleAttribute;
+        boolean atMostOneValuePerObject = oneValuePerObject || attribute instanceof SimpleNullableAttribute;
+        if (query instanceof All && oneValuePerObject) {
+            KeyStatisticsIndex<?, V> index = coveringIndexOf(indexedCollection, attribute);
+            return index == null ? null : allKeys(index, queryOptions);
+        }
+        if (query instanceof Equal && atMostOneValuePerObject && ((Equal<V, ?>) query).getAttribute().equals(attribute)) {
+            KeyStatisticsIndex<?, V> index = coveringIndexOf(indexedCollection, attribute);
+            return index == null ? null : keys(index, Collections.singleton(((Equal<V, ?>) query).getValue()), queryOptions);
+        }
+        if (query instanceof In && atMostOneValuePerObject && ((In<V, ?>) query).getAttribute().equals(attribute)) {
+            KeyStatisticsIndex<?, V> index = coveringIndexOf(indexedCollection, attribute);
+            return index == null ? null : keys(index, ((In<V, ?>) query).getValues(), queryOptions);
+        }
+        return null;
+    }
+
+    private static <A, V> Object[] allKeys(KeyStatisticsIndex<A, V> index, QueryOptions queryOptions) {
+        List<Object> keys = new ArrayList<>();
+        CloseableIterable<A> distinctKeys = index.getDistinctKeys(queryOptions);
+        try (CloseableIterator<A> iterator = distinctKeys.iterator()) {
+            while (iterator.hasNext()) {
+                keys.add(iterator.next());
+            }
+        }
+        return keys(index, keys, queryOptions);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <A, V> Object[] keys(KeyStatisticsIndex<A, V> index, Iterable<?> keys, QueryOptions queryOptions) {
+        List<Object> column = new ArrayList<>();
+        for (Object key : keys) {
+            Integer count = index.getCountForKey((A) key, queryOptions);
+            for (int i = 0; count != null && i < count; i++) {
+                column.add(key);
+            }
+        }
+        return column.toArray();
+    }
+
+    private static <V> void fillFromObjects(Object[] column, Attribute<V, ?> attribute, List<V> rows, QueryOptions queryOptions) {
+        for (int row = 0; row < column.length; row++) {
+            column[row] = NO_VALUE;
+            for (Object value : attribute.getValues(rows.get(row), queryOptions)) {
+                addValue(column, row, value);
+            }
+            if (column[row] == NO_VALUE) {
+                column[row] = null;
+            }
+        }
+    }
+
+    private static void addValue(Object[] column, int row, Object value) {
+        Object current = column[row];
+        if (current == NO_VALUE) {
+            column[row] = value;
+        } else if (current instanceof Values) {
+            ((Values) current).add(value);
+        } else {
+            Values values = new Values();
+            values.add(current);
+            values.add(value);
+            column[row] = values;
+        }
+    }
+
+    /**
+     * The values of a multi-valued attribute (distinguished from a List that is itself an attribute value).
+     */
+    private static final class Values extends ArrayList<Object> {
+        private static final long serialVersionUID = 1L;
+    }
+}
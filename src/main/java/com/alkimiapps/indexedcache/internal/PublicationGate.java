@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2019. Allan Boyd
+ * This program is made available under the terms of the Apache License v2.0.
+ */
+
+package com.alkimiapps.indexedcache.internal;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+/**
+ * Publishes the writes made through an IndexedCache to snapshot reads atomically without serializing the writes.
+ *
+ * Writers pass through the gate together, counting themselves in and out, and never wait - neither for each other nor
+ * for reads. A snapshot read is made optimistically, like a seqlock: it starts once no write is in progress and is
+ * valid if no write has started by the time it ends, otherwise it is retried. After a few invalid attempts - i.e. when
+ * writes are frequent enough that the read keeps overlapping them - the read backs off for exponentially longer
+ * between attempts (up to MAX_BACKOFF) so that it is retried in a gap between writes. A read is therefore delayed for
+ * as long as writes keep overlapping it, but it never holds writes up.
+ *
+ * Only reads made through the gate are atomic: a plain read of the IndexedCollection can see some of the changes of a
+ * write in progress but not others. The IndexedCollection publishes its changes through concurrent structures
+ * (volatile writes), so a read that sees any part of a write also sees that the write had started.
+ */
+public final class PublicationGate {
+
+    private static final int OPTIMISTIC_ATTEMPTS = 4;
+    private static final long MIN_BACKOFF = TimeUnit.MICROSECONDS.toNanos(1);
+    private static final long MAX_BACKOFF = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final AtomicLong started = new AtomicLong();
+    private final AtomicLong finished = new AtomicLong();
+
+    /**
+     * Enter the gate before a write is applied. Every call must be followed by a call to finishWrite.
+     */
+    public void startWrite() {
+        started.incrementAndGet();
+    }
+
+    public void finishWrite() {
+        finished.incrementAndGet();
+    }
+
+    /**
+     * Make a read that sees either all or none of each write. A failure of an attempt that overlapped a write is put
+     * down to the write and the read is retried.
+     */
+    public <T> T read(Supplier<T> reader) {
+        long backoff = MIN_BACKOFF;
+        for (int attempt = 0; ; attempt++) {
+            if (attempt >= OPTIMISTIC_ATTEMPTS) {
+                LockSupport.parkNanos(backoff);
+                backoff = Math.min(backoff * 2, MAX_BACKOFF);
+            }
+            long finishedWrites = finished.get();
+            if (started.get() != finishedWrites) {
+                Thread.yield(); // A write is in progress
+                continue;
+            }
+            T result;
+            try {
+                result = reader.get();
+            } catch (RuntimeException e) {
+                if (started.get() == finishedWrites) {
+                    throw e;
+                }
+                continue;
+            }
+            if (started.get() == finishedWrites) {
+                return result;
+            }
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2019. Allan Boyd
+ * This program is made available under the terms of the Apache License v2.0.
+ */
+
+package com.alkimiapps.indexedcache.internal;
+
+import com.googlecode.cqengine.attribute.Attribute;
+import com.googlecode.cqengine.query.Query;
+import com.googlecode.cqengine.query.option.QueryOptions;
+import com.googlecode.cqengine.query.simple.Equal;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.googlecode.cqengine.query.QueryFactory.in;
+
+/**
+ * Groups a batch of queries so that queries that look up the same index are retrieved together. Equal queries on the
+ * same attribute (e.g. several lookups by id) are combined into one in query, which CQEngine answers with one pass over
+ * the index on the attribute, and the results of the in query are split between them by the values of the attribute.
+ * Every other query is a group of its own.
+ *
+ * @param <V> the type of the objects queried
+ */
+public final class QueryBatch<V> {
+
+    private final List<Group<V>> groups;
+
+    private QueryBatch(List<Group<V>> groups) {
+        this.groups = groups;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <V> QueryBatch<V> of(List<? extends Query<V>> queries) {
+        List<Group<V>> groups = new ArrayList<>();
+        Map<Attribute<V, ?>, List<Integer>> equalQueriesByAttribute = new LinkedHashMap<>();
+        for (int i = 0; i < queries.size(); i++) {
+            Query<V> query = queries.get(i);
+            if (query instanceof Equal) {
+                equalQueriesByAttribute.computeIfAbsent(((Equal<V, ?>) query).getAttribute(), attribute -> new ArrayList<>()).add(i);
+            } else {
+                groups.add(new Group<>(query, Collections.singletonList(i), null, null));
+            }
+        }
+        equalQueriesByAttribute.forEach((attribute, positions) -> {
+            if (positions.size() == 1) {
+                int position = positions.get(0);
+                groups.add(new Group<>(queries.get(position), positions, null, null));
+            } else {
+                Map<Object, List<Integer>> positionsByValue = new HashMap<>();
+                for (int position : positions) {
+                    Object value = ((Equal<V, ?>) queries.get(position)).getValue();
+                    positionsByValue.computeIfAbsent(value, v -> new ArrayList<>()).add(position);
+                }
+                Query<V> combined = in((Attribute<V, Object>) attribute, positionsByValue.keySet());
+                groups.add(new Group<>(combined, positions, attribute, positionsByValue));
+            }
+        });
+        return new QueryBatch<>(groups);
+    }
+
+    public List<Group<V>> getGroups() {
+        return groups;
+    }
+
+    /**
+     * One query to retrieve and the positions, in the batch, of the queries whose results it holds.
+     */
+    public static final class Group<V> {
+        private final Query<V> query;
+        private final List<Integer> positions;
+        private final Attribute<V, ?> attribute;
+        private final Map<Object, List<Integer>> positionsByValue;
+
+        private Group(Query<V> query, List<Integer> positions, Attribute<V, ?> attribute, Map<Object, List<Integer>> positionsByValue) {
+            this.query = query;
+            this.positions = positions;
+            this.attribute = attribute;
+            this.positionsByValue = positionsByValue;
+        }
+
+        public Query<V> getQuery() {
+            return query;
+        }
+
+        public List<Integer> getPositions() {
+            return positions;
+        }
+
+        /**
+         * Add the results of the query of this group to the results of the queries of the batch it holds (in order).
+         */
+        public void split(Iterable<V> results, QueryOptions queryOptions, List<List<V>> resultsByPosition) {
+            if (attribute == null) {
+                List<V> queryResults = resultsByPosition.get(positions.get(0));
+                results.forEach(queryResults::add);
+                return;
+            }
+            Set<Integer> matched = new HashSet<>();
+            for (V v : results) {
+                matched.clear();
+                for (Object value : attribute.getValues(v, queryOptions)) {
+                    List<Integer> valuePositions = positionsByValue.get(value);
+                    if (valuePositions != null) {
+                        matched.addAll(valuePositions);
+                    }
+                }
+                matched.forEach(position -> resultsByPosition.get(position).add(v));
+            }
+        }
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright (c) 2019. Allan Boyd
+ * This program is made available under the terms of the Apache License v2.0.
+ */
+
+package com.alkimiapps.indexedcache.internal;
+
+import com.googlecode.cqengine.index.Index;
+import com.googlecode.cqengine.index.support.indextype.NonHeapTypeIndex;
+import com.googlecode.cqengine.query.Query;
+import com.googlecode.cqengine.query.logical.LogicalQuery;
+import com.googlecode.cqengine.query.option.AttributeOrder;
+import com.googlecode.cqengine.query.option.OrderByOption;
+import com.googlecode.cqengine.query.option.QueryOptions;
+import com.googlecode.cqengine.query.simple.SimpleQuery;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Normalises queries into "shapes" i.e. the structure of a query with its values removed, so that queries that differ
+ * only in the values they look for can be grouped together.
+ *
+ * For example <code>and(equal(name, "Bob"), greaterThan(age, 30))</code> has the shape
+ * <code>and(equal(name)@HashIndex,greaterThan(age)@NavigableIndex)</code> where the name after the '@' is the index
+ * that CQEngine would select for that part of the query (or "none" if the query would have to scan).
+ */
+public final class QueryShape {
+
+    private static final String NO_INDEX = "none";
+    private static final int NON_HEAP_INDEX_COST = Integer.MAX_VALUE - 1;
+
+    private QueryShape() {
+    }
+
+    public static <V> String of(Query<V> query, QueryOptions queryOptions, Iterable<Index<V>> indexes) {
+        StringBuilder shape = new StringBuilder();
+        append(shape, query, queryOptions == null ? new QueryOptions() : queryOptions, indexes);
+        OrderByOption<?> orderBy = queryOptions == null ? null : queryOptions.get(OrderByOption.class);
+        if (orderBy != null) {
+            shape.append(" orderBy(");
+            for (Iterator<? extends AttributeOrder<?>> it = orderBy.getAttributeOrders().iterator(); it.hasNext(); ) {
+                AttributeOrder<?> order = it.next();
+                shape.append(order.getAttribute().getAttributeName()).append(order.isDescending() ? " desc" : "");
+                if (it.hasNext()) {
+                    shape.append(',');
+                }
+            }
+            shape.append(')');
+        }
+        return shape.toString();
+    }
+
+    /**
+     * Return the shape of a query without its selected indexes e.g. <code>and(equal(name),greaterThan(age))</code>,
+     * for comparing queries across IndexedCaches with different indexes.
+     */
+    public static <V> String withoutIndexes(Query<V> query, QueryOptions queryOptions) {
+        return of(query, queryOptions, null);
+    }
+
+    /**
+     * Return the index CQEngine would choose for a simple query i.e. the supporting index with the lowest retrieval
+     * cost. Retrieving from an index is lazy so asking for the cost does not evaluate the query. Returns null if no
+     * index supports the query.
+     *
+     * An index that is not on the heap (e.g. off-heap or on disk) can only be retrieved from while the persistence of
+     * its collection has a connection open in the QueryOptions, so it is not asked for its cost and is taken to cost
+     * more than any on-heap index.
+     *
+     * A BackgroundIndex that is not ready is skipped without being asked whether it supports the query (as CQEngine
+     * would be told it does not) so that selecting an index never starts the build of a lazy index.
+     */
+    public static <V> Index<V> selectIndex(Query<V> query, QueryOptions queryOptions, Iterable<Index<V>> indexes) {
+        Index<V> selected = null;
+        int selectedCost = Integer.MAX_VALUE;
+        for (Index<V> index : indexes) {
+            if (index instanceof BackgroundIndex && !((BackgroundIndex<?, V>) index).isReady()) {
+                continue;
+            }
+            if (index.supportsQuery(query, queryOptions)) {
+                int cost = BackgroundIndex.unwrap(index) instanceof NonHeapTypeIndex ? NON_HEAP_INDEX_COST
+                        : index.retrieve(query, queryOptions).getRetrievalCost();
+                if (cost < selectedCost) {
+                    selected = index;
+                    selectedCost = cost;
+                }
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * Return a hash of the shape of a query without its indexes (see withoutIndexes) that is worked out without
+     * building the shape, for looking up a cached shape (see QueryShapeCache). Queries of the same shape have the same
+     * hash.
+     */
+    public static long structureHash(Query<?> query, QueryOptions queryOptions) {
+        long hash = structureHash(query);
+        OrderByOption<?> orderBy = queryOptions == null ? null : queryOptions.get(OrderByOption.class);
+        if (orderBy != null) {
+            for (AttributeOrder<?> order : orderBy.getAttributeOrders()) {
+                hash = mix(hash, order.getAttribute().getAttributeName().hashCode() * 2 + (order.isDescending() ? 1 : 0));
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Return whether two queries (with their orderings) have the same shape without their indexes, without building
+     * either shape.
+     */
+    public static boolean sameStructure(Query<?> query, OrderByOption<?> orderBy, Query<?> otherQuery, OrderByOption<?> otherOrderBy) {
+        if (!sameStructure(query, otherQuery)) {
+            return false;
+        }
+        if (orderBy == null || otherOrderBy == null) {
+            return orderBy == otherOrderBy;
+        }
+        List<? extends AttributeOrder<?>> orders = orderBy.getAttributeOrders();
+        List<? extends AttributeOrder<?>> otherOrders = otherOrderBy.getAttributeOrders();
+        if (orders.size() != otherOrders.size()) {
+            return false;
+        }
+        for (int i = 0; i < orders.size(); i++) {
+            if (orders.get(i).isDescending() != otherOrders.get(i).isDescending()
+                    || !orders.get(i).getAttribute().getAttributeName().equals(otherOrders.get(i).getAttribute().getAttributeName())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public static <V> String indexName(Index<V> index) {
+        return index == null ? NO_INDEX : BackgroundIndex.unwrap(index).getClass().getSimpleName();
+    }
+
+    private static <V> void append(StringBuilder shape, Query<V> query, QueryOptions queryOptions, Iterable<Index<V>> indexes) {
+        shape.append(typeName(query));
+        if (query instanceof LogicalQuery) {
+            shape.append('(');
+            for (Iterator<Query<V>> it = ((LogicalQuery<V>) query).getChildQueries().iterator(); it.hasNext(); ) {
+                append(shape, it.next(), queryOptions, indexes);
+                if (it.hasNext()) {
+                    shape.append(',');
+                }
+            }
+            shape.append(')');
+        } else if (query instanceof SimpleQuery) {
+            shape.append('(').append(((SimpleQuery<V, ?>) query).getAttributeName()).append(')');
+            if (indexes != null) {
+                shape.append('@').append(indexName(selectIndex(query, queryOptions, indexes)));
+            }
+        }
+    }
+
+    private static long structureHash(Query<?> query) {
+        long hash = mix(1, query.getClass().hashCode());
+        if (query instanceof LogicalQuery) {
+            for (Query<?> childQuery : ((LogicalQuery<?>) query).getChildQueries()) {
+                hash = mix(hash, Long.hashCode(structureHash(childQuery)));
+            }
+            hash = mix(hash, ((LogicalQuery<?>) query).getChildQueries().size());
+        } else if (query instanceof SimpleQuery) {
+            hash = mix(hash, ((SimpleQuery<?, ?>) query).getAttributeName().hashCode());
+        }
+        return hash;
+    }
+
+    private static boolean sameStructure(Query<?> query, Query<?> otherQuery) {
+        if (query.getClass() != otherQuery.getClass()) {
+            return false;
+        }
+        if (query instanceof LogicalQuery) {
+            Collection<? extends Query<?>> children = ((LogicalQuery<?>) query).getChildQueries();
+            Collection<? extends Query<?>> otherChildren = ((LogicalQuery<?>) otherQuery).getChildQueries();
+            if (children.size() != otherChildren.size()) {
+                return false;
+            }
+            Iterator<? extends Query<?>> otherIt = otherChildren.iterator();
+            for (Query<?> childQuery : children) {
+                if (!sameStructure(childQuery, otherIt.next())) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return !(query instanceof SimpleQuery)
+                || ((SimpleQuery<?, ?>) query).getAttributeName().equals(((SimpleQuery<?, ?>) otherQuery).getAttributeName());
+    }
+
+    private static long mix(long hash, int value) {
+        return (hash + value) * 0x9E3779B97F4A7C15L;
+    }
+
+    private static String typeName(Query<?> query) {
+        String simpleName = query.getClass().getSimpleName();
+        return simpleName.isEmpty() ? query.getClass().getName()
+                : Character.toLowerCase(simpleName.charAt(0)) + simpleName.substring(1);
+    }
+}
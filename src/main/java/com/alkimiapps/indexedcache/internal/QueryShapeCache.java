@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2019. Allan Boyd
+ * This program is made available under the terms of the Apache License v2.0.
+ */
+
+package com.alkimiapps.indexedcache.internal;
+
+import com.googlecode.cqengine.query.Query;
+import com.googlecode.cqengine.query.option.OrderByOption;
+import com.googlecode.cqengine.query.option.QueryOptions;
+
+import java.util.function.Supplier;
+
+/**
+ * Caches a value worked out by probing the indexes for a query (e.g. its shape with the indexes selected for it, see
+ * QueryShape) by the shape of the query without its indexes, so that the indexes are probed once per shape rather than
+ * once per query. Shapes are looked up by their structure hash (see QueryShape.structureHash) and checked against the
+ * first query of the shape seen, so the shape of a query is not built to look it up. A cached value is worked out again
+ * once the version of the indexes (see IndexedCache.getIndexesVersion) changes.
+ *
+ * Queries of the same shape are taken to select the same indexes, even where an index supports them differently
+ * because of their values (e.g. a standing query index).
+ *
+ * The number of shapes cached is bounded - once the limit is reached the values for further new shapes are worked out
+ * for every query.
+ */
+public final class QueryShapeCache<T> {
+
+    private final int maxShapes;
+    private final LongKeyTable<Entry<T>> entries = new LongKeyTable<>();
+
+    public QueryShapeCache(int maxShapes) {
+        this.maxShapes = maxShapes;
+    }
+
+    public T get(Query<?> query, QueryOptions queryOptions, int indexesVersion, Supplier<T> valueSupplier) {
+        long structureHash = QueryShape.structureHash(query, queryOptions);
+        OrderByOption<?> orderBy = queryOptions == null ? null : queryOptions.get(OrderByOption.class);
+        Entry<T> entry = entries.get(structureHash);
+        if (entry != null && entry.indexesVersion == indexesVersion
+                && QueryShape.sameStructure(entry.query, entry.orderBy, query, orderBy)) {
+            return entry.value;
+        }
+        T value = valueSupplier.get();
+        if (entry != null || entries.size() < maxShapes) {
+            entries.put(structureHash, new Entry<>(query, orderBy, indexesVersion, value));
+        }
+        return value;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    private static final class Entry<T> {
+        // The first query of the shape seen (or the latest since the indexes changed), for telling shapes of the same
+        // hash apart
+        private final Query<?> query;
+        private final OrderByOption<?> orderBy;
+        private final int indexesVersion;
+        private final T value;
+
+        private Entry(Query<?> query, OrderByOption<?> orderBy, int indexesVersion, T value) {
+            this.query = query;
+            this.orderBy = orderBy;
+            this.indexesVersion = indexesVersion;
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2019. Allan Boyd
+ * This program is made available under the terms of the Apache License v2.0.
+ */
+
+package com.alkimiapps.indexedcache.internal;
+
+import com.alkimiapps.indexedcache.QueryShapeStatistics;
+import com.googlecode.cqengine.IndexedCollection;
+import com.googlecode.cqengine.query.Query;
+import com.googlecode.cqengine.query.option.QueryOptions;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps a latency histogram per query shape (see QueryShape).
+ *
+ * The number of distinct shapes tracked is bounded so that an application generating many different query structures
+ * cannot grow this without limit - once the limit is reached further new shapes are recorded against a single
+ * overflow shape. The shape of a query is worked out once per query structure and version of the indexes (see
+ * QueryShapeCache) rather than by building it and probing the indexes on every query.
+ *
+ * Projections (see IndexedCache.retrieveProjected), counts (see IndexedCache.count and exists), queries rejected or cut
+ * short by their QueryBudget and the use of string query templates (see QueryTemplates) are also counted here, in
+ * aggregate.
+ */
+public final class QueryStatistics {
+
+    static final int MAX_SHAPES = 512;
+    static final String OVERFLOW_SHAPE = "<other>";
+
+    private final Map<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+    private final QueryShapeCache<String> shapes = new QueryShapeCache<>(MAX_SHAPES);
+    private final LongAdder projectedRows = new LongAdder();
+    private final LongAdder coveredProjections = new LongAdder();
+    private final LongAdder countQueries = new LongAdder();
+    private final LongAdder indexCountQueries = new LongAdder();
+    private final LongAdder rejectedQueries = new LongAdder();
+    private final LongAdder cutShortQueries = new LongAdder();
+    private final LongAdder templateHits = new LongAdder();
+    private final LongAdder templateParses = new LongAdder();
+    private final LongAdder templateParseNanos = new LongAdder();
+
+    /**
+     * Record the time taken by a query. The indexes of the IndexedCollection are only read if the shape of the query
+     * has not been seen since they last changed.
+     */
+    public <V> void record(Query<V> query, QueryOptions queryOptions, IndexedCollection<V> indexedCollection,
+                           int indexesVersion, long elapsedNanos) {
+        String shape = shapes.get(query, queryOptions, indexesVersion,
+                () -> QueryShape.of(query, queryOptions, indexedCollection.getIndexes()));
+        histogramFor(shape).record(elapsedNanos);
+    }
+
+    /**
+     * Count a projection of rows objects, covered if every column was read from an index.
+     */
+    public void recordProjection(int rows, boolean covered) {
+        projectedRows.add(rows);
+        if (covered) {
+            coveredProjections.increment();
+        }
+    }
+
+    public long getProjectedRowCount() {
+        return projectedRows.sum();
+    }
+
+    public long getCoveredProjectionCount() {
+        return coveredProjections.sum();
+    }
+
+    /**
+     * Count a count (or exists) query, answered from the key statistics of indexes or by retrieving it.
+     */
+    public void recordCount(boolean fromIndexes) {
+        countQueries.increment();
+        if (fromIndexes) {
+            indexCountQueries.increment();
+        }
+    }
+
+    public long getCountQueryCount() {
+        return countQueries.sum();
+    }
+
+    public long getIndexCountQueryCount() {
+        return indexCountQueries.sum();
+    }
+
+    public void recordRejected() {
+        rejectedQueries.increment();
+    }
+
+    public void recordCutShort() {
+        cutShortQueries.increment();
+    }
+
+    public long getRejectedQueryCount() {
+        return rejectedQueries.sum();
+    }
+
+    public long getCutShortQueryCount() {
+        return cutShortQueries.sum();
+    }
+
+    public void recordTemplateHit() {
+        templateHits.increment();
+    }
+
+    public void recordTemplateParse(long elapsedNanos) {
+        templateParses.increment();
+        templateParseNanos.add(elapsedNanos);
+    }
+
+    public long getTemplateHitCount() {
+        return templateHits.sum();
+    }
+
+    public long getTemplateParseCount() {
+        return templateParses.sum();
+    }
+
+    public long getMeanTemplateParseNanos() {
+        long parses = templateParses.sum();
+        return parses == 0 ? 0 : templateParseNanos.sum() / parses;
+    }
+
+    public List<QueryShapeStatistics> snapshot() {
+        List<QueryShapeStatistics> statistics = new ArrayList<>(histograms.size());
+        histograms.forEach((shape, histogram) -> statistics.add(new QueryShapeStatistics(shape,
+                histogram.getCount(),
+                histogram.getMean(),
+                histogram.getValueAtPercentile(50),
+                histogram.getValueAtPercentile(99),
+                histogram.getValueAtPercentile(99.9),
+                histogram.getMax())));
+        return statistics;
+    }
+
+    public void reset() {
+        histograms.clear();
+        projectedRows.reset();
+        coveredProjections.reset();
+        countQueries.reset();
+        indexCountQueries.reset();
+        rejectedQueries.reset();
+        cutShortQueries.reset();
+        templateHits.reset();
+        templateParses.reset();
+        templateParseNanos.reset();
+    }
+
+    private LatencyHistogram histogramFor(String shape) {
+        LatencyHistogram histogram = histograms.get(shape);
+        if (histogram != null) {
+            return histogram;
+        }
+        if (histograms.size() >= MAX_SHAPES) {
+            return histograms.computeIfAbsent(OVERFLOW_SHAPE, s -> new LatencyHistogram());
+        }
+        return histograms.computeIfAbsent(shape, s -> new LatencyHistogram());
+    }
+}
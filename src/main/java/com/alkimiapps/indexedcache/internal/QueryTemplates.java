@@ -0,0 +1,294 @@
+/*
+ * Copyright (c) 2019. Allan Boyd
+ * This program is made available under the terms of the Apache License v2.0.
+ */
+
+package com.alkimiapps.indexedcache.internal;
+
+import com.alkimiapps.indexedcache.IndexedCache;
+import com.googlecode.cqengine.attribute.Attribute;
+import com.googlecode.cqengine.query.Query;
+import com.googlecode.cqengine.query.logical.And;
+import com.googlecode.cqengine.query.logical.LogicalQuery;
+import com.googlecode.cqengine.query.logical.Not;
+import com.googlecode.cqengine.query.logical.Or;
+import com.googlecode.cqengine.query.option.QueryOptions;
+import com.googlecode.cqengine.query.parser.common.ParseResult;
+import com.googlecode.cqengine.query.parser.common.QueryParser;
+import com.googlecode.cqengine.query.parser.cqn.CQNParser;
+import com.googlecode.cqengine.query.parser.sql.SQLParser;
+import com.googlecode.cqengine.query.simple.Between;
+import com.googlecode.cqengine.query.simple.Equal;
+import com.googlecode.cqengine.query.simple.GreaterThan;
+import com.googlecode.cqengine.query.simple.In;
+import com.googlecode.cqengine.query.simple.LessThan;
+import com.googlecode.cqengine.query.simple.StringContains;
+import com.googlecode.cqengine.query.simple.StringEndsWith;
+import com.googlecode.cqengine.query.simple.StringStartsWith;
+import org.antlr.v4.runtime.tree.ParseTree;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A bounded (least recently used) cache of parsed string queries, in CQEngine's SQL or CQN dialect, with JDBC style ?
+ * parameters. Each distinct query string is parsed once into a template holding a placeholder for each parameter, and
+ * each retrieve just binds the parameters by copying the parts of the template that hold placeholders.
+ *
+ * Parameters may be used as the values of equal, lessThan, greaterThan, between, in, startsWith, endsWith and contains
+ * queries, and must be of the type of their attribute. Template hits and parse times are recorded in the
+ * QueryStatistics.
+ *
+ * @param <V> the type of the objects queried
+ */
+public final class QueryTemplates<V> {
+
+    public static final int MAX_TEMPLATES = 1024;
+
+    // Unlikely to be written in a query: each ? is replaced by this quoted literal followed by its position
+    private static final String PLACEHOLDER_PREFIX = "\u0000";
+
+    private final IndexedCache.QueryLanguage queryLanguage;
+    private final QueryParser<V> queryParser;
+    private final QueryStatistics queryStatistics;
+    private final Map<String, Template<V>> templates = new LinkedHashMap<String, Template<V>>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Template<V>> eldest) {
+            return size() > MAX_TEMPLATES;
+        }
+    };
+
+    public QueryTemplates(IndexedCache.QueryLanguage queryLanguage, Class<V> objectType, Iterable<? extends Attribute<V, ?>> attributes,
+                          QueryStatistics queryStatistics) {
+        this.queryLanguage = queryLanguage;
+        this.queryParser = queryLanguage == IndexedCache.QueryLanguage.SQL ? new SQLParser<V>(objectType) {
+            @Override
+            public <A> A parseValue(Attribute<V, A> attribute, ParseTree parseTree) {
+                A placeholder = placeholderFor(parseTree);
+                return placeholder == null ? super.parseValue(attribute, parseTree) : placeholder;
+            }
+        } : new CQNParser<V>(objectType) {
+            @Override
+            public <A> A parseValue(Attribute<V, A> attribute, ParseTree parseTree) {
+                A placeholder = placeholderFor(parseTree);
+                return placeholder == null ? super.parseValue(attribute, parseTree) : placeholder;
+            }
+        };
+        queryParser.registerAttributes(attributes);
+        this.queryStatistics = queryStatistics;
+    }
+
+    /**
+     * Return the query and query options of the given query string with the given parameters bound, parsing the query
+     * string only if it has no template yet.
+     */
+    public ParseResult<V> bind(String query, Object... parameters) {
+        Template<V> template;
+        synchronized (templates) {
+            template = templates.get(query);
+        }
+        if (template == null) {
+            long start = System.nanoTime();
+            template = parse(query);
+            queryStatistics.recordTemplateParse(System.nanoTime() - start);
+            synchronized (templates) {
+                templates.put(query, template);
+            }
+        } else {
+            queryStatistics.recordTemplateHit();
+        }
+        if (parameters.length != template.parameterCount) {
+            throw new IllegalArgumentException(query + " has " + template.parameterCount + " parameters but " + parameters.length + " were given");
+        }
+        // Each call gets its own copy of the query options since CQEngine puts request-scoped options into them
+        return new ParseResult<>(template.parameterCount == 0 ? template.query : bind(template.query, parameters),
+                new QueryOptions(new HashMap<>(template.queryOptions.getOptions())));
+    }
+
+    public int size() {
+        synchronized (templates) {
+            return templates.size();
+        }
+    }
+
+    private Template<V> parse(String query) {
+        StringBuilder withPlaceholders = new StringBuilder(query.length());
+        char quote = queryLanguage == IndexedCache.QueryLanguage.SQL ? '\'' : '"';
+        boolean quoted = false;
+        int parameterCount = 0;
+        for (int i = 0; i < query.length(); i++) {
+            char c = query.charAt(i);
+            if (c == quote) {
+                quoted = !quoted; // An escaped quote is two quotes, which toggles twice
+            }
+            if (c == '?' && !quoted) {
+                withPlaceholders.append(quote).append(PLACEHOLDER_PREFIX).append(parameterCount++).append(quote);
+            } else {
+                withPlaceholders.append(c);
+            }
+        }
+        ParseResult<V> parseResult = queryParser.parse(withPlaceholders.toString());
+        List<Placeholder> placeholders = new ArrayList<>();
+        collectPlaceholders(parseResult.getQuery(), placeholders);
+        if (placeholders.size() != parameterCount) {
+            throw new IllegalArgumentException("Parameters are not supported in every position they are used in " + query);
+        }
+        return new Template<>(parseResult.getQuery(), parseResult.getQueryOptions(), parameterCount);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <A> A placeholderFor(ParseTree parseTree) {
+        String text = parseTree.getText();
+        if (text.length() > 2 && text.startsWith(PLACEHOLDER_PREFIX, 1)) {
+            return (A) new Placeholder(Integer.parseInt(text.substring(1 + PLACEHOLDER_PREFIX.length(), text.length() - 1)));
+        }
+        return null;
+    }
+
+    private static void collectPlaceholders(Query<?> query, List<Placeholder> placeholders) {
+        if (query instanceof LogicalQuery) {
+            ((LogicalQuery<?>) query).getChildQueries().forEach(childQuery -> collectPlaceholders(childQuery, placeholders));
+        } else if (query instanceof Equal) {
+            collectPlaceholder(((Equal<?, ?>) query).getValue(), placeholders);
+        } else if (query instanceof LessThan) {
+            collectPlaceholder(((LessThan<?, ?>) query).getValue(), placeholders);
+        } else if (query instanceof GreaterThan) {
+            collectPlaceholder(((GreaterThan<?, ?>) query).getValue(), placeholders);
+        } else if (query instanceof Between) {
+            collectPlaceholder(((Between<?, ?>) query).getLowerValue(), placeholders);
+            collectPlaceholder(((Between<?, ?>) query).getUpperValue(), placeholders);
+        } else if (query instanceof In) {
+            ((In<?, ?>) query).getValues().forEach(value -> collectPlaceholder(value, placeholders));
+        } else if (query instanceof StringStartsWith) {
+            collectPlaceholder(((StringStartsWith<?, ?>) query).getValue(), placeholders);
+        } else if (query instanceof StringEndsWith) {
+            collectPlaceholder(((StringEndsWith<?, ?>) query).getValue(), placeholders);
+        } else if (query instanceof StringContains) {
+            collectPlaceholder(((StringContains<?, ?>) query).getValue(), placeholders);
+        }
+    }
+
+    private static void collectPlaceholder(Object value, List<Placeholder> placeholders) {
+        if (value instanceof Placeholder) {
+            placeholders.add((Placeholder) value);
+        }
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static <V> Query<V> bind(Query<V> query, Object[] parameters) {
+        if (query instanceof And) {
+            return new And<>(bindAll(((And<V>) query).getChildQueries(), parameters));
+        }
+        if (query instanceof Or) {
+            return new Or<>(bindAll(((Or<V>) query).getChildQueries(), parameters), ((Or<V>) query).isDisjoint());
+        }
+        if (query instanceof Not) {
+            return new Not<>(bind(((Not<V>) query).getNegatedQuery(), parameters));
+        }
+        if (query instanceof Equal) {
+            Equal equal = (Equal) query;
+            return equal.getValue() instanceof Placeholder ? new Equal(equal.getAttribute(), valueOf(equal.getValue(), parameters)) : query;
+        }
+        if (query instanceof LessThan) {
+            LessThan lessThan = (LessThan) query;
+            return lessThan.getValue() instanceof Placeholder
+                    ? new LessThan(lessThan.getAttribute(), (Comparable) valueOf(lessThan.getValue(), parameters), lessThan.isValueInclusive()) : query;
+        }
+        if (query instanceof GreaterThan) {
+            GreaterThan greaterThan = (GreaterThan) query;
+            return greaterThan.getValue() instanceof Placeholder
+                    ? new GreaterThan(greaterThan.getAttribute(), (Comparable) valueOf(greaterThan.getValue(), parameters), greaterThan.isValueInclusive()) : query;
+        }
+        if (query instanceof Between) {
+            Between between = (Between) query;
+            return new Between(between.getAttribute(), (Comparable) valueOf(between.getLowerValue(), parameters), between.isLowerInclusive(),
+                    (Comparable) valueOf(between.getUpperValue(), parameters), between.isUpperInclusive());
+        }
+        if (query instanceof In) {
+            In in = (In) query;
+            Set<Object> values = new LinkedHashSet<>();
+            in.getValues().forEach(value -> values.add(valueOf(value, parameters)));
+            return new In(in.getAttribute(), in.isDisjoint(), values);
+        }
+        if (query instanceof StringStartsWith) {
+            StringStartsWith startsWith = (StringStartsWith) query;
+            return new StringStartsWith(startsWith.getAttribute(), (CharSequence) valueOf(startsWith.getValue(), parameters));
+        }
+        if (query instanceof StringEndsWith) {
+            StringEndsWith endsWith = (StringEndsWith) query;
+            return new StringEndsWith(endsWith.getAttribute(), (CharSequence) valueOf(endsWith.getValue(), parameters));
+        }
+        if (query instanceof StringContains) {
+            StringContains contains = (StringContains) query;
+            return new StringContains(contains.getAttribute(), (CharSequence) valueOf(contains.getValue(), parameters));
+        }
+        return query;
+    }
+
+    private static <V> List<Query<V>> bindAll(Collection<Query<V>> queries, Object[] parameters) {
+        List<Query<V>> bound = new ArrayList<>(queries.size());
+        queries.forEach(query -> bound.add(bind(query, parameters)));
+        return bound;
+    }
+
+    private static Object valueOf(Object value, Object[] parameters) {
+        return value instanceof Placeholder ? parameters[((Placeholder) value).position] : value;
+    }
+
+    private static final class Template<V> {
+        private final Query<V> query;
+        private final QueryOptions queryOptions;
+        private final int parameterCount;
+
+        private Template(Query<V> query, QueryOptions queryOptions, int parameterCount) {
+            this.query = query;
+            this.queryOptions = queryOptions;
+            this.parameterCount = parameterCount;
+        }
+    }
+
+    /**
+     * Stands in for a parameter in a template. It is a Comparable CharSequence so that it can stand in for the value of
+     * any of the queries that parameters are supported in.
+     */
+    private static final class Placeholder implements Comparable<Object>, CharSequence {
+        private final int position;
+
+        private Placeholder(int position) {
+            this.position = position;
+        }
+
+        @Override
+        public int compareTo(Object o) {
+            throw new UnsupportedOperationException("Parameter " + position + " is not bound");
+        }
+
+        @Override
+        public int length() {
+            return toString().length();
+        }
+
+        @Override
+        public char charAt(int index) {
+            return toString().charAt(index);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return toString().subSequence(start, end);
+        }
+
+        @Override
+        public String toString() {
+            return "?" + position;
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2019. Allan Boyd
+ * This program is made available under the terms of the Apache License v2.0.
+ */
+
+package com.alkimiapps.indexedcache.internal;
+
+import com.alkimiapps.indexedcache.ReplicationCodec;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * A batch of key-level changes made to an IndexedCache on one node, as sent to its peers by an IndexedCacheReplicator.
+ *
+ * On the wire a batch is a small uncompressed header (format version, origin, sequence number and record count)
+ * followed by the deflated records. Each record is an operation, a key and - for PUT - a value.
+ */
+public final class ReplicationBatch<K, V> {
+
+    public enum Operation {
+        /** The key was put with the given value. */
+        PUT,
+        /** The key was removed, or was put but only its removal from the caches of peers is replicated. */
+        REMOVE
+    }
+
+    private static final byte FORMAT_VERSION = 1;
+    private static final Operation[] OPERATIONS = Operation.values();
+
+    private final long origin;
+    private final long sequence;
+    private final List<Record<K, V>> records;
+
+    public ReplicationBatch(long origin, long sequence, List<Record<K, V>> records) {
+        this.origin = origin;
+        this.sequence = sequence;
+        this.records = Collections.unmodifiableList(records);
+    }
+
+    public long getOrigin() {
+        return origin;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public List<Record<K, V>> getRecords() {
+        return records;
+    }
+
+    public byte[] encode(ReplicationCodec<K, V> codec) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream header = new DataOutputStream(bytes);
+            header.writeByte(FORMAT_VERSION);
+            header.writeLong(origin);
+            header.writeLong(sequence);
+            header.writeInt(records.size());
+            header.flush();
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            try (DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(bytes, deflater))) {
+                for (Record<K, V> record : records) {
+                    out.writeByte(record.operation.ordinal());
+                    codec.writeKey(record.key, out);
+                    if (record.operation == Operation.PUT) {
+                        codec.writeValue(record.value, out);
+                    }
+                }
+            } finally {
+                deflater.end();
+            }
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public static <K, V> ReplicationBatch<K, V> decode(byte[] message, ReplicationCodec<K, V> codec) {
+        try {
+            ByteArrayInputStream bytes = new ByteArrayInputStream(message);
+            DataInputStream header = new DataInputStream(bytes);
+            byte formatVersion = header.readByte();
+            if (formatVersion != FORMAT_VERSION) {
+                throw new IOException("Unsupported replication batch format version: " + formatVersion);
+            }
+            long origin = header.readLong();
+            long sequence = header.readLong();
+            int recordCount = header.readInt();
+            if (recordCount < 0) {
+                throw new IOException("Invalid replication batch record count: " + recordCount);
+            }
+            // The count is only trusted as far as there are records to read: a record that is not there ends the stream
+            List<Record<K, V>> records = new ArrayList<>(Math.min(recordCount, bytes.available()));
+            try (DataInputStream in = new DataInputStream(new InflaterInputStream(bytes))) {
+                for (int i = 0; i < recordCount; i++) {
+                    byte ordinal = in.readByte();
+                    if (ordinal < 0 || ordinal >= OPERATIONS.length) {
+                        throw new IOException("Unknown replication record operation: " + ordinal);
+                    }
+                    Operation operation = OPERATIONS[ordinal];
+                    K key = codec.readKey(in);
+                    V value = operation == Operation.PUT ? codec.readValue(in) : null;
+                    records.add(new Record<>(operation, key, value));
+                }
+            }
+            return new ReplicationBatch<>(origin, sequence, records);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public static final class Record<K, V> {
+        private final Operation operation;
+        private final K key;
+        private final V value;
+
+        public Record(Operation operation, K key, V value) {
+            this.operation = operation;
+            this.key = key;
+            this.value = value;
+        }
+
+        public Operation getOperation() {
+            return operation;
+        }
+
+        public K getKey() {
+            return key;
+        }
+
+        public V getValue() {
+            return value;
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2019. Allan Boyd
+ * This program is made available under the terms of the Apache License v2.0.
+ */
+
+package com.alkimiapps.indexedcache.internal;
+
+import com.googlecode.cqengine.query.Query;
+import com.googlecode.cqengine.query.option.QueryOptions;
+import com.googlecode.cqengine.resultset.ResultSet;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A ResultSet holding the materialized results of a query as they were when it was retrieved. Unlike a CQEngine
+ * ResultSet it does not change as the IndexedCollection it was retrieved from changes.
+ */
+public final class SnapshotResultSet<O> extends ResultSet<O> {
+
+    private final Query<O> query;
+    private final QueryOptions queryOptions;
+    private final List<O> results;
+    private final int retrievalCost;
+    private volatile Set<O> resultSet;
+
+    public SnapshotResultSet(Query<O> query, QueryOptions queryOptions, List<O> results, int retrievalCost) {
+        this.query = query;
+        this.queryOptions = queryOptions;
+        this.results = results;
+        this.retrievalCost = retrievalCost;
+    }
+
+    @Override
+    public Iterator<O> iterator() {
+        return Collections.unmodifiableList(results).iterator();
+    }
+
+    @Override
+    public boolean contains(O object) {
+        Set<O> set = resultSet;
+        if (set == null) {
+            set = new HashSet<>(results);
+            resultSet = set;
+        }
+        return set.contains(object);
+    }
+
+    @Override
+    public boolean matches(O object) {
+        return query.matches(object, queryOptions);
+    }
+
+    @Override
+    public Query<O> getQuery() {
+        return query;
+    }
+
+    @Override
+    public QueryOptions getQueryOptions() {
+        return queryOptions;
+    }
+
+    @Override
+    public int getRetrievalCost() {
+        return retrievalCost;
+    }
+
+    @Override
+    public int getMergeCost() {
+        return results.size();
+    }
+
+    @Override
+    public int size() {
+        return results.size();
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2019. Allan Boyd
+ * This program is made available under the terms of the Apache License v2.0.
+ */
+
+package com.alkimiapps.indexedcache.internal;
+
+import com.googlecode.cqengine.attribute.Attribute;
+import com.googlecode.cqengine.query.Query;
+import com.googlecode.cqengine.query.logical.And;
+import com.googlecode.cqengine.query.logical.LogicalQuery;
+import com.googlecode.cqengine.query.logical.Or;
+import com.googlecode.cqengine.query.simple.Between;
+import com.googlecode.cqengine.query.simple.Equal;
+import com.googlecode.cqengine.query.simple.GreaterThan;
+import com.googlecode.cqengine.query.simple.LessThan;
+
+/**
+ * The range of values of a time attribute that the results of a query can have, worked out from the equal, lessThan,
+ * greaterThan and between queries on the attribute that it is made of (and-ed ranges are intersected and or-ed ranges
+ * are spanned). Any other query is taken to allow any time. The bounds are inclusive: an exclusive bound in the query
+ * just makes the range a little wider than it need be.
+ */
+public final class TimeRange {
+
+    public static final TimeRange ALL = new TimeRange(Long.MIN_VALUE, Long.MAX_VALUE);
+
+    private final long from;
+    private final long to;
+
+    TimeRange(long from, long to) {
+        this.from = from;
+        this.to = to;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <V> TimeRange of(Query<V> query, Attribute<V, Long> timeAttribute) {
+        if (query instanceof Equal && ((Equal<V, ?>) query).getAttribute().equals(timeAttribute)) {
+            long time = (Long) ((Equal<V, ?>) query).getValue();
+            return new TimeRange(time, time);
+        }
+        if (query instanceof LessThan && ((LessThan<V, ?>) query).getAttribute().equals(timeAttribute)) {
+            return new TimeRange(Long.MIN_VALUE, (Long) ((LessThan<V, ?>) query).getValue());
+        }
+        if (query instanceof GreaterThan && ((GreaterThan<V, ?>) query).getAttribute().equals(timeAttribute)) {
+            return new TimeRange((Long) ((GreaterThan<V, ?>) query).getValue(), Long.MAX_VALUE);
+        }
+        if (query instanceof Between && ((Between<V, ?>) query).getAttribute().equals(timeAttribute)) {
+            Between<V, ?> between = (Between<V, ?>) query;
+            return new TimeRange((Long) between.getLowerValue(), (Long) between.getUpperValue());
+        }
+        if (query instanceof And) {
+            TimeRange range = ALL;
+            for (Query<V> childQuery : ((LogicalQuery<V>) query).getChildQueries()) {
+                TimeRange childRange = of(childQuery, timeAttribute);
+                range = new TimeRange(Math.max(range.from, childRange.from), Math.min(range.to, childRange.to));
+            }
+            return range;
+        }
+        if (query instanceof Or) {
+            TimeRange range = null;
+            for (Query<V> childQuery : ((LogicalQuery<V>) query).getChildQueries()) {
+                TimeRange childRange = of(childQuery, timeAttribute);
+                range = range == null ? childRange : new TimeRange(Math.min(range.from, childRange.from), Math.max(range.to, childRange.to));
+            }
+            return range == null ? ALL : range;
+        }
+        return ALL;
+    }
+
+    /**
+     * Whether any time from min to max (inclusive) is in this range.
+     */
+    public boolean overlaps(long min, long max) {
+        return min <= to && max >= from;
+    }
+
+    @Override
+    public String toString() {
+        return "TimeRange{" + from + ".." + to + '}';
+    }
+}
@@ -0,0 +1,277 @@
+/*
+ * Copyright (c) 2019. Allan Boyd
+ * This program is made available under the terms of the Apache License v2.0.
+ */
+
+package com.alkimiapps.indexedcache.internal;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The binary log of the workload of an IndexedCache, as written by a WorkloadRecorder and read by a WorkloadReplayer.
+ *
+ * A log is a header (format version and the wall-clock time the recording started) followed by events. Each event is
+ * its type, the nanoseconds since the previous event (a variable-length long) and:
+ *
+ * - ADD, UPDATE, REMOVE and HIT: the hash code of the cache key of the object
+ * - RETRIEVE: the number of the query shape, the number of results and the nanoseconds the query took
+ * - SHAPE: the number and the text of a query shape, written before the first RETRIEVE of that shape
+ *
+ * Numbers other than key hashes are written as variable-length ints and longs so that most events take a few bytes.
+ */
+public final class WorkloadLog {
+
+    public enum EventType {
+        ADD, UPDATE, REMOVE, RETRIEVE, HIT, SHAPE
+    }
+
+    /**
+     * A thing that is told about the events of a log in the order they were recorded. Times are nanoseconds since the
+     * start of the recording.
+     */
+    public interface Visitor {
+        /**
+         * Called for ADD, UPDATE and REMOVE events.
+         */
+        void objectWritten(EventType type, long nanos, int keyHash);
+
+        void queryRetrieved(long nanos, String shape, int resultSize, long elapsedNanos);
+
+        void cacheHit(long nanos, int keyHash);
+    }
+
+    private static final byte FORMAT_VERSION = 1;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_EVENT_SIZE = 1 + 10 + 5 + 5 + 10;
+
+    private WorkloadLog() {
+    }
+
+    /**
+     * Read the events of a log in order. A log whose last event is incomplete (e.g. because the recording JVM died) is
+     * read up to that event.
+     */
+    public static void read(Path path, Visitor visitor) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), BUFFER_SIZE))) {
+            byte formatVersion = in.readByte();
+            if (formatVersion != FORMAT_VERSION) {
+                throw new IOException("Unsupported workload log format version: " + formatVersion);
+            }
+            in.readLong(); // start time
+            List<String> shapes = new ArrayList<>();
+            EventType[] types = EventType.values();
+            long nanos = 0;
+            try {
+                for (int type = in.read(); type != -1; type = in.read()) {
+                    if (type >= types.length) {
+                        throw new IOException("Unknown workload log event type: " + type);
+                    }
+                    nanos += readVarLong(in);
+                    switch (types[type]) {
+                        case RETRIEVE:
+                            String shape = shapes.get(readVarInt(in));
+                            visitor.queryRetrieved(nanos, shape, readVarInt(in), readVarLong(in));
+                            break;
+                        case HIT:
+                            visitor.cacheHit(nanos, in.readInt());
+                            break;
+                        case SHAPE:
+                            readVarInt(in); // shapes are numbered in order
+                            byte[] text = new byte[readVarInt(in)];
+                            in.readFully(text);
+                            shapes.add(new String(text, StandardCharsets.UTF_8));
+                            break;
+                        default:
+                            visitor.objectWritten(types[type], nanos, in.readInt());
+                    }
+                }
+            } catch (EOFException e) {
+                // The last event is incomplete
+            }
+        }
+    }
+
+    /**
+     * Appends events to a log through a direct buffer that is written to the file whenever it fills. Writers are thread
+     * safe. Once writing to the file has failed a Writer ignores further events and close() throws the failure.
+     */
+    public static final class Writer implements Closeable {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        private final Map<String, Integer> shapeNumbers = new HashMap<>();
+        private final long startNanos = System.nanoTime();
+        private long lastNanos = startNanos;
+        private long eventCount;
+        private long bytesWritten;
+        private IOException failure;
+        private boolean closed;
+
+        public Writer(Path path) throws IOException {
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+            buffer.put(FORMAT_VERSION);
+            buffer.putLong(System.currentTimeMillis());
+        }
+
+        public synchronized void objectWritten(EventType type, int keyHash) {
+            if (startEvent(type)) {
+                buffer.putInt(keyHash);
+            }
+        }
+
+        public synchronized void queryRetrieved(String shape, int resultSize, long elapsedNanos) {
+            Integer shapeNumber = shapeNumbers.get(shape);
+            if (shapeNumber == null) {
+                shapeNumber = shapeNumbers.size();
+                if (!writeShape(shapeNumber, shape)) {
+                    return;
+                }
+                shapeNumbers.put(shape, shapeNumber);
+            }
+            if (startEvent(EventType.RETRIEVE)) {
+                putVarInt(shapeNumber);
+                putVarInt(resultSize);
+                putVarLong(elapsedNanos);
+            }
+        }
+
+        public synchronized void cacheHit(int keyHash) {
+            if (startEvent(EventType.HIT)) {
+                buffer.putInt(keyHash);
+            }
+        }
+
+        /**
+         * The number of events written (or buffered) so far.
+         */
+        public synchronized long getEventCount() {
+            return eventCount;
+        }
+
+        public synchronized long getBytesWritten() {
+            return bytesWritten + (closed ? 0 : buffer.position());
+        }
+
+        /**
+         * Write any buffered events and close the file.
+         *
+         * @throws IOException if writing to the file failed, now or while recording
+         */
+        @Override
+        public synchronized void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                if (failure == null) {
+                    flush();
+                }
+            } catch (IOException e) {
+                failure = e;
+            } finally {
+                channel.close();
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+
+        private boolean writeShape(int shapeNumber, String shape) {
+            byte[] text = shape.getBytes(StandardCharsets.UTF_8);
+            if (!startEvent(EventType.SHAPE)) {
+                return false;
+            }
+            putVarInt(shapeNumber);
+            putVarInt(text.length);
+            for (int offset = 0; offset < text.length; ) {
+                if (!buffer.hasRemaining() && !ensureRoom(1)) {
+                    return false;
+                }
+                int length = Math.min(buffer.remaining(), text.length - offset);
+                buffer.put(text, offset, length);
+                offset += length;
+            }
+            return true;
+        }
+
+        /**
+         * Make room for the largest event and write its type and time, returning false if events are being ignored.
+         */
+        private boolean startEvent(EventType type) {
+            if (closed || failure != null || !ensureRoom(MAX_EVENT_SIZE)) {
+                return false;
+            }
+            long now = System.nanoTime();
+            buffer.put((byte) type.ordinal());
+            putVarLong(now - lastNanos);
+            lastNanos = now;
+            eventCount++;
+            return true;
+        }
+
+        private boolean ensureRoom(int bytes) {
+            if (buffer.remaining() < bytes) {
+                try {
+                    flush();
+                } catch (IOException e) {
+                    failure = e;
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                bytesWritten += channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        private void putVarInt(int value) {
+            putVarLong(value & 0xFFFFFFFFL);
+        }
+
+        private void putVarLong(long value) {
+            while ((value & ~0x7FL) != 0) {
+                buffer.put((byte) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            buffer.put((byte) value);
+        }
+    }
+
+    private static int readVarInt(InputStream in) throws IOException {
+        return (int) readVarLong(in);
+    }
+
+    private static long readVarLong(InputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = in.read();
+            if (b == -1) {
+                throw new EOFException();
+            }
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+}
@@ -0,0 +1,301 @@
+/*
+ * Copyright (c) 2019. Allan Boyd
+ * This program is made available under the terms of the Apache License v2.0.
+ */
+
+package com.alkimiapps.indexedcache;
+
+import com.alkimiapps.indexedcache.internal.FootprintEstimator;
+import com.alkimiapps.indexedcache.internal.ObjectSizeEstimator;
+import com.googlecode.cqengine.ConcurrentIndexedCollection;
+import com.googlecode.cqengine.attribute.SimpleAttribute;
+import com.googlecode.cqengine.index.hash.HashIndex;
+import com.googlecode.cqengine.index.navigable.NavigableIndex;
+import com.googlecode.cqengine.resultset.ResultSet;
+import org.junit.Test;
+
+import javax.cache.Cache;
+import javax.cache.Caching;
+import javax.cache.configuration.MutableConfiguration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+import static com.alkimiapps.cache.CacheInfo.cacheEntryCount;
+import static com.googlecode.cqengine.query.QueryFactory.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ColumnarIndexedCollectionTest {
+
+    private static final SimpleAttribute<Trade, Long> Trade_Id = attribute(Trade.class, Long.class, "tradeId", Trade::getId);
+    private static final ColumnarLayout<Trade> LAYOUT = ColumnarLayout.onPrimaryKey(Trade_Id)
+            .withLongColumn("id", Trade::getId)
+            .withObjectColumn("symbol", String.class, Trade::getSymbol)
+            .withIntColumn("quantity", Trade::getQuantity)
+            .withDoubleColumn("price", Trade::getPrice);
+
+    @Test
+    public void testObjectsAreStoredAsViewsOfColumns() {
+        ColumnarIndexedCollection<Trade> trades = new ColumnarIndexedCollection<>(LAYOUT, TradeView::new);
+        SimpleAttribute<Trade, String> symbol = trades.attribute("symbol");
+        trades.addIndex(HashIndex.onAttribute(symbol));
+        for (int i = 0; i < 100; i++) {
+            assertTrue(trades.add(new TradeRecord(i, i % 2 == 0 ? "ABC" : "XYZ", i * 10, i * 1.5)));
+        }
+        assertFalse(trades.add(new TradeRecord(7, "ABC", 1, 1)));
+        assertEquals(100, trades.size());
+        assertTrue(trades.contains(new TradeRecord(7, "XYZ", 70, 10.5)));
+
+        try (ResultSet<Trade> results = trades.retrieve(equal(symbol, "ABC"))) {
+            assertEquals(50, results.size());
+            Trade trade = results.stream().filter(t -> t.getId() == 42).findFirst().get();
+            assertTrue(trade instanceof TradeView);
+            assertEquals("ABC", trade.getSymbol());
+            assertEquals(420, trade.getQuantity());
+            assertEquals(63.0, trade.getPrice(), 0.0);
+        }
+        // A scan without an index reads the columns too
+        SimpleAttribute<Trade, Double> price = trades.attribute("price");
+        assertEquals(10, trades.retrieve(greaterThanOrEqualTo(price, 135.0)).size());
+
+        assertTrue(trades.remove(new TradeRecord(42, "ABC", 420, 63.0)));
+        assertEquals(49, trades.retrieve(equal(symbol, "ABC")).size());
+        assertEquals(99, trades.size());
+    }
+
+    @Test
+    public void testUpdatesReuseRowsAndReindex() {
+        ColumnarIndexedCollection<Trade> trades = new ColumnarIndexedCollection<>(LAYOUT, TradeView::new);
+        SimpleAttribute<Trade, Integer> quantity = trades.attribute("quantity");
+        trades.addIndex(NavigableIndex.onAttribute(quantity));
+        trades.addAll(Arrays.asList(new TradeRecord(1, "ABC", 10, 1.0), new TradeRecord(2, "ABC", 20, 2.0)));
+        long columnBytes = trades.estimateColumnBytes();
+
+        for (int i = 0; i < 1000; i++) {
+            Trade current = trades.retrieve(equal(Trade_Id, 1L)).uniqueResult();
+            int quantityBefore = current.getQuantity();
+            trades.update(Collections.singleton(current), Collections.singleton(new TradeRecord(1, "ABC", quantityBefore + 1, 1.0)));
+            // The replaced view still reads its own row
+            assertEquals(quantityBefore, current.getQuantity());
+            if (i % 50 == 0) {
+                System.gc();
+            }
+        }
+        assertEquals(2, trades.size());
+        assertEquals(1010, trades.retrieve(equal(Trade_Id, 1L)).uniqueResult().getQuantity());
+        assertEquals(1, trades.retrieve(greaterThan(quantity, 1000)).size());
+        assertEquals(0, trades.retrieve(lessThan(quantity, 20)).size());
+        // The rows of old views are reused once the views are garbage collected rather than the columns growing to a
+        // row per update
+        assertTrue(trades.estimateColumnBytes() + " < 8 * " + columnBytes, trades.estimateColumnBytes() < 8 * columnBytes);
+    }
+
+    @Test
+    public void testIndexedCacheOverColumns() {
+        Cache<Trade, Trade> cache = Caching.getCachingProvider().getCacheManager().createCache(UUID.randomUUID().toString(),
+                new MutableConfiguration<Trade, Trade>().setTypes(Trade.class, Trade.class).setStoreByValue(false));
+        ColumnarIndexedCollection<Trade> trades = new ColumnarIndexedCollection<>(LAYOUT, TradeView::new);
+        IndexedCache<Trade, Trade> indexedCache = new IndexedCache<>(trades, cache, new IdentityCacheKeyMaker<>());
+        SimpleAttribute<Trade, String> symbol = trades.attribute("symbol");
+        indexedCache.addIndex(HashIndex.onAttribute(symbol));
+        for (int i = 0; i < 20; i++) {
+            indexedCache.add(new TradeRecord(i, "S" + i % 4, i, i));
+        }
+
+        assertEquals(Arrays.asList(1L, 5L, 9L, 13L, 17L), indexedCache.retrieve(equal(symbol, "S1")).stream()
+                .map(Trade::getId).sorted().collect(Collectors.toList()));
+        // The cache is given the views rather than the objects they were made from
+        assertTrue(cache.get(new TradeRecord(3, "S3", 3, 3)) instanceof TradeView);
+        for (Cache.Entry<Trade, Trade> entry : cache) {
+            assertTrue(entry.getKey() instanceof TradeView);
+            assertTrue(entry.getValue() instanceof TradeView);
+        }
+        assertTrue(indexedCache.remove(new TradeRecord(3, "S3", 3, 3)));
+        assertFalse(cache.containsKey(new TradeRecord(3, "S3", 3, 3)));
+        assertEquals(4, indexedCache.retrieve(equal(symbol, "S3")).size());
+
+        // Views cost less than separate objects with boxed fields
+        Cache<Trade, Trade> boxedCache = Caching.getCachingProvider().getCacheManager().createCache(UUID.randomUUID().toString(),
+                new MutableConfiguration<Trade, Trade>().setTypes(Trade.class, Trade.class).setStoreByValue(false));
+        ConcurrentIndexedCollection<Trade> boxed = new ConcurrentIndexedCollection<>();
+        IndexedCache<Trade, Trade> boxedIndexedCache = new IndexedCache<>(boxed, boxedCache, new IdentityCacheKeyMaker<>());
+        for (int i = 0; i < 1000; i++) {
+            boxedIndexedCache.add(new BoxedTradeRecord(i, "S" + i % 4, i, i));
+            indexedCache.add(new TradeRecord(i, "S" + i % 4, i, i));
+        }
+        FootprintEstimate columnar = indexedCache.estimateFootprint(100);
+        long boxedBytes = FootprintEstimator.estimate(boxed, 100).getValueBytes();
+        assertTrue(columnar.getValueBytes() + " < " + boxedBytes, columnar.getValueBytes() < boxedBytes);
+
+        // ... and so do the entries of the cache, which hold the views (but not the records they were made from)
+        long columnarTotalBytes = trades.estimateColumnBytes() + cacheEntryBytes(cache, trades);
+        long boxedTotalBytes = cacheEntryBytes(boxedCache, boxed);
+        assertTrue(columnarTotalBytes + " < " + boxedTotalBytes, columnarTotalBytes < boxedTotalBytes);
+        boxedIndexedCache.close();
+        boxedCache.close();
+        indexedCache.close();
+        cache.close();
+    }
+
+    @Test
+    public void testRetrievedViewsCanBeRemovedAndUpdatedThroughAnIndexedCache() {
+        Cache<Trade, Trade> cache = Caching.getCachingProvider().getCacheManager().createCache(UUID.randomUUID().toString(),
+                new MutableConfiguration<Trade, Trade>().setTypes(Trade.class, Trade.class).setStoreByValue(false));
+        ColumnarIndexedCollection<Trade> trades = new ColumnarIndexedCollection<>(LAYOUT, TradeView::new);
+        IndexedCache<Trade, Trade> indexedCache = new IndexedCache<>(trades, cache, new IdentityCacheKeyMaker<>());
+        for (int i = 0; i < 10; i++) {
+            indexedCache.add(new TradeRecord(i, "ABC", i, i));
+        }
+
+        Trade removed = indexedCache.retrieve(equal(Trade_Id, 3L)).uniqueResult();
+        assertTrue(removed instanceof TradeView);
+        assertTrue(indexedCache.remove(removed));
+        assertFalse(cache.containsKey(new TradeRecord(3, "ABC", 3, 3)));
+        assertEquals(3, removed.getId());
+
+        Trade replaced = indexedCache.retrieve(equal(Trade_Id, 4L)).uniqueResult();
+        assertTrue(indexedCache.update(Collections.singleton(replaced), Collections.singleton(new TradeRecord(4, "XYZ", 40, 4))));
+        assertEquals("XYZ", cache.get(new TradeRecord(4, "ABC", 4, 4)).getSymbol());
+        assertEquals("XYZ", indexedCache.retrieve(equal(Trade_Id, 4L)).uniqueResult().getSymbol());
+        assertEquals("ABC", replaced.getSymbol());
+
+        assertEquals(9, indexedCache.size());
+        assertEquals(9, cacheEntryCount(cache));
+        indexedCache.close();
+        cache.close();
+    }
+
+    /**
+     * The bytes retained by the keys and values of the entries of a cache, not counting the collection they are in.
+     */
+    private static long cacheEntryBytes(Cache<Trade, Trade> cache, Object collection) {
+        Set<Object> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+        visited.add(collection);
+        long bytes = 0;
+        for (Cache.Entry<Trade, Trade> entry : cache) {
+            bytes += ObjectSizeEstimator.deepSize(entry.getKey(), visited) + ObjectSizeEstimator.deepSize(entry.getValue(), visited);
+        }
+        return bytes;
+    }
+
+    interface Trade {
+        long getId();
+
+        String getSymbol();
+
+        int getQuantity();
+
+        double getPrice();
+    }
+
+    private abstract static class AbstractTrade implements Trade {
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Trade && ((Trade) o).getId() == getId();
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(getId());
+        }
+    }
+
+    private static final class TradeRecord extends AbstractTrade {
+        private final long id;
+        private final String symbol;
+        private final int quantity;
+        private final double price;
+
+        TradeRecord(long id, String symbol, int quantity, double price) {
+            this.id = id;
+            this.symbol = symbol;
+            this.quantity = quantity;
+            this.price = price;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public String getSymbol() {
+            return symbol;
+        }
+
+        public int getQuantity() {
+            return quantity;
+        }
+
+        public double getPrice() {
+            return price;
+        }
+    }
+
+    private static final class BoxedTradeRecord extends AbstractTrade {
+        private final Long id;
+        private final String symbol;
+        private final Integer quantity;
+        private final Double price;
+
+        BoxedTradeRecord(long id, String symbol, int quantity, double price) {
+            this.id = id;
+            this.symbol = symbol;
+            this.quantity = quantity;
+            this.price = price;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public String getSymbol() {
+            return symbol;
+        }
+
+        public int getQuantity() {
+            return quantity;
+        }
+
+        public double getPrice() {
+            return price;
+        }
+    }
+
+    private static final class TradeView extends AbstractTrade implements ColumnarIndexedCollection.View {
+        private final ColumnarIndexedCollection<Trade> trades;
+        private final int row;
+
+        TradeView(ColumnarIndexedCollection<Trade> trades, int row) {
+            this.trades = trades;
+            this.row = row;
+        }
+
+        public ColumnarIndexedCollection<?> getCollection() {
+            return trades;
+        }
+
+        public int getRow() {
+            return row;
+        }
+
+        public long getId() {
+            return trades.getLong(row, 0);
+        }
+
+        public String getSymbol() {
+            return trades.getObject(row, 1);
+        }
+
+        public int getQuantity() {
+            return trades.getInt(row, 2);
+        }
+
+        public double getPrice() {
+            return trades.getDouble(row, 3);
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2019. Allan Boyd
+ * This program is made available under the terms of the Apache License v2.0.
+ */
+
+package com.alkimiapps.indexedcache;
+
+import com.alkimiapps.async.Waiter;
+import com.alkimiapps.keys.Widget;
+import com.googlecode.cqengine.ConcurrentIndexedCollection;
+import com.googlecode.cqengine.attribute.Attribute;
+import com.googlecode.cqengine.index.hash.HashIndex;
+import com.googlecode.cqengine.query.Query;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.cache.Cache;
+import javax.cache.CacheManager;
+import javax.cache.Caching;
+import javax.cache.configuration.MutableConfiguration;
+import javax.cache.spi.CachingProvider;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static com.googlecode.cqengine.query.QueryFactory.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class IndexAdvisorTest {
+
+    private static final Attribute<Widget, String> Widget_Name = attribute("widgetName", Widget::getName);
+    private IndexedCache<Widget, Widget> indexedCache;
+    private Cache<Widget, Widget> cache;
+
+    @Before
+    public void setup() {
+        CachingProvider provider = Caching.getCachingProvider();
+        CacheManager cacheManager = provider.getCacheManager();
+        MutableConfiguration<Widget, Widget> configuration = new MutableConfiguration<Widget, Widget>()
+                .setTypes(Widget.class, Widget.class)
+                .setStoreByValue(false);
+        cache = cacheManager.createCache(UUID.randomUUID().toString(), configuration);
+        indexedCache = new IndexedCache<>(new ConcurrentIndexedCollection<>(), cache, new IdentityCacheKeyMaker<>());
+        for (int i = 0; i < 100; i++) {
+            indexedCache.add(new Widget("Widget" + i));
+        }
+    }
+
+    @After
+    public void tearDown() {
+        cache.close();
+    }
+
+    @Test
+    public void testRecommendsHashIndexForSelectiveEqualQueries() {
+        IndexAdvisor<Widget> advisor = new IndexAdvisor<>(indexedCache, IndexAdvisor.Mode.RECOMMEND, 0, TimeUnit.NANOSECONDS);
+        for (int i = 0; i < IndexAdvisor.MIN_SLOW_QUERIES; i++) {
+            indexedCache.retrieve(equal(Widget_Name, "Widget" + i));
+        }
+
+        List<IndexRecommendation<Widget>> recommendations = advisor.getRecommendations();
+        assertEquals(1, recommendations.size());
+        assertEquals("widgetName", recommendations.get(0).getAttributeName());
+        assertEquals(IndexRecommendation.IndexType.HASH, recommendations.get(0).getIndexType());
+        assertEquals(0.01, recommendations.get(0).getMeanSelectivity(), 0.0001);
+        advisor.close();
+    }
+
+    @Test
+    public void testRecommendsRadixIndexForStartsWithQueries() {
+        IndexAdvisor<Widget> advisor = new IndexAdvisor<>(indexedCache, IndexAdvisor.Mode.RECOMMEND, 0, TimeUnit.NANOSECONDS);
+        for (int i = 0; i < IndexAdvisor.MIN_SLOW_QUERIES; i++) {
+            indexedCache.retrieve(or(startsWith(Widget_Name, "Widget42"), equal(Widget_Name, "Widget1")));
+        }
+
+        List<IndexRecommendation<Widget>> recommendations = advisor.getRecommendations();
+        assertEquals(1, recommendations.size());
+        assertEquals(IndexRecommendation.IndexType.RADIX, recommendations.get(0).getIndexType());
+        advisor.close();
+    }
+
+    @Test
+    public void testDoesNotRecommendIndexesForUnselectiveOrFastQueries() {
+        IndexAdvisor<Widget> advisor = new IndexAdvisor<>(indexedCache, IndexAdvisor.Mode.RECOMMEND, 0, TimeUnit.NANOSECONDS);
+        IndexAdvisor<Widget> slowOnlyAdvisor = new IndexAdvisor<>(indexedCache, IndexAdvisor.Mode.RECOMMEND, 1, TimeUnit.HOURS);
+        for (int i = 0; i < IndexAdvisor.MIN_SLOW_QUERIES; i++) {
+            indexedCache.retrieve(startsWith(Widget_Name, "Widget"));
+            indexedCache.retrieve(equal(Widget_Name, "Widget1"));
+        }
+
+        assertTrue(slowOnlyAdvisor.getRecommendations().isEmpty());
+        assertEquals(IndexRecommendation.IndexType.HASH, advisor.getRecommendations().get(0).getIndexType());
+        advisor.close();
+        slowOnlyAdvisor.close();
+    }
+
+    @Test
+    public void testAutoModeBuildsIndexInTheBackground() {
+        IndexAdvisor<Widget> advisor = new IndexAdvisor<>(indexedCache, IndexAdvisor.Mode.AUTO, 0, TimeUnit.NANOSECONDS);
+        Query<Widget> query = equal(Widget_Name, "Widget7");
+        for (int i = 0; i < IndexAdvisor.MIN_SLOW_QUERIES; i++) {
+            assertEquals(1, indexedCache.retrieve(query).size());
+        }
+
+        // The index is only used by queries once it has been built
+        Waiter.waitForValueWithTimeout(() -> {
+            assertEquals(1, indexedCache.retrieve(query).size());
+            return indexedCache.getMXBean().getQueryShapeStatistics().stream()
+                    .anyMatch(s -> s.getShape().equals("equal(widgetName)@HashIndex")) ? true : null;
+        });
+        assertTrue(indexedCache.getMXBean().getQueryShapeStatistics().stream()
+                .anyMatch(s -> s.getShape().equals("equal(widgetName)@HashIndex")));
+        assertEquals(Collections.singletonMap("HashIndex(widgetName)", 100), indexedCache.getMXBean().getIndexSizes());
+        assertTrue(advisor.getRecommendations().isEmpty());
+        advisor.close();
+    }
+
+    @Test
+    public void testReportsAndDropsUnusedIndexes() {
+        indexedCache.addIndex(HashIndex.onAttribute(Widget_Name));
+        IndexAdvisor<Widget> advisor = new IndexAdvisor<>(indexedCache, IndexAdvisor.Mode.AUTO, 0, TimeUnit.NANOSECONDS);
+        assertEquals(Collections.singletonList("HashIndex(widgetName)"), advisor.getUnusedIndexes());
+
+        indexedCache.retrieve(equal(Widget_Name, "Widget1"));
+        assertTrue(advisor.getUnusedIndexes().isEmpty());
+
+        advisor.resetIndexUsage();
+        assertEquals(Collections.singletonList("HashIndex(widgetName)"), advisor.getUnusedIndexes());
+        // Only indexes added by the advisor can be dropped
+        assertTrue(advisor.dropUnusedIndexes().isEmpty());
+        advisor.close();
+    }
+}
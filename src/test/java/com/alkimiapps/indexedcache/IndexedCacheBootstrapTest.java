@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2019. Allan Boyd
+ * This program is made available under the terms of the Apache License v2.0.
+ */
+
+package com.alkimiapps.indexedcache;
+
+import com.alkimiapps.async.Waiter;
+import com.alkimiapps.indexedcache.internal.SubclassableClassUniqueInstanceMaker;
+import com.alkimiapps.keys.Widget;
+import com.googlecode.cqengine.ConcurrentIndexedCollection;
+import com.googlecode.cqengine.attribute.Attribute;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.cache.Cache;
+import javax.cache.CacheManager;
+import javax.cache.Caching;
+import javax.cache.configuration.MutableConfiguration;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+
+import static com.googlecode.cqengine.query.QueryFactory.attribute;
+import static com.googlecode.cqengine.query.QueryFactory.startsWith;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class IndexedCacheBootstrapTest {
+
+    private static final Attribute<Widget, String> Widget_Name = attribute("widgetName", Widget::getName);
+    private Cache<Widget, Widget> cache;
+
+    @Before
+    public void setup() {
+        CacheManager cacheManager = Caching.getCachingProvider().getCacheManager();
+        MutableConfiguration<Widget, Widget> configuration = new MutableConfiguration<Widget, Widget>()
+                .setTypes(Widget.class, Widget.class)
+                .setStoreByValue(false);
+        cache = cacheManager.createCache(UUID.randomUUID().toString(), configuration);
+        for (int i = 0; i < 5000; i++) {
+            Widget widget = new Widget("Widget" + i);
+            cache.put(widget, widget);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        cache.close();
+    }
+
+    @Test
+    public void testExistingEntriesAreIndexed() {
+        IndexedCache<Widget, Widget> indexedCache = new IndexedCache<>(new ConcurrentIndexedCollection<>(), cache, new IdentityCacheKeyMaker<>(),
+                new SubclassableClassUniqueInstanceMaker<>(), true);
+        assertEquals(5000, indexedCache.size());
+        assertEquals(1111, indexedCache.retrieve(startsWith(Widget_Name, "Widget1")).size());
+    }
+
+    @Test
+    public void testExistingEntriesAreNotIndexedByDefault() {
+        IndexedCache<Widget, Widget> indexedCache = new IndexedCache<>(new ConcurrentIndexedCollection<>(), cache, new IdentityCacheKeyMaker<>());
+        assertEquals(0, indexedCache.size());
+    }
+
+    @Test
+    public void testChangesDuringIndexingAreNotLost() throws Exception {
+        Thread writer = new Thread(() -> {
+            for (int i = 0; i < 1000; i++) {
+                Widget widget = new Widget("Late" + i);
+                cache.put(widget, widget);
+                cache.remove(new Widget("Widget" + i));
+            }
+        });
+        writer.start();
+        IndexedCache<Widget, Widget> indexedCache = new IndexedCache<>(new ConcurrentIndexedCollection<>(), cache, new IdentityCacheKeyMaker<>(),
+                new SubclassableClassUniqueInstanceMaker<>(), true);
+        writer.join();
+
+        Set<Widget> cached = new HashSet<>();
+        cache.forEach(entry -> cached.add(entry.getValue()));
+        assertEquals(5000, cached.size());
+        Waiter.waitForValueWithTimeout(() -> cached.equals(new HashSet<>(indexedCache)) ? true : null);
+        assertEquals(cached, new HashSet<>(indexedCache));
+        assertTrue(indexedCache.contains(new Widget("Late999")));
+    }
+}
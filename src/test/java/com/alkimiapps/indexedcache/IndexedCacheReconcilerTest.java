@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2019. Allan Boyd
+ * This program is made available under the terms of the Apache License v2.0.
+ */
+
+package com.alkimiapps.indexedcache;
+
+import com.alkimiapps.indexedcache.internal.SubclassableClassUniqueInstanceMaker;
+import com.alkimiapps.keys.Widget;
+import com.googlecode.cqengine.ConcurrentIndexedCollection;
+import com.googlecode.cqengine.IndexedCollection;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.cache.Cache;
+import javax.cache.CacheManager;
+import javax.cache.Caching;
+import javax.cache.configuration.MutableConfiguration;
+import javax.cache.expiry.AccessedExpiryPolicy;
+import javax.cache.expiry.Duration;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class IndexedCacheReconcilerTest {
+
+    private IndexedCollection<Widget> indexedCollection;
+    private IndexedCache<Widget, Widget> indexedCache;
+    private Cache<Widget, Widget> cache;
+
+    @Before
+    public void setup() {
+        CacheManager cacheManager = Caching.getCachingProvider().getCacheManager();
+        MutableConfiguration<Widget, Widget> configuration = new MutableConfiguration<Widget, Widget>()
+                .setTypes(Widget.class, Widget.class)
+                .setStoreByValue(false);
+        cache = cacheManager.createCache(UUID.randomUUID().toString(), configuration);
+        // Populate the cache before the IndexedCache is made so that no cache entry events are still in flight when the
+        // tests drift the IndexedCollection from the cache
+        for (int i = 0; i < 50; i++) {
+            Widget widget = new Widget("Widget" + i);
+            cache.put(widget, widget);
+        }
+        indexedCollection = new ConcurrentIndexedCollection<>();
+        indexedCache = new IndexedCache<>(indexedCollection, cache, new IdentityCacheKeyMaker<>(), new SubclassableClassUniqueInstanceMaker<>(), true);
+    }
+
+    @After
+    public void tearDown() {
+        cache.close();
+    }
+
+    @Test
+    public void testOrphansAreRemovedAndMissingEntriesIndexed() {
+        // Drift the IndexedCollection from the Cache behind the back of the IndexedCache
+        indexedCollection.add(new Widget("Orphan"));
+        indexedCollection.remove(new Widget("Widget5"));
+
+        IndexedCacheReconciler<Widget, Widget> reconciler = new IndexedCacheReconciler<>(indexedCache, 10, 1, TimeUnit.SECONDS, 1, TimeUnit.HOURS);
+        assertTrue(reconciler.isWalkingCache());
+        while (reconciler.getCompletedPassCount() < 2) {
+            reconciler.reconcileSlice();
+        }
+        reconciler.close();
+
+        assertFalse(indexedCollection.contains(new Widget("Orphan")));
+        assertTrue(indexedCollection.contains(new Widget("Widget5")));
+        assertEquals(50, indexedCollection.size());
+        assertEquals(1, reconciler.getOrphansRemoved());
+        assertEquals(1, reconciler.getMissingEntriesIndexed());
+        assertEquals(1, indexedCache.getMXBean().getOrphansRemoved());
+        assertEquals(1, indexedCache.getMXBean().getMissingEntriesIndexed());
+        assertTrue(reconciler.getScannedCount() >= 100);
+    }
+
+    @Test
+    public void testStaleObjectsAreReplacedByTheValuesOfTheirKeys() {
+        // Keyed by colour so that objects of the same key need not be equal
+        Cache<String, Widget> colourCache = Caching.getCachingProvider().getCacheManager().createCache(UUID.randomUUID().toString(),
+                new MutableConfiguration<String, Widget>().setTypes(String.class, Widget.class).setStoreByValue(false));
+        for (int i = 0; i < 10; i++) {
+            Widget widget = new Widget("Widget" + i);
+            widget.setColour("Colour" + i);
+            colourCache.put(widget.getColour(), widget);
+        }
+        IndexedCollection<Widget> colourCollection = new ConcurrentIndexedCollection<>();
+        IndexedCache<String, Widget> colourIndexedCache = new IndexedCache<>(colourCollection, colourCache, Widget::getColour,
+                keyType -> UUID.randomUUID().toString(), true);
+        // The IndexedCollection missed the change of the entry of Colour5 from Stale5 to Widget5
+        Widget stale = new Widget("Stale5");
+        stale.setColour("Colour5");
+        colourCollection.remove(new Widget("Widget5"));
+        colourCollection.add(stale);
+
+        IndexedCacheReconciler<String, Widget> reconciler = new IndexedCacheReconciler<>(colourIndexedCache, 10, 1, TimeUnit.SECONDS, 1, TimeUnit.HOURS);
+        while (reconciler.getCompletedPassCount() < 2) {
+            reconciler.reconcileSlice();
+        }
+        reconciler.close();
+        colourCache.close();
+
+        assertTrue(colourCollection.contains(new Widget("Widget5")));
+        assertFalse(colourCollection.contains(stale));
+        assertEquals(10, colourCollection.size());
+        assertEquals(1, reconciler.getMissingEntriesIndexed());
+        assertEquals(0, reconciler.getOrphansRemoved());
+    }
+
+    @Test
+    public void testSlicesAreBounded() {
+        IndexedCacheReconciler<Widget, Widget> reconciler = new IndexedCacheReconciler<>(indexedCache, 10, 1, TimeUnit.SECONDS, 1, TimeUnit.HOURS);
+        reconciler.reconcileSlice();
+        reconciler.close();
+        assertEquals(10, reconciler.getScannedCount());
+        assertEquals(0, reconciler.getOrphansRemoved());
+    }
+
+    @Test
+    public void testCachesWhoseEntriesExpireAfterAccessAreNotWalked() {
+        Cache<Widget, Widget> accessedCache = Caching.getCachingProvider().getCacheManager().createCache(UUID.randomUUID().toString(),
+                new MutableConfiguration<Widget, Widget>().setTypes(Widget.class, Widget.class).setStoreByValue(false)
+                        .setExpiryPolicyFactory(AccessedExpiryPolicy.factoryOf(Duration.ONE_HOUR)));
+        for (int i = 0; i < 10; i++) {
+            Widget widget = new Widget("Widget" + i);
+            accessedCache.put(widget, widget);
+        }
+        IndexedCollection<Widget> accessedCollection = new ConcurrentIndexedCollection<>();
+        IndexedCache<Widget, Widget> accessedIndexedCache = new IndexedCache<>(accessedCollection, accessedCache, new IdentityCacheKeyMaker<>(),
+                new SubclassableClassUniqueInstanceMaker<>(), true);
+        accessedCollection.add(new Widget("Orphan"));
+        accessedCollection.remove(new Widget("Widget5"));
+
+        IndexedCacheReconciler<Widget, Widget> reconciler = new IndexedCacheReconciler<>(accessedIndexedCache, 10, 1, TimeUnit.SECONDS, 1, TimeUnit.HOURS);
+        assertFalse(reconciler.isWalkingCache());
+        while (reconciler.getCompletedPassCount() < 2) {
+            reconciler.reconcileSlice();
+        }
+        reconciler.close();
+        accessedCache.close();
+
+        // Without reading the entries of the Cache the orphan is still found but the missing entry is not
+        assertFalse(accessedCollection.contains(new Widget("Orphan")));
+        assertFalse(accessedCollection.contains(new Widget("Widget5")));
+        assertEquals(1, reconciler.getOrphansRemoved());
+        assertEquals(0, reconciler.getMissingEntriesIndexed());
+    }
+}
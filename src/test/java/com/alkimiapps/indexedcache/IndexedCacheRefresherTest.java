@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2019. Allan Boyd
+ * This program is made available under the terms of the Apache License v2.0.
+ */
+
+package com.alkimiapps.indexedcache;
+
+import com.alkimiapps.async.Waiter;
+import com.alkimiapps.keys.Widget;
+import com.googlecode.cqengine.ConcurrentIndexedCollection;
+import com.googlecode.cqengine.attribute.Attribute;
+import com.googlecode.cqengine.resultset.ResultSet;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.cache.Cache;
+import javax.cache.CacheManager;
+import javax.cache.Caching;
+import javax.cache.configuration.MutableConfiguration;
+import javax.cache.expiry.CreatedExpiryPolicy;
+import javax.cache.expiry.Duration;
+import javax.cache.integration.CacheLoader;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.googlecode.cqengine.query.QueryFactory.attribute;
+import static com.googlecode.cqengine.query.QueryFactory.equal;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class IndexedCacheRefresherTest {
+
+    private static final long CACHE_TTL_MILLIS = 400L;
+    private static final Attribute<Widget, String> Widget_Name = attribute("widgetName", Widget::getName);
+
+    private IndexedCache<Widget, Widget> indexedCache;
+    private Cache<Widget, Widget> cache;
+    private Map<String, AtomicInteger> loads = new ConcurrentHashMap<>();
+    private CacheLoader<Widget, Widget> loader = new CacheLoader<Widget, Widget>() {
+        @Override
+        public Widget load(Widget key) {
+            int load = loads.computeIfAbsent(key.getName(), name -> new AtomicInteger()).incrementAndGet();
+            Widget widget = new Widget(key.getName());
+            widget.setColour("fresh" + load);
+            return widget;
+        }
+
+        @Override
+        public Map<Widget, Widget> loadAll(Iterable<? extends Widget> keys) {
+            throw new UnsupportedOperationException();
+        }
+    };
+
+    @Before
+    public void setup() {
+        CacheManager cacheManager = Caching.getCachingProvider().getCacheManager();
+        MutableConfiguration<Widget, Widget> configuration = new MutableConfiguration<Widget, Widget>()
+                .setTypes(Widget.class, Widget.class)
+                .setStoreByValue(false)
+                .setExpiryPolicyFactory(CreatedExpiryPolicy.factoryOf(new Duration(MILLISECONDS, CACHE_TTL_MILLIS)));
+        cache = cacheManager.createCache(UUID.randomUUID().toString(), configuration);
+        indexedCache = new IndexedCache<>(new ConcurrentIndexedCollection<>(), cache, new IdentityCacheKeyMaker<>());
+    }
+
+    @After
+    public void tearDown() {
+        indexedCache.close();
+        cache.close();
+    }
+
+    @Test
+    public void testHotEntriesAreRefreshedBeforeTheyExpire() {
+        IndexedCacheRefresher<Widget, Widget> refresher = new IndexedCacheRefresher<>(indexedCache, loader, 0.5);
+        indexedCache.add(new Widget("Hot"));
+        indexedCache.add(new Widget("Cold"));
+
+        // Keep querying the hot entry for several times to live - it must never drop out of the results
+        long deadline = System.currentTimeMillis() + 3 * CACHE_TTL_MILLIS;
+        while (System.currentTimeMillis() < deadline) {
+            try (ResultSet<Widget> results = indexedCache.retrieve(equal(Widget_Name, "Hot"))) {
+                assertEquals(1, results.size());
+            }
+            Waiter.justWaitMillis(10);
+        }
+        refresher.close();
+
+        assertTrue(refresher.getRefreshCount() >= 2);
+        assertEquals(0, refresher.getFailedRefreshCount());
+        assertFalse(loads.containsKey("Cold"));
+        Widget hot = indexedCache.retrieve(equal(Widget_Name, "Hot")).uniqueResult();
+        assertTrue(hot.getColour().startsWith("fresh"));
+    }
+
+    @Test
+    public void testRetrievesNeverMissAnEntryBeingSwapped() throws Exception {
+        IndexedCacheRefresher<Widget, Widget> refresher = new IndexedCacheRefresher<>(indexedCache, loader, 0.2);
+        indexedCache.add(new Widget("Hot"));
+        AtomicInteger misses = new AtomicInteger();
+        long deadline = System.currentTimeMillis() + 2 * CACHE_TTL_MILLIS;
+        Thread reader = new Thread(() -> {
+            while (System.currentTimeMillis() < deadline) {
+                try (ResultSet<Widget> results = indexedCache.retrieve(equal(Widget_Name, "Hot"))) {
+                    if (results.size() != 1) {
+                        misses.incrementAndGet();
+                    }
+                }
+            }
+        });
+        reader.start();
+        reader.join();
+        refresher.close();
+
+        assertTrue(refresher.getRefreshCount() >= 2);
+        assertEquals(0, misses.get());
+    }
+
+    @Test
+    public void testEntriesRemovedWhileLoadingAreNotRestored() throws Exception {
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch removed = new CountDownLatch(1);
+        CacheLoader<Widget, Widget> slowLoader = new CacheLoader<Widget, Widget>() {
+            @Override
+            public Widget load(Widget key) {
+                loading.countDown();
+                try {
+                    removed.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return loader.load(key);
+            }
+
+            @Override
+            public Map<Widget, Widget> loadAll(Iterable<? extends Widget> keys) {
+                throw new UnsupportedOperationException();
+            }
+        };
+        IndexedCacheRefresher<Widget, Widget> refresher = new IndexedCacheRefresher<>(indexedCache, slowLoader, 0.5);
+        indexedCache.add(new Widget("Hot"));
+        long deadline = System.currentTimeMillis() + CACHE_TTL_MILLIS;
+        while (loading.getCount() > 0 && System.currentTimeMillis() < deadline) {
+            indexedCache.retrieve(equal(Widget_Name, "Hot")).size();
+            Waiter.justWaitMillis(10);
+        }
+        assertTrue(loading.await(CACHE_TTL_MILLIS, MILLISECONDS));
+        assertTrue(indexedCache.remove(new Widget("Hot")));
+        removed.countDown();
+        Waiter.justWaitMillis(100);
+        assertEquals(0, refresher.getTrackedEntryCount());
+        refresher.close();
+
+        assertEquals(0, refresher.getRefreshCount());
+        assertFalse(indexedCache.contains(new Widget("Hot")));
+        assertFalse(cache.containsKey(new Widget("Hot")));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testACacheWithoutATimeToLiveIsRejected() {
+        Cache<Widget, Widget> eternalCache = Caching.getCachingProvider().getCacheManager().createCache(UUID.randomUUID().toString(),
+                new MutableConfiguration<Widget, Widget>().setTypes(Widget.class, Widget.class).setStoreByValue(false));
+        try {
+            new IndexedCacheRefresher<>(new IndexedCache<>(new ConcurrentIndexedCollection<>(), eternalCache, new IdentityCacheKeyMaker<>()), loader, 0.5);
+        } finally {
+            eternalCache.close();
+        }
+    }
+}
@@ -0,0 +1,329 @@
+/*
+ * Copyright (c) 2019. Allan Boyd
+ * This program is made available under the terms of the Apache License v2.0.
+ */
+
+package com.alkimiapps.indexedcache;
+
+import com.alkimiapps.async.Waiter;
+import com.alkimiapps.keys.Widget;
+import com.googlecode.cqengine.ConcurrentIndexedCollection;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.cache.Cache;
+import javax.cache.CacheManager;
+import javax.cache.Caching;
+import javax.cache.configuration.MutableConfiguration;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InvalidClassException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.zip.DeflaterOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class IndexedCacheReplicatorTest {
+
+    private final List<Cache<Widget, Widget>> caches = new ArrayList<>();
+    private final List<IndexedCacheReplicator<Widget, Widget>> replicators = new ArrayList<>();
+
+    @After
+    public void tearDown() {
+        replicators.forEach(IndexedCacheReplicator::close);
+        caches.forEach(Cache::close);
+    }
+
+    @Test
+    public void testChangesAreReplicatedToPeers() {
+        LoopbackReplicationTransport transportA = new LoopbackReplicationTransport();
+        LoopbackReplicationTransport transportB = new LoopbackReplicationTransport();
+        transportA.connect(transportB);
+        IndexedCache<Widget, Widget> nodeA = newIndexedCache();
+        IndexedCache<Widget, Widget> nodeB = newIndexedCache();
+        IndexedCacheReplicator<Widget, Widget> replicatorA = newReplicator(nodeA, transportA, IndexedCacheReplicator.Mode.REPLICATE);
+        IndexedCacheReplicator<Widget, Widget> replicatorB = newReplicator(nodeB, transportB, IndexedCacheReplicator.Mode.REPLICATE);
+
+        for (int i = 0; i < 10; i++) {
+            nodeA.add(new Widget("Widget" + i));
+        }
+        nodeA.remove(new Widget("Widget3"));
+        replicatorA.flush();
+        Waiter.waitForValueWithTimeout(() -> nodeB.size() == 9 ? true : null);
+        assertEquals(9, nodeB.size());
+        assertFalse(nodeB.contains(new Widget("Widget3")));
+        // The add and remove of Widget3 were coalesced into one remove
+        assertEquals(10, replicatorB.getAppliedRecordCount());
+        assertEquals(0, replicatorB.getMissedBatchCount());
+
+        // Changes applied from a peer are not published back
+        assertEquals(0, replicatorB.getPublishedBatchCount());
+        nodeB.add(new Widget("FromB"));
+        replicatorB.flush();
+        Waiter.waitForValueWithTimeout(() -> nodeA.contains(new Widget("FromB")) ? true : null);
+        assertTrue(nodeA.contains(new Widget("FromB")));
+    }
+
+    @Test
+    public void testInvalidationRemovesChangedKeysFromPeers() {
+        LoopbackReplicationTransport transportA = new LoopbackReplicationTransport();
+        LoopbackReplicationTransport transportB = new LoopbackReplicationTransport();
+        transportA.connect(transportB);
+        Cache<Widget, Widget> cacheA = newCache();
+        IndexedCache<Widget, Widget> nodeA = newIndexedCache(cacheA);
+        IndexedCache<Widget, Widget> nodeB = newIndexedCache();
+        Widget widget = new Widget("Widget");
+        nodeB.add(widget);
+        IndexedCacheReplicator<Widget, Widget> replicatorA = newReplicator(nodeA, transportA, IndexedCacheReplicator.Mode.INVALIDATE);
+        newReplicator(nodeB, transportB, IndexedCacheReplicator.Mode.INVALIDATE);
+
+        nodeA.add(widget);
+        replicatorA.flush();
+        Waiter.waitForValueWithTimeout(() -> nodeB.isEmpty() ? true : null);
+        assertTrue(nodeB.isEmpty());
+        assertNotNull(cacheA.get(widget));
+    }
+
+    @Test
+    public void testGapsAndDuplicatesAreDetected() {
+        List<byte[]> sent = new ArrayList<>();
+        RecordingTransport transportA = new RecordingTransport(sent);
+        RecordingTransport transportB = new RecordingTransport(new ArrayList<>());
+        IndexedCache<Widget, Widget> nodeA = newIndexedCache();
+        IndexedCache<Widget, Widget> nodeB = newIndexedCache();
+        IndexedCacheReplicator<Widget, Widget> replicatorA = newReplicator(nodeA, transportA, IndexedCacheReplicator.Mode.REPLICATE);
+        IndexedCacheReplicator<Widget, Widget> replicatorB = newReplicator(nodeB, transportB, IndexedCacheReplicator.Mode.REPLICATE);
+        Consumer<byte[]> receiverB = transportB.receiver;
+
+        for (int i = 0; i < 4; i++) {
+            nodeA.add(new Widget("Widget" + i));
+            replicatorA.flush();
+        }
+        assertEquals(4, sent.size());
+        receiverB.accept(sent.get(0));
+        receiverB.accept(sent.get(2));
+        receiverB.accept(sent.get(2));
+        receiverB.accept(sent.get(3));
+        assertEquals(1, replicatorB.getMissedBatchCount());
+        assertEquals(1, replicatorB.getDuplicateBatchCount());
+        assertEquals(3, replicatorB.getAppliedRecordCount());
+    }
+
+    @Test
+    public void testFailuresToPublishAFullBatchDoNotFailTheWrite() {
+        IndexedCache<Widget, Widget> node = newIndexedCache();
+        ReplicationTransport failingTransport = new RecordingTransport(new ArrayList<>()) {
+            @Override
+            public void send(byte[] message) {
+                throw new IllegalStateException("Not connected");
+            }
+        };
+        IndexedCacheReplicator<Widget, Widget> replicator = new IndexedCacheReplicator<>(node, failingTransport, new WidgetCodec(),
+                IndexedCacheReplicator.Mode.REPLICATE, 2, 1, TimeUnit.HOURS);
+        replicators.add(replicator);
+
+        // An explicit flush reports the failure
+        node.add(new Widget("Widget0"));
+        try {
+            replicator.flush();
+            fail("Expected the flush to fail");
+        } catch (IllegalStateException e) {
+            assertEquals(1, replicator.getFailedBatchCount());
+        }
+
+        // A write that fills a batch is applied even though its batch can not be published
+        node.add(new Widget("Widget1"));
+        node.add(new Widget("Widget2"));
+        assertTrue(node.contains(new Widget("Widget2")));
+        assertEquals(2, replicator.getFailedBatchCount());
+    }
+
+    @Test
+    public void testSerializingCodecWritesCommonKeysCompactly() throws IOException {
+        SerializingReplicationCodec<Long, String> codec = SerializingReplicationCodec.allowing();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        codec.writeKey(42L, out);
+        codec.writeValue("Widget", out);
+        assertEquals(9 + 9, bytes.size());
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        assertEquals(Long.valueOf(42), codec.readKey(in));
+        assertEquals("Widget", codec.readValue(in));
+    }
+
+    @Test
+    public void testSerializingCodecOnlyDeserializesAllowedClasses() throws IOException {
+        Gadget gadget = new Gadget("Gadget");
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        SerializingReplicationCodec.<String, Gadget>allowing(Gadget.class).writeValue(gadget, new DataOutputStream(bytes));
+
+        assertEquals(gadget.name, SerializingReplicationCodec.<String, Gadget>allowing(Gadget.class)
+                .readValue(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()))).name);
+        try {
+            SerializingReplicationCodec.<String, Gadget>allowing(String.class)
+                    .readValue(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+            fail("Expected an InvalidClassException");
+        } catch (InvalidClassException e) {
+            assertTrue(e.getMessage().contains(Gadget.class.getName()));
+        }
+    }
+
+    @Test
+    public void testBatchesThatCanNotBeDecodedAreRejected() {
+        RecordingTransport transport = new RecordingTransport(new ArrayList<>());
+        IndexedCacheReplicator<Widget, Widget> replicator = newReplicator(newIndexedCache(), transport, IndexedCacheReplicator.Mode.REPLICATE);
+        transport.receiver.accept(new byte[]{42});
+        assertEquals(1, replicator.getRejectedBatchCount());
+        assertEquals(0, replicator.getReceivedBatchCount());
+    }
+
+    @Test
+    public void testCorruptBatchesAreRejected() throws IOException {
+        RecordingTransport transport = new RecordingTransport(new ArrayList<>());
+        IndexedCacheReplicator<Widget, Widget> replicator = newReplicator(newIndexedCache(), transport, IndexedCacheReplicator.Mode.REPLICATE);
+        byte[] oneRemove = {1, 0, 6, 'W', 'i', 'd', 'g', 'e', 't'};
+
+        transport.receiver.accept(batchMessage(1, new byte[]{2, 0, 0}));
+        transport.receiver.accept(batchMessage(1, new byte[]{-1, 0, 0}));
+        transport.receiver.accept(batchMessage(-1, oneRemove));
+        transport.receiver.accept(batchMessage(Integer.MAX_VALUE, oneRemove));
+        transport.receiver.accept(Arrays.copyOf(batchMessage(1, oneRemove), 24));
+        assertEquals(5, replicator.getRejectedBatchCount());
+        assertEquals(0, replicator.getReceivedBatchCount());
+
+        transport.receiver.accept(batchMessage(1, oneRemove));
+        assertEquals(1, replicator.getReceivedBatchCount());
+        assertEquals(1, replicator.getAppliedRecordCount());
+    }
+
+    @Test
+    public void testSerializingCodecRejectsCorruptLengths() {
+        SerializingReplicationCodec<String, Gadget> codec = SerializingReplicationCodec.allowing(Gadget.class);
+        for (int length : new int[]{-1, Integer.MAX_VALUE}) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            try {
+                out.writeByte(11); // A serialized value of the given length with no bytes after it
+                out.writeInt(length);
+                codec.readValue(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+                fail("Expected the length " + length + " to be rejected");
+            } catch (IOException e) {
+                // expected
+            }
+        }
+    }
+
+    /**
+     * Make a batch message from the given header record count and (uncompressed) record bytes.
+     */
+    private static byte[] batchMessage(int recordCount, byte[] records) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream header = new DataOutputStream(bytes);
+        header.writeByte(1);
+        header.writeLong(42);
+        header.writeLong(1);
+        header.writeInt(recordCount);
+        header.flush();
+        try (DeflaterOutputStream out = new DeflaterOutputStream(bytes)) {
+            out.write(records);
+        }
+        return bytes.toByteArray();
+    }
+
+    private IndexedCache<Widget, Widget> newIndexedCache() {
+        return newIndexedCache(newCache());
+    }
+
+    private IndexedCache<Widget, Widget> newIndexedCache(Cache<Widget, Widget> cache) {
+        return new IndexedCache<>(new ConcurrentIndexedCollection<>(), cache, new IdentityCacheKeyMaker<>());
+    }
+
+    private Cache<Widget, Widget> newCache() {
+        CacheManager cacheManager = Caching.getCachingProvider().getCacheManager();
+        MutableConfiguration<Widget, Widget> configuration = new MutableConfiguration<Widget, Widget>()
+                .setTypes(Widget.class, Widget.class)
+                .setStoreByValue(false);
+        Cache<Widget, Widget> cache = cacheManager.createCache(UUID.randomUUID().toString(), configuration);
+        caches.add(cache);
+        return cache;
+    }
+
+    private IndexedCacheReplicator<Widget, Widget> newReplicator(IndexedCache<Widget, Widget> indexedCache, ReplicationTransport transport,
+                                                                 IndexedCacheReplicator.Mode mode) {
+        IndexedCacheReplicator<Widget, Widget> replicator = new IndexedCacheReplicator<>(indexedCache, transport, new WidgetCodec(), mode,
+                IndexedCacheReplicator.DEFAULT_MAX_BATCH_SIZE, 1, TimeUnit.HOURS);
+        replicators.add(replicator);
+        return replicator;
+    }
+
+    private static final class WidgetCodec implements ReplicationCodec<Widget, Widget> {
+        @Override
+        public void writeKey(Widget key, DataOutput out) throws IOException {
+            out.writeUTF(key.getName());
+        }
+
+        @Override
+        public Widget readKey(DataInput in) throws IOException {
+            return new Widget(in.readUTF());
+        }
+
+        @Override
+        public void writeValue(Widget value, DataOutput out) throws IOException {
+            out.writeUTF(value.getName());
+        }
+
+        @Override
+        public Widget readValue(DataInput in) throws IOException {
+            return new Widget(in.readUTF());
+        }
+    }
+
+    private static final class Gadget implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private final String name;
+
+        Gadget(String name) {
+            this.name = name;
+        }
+    }
+
+    private static class RecordingTransport implements ReplicationTransport {
+        private final List<byte[]> sent;
+        private Consumer<byte[]> receiver;
+
+        RecordingTransport(List<byte[]> sent) {
+            this.sent = sent;
+        }
+
+        @Override
+        public void send(byte[] message) {
+            sent.add(message);
+        }
+
+        @Override
+        public void setReceiver(Consumer<byte[]> receiver) {
+            this.receiver = receiver;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -11,9 +11,13 @@ import com.alkimiapps.mxbean.CacheStatsProvider;
 import com.googlecode.cqengine.ConcurrentIndexedCollection;
 import com.googlecode.cqengine.IndexedCollection;
 import com.googlecode.cqengine.attribute.Attribute;
+import com.googlecode.cqengine.attribute.MultiValueAttribute;
+import com.googlecode.cqengine.index.hash.HashIndex;
 import com.googlecode.cqengine.index.radixreversed.ReversedRadixTreeIndex;
 import com.googlecode.cqengine.query.Query;
+import com.googlecode.cqengine.query.logical.Or;
 import com.googlecode.cqengine.query.option.DeduplicationStrategy;
+import com.googlecode.cqengine.query.option.QueryOptions;
 import com.googlecode.cqengine.resultset.ResultSet;
 import org.junit.After;
 import org.junit.Before;
@@ -27,18 +31,31 @@ import javax.cache.expiry.CreatedExpiryPolicy;
 import javax.cache.expiry.Duration;
 import javax.cache.management.CacheStatisticsMXBean;
 import javax.cache.spi.CachingProvider;
+import javax.management.JMX;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.alkimiapps.cache.CacheInfo.cacheEntryCount;
 import static com.googlecode.cqengine.query.QueryFactory.*;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.stream.Collectors.toList;
 import static junit.framework.TestCase.assertNotNull;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class IndexedCacheTest {
 
@@ -67,6 +84,9 @@ public class IndexedCacheTest {
 
     @After
     public void tearDown() {
+        if (indexedCache != null) {
+            indexedCache.close();
+        }
         if (cache != null && !cache.isClosed()) {
             cache.close();
         }
@@ -243,6 +263,605 @@ public class IndexedCacheTest {
         assertEquals(3, indexedCache.size());
     }
 
+    @Test
+    public void testQueryShapeStatistics() {
+        indexedCache.add(new Widget("Frank"));
+        indexedCache.add(new Widget("Bob"));
+
+        indexedCache.retrieve(endsWith(Widget_Name, "ank"));
+        indexedCache.retrieve(endsWith(Widget_Name, "ob"));
+        indexedCache.retrieve(contains(Widget_Name, "an"));
+
+        List<QueryShapeStatistics> statistics = indexedCache.getMXBean().getQueryShapeStatistics();
+        assertEquals(2, statistics.size());
+        QueryShapeStatistics endsWith = statistics.stream()
+                .filter(s -> s.getShape().equals("stringEndsWith(widgetName)@ReversedRadixTreeIndex"))
+                .findFirst().orElseThrow(AssertionError::new);
+        assertEquals(2, endsWith.getCount());
+        assertTrue(endsWith.getMaxNanos() >= endsWith.getP50Nanos());
+        assertTrue(statistics.stream().anyMatch(s -> s.getShape().equals("stringContains(widgetName)@none")));
+
+        indexedCache.getMXBean().resetQueryShapeStatistics();
+        assertTrue(indexedCache.getMXBean().getQueryShapeStatistics().isEmpty());
+    }
+
+    @Test
+    public void testIndexSizes() {
+        indexedCache.addIndex(HashIndex.onAttribute(Widget_Name));
+        indexedCache.add(new Widget("Frank"));
+        indexedCache.add(new Widget("Bob"));
+
+        Map<String, Integer> indexSizes = indexedCache.getMXBean().getIndexSizes();
+        assertEquals(2, indexSizes.size());
+        assertEquals(Integer.valueOf(-1), indexSizes.get("ReversedRadixTreeIndex(widgetName)"));
+        assertEquals(Integer.valueOf(2), indexSizes.get("HashIndex(widgetName)"));
+    }
+
+    @Test
+    public void testEnableManagement() throws Exception {
+        ObjectName objectName = new ObjectName("com.alkimiapps.indexedcache:type=IndexedCache,Cache=" + cache.getName());
+        MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+        assertFalse(mBeanServer.isRegistered(objectName));
+
+        indexedCache.enableManagement(true);
+        assertTrue(mBeanServer.isRegistered(objectName));
+        IndexedCacheMXBean mxBean = JMX.newMXBeanProxy(mBeanServer, objectName, IndexedCacheMXBean.class);
+        indexedCache.retrieve(equal(Widget_Name, "Frank"));
+        assertEquals(1, mxBean.getQueryShapeStatistics().size());
+        assertTrue(mxBean.getMaintenanceQueueDepth() >= 0);
+
+        indexedCache.enableManagement(false);
+        assertFalse(mBeanServer.isRegistered(objectName));
+    }
+
+    @Test
+    public void testClose() throws Exception {
+        ObjectName objectName = new ObjectName("com.alkimiapps.indexedcache:type=IndexedCache,Cache=" + cache.getName());
+        indexedCache.enableManagement(true);
+        indexedCache.add(new Widget("Before"));
+        indexedCache.close();
+
+        assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(objectName));
+        Widget after = new Widget("After");
+        cache.put(after, after);
+        Waiter.justWaitMillis(200);
+        assertFalse(indexedCache.contains(after));
+        assertTrue(indexedCache.contains(new Widget("Before")));
+    }
+
+    @Test
+    public void testAddLazyIndex() {
+        indexedCache.addLazyIndex(HashIndex.onAttribute(Widget_Name));
+        indexedCache.add(new Widget("Frank"));
+        Query<Widget> query = equal(Widget_Name, "Frank");
+
+        // The index is not built (or maintained) until a query could use it
+        assertEquals(0, (int) indexedCache.getMXBean().getIndexSizes().get("HashIndex(widgetName)"));
+        assertEquals(1, indexedCache.retrieve(query).size());
+
+        Waiter.waitForValueWithTimeout(() -> {
+            indexedCache.retrieve(query);
+            return hasQueryShape("equal(widgetName)@HashIndex") ? true : null;
+        });
+        assertTrue(hasQueryShape("equal(widgetName)@HashIndex"));
+
+        // Once built the index is maintained
+        indexedCache.add(new Widget("Zed"));
+        assertEquals(1, indexedCache.retrieve(equal(Widget_Name, "Zed")).size());
+    }
+
+    @Test
+    public void testRetrieveSnapshotSeesWholeUpdates() throws Exception {
+        IndexedCache<Widget, Widget> batchIndexedCache = newIndexedCacheWithoutExpiry();
+        batchIndexedCache.addIndex(HashIndex.onAttribute(Widget_Name));
+        List<List<Widget>> batches = Arrays.asList(new ArrayList<>(), new ArrayList<>());
+        for (int i = 0; i < 500; i++) {
+            batches.get(0).add(new Widget("A" + i));
+            batches.get(1).add(new Widget("B" + i));
+        }
+        batchIndexedCache.addAll(batches.get(0));
+
+        Thread writer = new Thread(() -> {
+            for (int i = 0; i < 200; i++) {
+                batchIndexedCache.update(batches.get(i % 2), batches.get((i + 1) % 2));
+            }
+        });
+        writer.start();
+        try {
+            while (writer.isAlive()) {
+                ResultSet<Widget> snapshot = batchIndexedCache.retrieveSnapshot(all(Widget.class));
+                assertEquals(500, snapshot.size());
+                char batch = snapshot.iterator().next().getName().charAt(0);
+                assertTrue(snapshot.stream().allMatch(widget -> widget.getName().charAt(0) == batch));
+            }
+        } finally {
+            writer.join();
+            batchIndexedCache.close();
+            batchIndexedCache.getCache().close();
+        }
+    }
+
+    @Test
+    public void testRemoveWhere() {
+        List<Widget> widgets = Arrays.asList(new Widget("Frank"), new Widget("Bob"), new Widget("Bill"), new Widget("Jane"));
+        indexedCache.addAll(widgets);
+
+        assertEquals(2, indexedCache.removeWhere(startsWith(Widget_Name, "B")));
+        assertEquals(0, indexedCache.removeWhere(startsWith(Widget_Name, "B")));
+        assertEquals(2, indexedCache.size());
+        assertEquals(2, cacheEntryCount(cache));
+        testCacheContents(Arrays.asList(new Widget("Frank"), new Widget("Jane")));
+        assertFalse(cache.containsKey(new Widget("Bob")));
+    }
+
+    @Test
+    public void testWritesAreNotHeldUpWhileTheObjectsToRemoveAreFound() throws InterruptedException {
+        IndexedCache<Widget, Widget> eternalIndexedCache = newIndexedCacheWithoutExpiry();
+        eternalIndexedCache.addAll(Arrays.asList(new Widget("Frank"), new Widget("Bob")));
+        CountDownLatch scanning = new CountDownLatch(1);
+        CountDownLatch written = new CountDownLatch(1);
+        AtomicBoolean writtenDuringScan = new AtomicBoolean();
+        Thread remover = new Thread(() -> eternalIndexedCache.removeIf(widget -> {
+            scanning.countDown();
+            Waiter.waitForValueWithTimeout(() -> written.getCount() == 0 ? true : null);
+            if (written.getCount() == 0) {
+                writtenDuringScan.set(true);
+            }
+            return widget.getName().equals("Bob");
+        }));
+        remover.start();
+        assertTrue(scanning.await(5000, MILLISECONDS));
+        eternalIndexedCache.add(new Widget("Jane"));
+        written.countDown();
+        remover.join();
+
+        assertTrue(writtenDuringScan.get());
+        assertEquals(2, eternalIndexedCache.size());
+        assertEquals(2, cacheEntryCount(eternalIndexedCache.getCache()));
+        assertFalse(eternalIndexedCache.contains(new Widget("Bob")));
+        eternalIndexedCache.close();
+        eternalIndexedCache.getCache().close();
+    }
+
+    @Test
+    public void testRemoveIfRetainAllAndRemoveAllRemoveFromTheCache() {
+        indexedCache.addAll(Arrays.asList(new Widget("Frank"), new Widget("Bob"), new Widget("Bill"), new Widget("Jane")));
+
+        assertTrue(indexedCache.removeIf(widget -> widget.getName().equals("Bob")));
+        assertFalse(indexedCache.removeIf(widget -> widget.getName().equals("Bob")));
+        assertFalse(cache.containsKey(new Widget("Bob")));
+
+        assertTrue(indexedCache.retainAll(Arrays.asList(new Widget("Frank"), new Widget("Jane"))));
+        assertFalse(cache.containsKey(new Widget("Bill")));
+
+        assertTrue(indexedCache.removeAll(Collections.singletonList(new Widget("Frank"))));
+        assertFalse(indexedCache.removeAll(Collections.singletonList(new Widget("Frank"))));
+        assertEquals(1, cacheEntryCount(cache));
+        testCacheContents(Collections.singletonList(new Widget("Jane")));
+    }
+
+    @Test
+    public void testObjectInternerInternsValuesOfAddedObjects() {
+        indexedCache.setObjectInterner((widget, interner) -> widget.setColour(interner.intern(widget.getColour())));
+        Widget frank = colouredWidget("Frank", "red");
+        Widget bob = colouredWidget("Bob", "red");
+        Widget jane = colouredWidget("Jane", "red");
+        indexedCache.add(frank);
+        indexedCache.addAll(Collections.singletonList(bob));
+        cache.put(jane, jane);
+        Waiter.waitForValueWithTimeout(() -> indexedCache.contains(jane) ? true : null);
+
+        assertTrue(indexedCache.contains(jane));
+        assertTrue(frank.getColour() == bob.getColour());
+        assertTrue(frank.getColour() == jane.getColour());
+        assertEquals(1, indexedCache.getValueInterner().getDistinctValueCount());
+        assertEquals(2, indexedCache.getMXBean().getInternedValueCount());
+        assertTrue(indexedCache.getMXBean().getEstimatedBytesSavedByInterning().get(String.class.getName()) > 0);
+    }
+
+    @Test
+    public void testEstimateFootprint() {
+        IndexedCache<Widget, Widget> eternalIndexedCache = newIndexedCacheWithoutExpiry();
+        eternalIndexedCache.addIndex(HashIndex.onAttribute(Widget_Name));
+        for (int i = 0; i < 200; i++) {
+            eternalIndexedCache.add(new Widget("Widget" + i));
+        }
+
+        FootprintEstimate estimate = eternalIndexedCache.estimateFootprint(50);
+
+        assertEquals(200, estimate.getObjectCount());
+        assertEquals(50, estimate.getSampleSize());
+        assertTrue(estimate.getValueBytes() > 0);
+        assertTrue(estimate.getIndexBytes().get("HashIndex(widgetName)") > 0);
+        assertEquals(estimate.getTotalBytes() / 200, estimate.getBytesPerEntry());
+        eternalIndexedCache.close();
+        eternalIndexedCache.getCache().close();
+    }
+
+    @Test
+    public void testMaxWeightRejectsObjectsOverTheLimit() {
+        Cache<Widget, Widget> eternalCache = newCacheWithoutExpiry();
+        IndexedCache<Widget, Widget> eternalIndexedCache = new IndexedCache<>(new ConcurrentIndexedCollection<>(), eternalCache, cacheKeyMaker);
+        for (int i = 0; i < 10; i++) {
+            eternalIndexedCache.add(new Widget("Widget" + i));
+        }
+        long bytesPerEntry = eternalIndexedCache.estimateFootprint(10).getBytesPerEntry();
+        eternalIndexedCache.setMaxWeight(bytesPerEntry * 10, IndexedCache.WeightPolicy.REJECT);
+
+        try {
+            eternalIndexedCache.add(new Widget("Frank"));
+            fail("Expected the add to be rejected");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        assertEquals(10, eternalIndexedCache.size());
+        assertFalse(eternalCache.containsKey(new Widget("Frank")));
+        eternalIndexedCache.update(Collections.singletonList(new Widget("Widget0")), Collections.singletonList(new Widget("Frank")));
+        assertTrue(eternalIndexedCache.contains(new Widget("Frank")));
+        eternalIndexedCache.close();
+        eternalCache.close();
+    }
+
+    @Test
+    public void testMaxWeightEvictsObjectsOverTheLimit() {
+        IndexedCache<Widget, Widget> eternalIndexedCache = newIndexedCacheWithoutExpiry();
+        for (int i = 0; i < 100; i++) {
+            eternalIndexedCache.add(new Widget("Widget" + i));
+        }
+        long bytesPerEntry = eternalIndexedCache.estimateFootprint(100).getBytesPerEntry();
+        eternalIndexedCache.setMaxWeight(bytesPerEntry * 50, IndexedCache.WeightPolicy.EVICT);
+
+        assertEquals(50, eternalIndexedCache.size());
+        assertEquals(50, cacheEntryCount(eternalIndexedCache.getCache()));
+        for (int i = 100; i < 120; i++) {
+            // The object written is never the one evicted to make room for it
+            eternalIndexedCache.add(new Widget("Widget" + i));
+            assertTrue(eternalIndexedCache.contains(new Widget("Widget" + i)));
+        }
+        assertTrue(eternalIndexedCache.size() <= 55);
+        assertEquals(eternalIndexedCache.size(), cacheEntryCount(eternalIndexedCache.getCache()));
+        eternalIndexedCache.close();
+        eternalIndexedCache.getCache().close();
+    }
+
+    @Test
+    public void testLateEchoesOfWritesDoNotReinsertRemovedObjects() {
+        Cache<Widget, Widget> eternalCache = Caching.getCachingProvider().getCacheManager().createCache(UUID.randomUUID().toString(),
+                new MutableConfiguration<Widget, Widget>().setTypes(Widget.class, Widget.class).setStoreByValue(false));
+        IndexedCache<Widget, Widget> eternalIndexedCache = new IndexedCache<>(new ConcurrentIndexedCollection<>(), eternalCache, cacheKeyMaker);
+        for (int i = 0; i < 2000; i++) {
+            Widget widget = new Widget("Widget" + i);
+            eternalIndexedCache.add(widget);
+            eternalIndexedCache.remove(widget);
+        }
+
+        // The echoes of the adds may still be arriving - none of them should (even briefly) put a widget back
+        long deadline = System.currentTimeMillis() + 200;
+        while (System.currentTimeMillis() < deadline) {
+            assertEquals(0, eternalIndexedCache.size());
+        }
+        assertEquals(0, cacheEntryCount(eternalCache));
+
+        // Writes made directly to the cache are still applied
+        Widget frank = new Widget("Frank");
+        eternalCache.put(frank, frank);
+        Waiter.waitForValueWithTimeout(() -> eternalIndexedCache.contains(frank) ? true : null);
+        assertTrue(eternalIndexedCache.contains(frank));
+        eternalIndexedCache.close();
+        eternalCache.close();
+    }
+
+    @Test
+    public void testRetrieveProjected() {
+        Attribute<Widget, String> widgetColour = attribute("widgetColour", Widget::getColour);
+        IndexedCache<Widget, Widget> eternalIndexedCache = newIndexedCacheWithoutExpiry();
+        eternalIndexedCache.addIndex(HashIndex.onAttribute(Widget_Name));
+        for (int i = 0; i < 10; i++) {
+            eternalIndexedCache.add(colouredWidget("Widget" + i, i % 2 == 0 ? "red" : "blue"));
+        }
+
+        ProjectionResult<Widget> everything = eternalIndexedCache.retrieveProjected(all(Widget.class), Widget_Name, widgetColour);
+        assertEquals(10, everything.size());
+        assertFalse(everything.isCovered(Widget_Name));
+        assertFalse(everything.isCovered(widgetColour));
+        for (int row = 0; row < everything.size(); row++) {
+            String name = everything.getColumn(Widget_Name).get(row);
+            int i = Integer.parseInt(name.substring("Widget".length()));
+            assertEquals(i % 2 == 0 ? "red" : "blue", everything.getColumn(widgetColour).get(row));
+            assertEquals(name, everything.getRow(row)[0]);
+        }
+
+        // Projections of the indexed attribute alone, by queries that resolve on it, are read from the index
+        ProjectionResult<Widget> one = eternalIndexedCache.retrieveProjected(equal(Widget_Name, "Widget3"), Widget_Name);
+        assertEquals(Collections.singletonList("Widget3"), one.getColumn(Widget_Name));
+        assertTrue(one.isCovered(Widget_Name));
+        ProjectionResult<Widget> some = eternalIndexedCache.retrieveProjected(in(Widget_Name, "Widget3", "Widget4", "Nobody"), Widget_Name);
+        assertEquals(new HashSet<>(Arrays.asList("Widget3", "Widget4")), new HashSet<>(some.getColumn(Widget_Name)));
+        assertTrue(some.isCovered(Widget_Name));
+        ProjectionResult<Widget> names = eternalIndexedCache.retrieveProjected(all(Widget.class), Widget_Name);
+        assertEquals(10, new HashSet<>(names.getColumn(Widget_Name)).size());
+        assertTrue(names.isCovered(Widget_Name));
+        assertFalse(eternalIndexedCache.retrieveProjected(startsWith(Widget_Name, "Widget1"), Widget_Name).isCovered(Widget_Name));
+
+        assertEquals(24, eternalIndexedCache.getMXBean().getProjectedRowCount());
+        assertEquals(3, eternalIndexedCache.getMXBean().getCoveredProjectionCount());
+
+        // A multi-valued attribute can not be read as longs
+        Attribute<Widget, Integer> nameLengths = new MultiValueAttribute<Widget, Integer>("nameLengths") {
+            @Override
+            public Iterable<Integer> getValues(Widget widget, QueryOptions queryOptions) {
+                return Arrays.asList(widget.getName().length(), widget.getName().length() * 2);
+            }
+        };
+        try {
+            eternalIndexedCache.retrieveProjected(equal(Widget_Name, "Widget3"), nameLengths).getLongColumn(nameLengths);
+            fail("Expected an IllegalStateException");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+        eternalIndexedCache.close();
+        eternalIndexedCache.getCache().close();
+    }
+
+    @Test
+    public void testQueryBudgets() {
+        Attribute<Widget, String> widgetColour = attribute("widgetColour", Widget::getColour);
+        IndexedCache<Widget, Widget> eternalIndexedCache = newIndexedCacheWithoutExpiry();
+        eternalIndexedCache.addIndex(HashIndex.onAttribute(Widget_Name));
+        for (int i = 0; i < 10; i++) {
+            eternalIndexedCache.add(colouredWidget("Widget" + i, "red"));
+        }
+
+        // An index lookup is within a cost budget that an unindexed scan is over
+        QueryBudget cheap = QueryBudget.UNLIMITED.withMaxRetrievalCost(100);
+        assertEquals(1, eternalIndexedCache.retrieve(equal(Widget_Name, "Widget3"), queryOptions(cheap)).size());
+        assertBudgetExceeded(QueryBudgetExceededException.Limit.RETRIEVAL_COST,
+                () -> eternalIndexedCache.retrieve(equal(widgetColour, "red"), queryOptions(cheap)));
+
+        // Too many results are either rejected or cut short
+        QueryBudget few = QueryBudget.UNLIMITED.withMaxResults(4);
+        assertBudgetExceeded(QueryBudgetExceededException.Limit.MAX_RESULTS,
+                () -> eternalIndexedCache.retrieve(all(Widget.class), queryOptions(few)));
+        assertEquals(4, eternalIndexedCache.retrieve(all(Widget.class), queryOptions(few.cuttingShort())).size());
+        assertEquals(4, eternalIndexedCache.retrieve(equal(widgetColour, "red"), queryOptions(few.cuttingShort(), orderBy(ascending(Widget_Name)))).size());
+
+        // The default budget applies to queries without their own
+        eternalIndexedCache.setDefaultQueryBudget(cheap);
+        assertBudgetExceeded(QueryBudgetExceededException.Limit.RETRIEVAL_COST, () -> eternalIndexedCache.retrieve(equal(widgetColour, "red")));
+        assertEquals(10, eternalIndexedCache.retrieve(equal(widgetColour, "red"), queryOptions(QueryBudget.UNLIMITED)).size());
+        eternalIndexedCache.setDefaultQueryBudget(null);
+        assertEquals(10, eternalIndexedCache.retrieve(equal(widgetColour, "red")).size());
+
+        // An interrupted retrieve is cancelled
+        Thread.currentThread().interrupt();
+        try {
+            assertBudgetExceeded(QueryBudgetExceededException.Limit.CANCELLED,
+                    () -> eternalIndexedCache.retrieve(all(Widget.class), queryOptions(QueryBudget.UNLIMITED.withTimeout(1, MILLISECONDS))));
+        } finally {
+            Thread.interrupted();
+        }
+
+        assertEquals(4, eternalIndexedCache.getMXBean().getRejectedQueryCount());
+        assertEquals(2, eternalIndexedCache.getMXBean().getCutShortQueryCount());
+        eternalIndexedCache.close();
+        eternalIndexedCache.getCache().close();
+    }
+
+    @Test
+    public void testRetrieveAll() {
+        Attribute<Widget, String> widgetColour = attribute("widgetColour", Widget::getColour);
+        IndexedCache<Widget, Widget> eternalIndexedCache = newIndexedCacheWithoutExpiry();
+        eternalIndexedCache.addIndex(HashIndex.onAttribute(Widget_Name));
+        for (int i = 0; i < 10; i++) {
+            eternalIndexedCache.add(colouredWidget("Widget" + i, i % 2 == 0 ? "red" : "blue"));
+        }
+
+        List<ResultSet<Widget>> results = eternalIndexedCache.retrieveAll(Arrays.asList(
+                equal(Widget_Name, "Widget1"),
+                equal(widgetColour, "red"),
+                equal(Widget_Name, "Widget2"),
+                equal(Widget_Name, "Widget99"),
+                equal(Widget_Name, "Widget1"),
+                has(Widget_Name)));
+        assertEquals(6, results.size());
+        assertEquals(Collections.singletonList(new Widget("Widget1")), results.get(0).stream().collect(toList()));
+        assertEquals(5, results.get(1).size());
+        assertEquals(Collections.singletonList(new Widget("Widget2")), results.get(2).stream().collect(toList()));
+        assertEquals(0, results.get(3).size());
+        assertEquals(1, results.get(4).size());
+        assertEquals(10, results.get(5).size());
+        // The four equal queries on the name were retrieved as one in query, the others on their own
+        assertEquals(3, eternalIndexedCache.getMXBean().getQueryShapeStatistics().stream().mapToLong(QueryShapeStatistics::getCount).sum());
+        eternalIndexedCache.close();
+        eternalIndexedCache.getCache().close();
+    }
+
+    @Test
+    public void testQueryBudgetsApplyToEachGroupOfABatch() {
+        Attribute<Widget, String> widgetColour = attribute("widgetColour", Widget::getColour);
+        IndexedCache<Widget, Widget> eternalIndexedCache = newIndexedCacheWithoutExpiry();
+        eternalIndexedCache.addIndex(HashIndex.onAttribute(Widget_Name));
+        for (int i = 0; i < 10; i++) {
+            eternalIndexedCache.add(colouredWidget("Widget" + i, "red"));
+        }
+        List<Query<Widget>> lookups = Arrays.asList(equal(Widget_Name, "Widget1"), equal(Widget_Name, "Widget2"));
+        List<Query<Widget>> lookupsAndAScan = Arrays.asList(equal(Widget_Name, "Widget1"), equal(widgetColour, "red"));
+
+        QueryBudget cheap = QueryBudget.UNLIMITED.withMaxRetrievalCost(100);
+        assertEquals(2, eternalIndexedCache.retrieveAll(lookups, queryOptions(cheap)).size());
+        assertBudgetExceeded(QueryBudgetExceededException.Limit.RETRIEVAL_COST, () -> eternalIndexedCache.retrieveAll(lookupsAndAScan, queryOptions(cheap)));
+
+        // The results of the lookups combined into one in query count against one budget
+        QueryBudget one = QueryBudget.UNLIMITED.withMaxResults(1);
+        assertBudgetExceeded(QueryBudgetExceededException.Limit.MAX_RESULTS, () -> eternalIndexedCache.retrieveAll(lookups, queryOptions(one)));
+        List<ResultSet<Widget>> cutShort = eternalIndexedCache.retrieveAll(lookups, queryOptions(one.cuttingShort()));
+        assertEquals(1, cutShort.get(0).size() + cutShort.get(1).size());
+
+        eternalIndexedCache.setDefaultQueryBudget(cheap);
+        assertBudgetExceeded(QueryBudgetExceededException.Limit.RETRIEVAL_COST, () -> eternalIndexedCache.retrieveAll(lookupsAndAScan));
+        assertEquals(2, eternalIndexedCache.retrieveAll(lookupsAndAScan, queryOptions(QueryBudget.UNLIMITED)).size());
+
+        assertEquals(3, eternalIndexedCache.getMXBean().getRejectedQueryCount());
+        assertEquals(1, eternalIndexedCache.getMXBean().getCutShortQueryCount());
+        eternalIndexedCache.close();
+        eternalIndexedCache.getCache().close();
+    }
+
+    @Test
+    public void testRetrieveStringQueries() {
+        Attribute<Widget, String> widgetColour = attribute("widgetColour", Widget::getColour);
+        IndexedCache<Widget, Widget> eternalIndexedCache = newIndexedCacheWithoutExpiry();
+        eternalIndexedCache.addIndex(HashIndex.onAttribute(Widget_Name));
+        for (int i = 0; i < 10; i++) {
+            eternalIndexedCache.add(colouredWidget("Widget" + i, i % 2 == 0 ? "red" : "blue"));
+        }
+
+        eternalIndexedCache.enableStringQueries(IndexedCache.QueryLanguage.SQL, Widget.class, Arrays.asList(Widget_Name, widgetColour));
+        String sql = "SELECT * FROM widgets WHERE (widgetColour = ? AND widgetName IN (?, 'Widget4', ?)) ORDER BY widgetName DESC";
+        assertEquals(Arrays.asList(new Widget("Widget4"), new Widget("Widget2")),
+                eternalIndexedCache.retrieve(sql, "red", "Widget2", "Widget3").stream().collect(toList()));
+        assertEquals(Collections.singletonList(new Widget("Widget3")),
+                eternalIndexedCache.retrieve(sql, "blue", "Widget2", "Widget3").stream().collect(toList()));
+        // A quoted ? is a literal rather than a parameter
+        assertEquals(1, eternalIndexedCache.retrieve("SELECT * FROM widgets WHERE (widgetName = ? OR widgetName = '?')", "Widget1").size());
+        assertEquals(1, eternalIndexedCache.getMXBean().getQueryTemplateHitCount());
+        assertEquals(2, eternalIndexedCache.getMXBean().getQueryTemplateParseCount());
+        assertTrue(eternalIndexedCache.getMXBean().getMeanQueryTemplateParseNanos() > 0);
+
+        eternalIndexedCache.enableStringQueries(IndexedCache.QueryLanguage.CQN, Widget.class, Arrays.asList(Widget_Name, widgetColour));
+        assertEquals(5, eternalIndexedCache.retrieve("and(equal(\"widgetColour\", ?), not(equal(\"widgetName\", ?)))", "blue", "Widget2").size());
+        assertEquals(4, eternalIndexedCache.retrieve("and(equal(\"widgetColour\", ?), not(equal(\"widgetName\", ?)))", "blue", "Widget3").size());
+        try {
+            eternalIndexedCache.retrieve("equal(\"widgetName\", ?)");
+            fail("Expected the missing parameter to be rejected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        eternalIndexedCache.close();
+        eternalIndexedCache.getCache().close();
+    }
+
+    @Test
+    public void testCountAndExists() {
+        Attribute<Widget, String> widgetColour = attribute("widgetColour", Widget::getColour);
+        IndexedCache<Widget, Widget> eternalIndexedCache = newIndexedCacheWithoutExpiry();
+        eternalIndexedCache.addIndex(HashIndex.onAttribute(widgetColour));
+        AtomicInteger hits = new AtomicInteger();
+        eternalIndexedCache.addHitListener((key, value) -> hits.incrementAndGet());
+        for (int i = 0; i < 10; i++) {
+            eternalIndexedCache.add(colouredWidget("Widget" + i, i < 6 ? "red" : "blue"));
+        }
+
+        // Answered from the counts of the colour index
+        assertEquals(10, eternalIndexedCache.count(all(Widget.class)));
+        assertEquals(6, eternalIndexedCache.count(equal(widgetColour, "red")));
+        assertEquals(10, eternalIndexedCache.count(in(widgetColour, "red", "blue", "green")));
+        assertEquals(10, eternalIndexedCache.count(new Or<>(Arrays.asList(equal(widgetColour, "red"), equal(widgetColour, "blue")), true)));
+        assertFalse(eternalIndexedCache.exists(equal(widgetColour, "green")));
+        assertEquals(5, eternalIndexedCache.getMXBean().getIndexCountQueryCount());
+        // Retrieved and counted
+        assertEquals(1, eternalIndexedCache.count(equal(Widget_Name, "Widget3")));
+        assertEquals(4, eternalIndexedCache.count(or(equal(widgetColour, "blue"), equal(Widget_Name, "Widget6"))));
+        assertTrue(eternalIndexedCache.exists(and(equal(widgetColour, "red"), equal(Widget_Name, "Widget5"))));
+        assertFalse(eternalIndexedCache.exists(equal(Widget_Name, "Widget10")));
+        assertEquals(9, eternalIndexedCache.getMXBean().getCountQueryCount());
+        assertEquals(5, eternalIndexedCache.getMXBean().getIndexCountQueryCount());
+
+        // Neither registers cache hits for the objects counted, unlike retrieve
+        eternalIndexedCache.retrieve(equal(Widget_Name, "Widget0")).size();
+        Waiter.waitForValueWithTimeout(() -> hits.get() > 0 ? true : null);
+        assertEquals(1, hits.get());
+        eternalIndexedCache.close();
+        eternalIndexedCache.getCache().close();
+    }
+
+    @Test
+    public void testQueryBudgetTimeoutsBoundScansThatFindNothing() {
+        // An attribute that is slow to read so that an unindexed scan of a thousand objects takes seconds
+        Attribute<Widget, String> slowColour = attribute("slowColour", widget -> {
+            Waiter.justWaitMillis(2);
+            return widget.getColour();
+        });
+        IndexedCache<Widget, Widget> eternalIndexedCache = newIndexedCacheWithoutExpiry();
+        for (int i = 0; i < 1000; i++) {
+            eternalIndexedCache.add(colouredWidget("Widget" + i, "red"));
+        }
+
+        long start = System.nanoTime();
+        assertBudgetExceeded(QueryBudgetExceededException.Limit.TIMEOUT,
+                () -> eternalIndexedCache.retrieve(equal(slowColour, "blue"), queryOptions(QueryBudget.UNLIMITED.withTimeout(100, MILLISECONDS))));
+        assertEquals(0, eternalIndexedCache.retrieve(equal(slowColour, "blue"),
+                queryOptions(QueryBudget.UNLIMITED.withTimeout(100, MILLISECONDS).cuttingShort())).size());
+        assertTrue(System.nanoTime() - start < MILLISECONDS.toNanos(1000));
+        eternalIndexedCache.close();
+        eternalIndexedCache.getCache().close();
+    }
+
+    @Test
+    public void testQueryBudgetsBoundCountsThatAreNotReadFromIndexes() {
+        Attribute<Widget, String> slowColour = attribute("slowColour", widget -> {
+            Waiter.justWaitMillis(2);
+            return widget.getColour();
+        });
+        IndexedCache<Widget, Widget> eternalIndexedCache = newIndexedCacheWithoutExpiry();
+        eternalIndexedCache.addIndex(HashIndex.onAttribute(Widget_Name));
+        for (int i = 0; i < 1000; i++) {
+            eternalIndexedCache.add(colouredWidget("Widget" + i, "red"));
+        }
+
+        // Counts read from an index are not limited by the budget of their query
+        QueryBudget cheap = QueryBudget.UNLIMITED.withMaxRetrievalCost(100);
+        eternalIndexedCache.setDefaultQueryBudget(cheap);
+        assertEquals(1, eternalIndexedCache.count(equal(Widget_Name, "Widget3")));
+        assertBudgetExceeded(QueryBudgetExceededException.Limit.RETRIEVAL_COST, () -> eternalIndexedCache.count(equal(slowColour, "red")));
+        assertBudgetExceeded(QueryBudgetExceededException.Limit.RETRIEVAL_COST, () -> eternalIndexedCache.exists(equal(slowColour, "blue")));
+        eternalIndexedCache.setDefaultQueryBudget(null);
+
+        long start = System.nanoTime();
+        QueryBudget quick = QueryBudget.UNLIMITED.withTimeout(100, MILLISECONDS);
+        assertBudgetExceeded(QueryBudgetExceededException.Limit.TIMEOUT, () -> eternalIndexedCache.count(equal(slowColour, "red"), queryOptions(quick)));
+        assertTrue(eternalIndexedCache.count(equal(slowColour, "red"), queryOptions(quick.cuttingShort())) < 1000);
+        assertFalse(eternalIndexedCache.exists(equal(slowColour, "blue"), queryOptions(quick.cuttingShort())));
+        assertTrue(System.nanoTime() - start < MILLISECONDS.toNanos(1000));
+
+        assertEquals(3, eternalIndexedCache.getMXBean().getRejectedQueryCount());
+        assertEquals(2, eternalIndexedCache.getMXBean().getCutShortQueryCount());
+        eternalIndexedCache.close();
+        eternalIndexedCache.getCache().close();
+    }
+
+    private static void assertBudgetExceeded(QueryBudgetExceededException.Limit limit, Runnable retrieval) {
+        try {
+            retrieval.run();
+            fail("Expected the query to exceed its " + limit + " budget");
+        } catch (QueryBudgetExceededException e) {
+            assertEquals(limit, e.getLimit());
+        }
+    }
+
+    /**
+     * Make an IndexedCache on a cache without expiry, for tests that take longer than the time to live of the fixture's
+     * cache.
+     */
+    private IndexedCache<Widget, Widget> newIndexedCacheWithoutExpiry() {
+        return new IndexedCache<>(new ConcurrentIndexedCollection<>(), newCacheWithoutExpiry(), cacheKeyMaker);
+    }
+
+    private static Cache<Widget, Widget> newCacheWithoutExpiry() {
+        return Caching.getCachingProvider().getCacheManager().createCache(UUID.randomUUID().toString(),
+                new MutableConfiguration<Widget, Widget>().setTypes(Widget.class, Widget.class).setStoreByValue(false));
+    }
+
+    private static Widget colouredWidget(String name, String colour) {
+        Widget widget = new Widget(name);
+        widget.setColour(new String(colour)); // An equal but distinct instance, as if deserialized
+        return widget;
+    }
+
+    private boolean hasQueryShape(String shape) {
+        return indexedCache.getMXBean().getQueryShapeStatistics().stream().anyMatch(s -> s.getShape().equals(shape));
+    }
+
     private void testCacheOnlyHits(int expectedHitCount) {
 
         CacheStatisticsMXBean stats = CacheStatsProvider.getCacheStatisticsMXBean(indexedCache.getCache().getName());
@@ -77,6 +77,9 @@ public class LimitedCacheIndexedCacheTest {
 
     @After
     public void tearDown() {
+        if (indexedCache != null) {
+            indexedCache.close();
+        }
         if (cache != null && !cache.isClosed()) {
             cache.close();
         }
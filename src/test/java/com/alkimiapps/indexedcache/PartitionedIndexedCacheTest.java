@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2019. Allan Boyd
+ * This program is made available under the terms of the Apache License v2.0.
+ */
+
+package com.alkimiapps.indexedcache;
+
+import com.alkimiapps.async.Waiter;
+import com.alkimiapps.indexedcache.internal.SubclassableClassUniqueInstanceMaker;
+import com.alkimiapps.keys.Widget;
+import com.googlecode.cqengine.ConcurrentIndexedCollection;
+import com.googlecode.cqengine.attribute.Attribute;
+import com.googlecode.cqengine.index.hash.HashIndex;
+import com.googlecode.cqengine.resultset.ResultSet;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.cache.Cache;
+import javax.cache.CacheManager;
+import javax.cache.Caching;
+import javax.cache.configuration.MutableConfiguration;
+import javax.cache.spi.CachingProvider;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+import static com.googlecode.cqengine.query.QueryFactory.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class PartitionedIndexedCacheTest {
+
+    private static final Attribute<Widget, String> Widget_Name = attribute("widgetName", Widget::getName);
+    private static final Attribute<Widget, Widget> Widget_Key = attribute("widgetKey", widget -> widget);
+    private static final int PARTITIONS = 4;
+    private PartitionedIndexedCache<Widget, Widget> partitionedIndexedCache;
+    private Cache<Widget, Widget> cache;
+
+    @Before
+    public void setup() {
+        CachingProvider provider = Caching.getCachingProvider();
+        CacheManager cacheManager = provider.getCacheManager();
+        MutableConfiguration<Widget, Widget> configuration = new MutableConfiguration<Widget, Widget>()
+                .setTypes(Widget.class, Widget.class)
+                .setStoreByValue(false);
+        cache = cacheManager.createCache(UUID.randomUUID().toString(), configuration);
+        partitionedIndexedCache = new PartitionedIndexedCache<>(ConcurrentIndexedCollection::new, cache, new IdentityCacheKeyMaker<>(),
+                new SubclassableClassUniqueInstanceMaker<>(), Widget_Key, PARTITIONS);
+        List<Widget> widgets = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            widgets.add(new Widget("Widget" + i));
+        }
+        partitionedIndexedCache.addAll(widgets);
+    }
+
+    @After
+    public void tearDown() {
+        cache.close();
+    }
+
+    @Test
+    public void testObjectsAreSplitAcrossPartitions() {
+        assertEquals(100, partitionedIndexedCache.size());
+        for (IndexedCache<Widget, Widget> partition : partitionedIndexedCache.getPartitions()) {
+            assertTrue(partition.size() > 0);
+            partition.forEach(widget -> assertEquals(partition, partitionedIndexedCache.getPartitions().get(partitionedIndexedCache.partitionOf(widget))));
+        }
+        assertTrue(partitionedIndexedCache.contains(new Widget("Widget42")));
+        assertTrue(partitionedIndexedCache.remove(new Widget("Widget42")));
+        assertEquals(99, partitionedIndexedCache.size());
+    }
+
+    @Test
+    public void testRetrieveMergesPartitionsInOrder() {
+        partitionedIndexedCache.addIndex(() -> HashIndex.onAttribute(Widget_Name));
+        ResultSet<Widget> resultSet = partitionedIndexedCache.retrieve(startsWith(Widget_Name, "Widget1"),
+                queryOptions(orderBy(descending(Widget_Name))));
+        List<String> names = resultSet.stream().map(Widget::getName).collect(Collectors.toList());
+        List<String> expected = new ArrayList<>(names);
+        expected.sort(Comparator.reverseOrder());
+        assertEquals(11, names.size());
+        assertEquals(expected, names);
+        assertTrue(resultSet.contains(new Widget("Widget15")));
+        resultSet.close();
+    }
+
+    @Test
+    public void testResultsRetrievedWithoutQueryOptionsCanBeMatched() {
+        try (ResultSet<Widget> resultSet = partitionedIndexedCache.retrieve(startsWith(Widget_Name, "Widget1"))) {
+            assertEquals(11, resultSet.size());
+            assertTrue(resultSet.matches(new Widget("Widget15")));
+            assertFalse(resultSet.matches(new Widget("Widget25")));
+            assertNotNull(resultSet.getQueryOptions());
+        }
+    }
+
+    @Test
+    public void testKeyQueriesOnlyTouchOnePartition() {
+        Widget widget = new Widget("Widget7");
+        assertEquals(1, partitionedIndexedCache.retrieve(equal(Widget_Key, widget)).size());
+        int partition = partitionedIndexedCache.partitionOf(widget);
+        for (int i = 0; i < PARTITIONS; i++) {
+            IndexedCache<Widget, Widget> indexedCache = partitionedIndexedCache.getPartitions().get(i);
+            assertEquals(i == partition ? 1 : 0, indexedCache.getMXBean().getQueryShapeStatistics().size());
+        }
+    }
+
+    @Test
+    public void testCacheChangesOnlyReachTheirPartition() {
+        Widget widget = new Widget("Added to the cache");
+        cache.put(widget, widget);
+        IndexedCache<Widget, Widget> partition = partitionedIndexedCache.getPartitions().get(partitionedIndexedCache.partitionOf(widget));
+        Waiter.waitForValueWithTimeout(() -> partition.contains(widget) ? true : null);
+        assertTrue(partition.contains(widget));
+        assertEquals(101, partitionedIndexedCache.size());
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (c) 2019. Allan Boyd
+ * This program is made available under the terms of the Apache License v2.0.
+ */
+
+package com.alkimiapps.indexedcache;
+
+import com.alkimiapps.async.Waiter;
+import com.alkimiapps.keys.Widget;
+import com.googlecode.cqengine.ConcurrentIndexedCollection;
+import com.googlecode.cqengine.attribute.SimpleAttribute;
+import com.googlecode.cqengine.index.hash.HashIndex;
+import com.googlecode.cqengine.persistence.offheap.OffHeapPersistence;
+import com.googlecode.cqengine.query.option.QueryOptions;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.cache.Cache;
+import javax.cache.Caching;
+import javax.cache.configuration.MutableConfiguration;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static com.googlecode.cqengine.query.QueryFactory.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TieredIndexedCacheTest {
+
+    private static final SimpleAttribute<Widget, String> Widget_Name = attribute(Widget.class, String.class, "widgetName", Widget::getName);
+
+    private Cache<Widget, Widget> cache;
+    private TieredIndexedCache<Widget, Widget> tieredIndexedCache;
+
+    @Before
+    public void setup() {
+        cache = Caching.getCachingProvider().getCacheManager().createCache(UUID.randomUUID().toString(),
+                new MutableConfiguration<Widget, Widget>().setTypes(Widget.class, Widget.class).setStoreByValue(false));
+        // Migrate only when the test says so
+        tieredIndexedCache = new TieredIndexedCache<>(new ConcurrentIndexedCollection<>(),
+                new ConcurrentIndexedCollection<>(OffHeapPersistence.onPrimaryKey(Widget_Name)), cache, new IdentityCacheKeyMaker<>(),
+                2, 1, TimeUnit.HOURS);
+        tieredIndexedCache.getTier(TieredIndexedCache.Tier.HOT).addIndex(HashIndex.onAttribute(Widget_Name));
+        for (int i = 0; i < 10; i++) {
+            tieredIndexedCache.add(new Widget("Widget" + i));
+        }
+    }
+
+    @After
+    public void tearDown() {
+        tieredIndexedCache.close();
+        cache.close();
+    }
+
+    @Test
+    public void testFrequentlyHitObjectsMoveToTheHotTier() {
+        assertEquals(10, tieredIndexedCache.getTier(TieredIndexedCache.Tier.COLD).size());
+        hit("Widget3", 4);
+        hit("Widget5", 2);
+        hit("Widget7", 1);
+        waitForHits(7);
+
+        assertEquals(2, tieredIndexedCache.migrate());
+        IndexedCache<Widget, Widget> hotTier = tieredIndexedCache.getTier(TieredIndexedCache.Tier.HOT);
+        assertEquals(2, hotTier.size());
+        assertTrue(hotTier.contains(new Widget("Widget3")) && hotTier.contains(new Widget("Widget5")));
+        assertEquals(8, tieredIndexedCache.getTier(TieredIndexedCache.Tier.COLD).size());
+        // Queries see both tiers
+        assertEquals(10, tieredIndexedCache.retrieve(all(Widget.class)).size());
+        assertEquals(1, tieredIndexedCache.retrieve(equal(Widget_Name, "Widget3")).size());
+
+        // Once Widget7 is hit more often than Widget5 they swap tiers
+        hit("Widget7", 10);
+        waitForHits(28);
+        assertEquals(2, tieredIndexedCache.migrate());
+        assertTrue(hotTier.contains(new Widget("Widget7")));
+        assertTrue(tieredIndexedCache.getTier(TieredIndexedCache.Tier.COLD).contains(new Widget("Widget5")));
+        assertEquals(1, tieredIndexedCache.getDemotionCount());
+        assertEquals(3, tieredIndexedCache.getPromotionCount());
+
+        // Writes follow the tier of their key
+        assertTrue(tieredIndexedCache.remove(new Widget("Widget7")));
+        assertEquals(1, hotTier.size());
+        assertEquals(9, tieredIndexedCache.size());
+    }
+
+    @Test
+    public void testTheObjectMovedIsTheOneInTheCache() {
+        hit("Widget3", 2);
+        waitForHits(2);
+        Widget replacement = new Widget("Widget3");
+        assertTrue(tieredIndexedCache.remove(new Widget("Widget3")));
+        assertTrue(tieredIndexedCache.add(replacement));
+
+        assertEquals(1, tieredIndexedCache.migrate());
+        IndexedCache<Widget, Widget> hotTier = tieredIndexedCache.getTier(TieredIndexedCache.Tier.HOT);
+        assertSame(replacement, hotTier.iterator().next());
+        assertEquals(10, tieredIndexedCache.size());
+    }
+
+    @Test
+    public void testTheObjectMovedIsTheLatestOneWrittenToTheCache() {
+        hit("Widget3", 2);
+        waitForHits(2);
+        Widget replacement = new Widget("Widget3");
+        replacement.setColour("Red");
+        cache.put(new Widget("Widget3"), replacement);
+        IndexedCache<Widget, Widget> coldTier = tieredIndexedCache.getTier(TieredIndexedCache.Tier.COLD);
+        Waiter.waitForValueWithTimeout(() -> "Red".equals(coldTier.retrieveSnapshot(equal(Widget_Name, "Widget3")).uniqueResult().getColour()) ? true : null);
+
+        // The cold tier is off-heap so the object moved is a copy of the replacement
+        assertEquals(1, tieredIndexedCache.migrate());
+        assertEquals("Red", tieredIndexedCache.getTier(TieredIndexedCache.Tier.HOT).iterator().next().getColour());
+        assertEquals(10, tieredIndexedCache.size());
+    }
+
+    @Test
+    public void testMovedKeysAreRegisteredWithTheirNewTier() {
+        Cache<Long, Widget> longKeyedCache = Caching.getCachingProvider().getCacheManager().createCache(UUID.randomUUID().toString(),
+                new MutableConfiguration<Long, Widget>().setTypes(Long.class, Widget.class).setStoreByValue(false));
+        TieredIndexedCache<Long, Widget> longKeyedTieredIndexedCache = new TieredIndexedCache<>(new ConcurrentIndexedCollection<>(),
+                new ConcurrentIndexedCollection<>(), longKeyedCache, (LongCacheKeyMaker<Widget>) widget -> Long.parseLong(widget.getName()),
+                2, 1, TimeUnit.HOURS);
+        for (int i = 0; i < 5; i++) {
+            longKeyedTieredIndexedCache.add(new Widget(String.valueOf(i)));
+        }
+        assertEquals(1, longKeyedTieredIndexedCache.retrieve(equal(Widget_Name, "3")).size());
+        Waiter.waitForValueWithTimeout(() -> longKeyedTieredIndexedCache.getHitCount(TieredIndexedCache.Tier.COLD) == 1 ? true : null);
+
+        assertEquals(1, longKeyedTieredIndexedCache.migrate());
+        assertEquals(1, longKeyedTieredIndexedCache.getTier(TieredIndexedCache.Tier.HOT).getCacheKeys().size());
+        assertEquals(4, longKeyedTieredIndexedCache.getTier(TieredIndexedCache.Tier.COLD).getCacheKeys().size());
+        longKeyedTieredIndexedCache.close();
+        longKeyedCache.close();
+    }
+
+    @Test
+    public void testObjectsAreMigratedEveryMigrationInterval() {
+        Cache<Widget, Widget> periodicCache = Caching.getCachingProvider().getCacheManager().createCache(UUID.randomUUID().toString(),
+                new MutableConfiguration<Widget, Widget>().setTypes(Widget.class, Widget.class).setStoreByValue(false));
+        TieredIndexedCache<Widget, Widget> periodicTieredIndexedCache = new TieredIndexedCache<>(new ConcurrentIndexedCollection<>(),
+                new ConcurrentIndexedCollection<>(), periodicCache, new IdentityCacheKeyMaker<>(), 2, 50, TimeUnit.MILLISECONDS);
+        periodicTieredIndexedCache.add(new Widget("Widget1"));
+        assertEquals(1, periodicTieredIndexedCache.retrieve(equal(Widget_Name, "Widget1")).size());
+
+        Waiter.waitForValueWithTimeout(() -> periodicTieredIndexedCache.getPromotionCount() == 1 ? true : null);
+        assertEquals(1, periodicTieredIndexedCache.getTier(TieredIndexedCache.Tier.HOT).size());
+        periodicTieredIndexedCache.close();
+        periodicCache.close();
+    }
+
+    @Test
+    public void testKeysWhoseObjectsWereRemovedStayInTheColdTier() {
+        hit("Widget3", 2);
+        waitForHits(2);
+        assertTrue(tieredIndexedCache.remove(new Widget("Widget3")));
+
+        assertEquals(0, tieredIndexedCache.migrate());
+        assertEquals(0, tieredIndexedCache.getPromotionCount());
+        assertTrue(tieredIndexedCache.add(new Widget("Widget3")));
+        assertEquals(0, tieredIndexedCache.getTier(TieredIndexedCache.Tier.HOT).size());
+        assertEquals(10, tieredIndexedCache.getTier(TieredIndexedCache.Tier.COLD).size());
+    }
+
+    @Test
+    public void testQueriesOfTheColdTierAreShapedWithItsOffHeapIndex() {
+        hit("Widget3", 1);
+        IndexedCache<Widget, Widget> coldTier = tieredIndexedCache.getTier(TieredIndexedCache.Tier.COLD);
+        Waiter.waitForValueWithTimeout(() -> coldTier.getMXBean().getQueryShapeStatistics().stream()
+                .anyMatch(statistics -> statistics.getShape().equals("equal(widgetName)@SQLiteOffHeapIdentityIndex")) ? true : null);
+        assertTrue(coldTier.getMXBean().getQueryShapeStatistics().stream()
+                .anyMatch(statistics -> statistics.getShape().equals("equal(widgetName)@SQLiteOffHeapIdentityIndex")));
+    }
+
+    @Test
+    public void testHitRatios() {
+        hit("Widget1", 4);
+        waitForHits(4);
+        tieredIndexedCache.migrate();
+        hit("Widget1", 4);
+        waitForHits(8);
+        assertEquals(0.5, tieredIndexedCache.getHitRatio(TieredIndexedCache.Tier.HOT), 0.0);
+        assertEquals(0.5, tieredIndexedCache.getHitRatio(TieredIndexedCache.Tier.COLD), 0.0);
+    }
+
+    private void waitForHits(long hits) {
+        Waiter.waitForValueWithTimeout(() -> tieredIndexedCache.getHitCount(TieredIndexedCache.Tier.HOT)
+                + tieredIndexedCache.getHitCount(TieredIndexedCache.Tier.COLD) == hits ? true : null);
+    }
+
+    private void hit(String name, int times) {
+        for (int i = 0; i < times; i++) {
+            assertEquals(1, tieredIndexedCache.retrieve(equal(Widget_Name, name), new QueryOptions()).size());
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2019. Allan Boyd
+ * This program is made available under the terms of the Apache License v2.0.
+ */
+
+package com.alkimiapps.indexedcache;
+
+import com.alkimiapps.keys.Widget;
+import com.googlecode.cqengine.ConcurrentIndexedCollection;
+import com.googlecode.cqengine.attribute.Attribute;
+import com.googlecode.cqengine.index.hash.HashIndex;
+import com.googlecode.cqengine.index.navigable.NavigableIndex;
+import com.googlecode.cqengine.resultset.ResultSet;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.cache.CacheManager;
+import javax.cache.Caching;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.googlecode.cqengine.query.QueryFactory.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TimeBucketedIndexedCacheTest {
+
+    private static final Attribute<Widget, String> Widget_Name = attribute("widgetName", Widget::getName);
+    // The widgets in these tests are named after their time e.g. "Widget150"
+    private static final Attribute<Widget, Long> Widget_Time = attribute("widgetTime", w -> Long.parseLong(w.getName().substring("Widget".length())));
+
+    private CacheManager cacheManager;
+    private String name;
+    private AtomicLong clock = new AtomicLong();
+    private TimeBucketedIndexedCache<Widget, Widget> timeBucketedIndexedCache;
+
+    @Before
+    public void setup() {
+        cacheManager = Caching.getCachingProvider().getCacheManager();
+        name = UUID.randomUUID().toString();
+        timeBucketedIndexedCache = new TimeBucketedIndexedCache<>(cacheManager, name, Widget.class, Widget.class, new IdentityCacheKeyMaker<>(),
+                ConcurrentIndexedCollection::new, Widget_Time, 1000, 100, TimeUnit.MILLISECONDS, clock::get);
+        timeBucketedIndexedCache.addIndex(() -> HashIndex.onAttribute(Widget_Name));
+    }
+
+    @After
+    public void tearDown() {
+        timeBucketedIndexedCache.close();
+    }
+
+    @Test
+    public void testObjectsAreBucketedByTimeAdded() {
+        addAt(0, 10, 20);
+        addAt(150, 160);
+        addAt(250);
+
+        assertEquals(3, timeBucketedIndexedCache.getBucketCount());
+        assertEquals(3, timeBucketedIndexedCache.getBuckets().get(0).size());
+        assertEquals(6, timeBucketedIndexedCache.size());
+        assertTrue(timeBucketedIndexedCache.contains(new Widget("Widget160")));
+        assertEquals(1, timeBucketedIndexedCache.retrieve(equal(Widget_Name, "Widget160")).size());
+        assertTrue(timeBucketedIndexedCache.remove(new Widget("Widget160")));
+        assertFalse(timeBucketedIndexedCache.contains(new Widget("Widget160")));
+        // Indexes added later are added to every bucket
+        timeBucketedIndexedCache.addIndex(() -> NavigableIndex.onAttribute(Widget_Time));
+        assertEquals(2, timeBucketedIndexedCache.getBuckets().get(2).getMXBean().getIndexSizes().size());
+    }
+
+    @Test
+    public void testTimeRangeQueriesSkipBuckets() {
+        addAt(0, 10, 20);
+        addAt(150, 160);
+        addAt(250);
+
+        try (ResultSet<Widget> results = timeBucketedIndexedCache.retrieve(between(Widget_Time, 140L, 300L), queryOptions(orderBy(ascending(Widget_Time))))) {
+            assertEquals(Arrays.asList("Widget150", "Widget160", "Widget250"), names(results));
+        }
+        assertTrue(timeBucketedIndexedCache.getBuckets().get(0).getMXBean().getQueryShapeStatistics().isEmpty());
+        assertFalse(timeBucketedIndexedCache.getBuckets().get(1).getMXBean().getQueryShapeStatistics().isEmpty());
+
+        try (ResultSet<Widget> results = timeBucketedIndexedCache.retrieve(or(lessThan(Widget_Time, 15L), greaterThan(Widget_Time, 200L)))) {
+            assertEquals(new HashSet<>(Arrays.asList("Widget0", "Widget10", "Widget250")), new HashSet<>(names(results)));
+        }
+    }
+
+    @Test
+    public void testWholeBucketsExpire() {
+        addAt(0, 10, 20);
+        addAt(150, 160);
+
+        clock.set(1099);
+        assertEquals(0, timeBucketedIndexedCache.dropExpiredBuckets());
+        clock.set(1100);
+        assertEquals(1, timeBucketedIndexedCache.dropExpiredBuckets());
+
+        assertEquals(1, timeBucketedIndexedCache.getBucketCount());
+        assertEquals(2, timeBucketedIndexedCache.size());
+        assertFalse(timeBucketedIndexedCache.contains(new Widget("Widget10")));
+        assertNull(cacheManager.getCache(name + "-0", Widget.class, Widget.class));
+        assertEquals(1, timeBucketedIndexedCache.getBucketsDropped());
+    }
+
+    private void addAt(long time, long... moreTimes) {
+        clock.set(time);
+        timeBucketedIndexedCache.add(new Widget("Widget" + time));
+        for (long moreTime : moreTimes) {
+            timeBucketedIndexedCache.add(new Widget("Widget" + moreTime));
+        }
+    }
+
+    private static List<String> names(ResultSet<Widget> results) {
+        List<String> names = new ArrayList<>();
+        results.forEach(widget -> names.add(widget.getName()));
+        return names;
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2019. Allan Boyd
+ * This program is made available under the terms of the Apache License v2.0.
+ */
+
+package com.alkimiapps.indexedcache;
+
+import com.alkimiapps.async.Waiter;
+import com.alkimiapps.keys.Widget;
+import com.googlecode.cqengine.ConcurrentIndexedCollection;
+import com.googlecode.cqengine.attribute.Attribute;
+import com.googlecode.cqengine.index.hash.HashIndex;
+import com.googlecode.cqengine.query.Query;
+import org.ehcache.config.builders.CacheConfigurationBuilder;
+import org.ehcache.config.builders.ResourcePoolsBuilder;
+import org.ehcache.jsr107.Eh107Configuration;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.cache.Cache;
+import javax.cache.CacheManager;
+import javax.cache.Caching;
+import javax.cache.configuration.MutableConfiguration;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static com.googlecode.cqengine.query.QueryFactory.attribute;
+import static com.googlecode.cqengine.query.QueryFactory.equal;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class WorkloadReplayerTest {
+
+    private static final Attribute<Widget, String> Widget_Name = attribute("widgetName", Widget::getName);
+    private static final Attribute<Widget, String> Widget_Colour = attribute("widgetColour", Widget::getColour);
+    private static final String[] COLOURS = {"red", "green", "blue", "yellow"};
+
+    private final CacheManager cacheManager = Caching.getCachingProvider().getCacheManager();
+    private final Map<Integer, String> namesByKeyHash = new HashMap<>();
+    private Path recording;
+
+    @Before
+    public void setup() throws IOException {
+        recording = Files.createTempFile("workload", ".log");
+        for (int i = 0; i < 100; i++) {
+            namesByKeyHash.put(new Widget("Widget" + i).hashCode(), "Widget" + i);
+        }
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(recording);
+    }
+
+    @Test
+    public void testRecordedWorkloadIsReplayedAgainstEachScenario() throws IOException {
+        IndexedCache<Widget, Widget> indexedCache = new IndexedCache<>(new ConcurrentIndexedCollection<>(), unboundedCache(), new IdentityCacheKeyMaker<>());
+        indexedCache.addIndex(HashIndex.onAttribute(Widget_Colour));
+        WorkloadRecorder<Widget, Widget> recorder = new WorkloadRecorder<>(indexedCache, recording);
+        for (int i = 0; i < 100; i++) {
+            indexedCache.add(widget("Widget" + i));
+        }
+        for (int i = 0; i < 20; i++) {
+            Widget current = indexedCache.retrieveSnapshot(equal(Widget_Name, "Widget" + i)).uniqueResult();
+            indexedCache.update(Collections.singleton(current), Collections.singleton(widget("Widget" + i)));
+        }
+        for (int i = 90; i < 100; i++) {
+            indexedCache.remove(widget("Widget" + i));
+        }
+        int hits = 0;
+        for (int i = 0; i < 40; i++) {
+            hits += indexedCache.retrieve(equal(Widget_Colour, COLOURS[i % COLOURS.length])).size();
+            hits += indexedCache.retrieve(equal(Widget_Name, "Widget" + i)).size();
+        }
+        // Adds, updates (each also a retrieve), removes, retrieves, their cache hits and two query shapes
+        int events = 100 + 20 * 2 + 10 + 80 + (hits + 20) + 2;
+        Waiter.waitForValueWithTimeout(() -> recorder.getEventCount() == events ? true : null);
+        assertEquals(events, recorder.getEventCount());
+        recorder.close();
+        indexedCache.close();
+        indexedCache.getCache().close();
+        assertTrue(Files.size(recording) + " bytes", Files.size(recording) < events * 8);
+
+        WorkloadReplayer<Widget, Widget> replayer = new WorkloadReplayer<>(recording, new IdentityCacheKeyMaker<>(),
+                keyHash -> widget(namesByKeyHash.get(keyHash)), this::queryOfShape);
+        List<WorkloadReplayReport> reports = replayer.replay(
+                WorkloadReplayer.Scenario.<Widget, Widget>named("unbounded", this::unboundedCache)
+                        .withIndex(() -> HashIndex.onAttribute(Widget_Colour)),
+                WorkloadReplayer.Scenario.<Widget, Widget>named("10 entries", () -> boundedCache(10)));
+
+        WorkloadReplayReport unbounded = reports.get(0);
+        assertEquals("unbounded", unbounded.getScenarioName());
+        assertEquals(130, unbounded.getWriteCount());
+        assertEquals(100, unbounded.getRetrieveCount());
+        assertEquals(0, unbounded.getSkippedRetrieveCount());
+        assertEquals(hits + 20, unbounded.getRecordedHitCount());
+        assertEquals(1.0, unbounded.getHitRate(), 0.0);
+        assertEquals(hits + 20, unbounded.getRecordedResultCount());
+        assertEquals(90, unbounded.getFootprintEstimate().getObjectCount());
+        assertTrue(unbounded.getQueryShapeStatistics().stream().anyMatch(statistics -> statistics.getShape().equals("equal(widgetColour)@HashIndex")));
+
+        WorkloadReplayReport bounded = reports.get(1);
+        assertEquals(130, bounded.getWriteCount());
+        assertTrue(bounded.toString(), bounded.getHitRate() < 0.5);
+        assertTrue(bounded.getQueryShapeStatistics().stream().anyMatch(statistics -> statistics.getShape().equals("equal(widgetColour)@none")));
+    }
+
+    @Test
+    public void testQueriesOfShapesWithoutAQueryAreSkipped() throws IOException {
+        IndexedCache<Widget, Widget> indexedCache = new IndexedCache<>(new ConcurrentIndexedCollection<>(), unboundedCache(), new IdentityCacheKeyMaker<>());
+        WorkloadRecorder<Widget, Widget> recorder = new WorkloadRecorder<>(indexedCache, recording);
+        indexedCache.add(widget("Widget1"));
+        indexedCache.retrieve(equal(Widget_Colour, "red")).size();
+        recorder.close();
+        indexedCache.close();
+        indexedCache.getCache().close();
+
+        WorkloadReplayer<Widget, Widget> replayer = new WorkloadReplayer<>(recording, new IdentityCacheKeyMaker<>(),
+                keyHash -> widget(namesByKeyHash.get(keyHash)), shape -> null);
+        WorkloadReplayReport report = replayer.replay(WorkloadReplayer.Scenario.named("unbounded", this::unboundedCache));
+        assertEquals(1, report.getWriteCount());
+        assertEquals(0, report.getRetrieveCount());
+        assertEquals(1, report.getSkippedRetrieveCount());
+    }
+
+    private Query<Widget> queryOfShape(String shape) {
+        switch (shape) {
+            case "equal(widgetColour)":
+                return equal(Widget_Colour, "red");
+            case "equal(widgetName)":
+                return equal(Widget_Name, "Widget1");
+            default:
+                return null;
+        }
+    }
+
+    private static Widget widget(String name) {
+        Widget widget = new Widget(name);
+        widget.setColour(COLOURS[Integer.parseInt(name.substring("Widget".length())) % COLOURS.length]);
+        return widget;
+    }
+
+    private Cache<Widget, Widget> unboundedCache() {
+        return cacheManager.createCache(UUID.randomUUID().toString(), new MutableConfiguration<Widget, Widget>()
+                .setTypes(Widget.class, Widget.class).setStoreByValue(false));
+    }
+
+    private Cache<Widget, Widget> boundedCache(int maxEntries) {
+        return cacheManager.createCache(UUID.randomUUID().toString(), Eh107Configuration.fromEhcacheCacheConfiguration(
+                CacheConfigurationBuilder.newCacheConfigurationBuilder(Widget.class, Widget.class, ResourcePoolsBuilder.heap(maxEntries)).build()));
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2019. Allan Boyd
+ * This program is made available under the terms of the Apache License v2.0.
+ */
+
+package com.alkimiapps.indexedcache.internal;
+
+import com.alkimiapps.keys.Widget;
+import com.googlecode.cqengine.ConcurrentIndexedCollection;
+import com.googlecode.cqengine.IndexedCollection;
+import com.googlecode.cqengine.attribute.Attribute;
+import com.googlecode.cqengine.index.hash.HashIndex;
+import com.googlecode.cqengine.query.option.QueryOptions;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static com.googlecode.cqengine.query.QueryFactory.attribute;
+import static com.googlecode.cqengine.query.QueryFactory.equal;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BackgroundIndexTest {
+
+    @Test
+    public void testAFailedBuildLeavesTheIndexFailedAndOutOfService() {
+        Attribute<Widget, String> failingName = attribute("failingName", widget -> {
+            if (widget.getName().equals("Widget42")) {
+                throw new IllegalStateException("Widget42 has no name");
+            }
+            return widget.getName();
+        });
+        IndexedCollection<Widget> indexedCollection = newCollection(100);
+        BackgroundIndex<String, Widget> index = new BackgroundIndex<>(HashIndex.onAttribute(failingName));
+        indexedCollection.addIndex(index);
+
+        index.build(Runnable::run);
+
+        assertEquals(BackgroundIndex.State.FAILED, index.getState());
+        assertTrue(index.isOutOfService());
+        assertTrue(index.getFailure() instanceof IllegalStateException);
+        assertFalse(index.supportsQuery(equal(failingName, "Widget1"), new QueryOptions()));
+        indexedCollection.add(new Widget("Later"));
+        assertEquals(0, index.getWrappedIndex().retrieve(equal(failingName, "Later"), new QueryOptions()).size());
+        assertEquals(0, index.getWrappedIndex().retrieve(equal(failingName, "Widget1"), new QueryOptions()).size());
+    }
+
+    @Test
+    public void testChunksStillRunningWhenRetiredDoNotRefillTheIndex() throws Exception {
+        CountDownLatch building = new CountDownLatch(1);
+        CountDownLatch retired = new CountDownLatch(1);
+        Attribute<Widget, String> slowName = attribute("slowName", widget -> {
+            building.countDown();
+            try {
+                retired.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return widget.getName();
+        });
+        IndexedCollection<Widget> indexedCollection = newCollection(3 * BackgroundIndex.DEFAULT_CHUNK_SIZE);
+        BackgroundIndex<String, Widget> index = new BackgroundIndex<>(HashIndex.onAttribute(slowName));
+        indexedCollection.addIndex(index);
+        ExecutorService builder = Executors.newSingleThreadExecutor();
+
+        index.build(builder);
+        assertTrue(building.await(10, TimeUnit.SECONDS));
+        index.retire();
+        retired.countDown();
+        builder.shutdown();
+        assertTrue(builder.awaitTermination(10, TimeUnit.SECONDS));
+
+        assertEquals(BackgroundIndex.State.RETIRED, index.getState());
+        assertEquals(0, ((HashIndex<String, Widget>) index.getWrappedIndex()).getCountOfDistinctKeys(new QueryOptions()).intValue());
+    }
+
+    private static IndexedCollection<Widget> newCollection(int size) {
+        IndexedCollection<Widget> indexedCollection = new ConcurrentIndexedCollection<>();
+        for (int i = 0; i < size; i++) {
+            indexedCollection.add(new Widget("Widget" + i));
+        }
+        return indexedCollection;
+    }
+}
@@ -31,6 +31,7 @@ import java.util.List;
 import static com.alkimiapps.cache.CacheInfo.cacheEntryCount;
 import static junit.framework.TestCase.assertNotNull;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
@@ -174,5 +175,31 @@ public class CacheMaintainerTest {
         assertNull(cacheWithObjectKeys.get(widgetCacheKeyMaker.makeKey(value)));
         assertEquals(0, cacheEntryCount(cacheWithObjectKeys));
     }
-}
 
+    @Test
+    public void testOnlyObjectsInTheCacheAreStampedWhenRemovedInBulk() {
+        KeyVersions keyVersions = new KeyVersions(false);
+        CacheMaintainer<Widget, Widget> cacheMaintainer = new CacheMaintainer<>(cacheWithObjectKeys, CacheKeys.forKeyMaker(widgetCacheKeyMaker),
+                new SubclassableClassUniqueInstanceMaker<>(), new ListenerLagProbe(), keyVersions);
+        Widget bob = new Widget("Bob");
+        cacheMaintainer.objectWasAdded(bob);
+        assertEquals(1, keyVersions.getPendingKeyCount());
+
+        cacheMaintainer.objectsWereRemoved(Arrays.asList(bob, new Widget("Sally")));
+        assertEquals(0, cacheEntryCount(cacheWithObjectKeys));
+        // No event will echo the removal of Sally, who was not in the cache, so a later put of Sally must not be discarded
+        assertEquals(1, keyVersions.getPendingKeyCount());
+        assertFalse(keyVersions.isEcho(KeyVersions.Operation.PUT, new Widget("Sally"), new Widget("Sally")));
+    }
+
+    @Test
+    public void testEntriesWrittenSinceTheirObjectsWereRemovedAreNotRemovedInBulk() {
+        Widget bob = new Widget("Bob");
+        widgetStringCacheMaintainer.objectWasAdded(bob);
+        Widget robert = new Widget("Robert");
+        cacheWithObjectKeys.put(bob, robert);
+
+        widgetStringCacheMaintainer.objectsWereRemoved(Collections.singletonList(bob));
+        assertEquals(robert, cacheWithObjectKeys.get(bob));
+    }
+}
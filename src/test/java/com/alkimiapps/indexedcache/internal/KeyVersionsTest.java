@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2019. Allan Boyd
+ * This program is made available under the terms of the Apache License v2.0.
+ */
+
+package com.alkimiapps.indexedcache.internal;
+
+import com.alkimiapps.keys.Widget;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static com.alkimiapps.indexedcache.internal.KeyVersions.Operation.PUT;
+import static com.alkimiapps.indexedcache.internal.KeyVersions.Operation.REMOVE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class KeyVersionsTest {
+
+    @Test
+    public void testEventsForKeysWithoutWritesAreNotEchoes() {
+        KeyVersions keyVersions = new KeyVersions(false);
+        assertFalse(keyVersions.isEcho(PUT, "Frank", new Widget("Frank")));
+        assertFalse(keyVersions.isEcho(REMOVE, "Frank", new Widget("Frank")));
+        assertEquals(0, keyVersions.getEchoesDiscarded());
+    }
+
+    @Test
+    public void testEchoesOfEachWriteAreDiscardedOnce() {
+        KeyVersions keyVersions = new KeyVersions(false);
+        Widget first = new Widget("Frank");
+        Widget second = new Widget("Frank");
+        keyVersions.writeIssued(PUT, "Frank", first);
+        keyVersions.writeIssued(PUT, "Frank", second);
+
+        // Echoes may arrive in any order
+        assertTrue(keyVersions.isEcho(PUT, "Frank", second));
+        assertFalse(keyVersions.isEcho(PUT, "Bob", first));
+        assertTrue(keyVersions.isEcho(PUT, "Frank", first));
+        assertEquals(0, keyVersions.getPendingKeyCount());
+        assertFalse(keyVersions.isEcho(PUT, "Frank", first));
+        assertEquals(2, keyVersions.getEchoesDiscarded());
+    }
+
+    @Test
+    public void testEventsOfOtherWritersAreNotEchoes() {
+        KeyVersions keyVersions = new KeyVersions(false);
+        Widget ours = new Widget("Frank");
+        keyVersions.writeIssued(PUT, "Frank", ours);
+
+        // Another writer's put of the key, and a remove of the key, do not match the stamp of our put
+        assertFalse(keyVersions.isEcho(PUT, "Frank", new Widget("Frank")));
+        assertFalse(keyVersions.isEcho(REMOVE, "Frank", ours));
+        assertTrue(keyVersions.isEcho(PUT, "Frank", ours));
+    }
+
+    @Test
+    public void testValuesOfStoreByValueCachesMatchByEquals() {
+        KeyVersions keyVersions = new KeyVersions(true);
+        keyVersions.writeIssued(PUT, "Frank", new Widget("Frank"));
+        assertTrue(keyVersions.isEcho(PUT, "Frank", new Widget("Frank")));
+    }
+
+    @Test
+    public void testRemovalsMatchEqualValues() {
+        KeyVersions keyVersions = new KeyVersions(false);
+        keyVersions.writeIssued(REMOVE, "Frank", new Widget("Frank"));
+        assertTrue(keyVersions.isEcho(REMOVE, "Frank", new Widget("Frank")));
+    }
+
+    @Test
+    public void testWithdrawnWritesAreNotWaitedFor() {
+        KeyVersions keyVersions = new KeyVersions(false);
+        Widget frank = new Widget("Frank");
+        keyVersions.writeIssued(REMOVE, "Frank", frank);
+        keyVersions.writeWithdrawn(REMOVE, "Frank", frank);
+
+        assertEquals(0, keyVersions.getPendingKeyCount());
+        assertFalse(keyVersions.isEcho(REMOVE, "Frank", frank));
+    }
+
+    @Test
+    public void testExpiriesOfReplacedValuesAreSuperseded() {
+        KeyVersions keyVersions = new KeyVersions(false);
+        Widget old = new Widget("Frank");
+        Widget replacement = new Widget("Frank");
+        assertFalse(keyVersions.isSuperseded("Frank", old));
+        keyVersions.writeIssued(PUT, "Frank", replacement);
+
+        assertTrue(keyVersions.isSuperseded("Frank", old));
+        assertFalse(keyVersions.isSuperseded("Frank", replacement));
+        assertEquals(1, keyVersions.getPendingKeyCount());
+    }
+
+    @Test
+    public void testConcurrentWritesAndEchoesBalance() throws Exception {
+        KeyVersions keyVersions = new KeyVersions(false);
+        int threadCount = 4;
+        int writesPerThread = 10_000;
+        Widget[][] written = new Widget[threadCount][writesPerThread];
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < threadCount; t++) {
+            Widget[] writtenByThread = written[t];
+            threads.add(new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < writesPerThread; i++) {
+                    writtenByThread[i] = new Widget("Widget" + i % 10);
+                    keyVersions.writeIssued(PUT, i % 10, writtenByThread[i]);
+                }
+            }));
+        }
+        threads.forEach(Thread::start);
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        int discarded = 0;
+        for (int t = 0; t < threadCount; t++) {
+            for (int i = 0; i < writesPerThread; i++) {
+                if (keyVersions.isEcho(PUT, i % 10, written[t][i])) {
+                    discarded++;
+                }
+            }
+        }
+        assertEquals(threadCount * writesPerThread, discarded);
+        assertEquals(0, keyVersions.getPendingKeyCount());
+    }
+}
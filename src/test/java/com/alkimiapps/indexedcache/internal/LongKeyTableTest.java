@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2019. Allan Boyd
+ * This program is made available under the terms of the Apache License v2.0.
+ */
+
+package com.alkimiapps.indexedcache.internal;
+
+import com.alkimiapps.indexedcache.LongCacheKeyMaker;
+import com.alkimiapps.keys.Widget;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class LongKeyTableTest {
+
+    @Test
+    public void testPutGetRemove() {
+        LongKeyTable<String> table = new LongKeyTable<>();
+        for (long i = -5000; i < 5000; i++) {
+            assertNull(table.put(i * 31, "v" + i));
+        }
+        assertEquals(10000, table.size());
+        assertEquals("v42", table.put(42 * 31, "w42"));
+        for (long i = -5000; i < 5000; i += 2) {
+            assertEquals(i == 42 ? "w42" : "v" + i, table.remove(i * 31));
+        }
+        assertEquals(5000, table.size());
+        for (long i = -5000; i < 5000; i++) {
+            assertEquals(i % 2 == 0 ? null : "v" + i, table.get(i * 31));
+        }
+        table.clear();
+        assertEquals(0, table.size());
+        assertNull(table.get(31));
+    }
+
+    @Test
+    public void testCacheKeysReuseRegisteredKeys() {
+        CacheKeys<Long, Widget> cacheKeys = CacheKeys.forKeyMaker((LongCacheKeyMaker<Widget>) widget -> Long.parseLong(widget.getName()));
+        Widget widget = new Widget("123456789");
+        Long key = cacheKeys.register(widget);
+        assertSame(key, cacheKeys.keyFor(widget));
+        cacheKeys.unregister(key);
+        assertEquals(0, cacheKeys.size());
+        assertEquals(key, cacheKeys.keyFor(widget));
+    }
+
+    @Test
+    public void testKeyLookupDoesNotAllocate() {
+        com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Entity[] entities = new Entity[1000];
+        for (int i = 0; i < entities.length; i++) {
+            entities[i] = new Entity(1_000_000L + i * 7919L);
+        }
+        CacheKeys<Long, Entity> cacheKeys = CacheKeys.forKeyMaker((LongCacheKeyMaker<Entity>) entity -> entity.id);
+        for (Entity entity : entities) {
+            cacheKeys.register(entity);
+        }
+        long checksum = 0;
+        for (int warmup = 0; warmup < 200; warmup++) {
+            checksum += lookupAll(cacheKeys, entities);
+        }
+        long before = threadMXBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+        for (int round = 0; round < 100; round++) {
+            checksum += lookupAll(cacheKeys, entities);
+        }
+        long allocated = threadMXBean.getThreadAllocatedBytes(Thread.currentThread().getId()) - before;
+        assertTrue(checksum != 0);
+        // 100,000 lookups: any per-lookup allocation (a boxed Long is 16 bytes) would show up as megabytes
+        assertTrue("Allocated " + allocated + " bytes", allocated < 16 * 1024);
+    }
+
+    private static long lookupAll(CacheKeys<Long, Entity> cacheKeys, Entity[] entities) {
+        long sum = 0;
+        for (Entity entity : entities) {
+            sum += cacheKeys.keyFor(entity);
+        }
+        return sum;
+    }
+
+    private static final class Entity {
+        private final long id;
+
+        Entity(long id) {
+            this.id = id;
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2019. Allan Boyd
+ * This program is made available under the terms of the Apache License v2.0.
+ */
+
+package com.alkimiapps.indexedcache.internal;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MaintenanceSchedulerTest {
+
+    @Test
+    public void testQueuesTakeTurns() throws Exception {
+        MaintenanceScheduler scheduler = new MaintenanceScheduler(1);
+        MaintenanceScheduler.MaintenanceQueue busy = scheduler.newQueue();
+        MaintenanceScheduler.MaintenanceQueue quiet = scheduler.newQueue();
+        List<String> ran = new CopyOnWriteArrayList<>();
+        CountDownLatch queued = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(1);
+
+        busy.execute(() -> await(queued));
+        for (int i = 0; i < 1000; i++) {
+            busy.execute(() -> ran.add("busy"));
+        }
+        busy.execute(done::countDown);
+        quiet.execute(() -> ran.add("quiet"));
+        queued.countDown();
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(1001, ran.size());
+        assertTrue(ran.indexOf("quiet") <= MaintenanceScheduler.QUANTUM);
+        assertEquals(0, busy.size());
+    }
+
+    @Test
+    public void testTasksOfOneQueueRunInOrder() throws Exception {
+        MaintenanceScheduler scheduler = new MaintenanceScheduler(4);
+        MaintenanceScheduler.MaintenanceQueue queue = scheduler.newQueue();
+        List<Integer> ran = new CopyOnWriteArrayList<>();
+        CountDownLatch done = new CountDownLatch(1);
+        for (int i = 0; i < 500; i++) {
+            int task = i;
+            queue.execute(() -> ran.add(task));
+        }
+        queue.execute(done::countDown);
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        for (int i = 0; i < 500; i++) {
+            assertEquals(i, (int) ran.get(i));
+        }
+    }
+
+    @Test
+    public void testClosedQueueDiscardsTasks() {
+        MaintenanceScheduler.MaintenanceQueue queue = new MaintenanceScheduler(1).newQueue();
+        queue.close();
+        queue.execute(() -> {
+            throw new AssertionError("Should not run");
+        });
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void testPeriodicTasksAreQueuedUntilTheQueueIsClosed() throws Exception {
+        MaintenanceScheduler scheduler = new MaintenanceScheduler(1);
+        MaintenanceScheduler.MaintenanceQueue queue = scheduler.newQueue();
+        AtomicInteger runs = new AtomicInteger();
+        CountDownLatch ranTwice = new CountDownLatch(2);
+        queue.executePeriodically(() -> {
+            runs.incrementAndGet();
+            ranTwice.countDown();
+        }, 10, TimeUnit.MILLISECONDS);
+
+        assertTrue(ranTwice.await(10, TimeUnit.SECONDS));
+        queue.close();
+        int runsWhenClosed = runs.get();
+        Thread.sleep(100);
+        assertTrue(runs.get() <= runsWhenClosed + 1);
+    }
+
+    @Test
+    public void testFailedTasksAreCountedAndReportedWithoutStoppingTheQueue() throws Exception {
+        MaintenanceScheduler.MaintenanceQueue queue = new MaintenanceScheduler(1).newQueue();
+        List<Throwable> reported = new CopyOnWriteArrayList<>();
+        Thread.UncaughtExceptionHandler defaultHandler = Thread.getDefaultUncaughtExceptionHandler();
+        Thread.setDefaultUncaughtExceptionHandler((thread, e) -> reported.add(e));
+        try {
+            CountDownLatch done = new CountDownLatch(1);
+            queue.execute(() -> {
+                throw new IllegalStateException("Failed");
+            });
+            queue.execute(done::countDown);
+
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+            assertEquals(1, queue.getFailureCount());
+            assertEquals(1, reported.size());
+            assertEquals("Failed", reported.get(0).getMessage());
+        } finally {
+            Thread.setDefaultUncaughtExceptionHandler(defaultHandler);
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
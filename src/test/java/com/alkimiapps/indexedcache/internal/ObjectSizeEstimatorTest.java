@@ -0,0 +1,42 @@
+/*
+ * Copyright (c) 2019. Allan Boyd
+ * This program is made available under the terms of the Apache License v2.0.
+ */
+
+package com.alkimiapps.indexedcache.internal;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+
+public class ObjectSizeEstimatorTest {
+
+    @Test
+    public void testTheObjectLimitAppliesToEachCallNotToTheVisitedSet() {
+        Set<Object> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+        // Each graph is more than half the limit so the second would be cut short if the limit were on the visited set
+        long first = ObjectSizeEstimator.deepSize(graphOf(ObjectSizeEstimator.MAX_OBJECTS * 2 / 3), visited);
+        long second = ObjectSizeEstimator.deepSize(graphOf(ObjectSizeEstimator.MAX_OBJECTS * 2 / 3), visited);
+        assertEquals(first, second);
+    }
+
+    @Test
+    public void testObjectsAlreadyVisitedAreNotCountedAgain() {
+        Set<Object> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+        Object[] graph = graphOf(10);
+        ObjectSizeEstimator.deepSize(graph, visited);
+        assertEquals(0, ObjectSizeEstimator.deepSize(graph, visited));
+    }
+
+    private static Object[] graphOf(int objects) {
+        Object[] graph = new Object[objects - 1];
+        for (int i = 0; i < graph.length; i++) {
+            graph[i] = new Object();
+        }
+        return graph;
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2019. Allan Boyd
+ * This program is made available under the terms of the Apache License v2.0.
+ */
+
+package com.alkimiapps.indexedcache.internal;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PublicationGateTest {
+
+    @Test
+    public void testWritesDoNotWaitForEachOther() throws InterruptedException {
+        PublicationGate publicationGate = new PublicationGate();
+        publicationGate.startWrite();
+        CountDownLatch written = new CountDownLatch(1);
+        Thread writer = new Thread(() -> {
+            publicationGate.startWrite();
+            publicationGate.finishWrite();
+            written.countDown();
+        });
+        writer.start();
+        assertTrue(written.await(5, TimeUnit.SECONDS));
+        publicationGate.finishWrite();
+        writer.join();
+    }
+
+    @Test
+    public void testReadsThatKeepOverlappingWritesAreRetriedUntilTheyDoNot() {
+        PublicationGate publicationGate = new PublicationGate();
+        AtomicInteger attempts = new AtomicInteger();
+        String result = publicationGate.read(() -> {
+            // The first attempts overlap a write, well past the optimistic attempts
+            if (attempts.incrementAndGet() <= 20) {
+                publicationGate.startWrite();
+                publicationGate.finishWrite();
+            }
+            return "read";
+        });
+        assertEquals("read", result);
+        assertEquals(21, attempts.get());
+    }
+
+    @Test
+    public void testWritesDoNotWaitForReads() throws InterruptedException {
+        PublicationGate publicationGate = new PublicationGate();
+        CountDownLatch reading = new CountDownLatch(1);
+        CountDownLatch written = new CountDownLatch(1);
+        AtomicInteger attempts = new AtomicInteger();
+        Thread reader = new Thread(() -> publicationGate.read(() -> {
+            // Overlap writes until the read is past its optimistic attempts, then wait for a write made meanwhile
+            int attempt = attempts.incrementAndGet();
+            if (attempt < 5) {
+                publicationGate.startWrite();
+                publicationGate.finishWrite();
+            } else if (attempt == 5) {
+                reading.countDown();
+                try {
+                    written.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return "read";
+        }));
+        reader.start();
+        assertTrue(reading.await(5, TimeUnit.SECONDS));
+        publicationGate.startWrite();
+        publicationGate.finishWrite();
+        assertTrue(reader.isAlive());
+        written.countDown();
+        reader.join();
+        assertEquals(6, attempts.get());
+    }
+
+    @Test
+    public void testReadsThatOverlapNoWriteAreMadeOnce() {
+        PublicationGate publicationGate = new PublicationGate();
+        AtomicInteger attempts = new AtomicInteger();
+        publicationGate.startWrite();
+        publicationGate.finishWrite();
+        assertEquals("read", publicationGate.read(() -> {
+            attempts.incrementAndGet();
+            return "read";
+        }));
+        assertEquals(1, attempts.get());
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2019. Allan Boyd
+ * This program is made available under the terms of the Apache License v2.0.
+ */
+
+package com.alkimiapps.indexedcache.internal;
+
+import com.alkimiapps.keys.Widget;
+import com.googlecode.cqengine.ConcurrentIndexedCollection;
+import com.googlecode.cqengine.IndexedCollection;
+import com.googlecode.cqengine.attribute.Attribute;
+import com.googlecode.cqengine.index.hash.HashIndex;
+import com.googlecode.cqengine.query.option.QueryOptions;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.googlecode.cqengine.query.QueryFactory.attribute;
+import static com.googlecode.cqengine.query.QueryFactory.descending;
+import static com.googlecode.cqengine.query.QueryFactory.equal;
+import static com.googlecode.cqengine.query.QueryFactory.or;
+import static com.googlecode.cqengine.query.QueryFactory.orderBy;
+import static com.googlecode.cqengine.query.QueryFactory.queryOptions;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class QueryShapeCacheTest {
+
+    private static final Attribute<Widget, String> Widget_Name = attribute("widgetName", Widget::getName);
+    private static final Attribute<Widget, String> Widget_Colour = attribute("widgetColour", Widget::getColour);
+
+    @Test
+    public void testValuesAreWorkedOutOncePerShapeUntilTheIndexesChange() {
+        QueryShapeCache<Integer> shapes = new QueryShapeCache<>(10);
+        AtomicInteger probes = new AtomicInteger();
+
+        for (String name : new String[]{"Frank", "Bob", "Zed"}) {
+            shapes.get(equal(Widget_Name, name), null, 1, probes::incrementAndGet);
+        }
+        assertEquals(1, probes.get());
+
+        shapes.get(equal(Widget_Name, "Frank"), null, 2, probes::incrementAndGet);
+        assertEquals(2, probes.get());
+        assertEquals(1, shapes.size());
+    }
+
+    @Test
+    public void testTheNumberOfShapesIsBounded() {
+        QueryShapeCache<Integer> shapes = new QueryShapeCache<>(1);
+        AtomicInteger probes = new AtomicInteger();
+
+        shapes.get(equal(Widget_Name, "Frank"), null, 1, probes::incrementAndGet);
+        shapes.get(equal(Widget_Colour, "Red"), null, 1, probes::incrementAndGet);
+        shapes.get(equal(Widget_Colour, "Red"), null, 1, probes::incrementAndGet);
+        assertEquals(3, probes.get());
+        assertEquals(1, shapes.size());
+    }
+
+    @Test
+    public void testSelectingAnIndexDoesNotBuildALazyIndex() {
+        IndexedCollection<Widget> indexedCollection = new ConcurrentIndexedCollection<>();
+        indexedCollection.add(new Widget("Frank"));
+        BackgroundIndex<String, Widget> lazyIndex = BackgroundIndex.lazy(HashIndex.onAttribute(Widget_Name), ForkJoinPool.commonPool());
+        indexedCollection.addIndex(lazyIndex);
+        List<Integer> versions = new ArrayList<>();
+        versions.add(BackgroundIndex.getStateChangeCount());
+
+        assertNull(QueryShape.selectIndex(equal(Widget_Name, "Frank"), new QueryOptions(), indexedCollection.getIndexes()));
+        assertEquals(BackgroundIndex.State.PENDING, lazyIndex.getState());
+
+        lazyIndex.build(Runnable::run);
+        assertEquals(lazyIndex, QueryShape.selectIndex(equal(Widget_Name, "Frank"), new QueryOptions(), indexedCollection.getIndexes()));
+        versions.add(BackgroundIndex.getStateChangeCount());
+        assertEquals(2, versions.stream().distinct().count());
+    }
+
+    @Test
+    public void testQueriesOfDifferentShapesAreCachedApart() {
+        QueryShapeCache<String> shapes = new QueryShapeCache<>(10);
+        QueryOptions byColour = queryOptions(orderBy(descending(Widget_Colour)));
+
+        assertEquals("name", shapes.get(equal(Widget_Name, "Frank"), null, 1, () -> "name"));
+        assertEquals("colour", shapes.get(equal(Widget_Colour, "Red"), null, 1, () -> "colour"));
+        assertEquals("or", shapes.get(or(equal(Widget_Name, "Frank"), equal(Widget_Colour, "Red")), null, 1, () -> "or"));
+        assertEquals("ordered", shapes.get(equal(Widget_Name, "Frank"), byColour, 1, () -> "ordered"));
+        assertEquals("name", shapes.get(equal(Widget_Name, "Bob"), null, 1, () -> "other"));
+        assertEquals("ordered", shapes.get(equal(Widget_Name, "Bob"), byColour, 1, () -> "other"));
+        assertEquals(4, shapes.size());
+    }
+}
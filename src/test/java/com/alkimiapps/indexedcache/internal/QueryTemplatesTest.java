@@ -0,0 +1,41 @@
+/*
+ * Copyright (c) 2019. Allan Boyd
+ * This program is made available under the terms of the Apache License v2.0.
+ */
+
+package com.alkimiapps.indexedcache.internal;
+
+import com.alkimiapps.indexedcache.IndexedCache;
+import com.alkimiapps.keys.Widget;
+import com.googlecode.cqengine.attribute.Attribute;
+import com.googlecode.cqengine.query.parser.common.ParseResult;
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static com.googlecode.cqengine.query.QueryFactory.attribute;
+import static com.googlecode.cqengine.query.QueryFactory.equal;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+
+public class QueryTemplatesTest {
+
+    private static final Attribute<Widget, String> Widget_Name = attribute("widgetName", Widget::getName);
+
+    @Test
+    public void testEachBindHasItsOwnQueryOptions() {
+        QueryTemplates<Widget> queryTemplates = new QueryTemplates<>(IndexedCache.QueryLanguage.SQL, Widget.class,
+                Collections.singletonList(Widget_Name), new QueryStatistics());
+        String sql = "SELECT * FROM widgets WHERE widgetName = ?";
+        ParseResult<Widget> first = queryTemplates.bind(sql, "Frank");
+        ParseResult<Widget> second = queryTemplates.bind(sql, "Bob");
+
+        assertEquals(equal(Widget_Name, "Frank"), first.getQuery());
+        assertEquals(equal(Widget_Name, "Bob"), second.getQuery());
+        assertNotSame(first.getQueryOptions(), second.getQueryOptions());
+        first.getQueryOptions().put("request", "first");
+        assertFalse(second.getQueryOptions().getOptions().containsKey("request"));
+        assertEquals(1, queryTemplates.size());
+    }
+}
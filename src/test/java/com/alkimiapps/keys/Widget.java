@@ -7,6 +7,7 @@ package com.alkimiapps.keys;
 
 public class Widget {
     private String name;
+    private String colour;
 
     public Widget(String name) {
         this.name = name;
@@ -16,6 +17,14 @@ public class Widget {
         return name;
     }
 
+    public String getColour() {
+        return colour;
+    }
+
+    public void setColour(String colour) {
+        this.colour = colour;
+    }
+
     @Override
     public boolean equals(Object o) {
         return o instanceof Widget && ((Widget) o).name.equals(name);
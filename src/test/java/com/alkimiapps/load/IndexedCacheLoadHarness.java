@@ -0,0 +1,219 @@
+/*
+ * Copyright (c) 2019. Allan Boyd
+ * This program is made available under the terms of the Apache License v2.0.
+ */
+
+package com.alkimiapps.load;
+
+import com.alkimiapps.indexedcache.IdentityCacheKeyMaker;
+import com.alkimiapps.indexedcache.IndexedCache;
+import com.alkimiapps.indexedcache.internal.LatencyHistogram;
+import com.alkimiapps.keys.Widget;
+import com.googlecode.cqengine.ConcurrentIndexedCollection;
+import com.googlecode.cqengine.attribute.Attribute;
+import com.googlecode.cqengine.index.hash.HashIndex;
+import com.googlecode.cqengine.resultset.ResultSet;
+import org.ehcache.config.CacheConfiguration;
+import org.ehcache.config.builders.CacheConfigurationBuilder;
+import org.ehcache.config.builders.CacheEventListenerConfigurationBuilder;
+import org.ehcache.config.builders.ExpiryPolicyBuilder;
+import org.ehcache.config.builders.ResourcePoolsBuilder;
+import org.ehcache.event.CacheEventListener;
+import org.ehcache.event.EventType;
+import org.ehcache.jsr107.Eh107Configuration;
+
+import javax.cache.Cache;
+import javax.cache.CacheManager;
+import javax.cache.Caching;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.googlecode.cqengine.query.QueryFactory.attribute;
+import static com.googlecode.cqengine.query.QueryFactory.equal;
+
+/**
+ * A multi-threaded load on an IndexedCache over an Ehcache JCache (with eviction and expiry if configured), to see how
+ * it behaves under contention. Each thread runs a random mix of add, update, remove and retrieve operations on random
+ * keys for the configured duration.
+ *
+ * The report gives the throughput and latency percentiles of each operation, the depth of the background cache
+ * maintenance queue as the load ran, and - once the load has stopped and the queue has drained - the drift between the
+ * entries of the JCache and the objects of the IndexedCollection.
+ *
+ * Run it with ./gradlew loadTest (see LoadConfiguration for the load.* system properties that configure it).
+ */
+public final class IndexedCacheLoadHarness {
+
+    private static final Attribute<Widget, String> Widget_Name = attribute("widgetName", Widget::getName);
+    private static final Attribute<Widget, String> Widget_Colour = attribute("widgetColour", Widget::getColour);
+    private static final long DRAIN_TIMEOUT_MILLIS = 300_000;
+
+    private final LoadConfiguration configuration;
+    private final Map<LoadConfiguration.Operation, LatencyHistogram> latencies = new EnumMap<>(LoadConfiguration.Operation.class);
+    private final LongAdder failures = new LongAdder();
+    private Cache<Widget, Widget> cache;
+    private IndexedCache<Widget, Widget> indexedCache;
+
+    public IndexedCacheLoadHarness(LoadConfiguration configuration) {
+        this.configuration = configuration;
+        for (LoadConfiguration.Operation operation : LoadConfiguration.Operation.values()) {
+            latencies.put(operation, new LatencyHistogram());
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        LoadConfiguration configuration = LoadConfiguration.fromSystemProperties();
+        System.out.println("IndexedCache load: " + configuration);
+        System.out.println(new IndexedCacheLoadHarness(configuration).run());
+        System.exit(0);
+    }
+
+    public LoadReport run() throws InterruptedException {
+        CacheManager cacheManager = Caching.getCachingProvider().getCacheManager();
+        cache = cacheManager.createCache("load-" + UUID.randomUUID(), Eh107Configuration.fromEhcacheCacheConfiguration(cacheConfiguration()));
+        indexedCache = new IndexedCache<>(new ConcurrentIndexedCollection<>(), cache, new IdentityCacheKeyMaker<>());
+        indexedCache.addIndex(HashIndex.onAttribute(Widget_Name));
+        indexedCache.addIndex(HashIndex.onAttribute(Widget_Colour));
+        LoadReport report = new LoadReport(configuration);
+        try {
+            ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor();
+            sampler.scheduleAtFixedRate(() -> report.sampleQueueDepth(indexedCache.getMXBean().getMaintenanceQueueDepth()),
+                    0, configuration.getSampleIntervalMillis(), TimeUnit.MILLISECONDS);
+            long start = System.nanoTime();
+            runLoad();
+            long elapsedNanos = System.nanoTime() - start;
+            sampler.shutdownNow();
+            report.setOperations(latencies, elapsedNanos, failures.sum());
+            report.setQueueDepthAtEnd(indexedCache.getMXBean().getMaintenanceQueueDepth());
+            report.setDrainMillis(drain());
+            measureDrift(report);
+        } finally {
+            indexedCache.close();
+            cacheManager.destroyCache(cache.getName());
+        }
+        return report;
+    }
+
+    private CacheConfiguration<Widget, Widget> cacheConfiguration() {
+        // JSR-107 has no eviction event so evictions are passed on to the IndexedCache by an Ehcache listener (see
+        // LimitedCacheIndexedCacheTest)
+        CacheEventListener<Widget, Widget> evictionListener = event -> indexedCache.remove(event.getOldValue());
+        long maxEntries = configuration.getMaxEntries() > 0 ? configuration.getMaxEntries() : Long.MAX_VALUE;
+        CacheConfigurationBuilder<Widget, Widget> builder = CacheConfigurationBuilder.newCacheConfigurationBuilder(Widget.class, Widget.class,
+                ResourcePoolsBuilder.heap(maxEntries).build())
+                .add(CacheEventListenerConfigurationBuilder.newEventListenerConfiguration(evictionListener, EventType.EVICTED).unordered().asynchronous());
+        if (configuration.getTimeToLiveMillis() > 0) {
+            builder = builder.withExpiry(ExpiryPolicyBuilder.timeToLiveExpiration(Duration.ofMillis(configuration.getTimeToLiveMillis())));
+        }
+        return builder.build();
+    }
+
+    private void runLoad() throws InterruptedException {
+        ExecutorService workers = Executors.newFixedThreadPool(configuration.getThreads());
+        CountDownLatch finished = new CountDownLatch(configuration.getThreads());
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(configuration.getDurationMillis());
+        for (int i = 0; i < configuration.getThreads(); i++) {
+            workers.execute(() -> {
+                try {
+                    while (System.nanoTime() < deadline) {
+                        runOperation();
+                    }
+                } finally {
+                    finished.countDown();
+                }
+            });
+        }
+        finished.await();
+        workers.shutdown();
+    }
+
+    private void runOperation() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        LoadConfiguration.Operation operation = configuration.operationAt(random.nextInt(configuration.getTotalWeight()));
+        String name = "Widget" + random.nextInt(configuration.getKeySpace());
+        String colour = "colour" + random.nextInt(configuration.getColours());
+        long start = System.nanoTime();
+        try {
+            switch (operation) {
+                case ADD:
+                    indexedCache.add(widget(name, colour));
+                    break;
+                case UPDATE:
+                    // Widgets are equal by name so this replaces the widget with the name (if any) with one of a new
+                    // colour. The current widget is looked up so that it is removed from the colour index too.
+                    indexedCache.update(current(name), Collections.singleton(widget(name, colour)));
+                    break;
+                case REMOVE:
+                    for (Widget widget : current(name)) {
+                        indexedCache.remove(widget);
+                    }
+                    break;
+                case RETRIEVE:
+                    try (ResultSet<Widget> results = random.nextBoolean()
+                            ? indexedCache.retrieve(equal(Widget_Name, name)) : indexedCache.retrieve(equal(Widget_Colour, colour))) {
+                        results.forEach(widget -> { });
+                    }
+                    break;
+            }
+        } catch (RuntimeException e) {
+            failures.increment();
+        }
+        latencies.get(operation).record(System.nanoTime() - start);
+    }
+
+    private long drain() throws InterruptedException {
+        long start = System.currentTimeMillis();
+        while (indexedCache.getMXBean().getMaintenanceQueueDepth() > 0 && System.currentTimeMillis() - start < DRAIN_TIMEOUT_MILLIS) {
+            Thread.sleep(10);
+        }
+        return System.currentTimeMillis() - start;
+    }
+
+    private void measureDrift(LoadReport report) throws InterruptedException {
+        // Iterating the cache expires the entries that have outlived their time to live, so iterate it once and let the
+        // resulting events reach the IndexedCache before comparing the two
+        cache.forEach(entry -> { });
+        Thread.sleep(configuration.getSampleIntervalMillis());
+        drain();
+        Set<String> cached = new HashSet<>();
+        cache.forEach(entry -> cached.add(entry.getKey().getName()));
+        Set<String> indexed = new HashSet<>();
+        indexedCache.forEach(widget -> indexed.add(widget.getName()));
+        int missing = 0;
+        for (String name : cached) {
+            if (!indexed.contains(name)) {
+                missing++;
+            }
+        }
+        int orphans = 0;
+        for (String name : indexed) {
+            if (!cached.contains(name)) {
+                orphans++;
+            }
+        }
+        report.setDrift(cached.size(), indexed.size(), missing, orphans);
+    }
+
+    private Set<Widget> current(String name) {
+        Widget widget = cache.get(new Widget(name));
+        return widget == null ? Collections.emptySet() : Collections.singleton(widget);
+    }
+
+    private static Widget widget(String name, String colour) {
+        Widget widget = new Widget(name);
+        widget.setColour(colour);
+        return widget;
+    }
+}
@@ -0,0 +1,28 @@
+/*
+ * Copyright (c) 2019. Allan Boyd
+ * This program is made available under the terms of the Apache License v2.0.
+ */
+
+package com.alkimiapps.load;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class IndexedCacheLoadHarnessTest {
+
+    @Test
+    public void testShortLoadLeavesNoDrift() throws InterruptedException {
+        LoadReport report = new IndexedCacheLoadHarness(new LoadConfiguration()
+                .withThreads(4).withDurationMillis(1000).withKeySpace(1000)).run();
+
+        for (LoadConfiguration.Operation operation : LoadConfiguration.Operation.values()) {
+            assertTrue(report.getOperationCount(operation) > 0);
+        }
+        assertEquals(0, report.getFailureCount());
+        assertEquals(0, report.getMissingCount());
+        assertEquals(0, report.getOrphanCount());
+        assertEquals(report.getCacheEntries(), report.getIndexedObjects());
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2019. Allan Boyd
+ * This program is made available under the terms of the Apache License v2.0.
+ */
+
+package com.alkimiapps.load;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * The configuration of an IndexedCacheLoadHarness run, read from load.* system properties (see fromSystemProperties) so
+ * that it can be given on the Gradle command line e.g. ./gradlew loadTest -Dload.threads=16 -Dload.seconds=60.
+ */
+public final class LoadConfiguration {
+
+    /**
+     * The operations of the load, each run against a random key.
+     */
+    public enum Operation {ADD, UPDATE, REMOVE, RETRIEVE}
+
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private long durationMillis = 30_000;
+    private int keySpace = 100_000;
+    private int colours = 16;
+    private final Map<Operation, Integer> mix = new EnumMap<>(Operation.class);
+    private long timeToLiveMillis = 0;
+    private long maxEntries = 0;
+    private long sampleIntervalMillis = 1000;
+
+    public LoadConfiguration() {
+        mix.put(Operation.ADD, 30);
+        mix.put(Operation.UPDATE, 20);
+        mix.put(Operation.REMOVE, 10);
+        mix.put(Operation.RETRIEVE, 40);
+    }
+
+    /**
+     * Read the configuration from the system properties load.threads, load.seconds, load.keys, load.colours, load.mix
+     * (e.g. add:30,update:20,remove:10,retrieve:40), load.ttlMillis and load.maxEntries (0 for no expiry or eviction)
+     * and load.sampleMillis, defaulting any that are not set.
+     */
+    public static LoadConfiguration fromSystemProperties() {
+        LoadConfiguration configuration = new LoadConfiguration();
+        configuration.threads = Integer.getInteger("load.threads", configuration.threads);
+        configuration.durationMillis = Long.getLong("load.seconds", configuration.durationMillis / 1000) * 1000;
+        configuration.keySpace = Integer.getInteger("load.keys", configuration.keySpace);
+        configuration.colours = Integer.getInteger("load.colours", configuration.colours);
+        configuration.timeToLiveMillis = Long.getLong("load.ttlMillis", configuration.timeToLiveMillis);
+        configuration.maxEntries = Long.getLong("load.maxEntries", configuration.maxEntries);
+        configuration.sampleIntervalMillis = Long.getLong("load.sampleMillis", configuration.sampleIntervalMillis);
+        String mix = System.getProperty("load.mix");
+        if (mix != null) {
+            configuration.mix.clear();
+            for (String weight : mix.split(",")) {
+                String[] parts = weight.trim().split(":");
+                configuration.withWeight(Operation.valueOf(parts[0].trim().toUpperCase()), Integer.parseInt(parts[1].trim()));
+            }
+        }
+        return configuration;
+    }
+
+    public LoadConfiguration withThreads(int threads) {
+        this.threads = threads;
+        return this;
+    }
+
+    public LoadConfiguration withDurationMillis(long durationMillis) {
+        this.durationMillis = durationMillis;
+        return this;
+    }
+
+    public LoadConfiguration withKeySpace(int keySpace) {
+        this.keySpace = keySpace;
+        return this;
+    }
+
+    public LoadConfiguration withWeight(Operation operation, int weight) {
+        mix.put(operation, weight);
+        return this;
+    }
+
+    public LoadConfiguration withTimeToLiveMillis(long timeToLiveMillis) {
+        this.timeToLiveMillis = timeToLiveMillis;
+        return this;
+    }
+
+    public LoadConfiguration withMaxEntries(long maxEntries) {
+        this.maxEntries = maxEntries;
+        return this;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public long getDurationMillis() {
+        return durationMillis;
+    }
+
+    public int getKeySpace() {
+        return keySpace;
+    }
+
+    public int getColours() {
+        return colours;
+    }
+
+    public long getTimeToLiveMillis() {
+        return timeToLiveMillis;
+    }
+
+    public long getMaxEntries() {
+        return maxEntries;
+    }
+
+    public long getSampleIntervalMillis() {
+        return sampleIntervalMillis;
+    }
+
+    /**
+     * Return the operation a random number from 0 (inclusive) to the total weight of the mix (exclusive) falls on.
+     */
+    public Operation operationAt(int point) {
+        int total = 0;
+        for (Map.Entry<Operation, Integer> weight : mix.entrySet()) {
+            total += weight.getValue();
+            if (point < total) {
+                return weight.getKey();
+            }
+        }
+        throw new IllegalArgumentException(point + " is outside the mix " + mix);
+    }
+
+    public int getTotalWeight() {
+        return mix.values().stream().mapToInt(Integer::intValue).sum();
+    }
+
+    @Override
+    public String toString() {
+        return "threads=" + threads + ", seconds=" + durationMillis / 1000.0 + ", keys=" + keySpace + ", colours=" + colours
+                + ", mix=" + mix + ", ttlMillis=" + timeToLiveMillis + ", maxEntries=" + maxEntries;
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2019. Allan Boyd
+ * This program is made available under the terms of the Apache License v2.0.
+ */
+
+package com.alkimiapps.load;
+
+import com.alkimiapps.indexedcache.internal.LatencyHistogram;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The results of an IndexedCacheLoadHarness run.
+ */
+public final class LoadReport {
+
+    private final LoadConfiguration configuration;
+    private final Map<LoadConfiguration.Operation, LatencyHistogram> latencies = new EnumMap<>(LoadConfiguration.Operation.class);
+    private final List<Integer> queueDepths = new ArrayList<>();
+    private long elapsedNanos;
+    private long failures;
+    private int queueDepthAtEnd;
+    private long drainMillis;
+    private int cacheEntries;
+    private int indexedObjects;
+    private int missing;
+    private int orphans;
+
+    LoadReport(LoadConfiguration configuration) {
+        this.configuration = configuration;
+    }
+
+    synchronized void sampleQueueDepth(int queueDepth) {
+        queueDepths.add(queueDepth);
+    }
+
+    void setOperations(Map<LoadConfiguration.Operation, LatencyHistogram> latencies, long elapsedNanos, long failures) {
+        this.latencies.putAll(latencies);
+        this.elapsedNanos = elapsedNanos;
+        this.failures = failures;
+    }
+
+    void setQueueDepthAtEnd(int queueDepthAtEnd) {
+        this.queueDepthAtEnd = queueDepthAtEnd;
+    }
+
+    void setDrainMillis(long drainMillis) {
+        this.drainMillis = drainMillis;
+    }
+
+    void setDrift(int cacheEntries, int indexedObjects, int missing, int orphans) {
+        this.cacheEntries = cacheEntries;
+        this.indexedObjects = indexedObjects;
+        this.missing = missing;
+        this.orphans = orphans;
+    }
+
+    public long getOperationCount() {
+        return latencies.values().stream().mapToLong(LatencyHistogram::getCount).sum();
+    }
+
+    public double getOperationsPerSecond() {
+        return elapsedNanos == 0 ? 0 : getOperationCount() * 1e9 / elapsedNanos;
+    }
+
+    public long getOperationCount(LoadConfiguration.Operation operation) {
+        LatencyHistogram histogram = latencies.get(operation);
+        return histogram == null ? 0 : histogram.getCount();
+    }
+
+    public long getFailureCount() {
+        return failures;
+    }
+
+    public synchronized int getMaxQueueDepth() {
+        return queueDepths.stream().mapToInt(Integer::intValue).max().orElse(0);
+    }
+
+    public int getQueueDepthAtEnd() {
+        return queueDepthAtEnd;
+    }
+
+    public long getDrainMillis() {
+        return drainMillis;
+    }
+
+    public int getCacheEntries() {
+        return cacheEntries;
+    }
+
+    public int getIndexedObjects() {
+        return indexedObjects;
+    }
+
+    /**
+     * The number of cache entries whose values are not in the IndexedCollection.
+     */
+    public int getMissingCount() {
+        return missing;
+    }
+
+    /**
+     * The number of objects in the IndexedCollection that have no cache entry.
+     */
+    public int getOrphanCount() {
+        return orphans;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("%-10s %12s %12s %10s %10s %10s %10s%n", "operation", "count", "ops/s", "p50 us", "p99 us", "p99.9 us", "max us"));
+        latencies.forEach((operation, histogram) -> report.append(String.format("%-10s %12d %12.0f %10.1f %10.1f %10.1f %10.1f%n",
+                operation.name().toLowerCase(), histogram.getCount(), histogram.getCount() * 1e9 / Math.max(1, elapsedNanos),
+                micros(histogram.getValueAtPercentile(50)), micros(histogram.getValueAtPercentile(99)),
+                micros(histogram.getValueAtPercentile(99.9)), micros(histogram.getMax()))));
+        report.append(String.format("%-10s %12d %12.0f%n", "total", getOperationCount(), getOperationsPerSecond()));
+        report.append("failures: ").append(failures).append(String.format("%n"));
+        report.append("maintenance queue depth: ").append(queueDepths)
+                .append(" (every ").append(configuration.getSampleIntervalMillis()).append("ms), max ").append(getMaxQueueDepth())
+                .append(", at end ").append(queueDepthAtEnd).append(", drained in ").append(drainMillis).append("ms").append(String.format("%n"));
+        report.append("drift: ").append(cacheEntries).append(" cache entries, ").append(indexedObjects).append(" indexed objects, ")
+                .append(missing).append(" missing from the index, ").append(orphans).append(" orphaned in the index");
+        return report.toString();
+    }
+
+    private static double micros(long nanos) {
+        return nanos / (double) TimeUnit.MICROSECONDS.toNanos(1);
+    }
+}